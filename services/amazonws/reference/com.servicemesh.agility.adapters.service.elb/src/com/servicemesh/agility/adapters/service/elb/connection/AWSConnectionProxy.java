@@ -12,7 +12,6 @@ import org.apache.log4j.Logger;
 import com.servicemesh.agility.adapters.core.aws.AWSConnection;
 import com.servicemesh.agility.adapters.core.aws.AWSConnectionFactory;
 import com.servicemesh.agility.adapters.core.aws.AWSCredentialFactory;
-import com.servicemesh.agility.api.AssetProperty;
 import com.servicemesh.agility.api.Cloud;
 import com.servicemesh.agility.api.Credential;
 import com.servicemesh.agility.api.Property;
@@ -62,7 +61,27 @@ public class AWSConnectionProxy
         if (proxies != null && (!proxies.isEmpty())) {
             proxy = proxies.get(0);
         }
+        return create(cred, endpoint, proxy, settings);
+    }
 
+    /**
+     * Creates an AWSConnectionProxy from credentials that have already been resolved.
+     * 
+     * @param cred
+     *            The provider credentials
+     * @param endpoint
+     *            The endpoint used by the connection
+     * @param proxy
+     *            The proxy to be utilized. Optional - may be null.
+     * @param settings
+     *            The configuration settings for the connection. Optional - may be empty or null.
+     */
+    public static AWSConnectionProxy create(Credential cred, AWSEndpointProxy endpoint, Proxy proxy, List<Property> settings)
+            throws Exception
+    {
+        if (endpoint == null) {
+            throw new ServiceProviderException("The endpoint parameter cannot be null.");
+        }
         AWSConnection connection =
                 AWSConnectionFactory.getInstance().getConnection(settings, cred, proxy, endpoint.getEndpoint());
         return new AWSConnectionProxy(connection, endpoint);
@@ -88,21 +107,31 @@ public class AWSConnectionProxy
         if (provider == null) {
             throw new Exception("The service provider cannot be null");
         }
-        String AmazonURI = null;
-        for (AssetProperty property : provider.getProperties()) {
-            if (property.getName().equals(EC2Endpoint.CONFIG_ENDPOINT)) {
-                AmazonURI = property.getStringValue();
-                break;
-            }
-        }
-
         Proxy proxy = null;
         if (proxies != null && (!proxies.isEmpty())) {
             proxy = proxies.get(0);
         }
         Credential cred = AWSCredentialFactory.getInstance().getCredentials(provider, clouds);
+        return createSecurityGroupConnection(cred, EC2Endpoint.getAddress(provider), proxy, settings);
+    }
+
+    /**
+     * Creates an AWSConnectionProxy for EC2SecurityGroupOperations from credentials that have already been resolved.
+     * 
+     * @param cred
+     *            The provider credentials
+     * @param address
+     *            The EC2 endpoint address of the provider
+     * @param proxy
+     *            The proxy to be utilized. Optional - may be null.
+     * @param settings
+     *            The configuration settings for the connection. Optional - may be empty or null.
+     */
+    public static AWSConnectionProxy createSecurityGroupConnection(Credential cred, String address, Proxy proxy,
+            List<Property> settings) throws Exception
+    {
         AWSConnection connection =
-                AWSConnectionFactory.getInstance().getSecurityGroupConnection(settings, cred, proxy, AmazonURI);
+                AWSConnectionFactory.getInstance().getSecurityGroupConnection(settings, cred, proxy, address);
         SecurityGroupEndpoint endpoint = new SecurityGroupEndpoint(connection.getEndpoint());
         return new AWSConnectionProxy(connection, endpoint);
     }
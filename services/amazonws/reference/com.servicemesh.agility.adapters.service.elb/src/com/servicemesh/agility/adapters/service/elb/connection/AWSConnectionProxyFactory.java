@@ -5,33 +5,263 @@
 
 package com.servicemesh.agility.adapters.service.elb.connection;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.aws.AWSCredentialFactory;
 import com.servicemesh.agility.adapters.service.elb.ELBAdapter;
+import com.servicemesh.agility.api.Credential;
+import com.servicemesh.agility.api.Property;
+import com.servicemesh.agility.api.ServiceProvider;
+import com.servicemesh.agility.sdk.service.exception.ServiceProviderException;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderRequest;
+import com.servicemesh.io.proxy.Proxy;
 
+/**
+ * Creates the connections used by the ELB operations and caches them, so that the endpoint and connection for a provider are
+ * only built once. Connections are keyed by provider id, endpoint address, fingerprints of the provider credentials and the
+ * request settings, and the proxy, so a credential, settings or proxy change results in a new connection. Connections that
+ * have not been used within the idle timeout are evicted and the cache never holds more than the configured maximum number
+ * of connections.
+ */
 public class AWSConnectionProxyFactory
 {
+    private static final Logger logger = Logger.getLogger(AWSConnectionProxyFactory.class);
+
+    public static final String CONFIG_CACHE_SIZE = "AgilityManager.ELB.ConnectionCacheSize";
+    public static final String CONFIG_CACHE_IDLE_TIMEOUT = "AgilityManager.ELB.ConnectionCacheIdleTimeout";
+    // maximum number of cached connections, and milliseconds a connection may stay unused
+    public static final int CACHE_SIZE_DEFAULT = 64;
+    public static final long CACHE_IDLE_TIMEOUT_DEFAULT = 30 * 60 * 1000;
+
+    private static final String ELB = "elb";
+    private static final String EC2 = "ec2";
+    private static final String SECURITY_GROUPS = "sg";
+
+    private final int _maxSize;
+    private final long _idleTimeout;
+
+    // access ordered, so the least recently used connection comes first
+    private final LinkedHashMap<String, CacheEntry> _connections = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
 
     public AWSConnectionProxyFactory() throws Exception
     {
+        this(Integer.getInteger(CONFIG_CACHE_SIZE, CACHE_SIZE_DEFAULT), Long.getLong(CONFIG_CACHE_IDLE_TIMEOUT,
+                CACHE_IDLE_TIMEOUT_DEFAULT));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize
+     *            Maximum number of cached connections
+     * @param idleTimeout
+     *            Milliseconds after which an unused connection is evicted
+     */
+    public AWSConnectionProxyFactory(int maxSize, long idleTimeout)
+    {
+        _maxSize = Math.max(1, maxSize);
+        _idleTimeout = idleTimeout;
     }
 
     public AWSConnectionProxy getELBConnection(ServiceProviderRequest request) throws Exception
     {
-        return AWSConnectionProxy.create(request.getProvider(), request.getClouds(),
-                ELBEndpoint.getInstance(request.getProvider().getHostname()), ELBAdapter.getProxyConfig(request),
-                request.getSettings());
+        ServiceProvider provider = getProvider(request);
+        Credential cred = AWSCredentialFactory.getInstance().getCredentials(provider, request.getClouds());
+        Proxy proxy = getProxy(request);
+        String address = provider.getHostname();
+        String key = makeKey(ELB, provider, address, cred, proxy, request.getSettings());
+        AWSConnectionProxy connection = lookup(key);
+        if (connection == null) {
+            connection = AWSConnectionProxy.create(cred, ELBEndpoint.getInstance(address), proxy, request.getSettings());
+            store(key, connection);
+        }
+        return connection;
     }
 
     public AWSConnectionProxy getEC2Connection(ServiceProviderRequest request) throws Exception
     {
-        return AWSConnectionProxy.create(request.getProvider(), request.getClouds(), EC2Endpoint.getInstance(request),
-                ELBAdapter.getProxyConfig(request), request.getSettings());
+        ServiceProvider provider = getProvider(request);
+        Credential cred = AWSCredentialFactory.getInstance().getCredentials(provider, request.getClouds());
+        Proxy proxy = getProxy(request);
+        String address = EC2Endpoint.getAddress(provider);
+        String key = makeKey(EC2, provider, address, cred, proxy, request.getSettings());
+        AWSConnectionProxy connection = lookup(key);
+        if (connection == null) {
+            EC2Endpoint endpoint = address != null ? EC2Endpoint.getInstance(address) : null;
+            connection = AWSConnectionProxy.create(cred, endpoint, proxy, request.getSettings());
+            store(key, connection);
+        }
+        return connection;
     }
 
     public AWSConnectionProxy getSecurityGroupsConnection(ServiceProviderRequest request) throws Exception
     {
-        return AWSConnectionProxy.createSecurityGroupConnection(request.getProvider(), request.getClouds(),
-                ELBAdapter.getProxyConfig(request), request.getSettings());
+        ServiceProvider provider = getProvider(request);
+        Credential cred = AWSCredentialFactory.getInstance().getCredentials(provider, request.getClouds());
+        Proxy proxy = getProxy(request);
+        String address = EC2Endpoint.getAddress(provider);
+        String key = makeKey(SECURITY_GROUPS, provider, address, cred, proxy, request.getSettings());
+        AWSConnectionProxy connection = lookup(key);
+        if (connection == null) {
+            connection = AWSConnectionProxy.createSecurityGroupConnection(cred, address, proxy, request.getSettings());
+            store(key, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Removes the cached connections of a provider. Should be called when a service provider is updated or deleted.
+     *
+     * @param provider
+     *            The service provider
+     */
+    public void invalidate(ServiceProvider provider)
+    {
+        if (provider == null)
+            return;
+        String id = "|" + provider.getId() + "|";
+        synchronized (_connections) {
+            for (Iterator<String> i = _connections.keySet().iterator(); i.hasNext();) {
+                if (i.next().contains(id))
+                    i.remove();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Cached connections removed for provider " + provider.getId());
+        }
+    }
+
+    /**
+     * Returns the number of cached connections.
+     */
+    public int size()
+    {
+        synchronized (_connections) {
+            return _connections.size();
+        }
+    }
+
+    private AWSConnectionProxy lookup(String key)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (_connections) {
+            evictIdle(now);
+            CacheEntry entry = _connections.get(key);
+            if (entry == null)
+                return null;
+            entry.lastAccess = now;
+            return entry.connection;
+        }
+    }
+
+    private void store(String key, AWSConnectionProxy connection)
+    {
+        synchronized (_connections) {
+            _connections.put(key, new CacheEntry(connection));
+            // drop the least recently used connections
+            Iterator<CacheEntry> i = _connections.values().iterator();
+            while (_connections.size() > _maxSize && i.hasNext()) {
+                i.next();
+                i.remove();
+            }
+        }
+    }
+
+    private void evictIdle(long now)
+    {
+        // entries are in access order, so stop at the first one still in use
+        for (Iterator<CacheEntry> i = _connections.values().iterator(); i.hasNext();) {
+            if (now - i.next().lastAccess <= _idleTimeout)
+                break;
+            i.remove();
+        }
+    }
+
+    private ServiceProvider getProvider(ServiceProviderRequest request) throws Exception
+    {
+        ServiceProvider provider = request.getProvider();
+        if (provider == null)
+            throw new ServiceProviderException("The service provider cannot be null");
+        return provider;
+    }
+
+    private Proxy getProxy(ServiceProviderRequest request) throws Exception
+    {
+        List<Proxy> proxies = ELBAdapter.getProxyConfig(request);
+        if (proxies != null && !proxies.isEmpty())
+            return proxies.get(0);
+        return null;
+    }
+
+    private String makeKey(String type, ServiceProvider provider, String address, Credential cred, Proxy proxy,
+            List<Property> settings)
+    {
+        return type + "|" + provider.getId() + "|" + address + "|" + fingerprint(cred) + "|" + fingerprint(settings) + "|"
+                + (proxy != null ? proxy.getHostname() + ":" + proxy.getPort() : "");
+    }
+
+    /**
+     * Returns a digest of the credential values, so a credential change can be detected without holding the key material in
+     * the cache key.
+     */
+    private String fingerprint(Credential cred)
+    {
+        if (cred == null)
+            return "";
+        return digest(new Object[] { cred.getCredentialId(), cred.getPublicKey(), cred.getPrivateKey() }, cred);
+    }
+
+    /**
+     * Returns a digest of the settings the connections are created with, independent of their order.
+     */
+    private String fingerprint(List<Property> settings)
+    {
+        if (settings == null || settings.isEmpty())
+            return "";
+        List<String> values = new ArrayList<String>();
+        for (Property setting : settings)
+            values.add(setting.getName() + "=" + setting.getValue());
+        Collections.sort(values);
+        return digest(values.toArray(), settings);
+    }
+
+    private String digest(Object[] values, Object source)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object value : values) {
+                digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder buf = new StringBuilder();
+            for (byte b : digest.digest())
+                buf.append(String.format("%02x", b));
+            return buf.toString();
+        }
+        catch (Exception e) {
+            logger.warn("Unable to compute connection fingerprint - " + e.getMessage());
+            return String.valueOf(System.identityHashCode(source));
+        }
+    }
+
+    private static class CacheEntry
+    {
+        private final AWSConnectionProxy connection;
+        private long lastAccess;
+
+        private CacheEntry(AWSConnectionProxy connection)
+        {
+            this.connection = connection;
+            lastAccess = System.currentTimeMillis();
+        }
     }
 
 }
@@ -5,6 +5,8 @@
 
 package com.servicemesh.agility.adapters.service.elb.connection;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.log4j.Logger;
 
 import com.amazonaws.ec2.doc._2013_10_15.SecurityGroupItemType;
@@ -45,6 +47,9 @@ public class EC2Endpoint implements AWSEndpointProxy
     public static final String EC2_VPC_SECURITY_GROUP_NAME = "group-name";
     public static final String EC2_VPC_ID = "vpc-id";
 
+    // endpoints are immutable and shared by all connections to the same address
+    private static final ConcurrentHashMap<String, EC2Endpoint> _instances = new ConcurrentHashMap<String, EC2Endpoint>();
+
     private EC2Endpoint(AWSEndpoint endpoint)
     {
         _endpoint = endpoint;
@@ -55,6 +60,9 @@ public class EC2Endpoint implements AWSEndpointProxy
         if (address == null) {
             throw new Exception("No address for EC2Endpoint");
         }
+        EC2Endpoint instance = _instances.get(address);
+        if (instance != null)
+            return instance;
         AWSEndpointFactory aef = AWSEndpointFactory.getInstance();
         AWSEndpoint endpoint = null;
 
@@ -68,23 +76,31 @@ public class EC2Endpoint implements AWSEndpointProxy
         if (logger.isDebugEnabled()) {
             logger.debug("create() EC2Endpoint: address=" + address);
         }
-        return new EC2Endpoint(endpoint);
+        instance = new EC2Endpoint(endpoint);
+        EC2Endpoint existing = _instances.putIfAbsent(address, instance);
+        return existing != null ? existing : instance;
     }
 
     public static EC2Endpoint getInstance(ServiceProviderRequest request) throws Exception
     {
-        EC2Endpoint endpoint = null;
         ServiceProvider provider = request.getProvider();
         if (provider == null) {
             throw new Exception("The service provider cannot be null");
         }
+        String address = getAddress(provider);
+        return address != null ? getInstance(address) : null;
+    }
+
+    /**
+     * Returns the EC2 endpoint address configured on a provider, or null if there is none.
+     */
+    public static String getAddress(ServiceProvider provider)
+    {
         for (AssetProperty property : provider.getProperties()) {
-            if (property.getName().equals(EC2Endpoint.CONFIG_ENDPOINT)) {
-                endpoint = getInstance(property.getStringValue());
-                break;
-            }
+            if (property.getName().equals(EC2Endpoint.CONFIG_ENDPOINT))
+                return property.getStringValue();
         }
-        return endpoint;
+        return null;
     }
 
     @Override
@@ -5,12 +5,15 @@
 
 package com.servicemesh.agility.adapters.service.elb.connection;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.log4j.Logger;
 
 import com.amazonaws.elasticloadbalancing.doc._2012_06_01.Error;
 import com.servicemesh.agility.adapters.core.aws.AWSEndpoint;
 import com.servicemesh.agility.adapters.core.aws.AWSEndpointFactory;
 import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.api.ServiceProvider;
 
 public class ELBEndpoint implements AWSEndpointProxy
 {
@@ -50,6 +53,14 @@ public class ELBEndpoint implements AWSEndpointProxy
 
     // ELB Commands
     public static final String DESCRIBE_LOAD_BALANCERS = "DescribeLoadBalancers";
+    public static final String DESCRIBE_INSTANCE_HEALTH = "DescribeInstanceHealth";
+    public static final String ELB_MARKER = "Marker";
+    public static final String ELB_PAGE_SIZE = "PageSize";
+    public static final int ELB_MAX_PAGE_SIZE = 400;
+
+    // ELB Instance health states
+    public static final String ELB_IN_SERVICE = "InService";
+    public static final String ELB_OUT_OF_SERVICE = "OutOfService";
 
     // ELB Create Load Balancer Parameters
     public static final String ELB_CREATE_LOAD_BALANCER = "CreateLoadBalancer";
@@ -92,6 +103,9 @@ public class ELBEndpoint implements AWSEndpointProxy
     public static final String ELB_DETACH_SUBNETS = "DetachLoadBalancerFromSubnets";
     public static final String ELB_SUBNETS = "Subnets.member.%d";
 
+    // endpoints are immutable and shared by all connections to the same address
+    private static final ConcurrentHashMap<String, ELBEndpoint> _instances = new ConcurrentHashMap<String, ELBEndpoint>();
+
     private ELBEndpoint(AWSEndpoint endpoint)
     {
         _endpoint = endpoint;
@@ -102,6 +116,9 @@ public class ELBEndpoint implements AWSEndpointProxy
         if (address == null) {
             throw new Exception("No address for ELBEndpoint");
         }
+        ELBEndpoint instance = _instances.get(address);
+        if (instance != null)
+            return instance;
         AWSEndpointFactory aef = AWSEndpointFactory.getInstance();
         AWSEndpoint endpoint = null;
 
@@ -115,7 +132,17 @@ public class ELBEndpoint implements AWSEndpointProxy
         if (logger.isDebugEnabled()) {
             logger.debug("create() ELBEndpoint: address=" + address);
         }
-        return new ELBEndpoint(endpoint);
+        instance = new ELBEndpoint(endpoint);
+        ELBEndpoint existing = _instances.putIfAbsent(address, instance);
+        return existing != null ? existing : instance;
+    }
+
+    /**
+     * Identifies the provider and region of the load balancers of a provider.
+     */
+    public static String getRegionKey(ServiceProvider provider)
+    {
+        return provider.getId() + "/" + provider.getHostname();
     }
 
     public static String getName(ServiceInstance binding)
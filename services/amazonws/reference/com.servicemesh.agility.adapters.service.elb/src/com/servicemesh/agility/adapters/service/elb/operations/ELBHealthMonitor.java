@@ -0,0 +1,378 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.elb.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxy;
+import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxyFactory;
+import com.servicemesh.agility.api.Cloud;
+import com.servicemesh.agility.api.Property;
+import com.servicemesh.agility.api.ServiceProvider;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPingRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderRequest;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+
+/**
+ * Health cache for provider sync and postStart. Polls the health of the instances registered with the watched load
+ * balancers, with one DescribeInstanceHealth call per load balancer regardless of the number of instances. The interval
+ * adapts to the load balancer: it drops to the minimum when an instance changes state or a registration is expected to
+ * change, and doubles up to the maximum while nothing changes. State changes are only logged, the assets are updated by
+ * provider sync. The connection is looked up through the connection factory on every poll, so a provider update takes
+ * effect on the next poll. Only the provider, clouds and settings of the watching request are kept to build it.
+ */
+public class ELBHealthMonitor
+{
+    private static final Logger logger = Logger.getLogger(ELBHealthMonitor.class);
+
+    public static final String CONFIG_MIN_INTERVAL = "AgilityManager.ELB.HealthMinInterval";
+    public static final String CONFIG_MAX_INTERVAL = "AgilityManager.ELB.HealthMaxInterval";
+    // milliseconds between polls of a load balancer whose instances are changing, and of one that is stable
+    public static final long MIN_INTERVAL_DEFAULT = 15000;
+    public static final long MAX_INTERVAL_DEFAULT = 300000;
+
+    // polls without registered instances before a load balancer is no longer watched
+    private static final int MAX_IDLE_POLLS = 3;
+    private static final String REACTOR_NAME = "ELBHealth";
+
+    private static ELBHealthMonitor _instance;
+
+    private final TimerReactor _reactor;
+    private final long _minInterval;
+    private final long _maxInterval;
+    private final Map<String, Monitored> _monitored = new HashMap<String, Monitored>();
+
+    /**
+     * Constructor.
+     *
+     * @param reactor
+     *            Reactor used to schedule polls
+     * @param minInterval
+     *            Milliseconds between polls while instances are changing
+     * @param maxInterval
+     *            Milliseconds between polls while nothing changes
+     */
+    public ELBHealthMonitor(TimerReactor reactor, long minInterval, long maxInterval)
+    {
+        _reactor = reactor;
+        _minInterval = Math.max(1000, minInterval);
+        _maxInterval = Math.max(_minInterval, maxInterval);
+    }
+
+    /**
+     * Returns the monitor shared by all operations.
+     */
+    public static synchronized ELBHealthMonitor getInstance()
+    {
+        if (_instance == null) {
+            _instance =
+                    new ELBHealthMonitor(TimerReactor.getTimerReactor(REACTOR_NAME), Long.getLong(CONFIG_MIN_INTERVAL,
+                            MIN_INTERVAL_DEFAULT), Long.getLong(CONFIG_MAX_INTERVAL, MAX_INTERVAL_DEFAULT));
+        }
+        return _instance;
+    }
+
+    /**
+     * Starts polling a load balancer, or updates the provider, clouds and settings used to connect to it.
+     *
+     * @param factory
+     *            Creates the ELB connection used to poll
+     * @param request
+     *            Request holding the provider, clouds and settings of the load balancer
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     */
+    public void watch(AWSConnectionProxyFactory factory, ServiceProviderRequest request, String key, String elbName)
+    {
+        Monitored monitored;
+        int generation;
+        synchronized (_monitored) {
+            monitored = _monitored.get(key + "/" + elbName);
+            if (monitored != null) {
+                monitored.factory = factory;
+                monitored.setConnectionParams(request);
+                return;
+            }
+            monitored = new Monitored(factory, request, key + "/" + elbName, elbName, _minInterval);
+            _monitored.put(monitored.path, monitored);
+            generation = monitored.generation;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Watching health of " + elbName);
+            }
+        }
+        schedule(monitored, generation, _minInterval);
+    }
+
+    /**
+     * Stops polling a load balancer and drops its cached health.
+     *
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     */
+    public void unwatch(String key, String elbName)
+    {
+        synchronized (_monitored) {
+            Monitored monitored = _monitored.remove(key + "/" + elbName);
+            if (monitored != null)
+                monitored.generation++;
+        }
+    }
+
+    /**
+     * Stops polling the load balancers of a provider and drops their cached health. Should be called when a service provider
+     * is updated or deleted, the load balancers are watched again by the next sync or registration.
+     *
+     * @param provider
+     *            The service provider
+     */
+    public void unwatch(ServiceProvider provider)
+    {
+        if (provider == null)
+            return;
+        String prefix = provider.getId() + "/";
+        synchronized (_monitored) {
+            for (Iterator<Monitored> i = _monitored.values().iterator(); i.hasNext();) {
+                Monitored monitored = i.next();
+                if (monitored.path.startsWith(prefix)) {
+                    monitored.generation++;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the registrations of a load balancer have changed, so its health is polled again soon. An instance that
+     * was deregistered is dropped from the cached health right away, a registration makes the cached health stale.
+     *
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @param deregistered
+     *            The EC2 instance id of a deregistered instance, may be null
+     */
+    public void expect(String key, String elbName, String deregistered)
+    {
+        Monitored monitored;
+        int generation;
+        synchronized (_monitored) {
+            monitored = _monitored.get(key + "/" + elbName);
+            if (monitored == null)
+                return;
+            if (deregistered != null && monitored.states != null) {
+                monitored.states = new HashMap<String, String>(monitored.states);
+                monitored.states.remove(deregistered);
+            }
+            else {
+                // a new member is not in the cached health until the next poll
+                monitored.updated = 0;
+            }
+            monitored.interval = _minInterval;
+            generation = ++monitored.generation;
+        }
+        schedule(monitored, generation, _minInterval);
+    }
+
+    /**
+     * Returns the cached health of the instances registered with a load balancer, or null if the load balancer is not watched
+     * or has not been polled within its interval.
+     *
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @return The health state by EC2 instance id
+     */
+    public Map<String, String> getStates(String key, String elbName)
+    {
+        synchronized (_monitored) {
+            Monitored monitored = _monitored.get(key + "/" + elbName);
+            if (monitored == null || monitored.states == null)
+                return null;
+            // the next poll is due after the interval, allow it the minimum interval to complete
+            if (System.currentTimeMillis() - monitored.updated > monitored.interval + _minInterval)
+                return null;
+            return monitored.states;
+        }
+    }
+
+    /**
+     * Returns the cached health of the instances registered with a load balancer only if it was polled within the minimum
+     * interval, or null otherwise. Used where the health decides whether work can be skipped.
+     *
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @return The health state by EC2 instance id
+     */
+    public Map<String, String> getCurrentStates(String key, String elbName)
+    {
+        synchronized (_monitored) {
+            Monitored monitored = _monitored.get(key + "/" + elbName);
+            if (monitored == null || monitored.states == null)
+                return null;
+            if (System.currentTimeMillis() - monitored.updated > _minInterval)
+                return null;
+            return monitored.states;
+        }
+    }
+
+    private void schedule(final Monitored monitored, final int generation, long delay)
+    {
+        _reactor.timerCreateRel(delay, new TimerHandler() {
+
+            @Override
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                poll(monitored, generation);
+                return 0;
+            }
+        });
+    }
+
+    private void poll(final Monitored monitored, final int generation)
+    {
+        AWSConnectionProxyFactory factory;
+        ServiceProviderRequest request = new ServiceProviderPingRequest();
+        synchronized (_monitored) {
+            // a newer poll has been scheduled, or the load balancer is no longer watched
+            if (generation != monitored.generation)
+                return;
+            factory = monitored.factory;
+            request.setProvider(monitored.provider);
+            request.getClouds().addAll(monitored.clouds);
+            request.getSettings().addAll(monitored.settings);
+        }
+        Promise<Map<String, String>> promise;
+        try {
+            AWSConnectionProxy connection = factory.getELBConnection(request);
+            promise = ELBProviderSync.describeInstanceHealth(connection, monitored.elbName);
+        }
+        catch (Throwable t) {
+            promise = Promise.pure(t);
+        }
+        promise.onComplete(new Callback<Map<String, String>>() {
+
+            @Override
+            public void invoke(Map<String, String> states)
+            {
+                polled(monitored, generation, states);
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+
+            @Override
+            public void invoke(Throwable t)
+            {
+                failed(monitored, generation, t);
+            }
+        });
+    }
+
+    private void polled(Monitored monitored, int generation, Map<String, String> states)
+    {
+        long delay;
+        synchronized (_monitored) {
+            if (generation != monitored.generation)
+                return;
+            Set<String> changed = new HashSet<String>();
+            Map<String, String> previous = monitored.states != null ? monitored.states : new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : states.entrySet()) {
+                if (!entry.getValue().equals(previous.get(entry.getKey())))
+                    changed.add(entry.getKey());
+            }
+            for (String instanceId : previous.keySet()) {
+                if (!states.containsKey(instanceId))
+                    changed.add(instanceId);
+            }
+            for (String instanceId : changed) {
+                logger.info("Instance " + instanceId + " on " + monitored.elbName + " is "
+                        + (states.containsKey(instanceId) ? states.get(instanceId) : "no longer registered"));
+            }
+            monitored.states = states;
+            monitored.updated = System.currentTimeMillis();
+            monitored.interval = changed.isEmpty() ? Math.min(_maxInterval, monitored.interval * 2) : _minInterval;
+            monitored.idle = states.isEmpty() ? monitored.idle + 1 : 0;
+            if (monitored.idle >= MAX_IDLE_POLLS) {
+                _monitored.remove(monitored.path);
+                monitored.generation++;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("No instances registered with " + monitored.elbName + ", no longer watching its health");
+                }
+                return;
+            }
+            delay = monitored.interval;
+        }
+        schedule(monitored, generation, delay);
+    }
+
+    private void failed(Monitored monitored, int generation, Throwable t)
+    {
+        long delay;
+        synchronized (_monitored) {
+            if (generation != monitored.generation)
+                return;
+            if (t.getMessage() != null && t.getMessage().contains("LoadBalancerNotFound")) {
+                _monitored.remove(monitored.path);
+                monitored.generation++;
+                return;
+            }
+            monitored.interval = Math.min(_maxInterval, monitored.interval * 2);
+            delay = monitored.interval;
+        }
+        logger.warn("Unable to describe instance health of " + monitored.elbName + " - " + t.getMessage());
+        schedule(monitored, generation, delay);
+    }
+
+    private static class Monitored
+    {
+        private final String path;
+        private final String elbName;
+        private AWSConnectionProxyFactory factory;
+        private ServiceProvider provider;
+        private List<Cloud> clouds;
+        private List<Property> settings;
+        private Map<String, String> states;
+        private long updated;
+        private long interval;
+        private int idle;
+        private int generation;
+
+        private Monitored(AWSConnectionProxyFactory factory, ServiceProviderRequest request, String path, String elbName,
+                long interval)
+        {
+            this.factory = factory;
+            this.path = path;
+            this.elbName = elbName;
+            this.interval = interval;
+            setConnectionParams(request);
+        }
+
+        private void setConnectionParams(ServiceProviderRequest request)
+        {
+            provider = request.getProvider();
+            clouds = new ArrayList<Cloud>(request.getClouds());
+            settings = new ArrayList<Property>(request.getSettings());
+        }
+    }
+}
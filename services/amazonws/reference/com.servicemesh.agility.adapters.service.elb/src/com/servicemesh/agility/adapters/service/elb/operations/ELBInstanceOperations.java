@@ -7,22 +7,19 @@ package com.servicemesh.agility.adapters.service.elb.operations;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.amazonaws.ec2.doc._2013_10_15.DescribeInstancesResponseType;
 import com.amazonaws.ec2.doc._2013_10_15.GroupItemType;
 import com.amazonaws.ec2.doc._2013_10_15.ReservationInfoType;
 import com.amazonaws.ec2.doc._2013_10_15.RunningInstancesItemType;
 import com.amazonaws.elasticloadbalancing.doc._2012_06_01.AttachLoadBalancerToSubnetsResponse;
-import com.amazonaws.elasticloadbalancing.doc._2012_06_01.DeregisterInstancesFromLoadBalancerResponse;
 import com.amazonaws.elasticloadbalancing.doc._2012_06_01.EnableAvailabilityZonesForLoadBalancerResponse;
-import com.amazonaws.elasticloadbalancing.doc._2012_06_01.RegisterInstancesWithLoadBalancerResponse;
-import com.servicemesh.agility.adapters.core.aws.security.group.resources.AuthorizeSecurityGroupIngressResponseType;
 import com.servicemesh.agility.adapters.core.aws.security.group.resources.IpPermissionType;
 import com.servicemesh.agility.adapters.core.aws.security.group.resources.SecurityGroupItemType;
-import com.servicemesh.agility.adapters.core.aws.security.group.resources.UserIdGroupPairSetType;
-import com.servicemesh.agility.adapters.core.aws.security.group.resources.UserIdGroupPairType;
 import com.servicemesh.agility.adapters.core.aws.util.EC2SecurityGroupOperations;
 import com.servicemesh.agility.adapters.service.elb.ELBAdapter;
 import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxy;
@@ -57,6 +54,7 @@ public class ELBInstanceOperations extends InstanceOperations
 {
 
     private AWSConnectionProxyFactory _factory;
+    private final ELBSecurityGroupCache _securityGroups = new ELBSecurityGroupCache();
 
     public ELBInstanceOperations(ELBAdapter adapter, AWSConnectionProxyFactory factory)
     {
@@ -96,6 +94,17 @@ public class ELBInstanceOperations extends InstanceOperations
     @Override
     public Promise<InstanceResponse> postStart(InstancePostStartRequest request)
     {
+        // an instance the load balancer reported in service within the minimum poll interval needs no zone, security group or
+        // registration changes
+        ServiceInstance binding = request.getServiceInstance();
+        ServiceProvider provider = request.getProvider();
+        if (binding != null && provider != null && request.getInstance() != null) {
+            Map<String, String> states =
+                    ELBHealthMonitor.getInstance().getCurrentStates(ELBEndpoint.getRegionKey(provider),
+                            ELBEndpoint.getName(binding));
+            if (states != null && ELBEndpoint.ELB_IN_SERVICE.equals(states.get(request.getInstance().getInstanceId())))
+                return Promise.pure(getRegisteredResponse(request));
+        }
         return enableAvailabilityZone(request);
     }
 
@@ -146,7 +155,7 @@ public class ELBInstanceOperations extends InstanceOperations
                 @Override
                 public Promise<InstanceResponse> invoke(AttachLoadBalancerToSubnetsResponse lbResponse)
                 {
-                    return enableSecurityGroups(request);
+                    return enableSecurityGroups(connection, request);
                 }
             });
         }
@@ -187,7 +196,7 @@ public class ELBInstanceOperations extends InstanceOperations
             @Override
             public Promise<InstanceResponse> invoke(EnableAvailabilityZonesForLoadBalancerResponse arg)
             {
-                return enableSecurityGroups(request);
+                return enableSecurityGroups(connection, request);
             }
 
         });
@@ -197,13 +206,13 @@ public class ELBInstanceOperations extends InstanceOperations
     // Enable access to load balancer security groups
     //
 
-    private Promise<InstanceResponse> enableSecurityGroups(final InstanceRequest request)
+    private Promise<InstanceResponse> enableSecurityGroups(final AWSConnectionProxy elb, final InstanceRequest request)
     {
         ServiceInstance serviceInstance = request.getServiceInstance();
         final String lb_groups =
                 PropertyHelper.getString(serviceInstance.getConfigurations(), ELBEndpoint.CONFIG_SECURITY_GROUPS, null);
         if (lb_groups == null || lb_groups.trim().length() == 0) // assume that it has been granted access via some other approach
-            return registerInstance(request);
+            return registerInstance(elb, request);
 
         Map<String, List<AssetProperty>> config = new HashMap<String, List<AssetProperty>>();
         for (AssetProperty property : serviceInstance.getAssetProperties()) {
@@ -232,29 +241,40 @@ public class ELBInstanceOperations extends InstanceOperations
         QueryParams params = ec2.newQueryParams(EC2Endpoint.EC2_DESCRIBE_INSTANCE);
         params.add(new QueryParam(EC2Endpoint.EC2_INSTANCE_ID + ".1", request.getInstance().instanceId));
         Promise<DescribeInstancesResponseType> promise = ec2.execute(params, DescribeInstancesResponseType.class);
+        final int providerId = request.getProvider().getId();
         return promise.flatMap(new Function<DescribeInstancesResponseType, Promise<InstanceResponse>>() {
 
             @Override
             public Promise<InstanceResponse> invoke(DescribeInstancesResponseType response)
             {
                 List<String> sg_ids = new ArrayList<String>();
+                String vpcId = null;
                 for (ReservationInfoType rsv : response.getReservationSet().getItem()) {
                     for (RunningInstancesItemType item : rsv.getInstancesSet().getItem()) {
+                        if (item.getVpcId() != null)
+                            vpcId = item.getVpcId();
                         for (GroupItemType group : item.getGroupSet().getItem()) {
                             sg_ids.add(group.getGroupId());
                         }
                     }
                 }
 
+                // instances of a template share their security groups, so these are cached per vpc
+                final String vpc = providerId + "/" + (vpcId != null ? vpcId : "classic");
                 final EC2SecurityGroupOperations ops = new EC2SecurityGroupOperations(securityGroups.getAWSConnection());
-                Promise<List<SecurityGroupItemType>> promise = ops.getSecurityGroups(sg_ids);
+                Promise<List<SecurityGroupItemType>> promise = _securityGroups.getSecurityGroups(ops, vpc, sg_ids);
                 return promise.flatMap(new Function<List<SecurityGroupItemType>, Promise<InstanceResponse>>() {
 
                     @Override
                     public Promise<InstanceResponse> invoke(List<SecurityGroupItemType> securityGroups)
                     {
-                        List<Promise<AuthorizeSecurityGroupIngressResponseType>> promises =
-                                new ArrayList<Promise<AuthorizeSecurityGroupIngressResponseType>>();
+                        Set<String> lbGroupIds = new LinkedHashSet<String>();
+                        for (String id : lb_groups.split(",")) {
+                            if (id.trim().length() > 0)
+                                lbGroupIds.add(id.trim());
+                        }
+
+                        List<Promise<List<Boolean>>> promises = new ArrayList<Promise<List<Boolean>>>();
                         for (int p = 0; p < instance_protocol.size() && p < instance_port.size(); p++) {
                             String to_protocol = instance_protocol.get(p).getStringValue();
                             int to_port = instance_port.get(p).getIntValue();
@@ -268,40 +288,20 @@ public class ELBInstanceOperations extends InstanceOperations
                             for (SecurityGroupItemType sg : securityGroups) {
                                 IpPermissionType perm = securityGroupContains(sg, to_protocol, to_port);
                                 if (perm != null) {
-                                    boolean found = false;
-                                    for (UserIdGroupPairType group : perm.getGroups().getItem())
-                                        if (lb_groups.contains(group.getGroupId())) {
-                                            found = true;
-                                            break;
-                                        }
-                                    if (found == false) {
-                                        // open up the security group to the load balancer
-                                        for (String id : lb_groups.split(",")) {
-                                            UserIdGroupPairType groupToAdd = new UserIdGroupPairType();
-                                            groupToAdd.setGroupId(id);
-                                            UserIdGroupPairSetType groups = new UserIdGroupPairSetType();
-                                            groups.getItem().add(groupToAdd);
-                                            IpPermissionType permToAdd = new IpPermissionType();
-                                            permToAdd.setFromPort(perm.getFromPort());
-                                            permToAdd.setToPort(perm.getToPort());
-                                            permToAdd.setIpProtocol(perm.getIpProtocol());
-                                            permToAdd.setGroups(groups);
-                                            promises.add(ops.authorizeSecurityGroupIngress(sg.getGroupId(), permToAdd));
-                                        }
-                                    }
+                                    // open up the security group to the load balancer groups it does not grant yet
+                                    promises.add(_securityGroups.authorize(ops, vpc, sg, perm, lbGroupIds));
                                     break;
                                 }
                             }
                         }
-                        return Promise.sequence(promises).flatMap(
-                                new Function<List<AuthorizeSecurityGroupIngressResponseType>, Promise<InstanceResponse>>() {
-
-                                    @Override
-                                    public Promise<InstanceResponse> invoke(List<AuthorizeSecurityGroupIngressResponseType> arg)
-                                    {
-                                        return registerInstance(request);
-                                    }
-                                });
+                        return Promise.sequence(promises).flatMap(new Function<List<List<Boolean>>, Promise<InstanceResponse>>() {
+
+                            @Override
+                            public Promise<InstanceResponse> invoke(List<List<Boolean>> arg)
+                            {
+                                return registerInstance(elb, request);
+                            }
+                        });
                     }
                 });
             }
@@ -324,61 +324,29 @@ public class ELBInstanceOperations extends InstanceOperations
     // add the instance to the load balancer
     //
 
-    private Promise<InstanceResponse> registerInstance(final InstanceRequest request)
+    private Promise<InstanceResponse> registerInstance(final AWSConnectionProxy connection, final InstanceRequest request)
     {
         try {
-            final AWSConnectionProxy connection;
-            try {
-                connection = _factory.getELBConnection(request);
-            }
-            catch (Exception ex) {
-                return Promise.pure(ex);
-            }
-            QueryParams params = connection.newQueryParams(ELBEndpoint.ELB_REGISTER_INSTANCES);
             final ServiceInstance binding = request.getServiceInstance();
             ServiceProvider provider = request.getProvider();
             if (binding == null || provider == null)
                 return Promise.pure(new Exception("Invalid parameters"));
 
-            params.add(new QueryParam(ELBEndpoint.ELB_NAME, ELBEndpoint.getName(binding)));
-            params.add(new QueryParam(String.format(ELBEndpoint.ELB_INSTANCES, 1), request.getInstance().getInstanceId()));
-            Promise<RegisterInstancesWithLoadBalancerResponse> promise =
-                    connection.execute(params, RegisterInstancesWithLoadBalancerResponse.class);
-            return promise.map(new Function<RegisterInstancesWithLoadBalancerResponse, InstanceResponse>() {
+            // registrations with the same load balancer are sent together
+            final String key = ELBEndpoint.getRegionKey(provider);
+            final String elbName = ELBEndpoint.getName(binding);
+            Promise<Boolean> promise =
+                    ELBRegistrationBatcher.getInstance().register(connection, key, elbName,
+                            request.getInstance().getInstanceId());
+            return promise.map(new Function<Boolean, InstanceResponse>() {
 
                 @Override
-                public InstanceResponse invoke(RegisterInstancesWithLoadBalancerResponse lbResponse)
+                public InstanceResponse invoke(Boolean registered)
                 {
-                    InstanceResponse response = new InstanceResponse();
-                    Instance instance = request.getInstance();
-                    Map<String, Property> properties = new HashMap<String, Property>();
-                    for (Property property : instance.getProperties())
-                        properties.put(property.getName(), property);
-
-                    for (AssetProperty property : binding.getConfigurations()) {
-                        if (property.getName().equals(ELBEndpoint.CONFIG_DNS_NAME)) {
-                            Property lb_name = properties.get("Load Balancer");
-                            if (lb_name == null) {
-                                lb_name = new Property();
-                                lb_name.setName("Load Balancer");
-                                instance.getProperties().add(lb_name);
-                            }
-                            lb_name.setValue(property.getStringValue());
-                            response.setInstance(instance);
-                        }
-                        if (property.getName().equals(ELBEndpoint.CONFIG_ELB_NAME)) {
-                            Property elb_name = properties.get("ELB Name");
-                            if (elb_name == null) {
-                                elb_name = new Property();
-                                elb_name.setName("ELB Name");
-                                instance.getProperties().add(elb_name);
-                            }
-                            elb_name.setValue(property.getStringValue());
-                            response.setInstance(instance);
-                        }
-                    }
-                    response.setStatus(Status.COMPLETE);
-                    return response;
+                    // watch the health of the new member
+                    ELBHealthMonitor.getInstance().watch(_factory, request, key, elbName);
+                    ELBHealthMonitor.getInstance().expect(key, elbName, null);
+                    return getRegisteredResponse(request);
                 }
             });
         }
@@ -387,6 +355,40 @@ public class ELBInstanceOperations extends InstanceOperations
         }
     }
 
+    private InstanceResponse getRegisteredResponse(InstanceRequest request)
+    {
+        InstanceResponse response = new InstanceResponse();
+        Instance instance = request.getInstance();
+        Map<String, Property> properties = new HashMap<String, Property>();
+        for (Property property : instance.getProperties())
+            properties.put(property.getName(), property);
+
+        for (AssetProperty property : request.getServiceInstance().getConfigurations()) {
+            if (property.getName().equals(ELBEndpoint.CONFIG_DNS_NAME)) {
+                Property lb_name = properties.get("Load Balancer");
+                if (lb_name == null) {
+                    lb_name = new Property();
+                    lb_name.setName("Load Balancer");
+                    instance.getProperties().add(lb_name);
+                }
+                lb_name.setValue(property.getStringValue());
+                response.setInstance(instance);
+            }
+            if (property.getName().equals(ELBEndpoint.CONFIG_ELB_NAME)) {
+                Property elb_name = properties.get("ELB Name");
+                if (elb_name == null) {
+                    elb_name = new Property();
+                    elb_name.setName("ELB Name");
+                    instance.getProperties().add(elb_name);
+                }
+                elb_name.setValue(property.getStringValue());
+                response.setInstance(instance);
+            }
+        }
+        response.setStatus(Status.COMPLETE);
+        return response;
+    }
+
     //
     // remove the instance from the load balancer
     //
@@ -401,13 +403,12 @@ public class ELBInstanceOperations extends InstanceOperations
             catch (Exception ex) {
                 return Promise.pure(ex);
             }
-            QueryParams params = connection.newQueryParams(ELBEndpoint.ELB_DEREGISTER_INSTANCES);
             ServiceInstance binding = request.getServiceInstance();
             ServiceProvider provider = request.getProvider();
             if (binding == null || provider == null)
                 return Promise.pure(new Exception("Invalid parameters"));
 
-            String instanceId = request.getInstance().getInstanceId();
+            final String instanceId = request.getInstance().getInstanceId();
             if (instanceId == null) {
                 // nothing to do
                 InstanceResponse response = new InstanceResponse();
@@ -415,16 +416,17 @@ public class ELBInstanceOperations extends InstanceOperations
                 return Promise.pure(response);
             }
 
-            params.add(new QueryParam(ELBEndpoint.ELB_NAME, ELBEndpoint.getName(binding)));
-            params.add(new QueryParam(String.format(ELBEndpoint.ELB_INSTANCES, 1), request.getInstance().getInstanceId()));
-            Promise<DeregisterInstancesFromLoadBalancerResponse> promise =
-                    connection.execute(params, DeregisterInstancesFromLoadBalancerResponse.class);
+            // deregistrations from the same load balancer are sent together
+            final String key = ELBEndpoint.getRegionKey(provider);
+            final String elbName = ELBEndpoint.getName(binding);
+            Promise<Boolean> promise = ELBRegistrationBatcher.getInstance().deregister(connection, key, elbName, instanceId);
             Promise<InstanceResponse> retval =
-                    promise.map(new Function<DeregisterInstancesFromLoadBalancerResponse, InstanceResponse>() {
+                    promise.map(new Function<Boolean, InstanceResponse>() {
 
                         @Override
-                        public InstanceResponse invoke(DeregisterInstancesFromLoadBalancerResponse arg)
+                        public InstanceResponse invoke(Boolean arg)
                         {
+                            ELBHealthMonitor.getInstance().expect(key, elbName, instanceId);
                             InstanceResponse response = new InstanceResponse();
                             response.setStatus(Status.COMPLETE);
                             return response;
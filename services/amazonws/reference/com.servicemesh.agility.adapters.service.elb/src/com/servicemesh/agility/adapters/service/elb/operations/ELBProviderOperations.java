@@ -9,6 +9,8 @@ import com.servicemesh.agility.adapters.service.elb.ELBAdapter;
 import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxy;
 import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxyFactory;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPingRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPostDeleteRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPostUpdateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderSyncRequest;
 import com.servicemesh.agility.sdk.service.operations.ServiceProviderOperations;
@@ -21,18 +23,42 @@ public class ELBProviderOperations extends ServiceProviderOperations
 {
 
     private AWSConnectionProxyFactory _factory;
+    private final ELBProviderSync _sync;
 
     public ELBProviderOperations(ELBAdapter adapter, AWSConnectionProxyFactory factory)
     {
         _factory = factory;
+        _sync = new ELBProviderSync(factory);
     }
 
     @Override
     public Promise<ServiceProviderResponse> sync(ServiceProviderSyncRequest request)
     {
-        ServiceProviderResponse response = new ServiceProviderResponse();
-        response.setStatus(Status.COMPLETE);
-        return Promise.pure(response);
+        final AWSConnectionProxy connection;
+        try {
+            connection = _factory.getELBConnection(request);
+        }
+        catch (Exception ex) {
+            return Promise.pure(ex);
+        }
+        return _sync.sync(connection, request);
+    }
+
+    @Override
+    public Promise<ServiceProviderResponse> postUpdate(ServiceProviderPostUpdateRequest request)
+    {
+        // credentials or endpoint may have changed
+        _factory.invalidate(request.getProvider());
+        ELBHealthMonitor.getInstance().unwatch(request.getProvider());
+        return super.postUpdate(request);
+    }
+
+    @Override
+    public Promise<ServiceProviderResponse> postDelete(ServiceProviderPostDeleteRequest request)
+    {
+        _factory.invalidate(request.getProvider());
+        ELBHealthMonitor.getInstance().unwatch(request.getProvider());
+        return super.postDelete(request);
     }
 
     @Override
@@ -0,0 +1,377 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.elb.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.DescribeInstanceHealthResponse;
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.DescribeLoadBalancersResponse;
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.DescribeLoadBalancersResult;
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.InstanceState;
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.LoadBalancerDescription;
+import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxy;
+import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxyFactory;
+import com.servicemesh.agility.adapters.service.elb.connection.ELBEndpoint;
+import com.servicemesh.agility.api.Asset;
+import com.servicemesh.agility.api.Instance;
+import com.servicemesh.agility.api.Link;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.api.ServiceState;
+import com.servicemesh.agility.api.State;
+import com.servicemesh.agility.api.Template;
+import com.servicemesh.agility.sdk.service.helper.PropertyHelper;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderSyncRequest;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.messaging.Status;
+import com.servicemesh.io.http.QueryParam;
+import com.servicemesh.io.http.QueryParams;
+
+/**
+ * Reconciles the service instances of a provider with the load balancers of its region. The load balancers are read with
+ * paged DescribeLoadBalancers calls and indexed by name, so the number of calls depends on the number of pages and not on the
+ * number of service instances. Instance health is only described for the load balancers that have Agility instances
+ * registered and no current result in the ELBHealthMonitor, with a bounded number of calls in flight. Those load balancers
+ * are watched by the monitor from then on. Only the assets whose state or configuration changed are reported. A sync only
+ * returns an asset to running if a previous sync degraded it, and does not degrade instances whose registration is still
+ * pending in the ELBRegistrationBatcher.
+ */
+public class ELBProviderSync
+{
+    private static final Logger logger = Logger.getLogger(ELBProviderSync.class);
+
+    public static final String CONFIG_CONCURRENCY = "AgilityManager.ELB.SyncConcurrency";
+    // number of DescribeInstanceHealth calls in flight during a sync
+    public static final int CONCURRENCY_DEFAULT = 4;
+
+    private final AWSConnectionProxyFactory _factory;
+    private final int _concurrency;
+    // assets degraded by a sync, other degraded states are left to whoever set them
+    private final Set<String> _degraded = Collections.synchronizedSet(new HashSet<String>());
+
+    public ELBProviderSync(AWSConnectionProxyFactory factory)
+    {
+        this(factory, Integer.getInteger(CONFIG_CONCURRENCY, CONCURRENCY_DEFAULT));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param factory
+     *            Creates the connections used by the health monitor
+     * @param concurrency
+     *            Number of DescribeInstanceHealth calls in flight during a sync
+     */
+    public ELBProviderSync(AWSConnectionProxyFactory factory, int concurrency)
+    {
+        _factory = factory;
+        _concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Synchronizes the service instances and instances of a sync request.
+     *
+     * @param connection
+     *            ELB connection of the provider
+     * @param request
+     *            The sync request
+     */
+    public Promise<ServiceProviderResponse> sync(final AWSConnectionProxy connection, final ServiceProviderSyncRequest request)
+    {
+        final long started = System.currentTimeMillis();
+        Promise<Map<String, LoadBalancerDescription>> promise =
+                describeLoadBalancers(connection, null, new HashMap<String, LoadBalancerDescription>());
+        return promise.flatMap(new Function<Map<String, LoadBalancerDescription>, Promise<ServiceProviderResponse>>() {
+
+            @Override
+            public Promise<ServiceProviderResponse> invoke(final Map<String, LoadBalancerDescription> loadBalancers)
+            {
+                final Map<ServiceInstance, List<Instance>> members = getMembers(request);
+
+                // only load balancers with registered Agility instances need their health, which is
+                // described here unless the health monitor has a current result
+                final String key = ELBEndpoint.getRegionKey(request.getProvider());
+                ELBHealthMonitor monitor = ELBHealthMonitor.getInstance();
+                final Map<String, Map<String, String>> monitored = new HashMap<String, Map<String, String>>();
+                List<String> names = new ArrayList<String>();
+                for (Map.Entry<ServiceInstance, List<Instance>> entry : members.entrySet()) {
+                    LoadBalancerDescription lb = loadBalancers.get(getName(entry.getKey()));
+                    if (lb == null || entry.getValue().isEmpty() || getRegistered(lb).isEmpty())
+                        continue;
+                    Map<String, String> states = monitor.getStates(key, lb.getLoadBalancerName());
+                    if (states != null)
+                        monitored.put(lb.getLoadBalancerName(), states);
+                    else
+                        names.add(lb.getLoadBalancerName());
+                    monitor.watch(_factory, request, key, lb.getLoadBalancerName());
+                }
+                Promise<Map<String, Map<String, String>>> promise = describeInstanceHealth(connection, names);
+                return promise.map(new Function<Map<String, Map<String, String>>, ServiceProviderResponse>() {
+
+                    @Override
+                    public ServiceProviderResponse invoke(Map<String, Map<String, String>> health)
+                    {
+                        health.putAll(monitored);
+                        ServiceProviderResponse response = new ServiceProviderResponse();
+                        for (Map.Entry<ServiceInstance, List<Instance>> entry : members.entrySet()) {
+                            String name = getName(entry.getKey());
+                            reconcile(key, entry.getKey(), entry.getValue(), loadBalancers.get(name), health.get(name),
+                                    response.getModified());
+                        }
+                        response.setStatus(Status.COMPLETE);
+                        logger.info("Synchronized " + members.size() + " load balancer(s) against " + loadBalancers.size()
+                                + " in " + (System.currentTimeMillis() - started) + " ms, " + response.getModified().size()
+                                + " asset(s) changed");
+                        return response;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Describes the health of the instances registered with a load balancer.
+     *
+     * @param connection
+     *            ELB connection of the provider
+     * @param elbName
+     *            The load balancer name
+     * @return The health state by EC2 instance id
+     */
+    public static Promise<Map<String, String>> describeInstanceHealth(AWSConnectionProxy connection, String elbName)
+    {
+        QueryParams params = connection.newQueryParams(ELBEndpoint.DESCRIBE_INSTANCE_HEALTH);
+        params.add(new QueryParam(ELBEndpoint.ELB_NAME, elbName));
+        Promise<DescribeInstanceHealthResponse> promise = connection.execute(params, DescribeInstanceHealthResponse.class);
+        return promise.map(new Function<DescribeInstanceHealthResponse, Map<String, String>>() {
+
+            @Override
+            public Map<String, String> invoke(DescribeInstanceHealthResponse response)
+            {
+                Map<String, String> states = new HashMap<String, String>();
+                if (response.getDescribeInstanceHealthResult() != null
+                        && response.getDescribeInstanceHealthResult().getInstanceStates() != null) {
+                    for (InstanceState state : response.getDescribeInstanceHealthResult().getInstanceStates().getMember())
+                        states.put(state.getInstanceId(), state.getState());
+                }
+                return states;
+            }
+        });
+    }
+
+    private Promise<Map<String, LoadBalancerDescription>> describeLoadBalancers(final AWSConnectionProxy connection,
+            String marker, final Map<String, LoadBalancerDescription> loadBalancers)
+    {
+        QueryParams params = connection.newQueryParams(ELBEndpoint.DESCRIBE_LOAD_BALANCERS);
+        params.add(new QueryParam(ELBEndpoint.ELB_PAGE_SIZE, "" + ELBEndpoint.ELB_MAX_PAGE_SIZE));
+        if (marker != null)
+            params.add(new QueryParam(ELBEndpoint.ELB_MARKER, marker));
+        Promise<DescribeLoadBalancersResponse> promise = connection.execute(params, DescribeLoadBalancersResponse.class);
+        return promise.flatMap(new Function<DescribeLoadBalancersResponse, Promise<Map<String, LoadBalancerDescription>>>() {
+
+            @Override
+            public Promise<Map<String, LoadBalancerDescription>> invoke(DescribeLoadBalancersResponse response)
+            {
+                DescribeLoadBalancersResult result = response.getDescribeLoadBalancersResult();
+                if (result == null)
+                    return Promise.pure(loadBalancers);
+                if (result.getLoadBalancerDescriptions() != null) {
+                    for (LoadBalancerDescription lb : result.getLoadBalancerDescriptions().getMember())
+                        loadBalancers.put(lb.getLoadBalancerName(), lb);
+                }
+                String next = result.getNextMarker();
+                if (next == null || next.length() == 0)
+                    return Promise.pure(loadBalancers);
+                return describeLoadBalancers(connection, next, loadBalancers);
+            }
+        });
+    }
+
+    private Promise<Map<String, Map<String, String>>> describeInstanceHealth(final AWSConnectionProxy connection,
+            List<String> names)
+    {
+        final Map<String, Map<String, String>> health = new HashMap<String, Map<String, String>>();
+        final CompletablePromise<Map<String, Map<String, String>>> promise = PromiseFactory.create();
+        if (names.isEmpty()) {
+            promise.complete(health);
+            return promise;
+        }
+        final LinkedList<String> pending = new LinkedList<String>(names);
+        final int[] running = { Math.min(_concurrency, names.size()) };
+        for (int i = 0; i < running[0]; i++)
+            nextHealth(connection, pending, running, health, promise);
+        return promise;
+    }
+
+    private void nextHealth(final AWSConnectionProxy connection, final LinkedList<String> pending, final int[] running,
+            final Map<String, Map<String, String>> health, final CompletablePromise<Map<String, Map<String, String>>> promise)
+    {
+        final String name;
+        synchronized (pending) {
+            name = pending.poll();
+            if (name == null) {
+                if (--running[0] == 0)
+                    promise.complete(health);
+                return;
+            }
+        }
+        Promise<Map<String, String>> states;
+        try {
+            states = describeInstanceHealth(connection, name);
+        }
+        catch (Throwable t) {
+            states = Promise.pure(t);
+        }
+        states.onComplete(new Callback<Map<String, String>>() {
+
+            @Override
+            public void invoke(Map<String, String> arg)
+            {
+                synchronized (pending) {
+                    health.put(name, arg);
+                }
+                nextHealth(connection, pending, running, health, promise);
+            }
+        });
+        states.onFailure(new Callback<Throwable>() {
+
+            @Override
+            public void invoke(Throwable t)
+            {
+                // instances of this load balancer are only checked for registration
+                logger.warn("Unable to describe instance health of " + name + " - " + t.getMessage());
+                nextHealth(connection, pending, running, health, promise);
+            }
+        });
+    }
+
+    private void reconcile(String key, ServiceInstance serviceInstance, List<Instance> instances, LoadBalancerDescription lb,
+            Map<String, String> health, List<Asset> modified)
+    {
+        if (lb == null) {
+            if (serviceInstance.getState() == ServiceState.RUNNING) {
+                logger.warn("Load balancer " + getName(serviceInstance) + " no longer exists");
+                serviceInstance.setState(ServiceState.DEGRADED);
+                _degraded.add(getDegradedKey(serviceInstance));
+                modified.add(serviceInstance);
+            }
+            return;
+        }
+
+        boolean changed = false;
+        if (serviceInstance.getState() == ServiceState.DEGRADED && _degraded.remove(getDegradedKey(serviceInstance))) {
+            serviceInstance.setState(ServiceState.RUNNING);
+            changed = true;
+        }
+        changed |= setConfiguration(serviceInstance, ELBEndpoint.CONFIG_DNS_NAME, lb.getDNSName());
+        if (changed)
+            modified.add(serviceInstance);
+
+        ELBRegistrationBatcher batcher = ELBRegistrationBatcher.getInstance();
+        Set<String> registered = getRegistered(lb);
+        for (Instance instance : instances) {
+            String instanceId = instance.getInstanceId();
+            if (instanceId == null)
+                continue;
+            String state = health != null ? health.get(instanceId) : null;
+            boolean healthy =
+                    registered.contains(instanceId) && (health == null || !ELBEndpoint.ELB_OUT_OF_SERVICE.equals(state));
+            if (instance.getState() == State.RUNNING && !healthy) {
+                // a registration still being collected or sent is not missing
+                if (batcher.isPending(key, lb.getLoadBalancerName(), instanceId))
+                    continue;
+                instance.setState(State.DEGRADED);
+                _degraded.add(getDegradedKey(instance));
+                if (!modified.contains(instance))
+                    modified.add(instance);
+            }
+            else if (instance.getState() == State.DEGRADED && healthy && ELBEndpoint.ELB_IN_SERVICE.equals(state)
+                    && _degraded.remove(getDegradedKey(instance))) {
+                instance.setState(State.RUNNING);
+                if (!modified.contains(instance))
+                    modified.add(instance);
+            }
+        }
+    }
+
+    private static String getDegradedKey(Asset asset)
+    {
+        return asset.getClass().getSimpleName() + "/" + asset.getId();
+    }
+
+    private boolean setConfiguration(ServiceInstance serviceInstance, String name, String value)
+    {
+        if (value == null)
+            return false;
+        String current = PropertyHelper.getString(serviceInstance.getConfigurations(), name, null);
+        if (value.equals(current))
+            return false;
+        PropertyHelper.setString(serviceInstance.getConfigurations(), name, value);
+        return true;
+    }
+
+    private Map<ServiceInstance, List<Instance>> getMembers(ServiceProviderSyncRequest request)
+    {
+        Map<Integer, Template> templates = new HashMap<Integer, Template>();
+        Map<Integer, Instance> instances = new HashMap<Integer, Instance>();
+        if (request.getConnectedAssets() != null) {
+            for (Asset asset : request.getConnectedAssets()) {
+                if (asset instanceof Template)
+                    templates.put(asset.getId(), (Template) asset);
+                else if (asset instanceof Instance)
+                    instances.put(asset.getId(), (Instance) asset);
+            }
+        }
+
+        Map<ServiceInstance, List<Instance>> members = new HashMap<ServiceInstance, List<Instance>>();
+        for (ServiceInstance serviceInstance : request.getServiceInstances()) {
+            if (serviceInstance.getService() == null || serviceInstance.getState() == ServiceState.UNPROVISIONED)
+                continue;
+            List<Instance> list = new ArrayList<Instance>();
+            for (Link dependent : serviceInstance.getDependents()) {
+                Template template = templates.get(dependent.getId());
+                if (template == null)
+                    continue;
+                for (Link link : template.getInstances()) {
+                    Instance instance = instances.get(link.getId());
+                    if (instance != null)
+                        list.add(instance);
+                }
+            }
+            members.put(serviceInstance, list);
+        }
+        return members;
+    }
+
+    private static String getName(ServiceInstance serviceInstance)
+    {
+        String name = PropertyHelper.getString(serviceInstance.getConfigurations(), ELBEndpoint.CONFIG_ELB_NAME, null);
+        return name != null ? name : ELBEndpoint.getName(serviceInstance);
+    }
+
+    private static Set<String> getRegistered(LoadBalancerDescription lb)
+    {
+        Set<String> registered = new HashSet<String>();
+        if (lb.getInstances() != null) {
+            for (com.amazonaws.elasticloadbalancing.doc._2012_06_01.Instance member : lb.getInstances().getMember())
+                registered.add(member.getInstanceId());
+        }
+        return registered;
+    }
+}
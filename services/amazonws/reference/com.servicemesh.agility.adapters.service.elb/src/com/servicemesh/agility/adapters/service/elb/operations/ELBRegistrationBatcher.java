@@ -0,0 +1,454 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.elb.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.DeregisterInstancesFromLoadBalancerResponse;
+import com.amazonaws.elasticloadbalancing.doc._2012_06_01.RegisterInstancesWithLoadBalancerResponse;
+import com.servicemesh.agility.adapters.service.elb.connection.AWSConnectionProxy;
+import com.servicemesh.agility.adapters.service.elb.connection.ELBEndpoint;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+import com.servicemesh.io.http.QueryParam;
+import com.servicemesh.io.http.QueryParams;
+
+/**
+ * Collects the register and deregister intents for a load balancer that arrive within a short window and sends them as
+ * multi-member RegisterInstancesWithLoadBalancer / DeregisterInstancesFromLoadBalancer calls. Intents are sent in arrival
+ * order: consecutive intents of the same kind share a call, and a change of kind waits for the previous call to finish.
+ * Batches of a load balancer are sent one at a time, a batch whose window has closed waits until the previous batch has
+ * settled. When a multi-member call is rejected because of one of its instances, its members are retried one by one, a
+ * few at a time, so that each caller sees the outcome for its own instance. Any other failure, such as throttling or a
+ * server error, fails every member of the call.
+ */
+public class ELBRegistrationBatcher
+{
+    private static final Logger logger = Logger.getLogger(ELBRegistrationBatcher.class);
+
+    public static final String CONFIG_WINDOW = "AgilityManager.ELB.RegistrationWindow";
+    public static final String CONFIG_MAX_MEMBERS = "AgilityManager.ELB.RegistrationMaxMembers";
+    // milliseconds to collect intents for a load balancer, and the most instances sent in one call
+    public static final long WINDOW_DEFAULT = 200;
+    public static final int MAX_MEMBERS_DEFAULT = 100;
+
+    private static final String REACTOR_NAME = "ELBRegistration";
+    // error code of a call naming an instance the load balancer does not accept
+    private static final String INVALID_INSTANCE = "InvalidInstance";
+    // single-instance retries of a rejected call that run at once
+    private static final int SPLIT_PARALLEL = 4;
+
+    private static ELBRegistrationBatcher _instance;
+
+    private final TimerReactor _reactor;
+    private final long _window;
+    private final int _maxMembers;
+    private final Map<String, Lane> _lanes = new HashMap<String, Lane>();
+
+    /**
+     * Constructor.
+     *
+     * @param reactor
+     *            Reactor used to schedule batches
+     * @param window
+     *            Milliseconds to collect intents before they are sent
+     * @param maxMembers
+     *            Maximum number of instances in one call
+     */
+    public ELBRegistrationBatcher(TimerReactor reactor, long window, int maxMembers)
+    {
+        _reactor = reactor;
+        _window = window;
+        _maxMembers = Math.max(1, maxMembers);
+    }
+
+    /**
+     * Returns the batcher shared by all instance operations.
+     */
+    public static synchronized ELBRegistrationBatcher getInstance()
+    {
+        if (_instance == null) {
+            _instance =
+                    new ELBRegistrationBatcher(TimerReactor.getTimerReactor(REACTOR_NAME), Long.getLong(CONFIG_WINDOW,
+                            WINDOW_DEFAULT), Integer.getInteger(CONFIG_MAX_MEMBERS, MAX_MEMBERS_DEFAULT));
+        }
+        return _instance;
+    }
+
+    /**
+     * Registers an instance with a load balancer.
+     *
+     * @param connection
+     *            ELB connection of the load balancer's provider
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @param instanceId
+     *            The EC2 instance id
+     * @return A promise that completes when the load balancer reports the instance as registered
+     */
+    public Promise<Boolean> register(AWSConnectionProxy connection, String key, String elbName, String instanceId)
+    {
+        return add(connection, key, elbName, new Intent(true, instanceId));
+    }
+
+    /**
+     * Deregisters an instance from a load balancer.
+     *
+     * @param connection
+     *            ELB connection of the load balancer's provider
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @param instanceId
+     *            The EC2 instance id
+     * @return A promise that completes when the instance has been deregistered
+     */
+    public Promise<Boolean> deregister(AWSConnectionProxy connection, String key, String elbName, String instanceId)
+    {
+        return add(connection, key, elbName, new Intent(false, instanceId));
+    }
+
+    /**
+     * Returns whether a registration of an instance is being collected, waiting or sent for a load balancer.
+     *
+     * @param key
+     *            Identifies the provider and region of the load balancer
+     * @param elbName
+     *            The load balancer name
+     * @param instanceId
+     *            The EC2 instance id
+     */
+    public boolean isPending(String key, String elbName, String instanceId)
+    {
+        synchronized (_lanes) {
+            Lane lane = _lanes.get(key + "/" + elbName);
+            if (lane == null)
+                return false;
+            if (isPending(lane.collecting, instanceId) || isPending(lane.sending, instanceId))
+                return true;
+            for (Batch batch : lane.waiting) {
+                if (isPending(batch, instanceId))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private boolean isPending(Batch batch, String instanceId)
+    {
+        if (batch == null)
+            return false;
+        for (Intent intent : batch.intents) {
+            if (intent.register && intent.instanceId.equals(instanceId))
+                return true;
+        }
+        return false;
+    }
+
+    private Promise<Boolean> add(AWSConnectionProxy connection, String key, String elbName, Intent intent)
+    {
+        final String laneKey = key + "/" + elbName;
+        boolean schedule = false;
+        synchronized (_lanes) {
+            Lane lane = _lanes.get(laneKey);
+            if (lane == null) {
+                lane = new Lane(laneKey);
+                _lanes.put(laneKey, lane);
+            }
+            if (lane.collecting == null) {
+                lane.collecting = new Batch(lane, connection, elbName);
+                schedule = true;
+            }
+            lane.collecting.intents.add(intent);
+        }
+        if (schedule) {
+            _reactor.timerCreateRel(_window, new TimerHandler() {
+
+                @Override
+                public long timerFire(long scheduledTime, long actualTime)
+                {
+                    Batch batch = null;
+                    synchronized (_lanes) {
+                        Lane lane = _lanes.get(laneKey);
+                        if (lane != null && lane.collecting != null) {
+                            // the previous batch must settle before this one is sent
+                            if (lane.sending != null) {
+                                lane.waiting.add(lane.collecting);
+                            }
+                            else {
+                                batch = lane.collecting;
+                                lane.sending = batch;
+                            }
+                            lane.collecting = null;
+                        }
+                    }
+                    if (batch != null)
+                        send(batch, 0);
+                    return 0;
+                }
+            });
+        }
+        return intent.promise;
+    }
+
+    private void send(final Batch batch, int start)
+    {
+        if (start >= batch.intents.size()) {
+            sent(batch.lane);
+            return;
+        }
+        // the run of consecutive intents of the same kind
+        boolean register = batch.intents.get(start).register;
+        int end = start;
+        while (end < batch.intents.size() && batch.intents.get(end).register == register)
+            end++;
+        List<Intent> run = batch.intents.subList(start, end);
+        if (logger.isDebugEnabled()) {
+            logger.debug((register ? "Registering " : "Deregistering ") + run.size() + " instance(s) with " + batch.elbName);
+        }
+        Promise<Void> settled = settled(run);
+        for (int i = 0; i < run.size(); i += _maxMembers)
+            execute(batch, run.subList(i, Math.min(run.size(), i + _maxMembers)));
+        final int next = end;
+        settled.onComplete(new Callback<Void>() {
+
+            @Override
+            public void invoke(Void arg)
+            {
+                send(batch, next);
+            }
+        });
+    }
+
+    private void sent(Lane lane)
+    {
+        Batch next;
+        synchronized (_lanes) {
+            next = lane.waiting.poll();
+            lane.sending = next;
+            if (next == null && lane.collecting == null)
+                _lanes.remove(lane.key);
+        }
+        if (next != null)
+            send(next, 0);
+    }
+
+    private void execute(final Batch batch, final List<Intent> chunk)
+    {
+        final boolean register = chunk.get(0).register;
+        QueryParams params =
+                batch.connection.newQueryParams(register ? ELBEndpoint.ELB_REGISTER_INSTANCES
+                        : ELBEndpoint.ELB_DEREGISTER_INSTANCES);
+        params.add(new QueryParam(ELBEndpoint.ELB_NAME, batch.elbName));
+        int i = 1;
+        for (Intent intent : chunk)
+            params.add(new QueryParam(String.format(ELBEndpoint.ELB_INSTANCES, i++), intent.instanceId));
+
+        try {
+            if (register)
+                executeRegister(batch, chunk, params);
+            else
+                executeDeregister(batch, chunk, params);
+        }
+        catch (Throwable t) {
+            failed(batch, chunk, t);
+        }
+    }
+
+    private void executeRegister(final Batch batch, final List<Intent> chunk, QueryParams params)
+    {
+        Promise<RegisterInstancesWithLoadBalancerResponse> promise =
+                batch.connection.execute(params, RegisterInstancesWithLoadBalancerResponse.class);
+        promise.onComplete(new Callback<RegisterInstancesWithLoadBalancerResponse>() {
+
+            @Override
+            public void invoke(RegisterInstancesWithLoadBalancerResponse response)
+            {
+                // the response lists every instance registered with the load balancer
+                Set<String> registered = new HashSet<String>();
+                if (response.getRegisterInstancesWithLoadBalancerResult() != null
+                        && response.getRegisterInstancesWithLoadBalancerResult().getInstances() != null) {
+                    for (com.amazonaws.elasticloadbalancing.doc._2012_06_01.Instance member : response
+                            .getRegisterInstancesWithLoadBalancerResult().getInstances().getMember())
+                        registered.add(member.getInstanceId());
+                }
+                for (Intent intent : chunk) {
+                    if (registered.contains(intent.instanceId))
+                        intent.promise.complete(Boolean.TRUE);
+                    else
+                        intent.promise.failure(new Exception("Instance " + intent.instanceId + " was not registered with "
+                                + batch.elbName));
+                }
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+
+            @Override
+            public void invoke(Throwable t)
+            {
+                failed(batch, chunk, t);
+            }
+        });
+    }
+
+    private void executeDeregister(final Batch batch, final List<Intent> chunk, QueryParams params)
+    {
+        Promise<DeregisterInstancesFromLoadBalancerResponse> promise =
+                batch.connection.execute(params, DeregisterInstancesFromLoadBalancerResponse.class);
+        promise.onComplete(new Callback<DeregisterInstancesFromLoadBalancerResponse>() {
+
+            @Override
+            public void invoke(DeregisterInstancesFromLoadBalancerResponse response)
+            {
+                for (Intent intent : chunk)
+                    intent.promise.complete(Boolean.TRUE);
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+
+            @Override
+            public void invoke(Throwable t)
+            {
+                failed(batch, chunk, t);
+            }
+        });
+    }
+
+    private void failed(Batch batch, List<Intent> chunk, Throwable t)
+    {
+        if (chunk.size() == 1) {
+            chunk.get(0).promise.failure(t);
+            return;
+        }
+        if (t.getMessage() == null || !t.getMessage().contains(INVALID_INSTANCE)) {
+            // throttling, server and network errors are not caused by one instance, retrying singly only adds load
+            for (Intent intent : chunk)
+                intent.promise.failure(t);
+            return;
+        }
+        // find out which instances the failure belongs to
+        if (logger.isDebugEnabled()) {
+            logger.debug("Call for " + chunk.size() + " instance(s) with " + batch.elbName + " failed, retrying one by one: "
+                    + t.getMessage());
+        }
+        LinkedList<Intent> remaining = new LinkedList<Intent>(chunk);
+        for (int i = 0; i < SPLIT_PARALLEL; i++)
+            executeNext(batch, remaining);
+    }
+
+    private void executeNext(final Batch batch, final LinkedList<Intent> remaining)
+    {
+        Intent intent;
+        synchronized (remaining) {
+            intent = remaining.poll();
+        }
+        if (intent == null)
+            return;
+        List<Intent> single = new ArrayList<Intent>(1);
+        single.add(intent);
+        settled(single).onComplete(new Callback<Void>() {
+
+            @Override
+            public void invoke(Void arg)
+            {
+                executeNext(batch, remaining);
+            }
+        });
+        execute(batch, single);
+    }
+
+    private Promise<Void> settled(List<Intent> intents)
+    {
+        final CompletablePromise<Void> promise = PromiseFactory.create();
+        final int[] remaining = { intents.size() };
+        for (Intent intent : intents) {
+            intent.promise.onComplete(new Callback<Boolean>() {
+
+                @Override
+                public void invoke(Boolean arg)
+                {
+                    countDown(remaining, promise);
+                }
+            });
+            intent.promise.onFailure(new Callback<Throwable>() {
+
+                @Override
+                public void invoke(Throwable t)
+                {
+                    countDown(remaining, promise);
+                }
+            });
+        }
+        return promise;
+    }
+
+    private void countDown(int[] remaining, CompletablePromise<Void> promise)
+    {
+        boolean last;
+        synchronized (remaining) {
+            last = --remaining[0] == 0;
+        }
+        if (last)
+            promise.complete(null);
+    }
+
+    private static class Lane
+    {
+        private final String key;
+        private Batch collecting;
+        private final LinkedList<Batch> waiting = new LinkedList<Batch>();
+        // the batch being sent, null when the lane is idle
+        private Batch sending;
+
+        private Lane(String key)
+        {
+            this.key = key;
+        }
+    }
+
+    private static class Batch
+    {
+        private final Lane lane;
+        private final AWSConnectionProxy connection;
+        private final String elbName;
+        private final List<Intent> intents = new ArrayList<Intent>();
+
+        private Batch(Lane lane, AWSConnectionProxy connection, String elbName)
+        {
+            this.lane = lane;
+            this.connection = connection;
+            this.elbName = elbName;
+        }
+    }
+
+    private static class Intent
+    {
+        private final boolean register;
+        private final String instanceId;
+        private final CompletablePromise<Boolean> promise = PromiseFactory.create();
+
+        private Intent(boolean register, String instanceId)
+        {
+            this.register = register;
+            this.instanceId = instanceId;
+        }
+    }
+}
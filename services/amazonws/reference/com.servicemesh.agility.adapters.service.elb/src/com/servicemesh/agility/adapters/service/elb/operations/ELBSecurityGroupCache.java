@@ -0,0 +1,346 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.elb.operations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.aws.security.group.resources.AuthorizeSecurityGroupIngressResponseType;
+import com.servicemesh.agility.adapters.core.aws.security.group.resources.IpPermissionType;
+import com.servicemesh.agility.adapters.core.aws.security.group.resources.SecurityGroupItemType;
+import com.servicemesh.agility.adapters.core.aws.security.group.resources.UserIdGroupPairSetType;
+import com.servicemesh.agility.adapters.core.aws.security.group.resources.UserIdGroupPairType;
+import com.servicemesh.agility.adapters.core.aws.util.EC2SecurityGroupOperations;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+
+/**
+ * Short lived cache of the security groups of a VPC, shared by the instance events of a load balancer. Groups are described
+ * at most once per time to live, and a group that is already being described is not requested again. Ingress
+ * authorizations are planned against the cached groups: only the load balancer groups missing from a permission are
+ * authorized, with one AuthorizeSecurityGroupIngress call per group and permission, and an authorization that is already
+ * pending for another instance is joined instead of being sent again.
+ */
+public class ELBSecurityGroupCache
+{
+    private static final Logger logger = Logger.getLogger(ELBSecurityGroupCache.class);
+
+    public static final String CONFIG_TTL = "AgilityManager.ELB.SecurityGroupCacheTTL";
+    // milliseconds a described security group or a completed authorization is remembered
+    public static final long TTL_DEFAULT = 60000;
+
+    private final long _ttl;
+    private final Map<String, Map<String, CachedGroup>> _vpcs = new HashMap<String, Map<String, CachedGroup>>();
+    private final Map<String, CompletablePromise<SecurityGroupItemType>> _describing =
+            new HashMap<String, CompletablePromise<SecurityGroupItemType>>();
+    private final Map<String, Authorization> _authorizations = new HashMap<String, Authorization>();
+
+    public ELBSecurityGroupCache()
+    {
+        this(Long.getLong(CONFIG_TTL, TTL_DEFAULT));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ttl
+     *            Milliseconds a described security group or a completed authorization is remembered
+     */
+    public ELBSecurityGroupCache(long ttl)
+    {
+        _ttl = ttl;
+    }
+
+    /**
+     * Returns the named security groups, describing only those that are not cached.
+     *
+     * @param ops
+     *            Security group operations of the provider
+     * @param vpc
+     *            Identifies the provider and VPC of the groups
+     * @param groupIds
+     *            The security group ids
+     */
+    public Promise<List<SecurityGroupItemType>> getSecurityGroups(EC2SecurityGroupOperations ops, final String vpc,
+            List<String> groupIds)
+    {
+        long now = System.currentTimeMillis();
+        List<Promise<SecurityGroupItemType>> promises = new ArrayList<Promise<SecurityGroupItemType>>();
+        final Map<String, CompletablePromise<SecurityGroupItemType>> describe =
+                new HashMap<String, CompletablePromise<SecurityGroupItemType>>();
+        synchronized (_vpcs) {
+            Map<String, CachedGroup> groups = getGroups(vpc, now);
+            for (String groupId : groupIds) {
+                CachedGroup cached = groups.get(groupId);
+                if (cached != null) {
+                    promises.add(Promise.pure(cached.group));
+                    continue;
+                }
+                String key = vpc + "/" + groupId;
+                CompletablePromise<SecurityGroupItemType> promise = _describing.get(key);
+                if (promise == null) {
+                    promise = describe.get(groupId);
+                    if (promise == null) {
+                        promise = PromiseFactory.create();
+                        describe.put(groupId, promise);
+                        _describing.put(key, promise);
+                    }
+                }
+                promises.add(promise);
+            }
+        }
+        if (!describe.isEmpty())
+            describe(ops, vpc, describe);
+
+        return Promise.sequence(promises).map(new Function<List<SecurityGroupItemType>, List<SecurityGroupItemType>>() {
+
+            @Override
+            public List<SecurityGroupItemType> invoke(List<SecurityGroupItemType> groups)
+            {
+                // groups that no longer exist are left out
+                List<SecurityGroupItemType> found = new ArrayList<SecurityGroupItemType>();
+                for (SecurityGroupItemType group : groups) {
+                    if (group != null)
+                        found.add(group);
+                }
+                return found;
+            }
+        });
+    }
+
+    /**
+     * Grants load balancer groups access to a permission of an instance security group. Only the load balancer groups that
+     * the permission does not already grant, and that are not already being authorized, are sent in a single call.
+     *
+     * @param ops
+     *            Security group operations of the provider
+     * @param vpc
+     *            Identifies the provider and VPC of the group
+     * @param group
+     *            The instance security group
+     * @param perm
+     *            The permission of the group that opens the instance port
+     * @param lbGroupIds
+     *            The load balancer security group ids that need access
+     * @return A promise that completes when every load balancer group has access
+     */
+    public Promise<List<Boolean>> authorize(EC2SecurityGroupOperations ops, final String vpc, final SecurityGroupItemType group,
+            IpPermissionType perm, Collection<String> lbGroupIds)
+    {
+        long now = System.currentTimeMillis();
+        List<Promise<Boolean>> promises = new ArrayList<Promise<Boolean>>();
+        final List<String> keys = new ArrayList<String>();
+        final CompletablePromise<Boolean> promise = PromiseFactory.create();
+        UserIdGroupPairSetType pairs = new UserIdGroupPairSetType();
+        synchronized (_vpcs) {
+            for (String lbGroupId : lbGroupIds) {
+                if (grants(perm, lbGroupId))
+                    continue;
+                String key =
+                        vpc + "/" + group.getGroupId() + "/" + perm.getIpProtocol() + "/" + perm.getFromPort() + "/"
+                                + perm.getToPort() + "/" + lbGroupId;
+                Authorization authorization = _authorizations.get(key);
+                if (authorization != null && (authorization.completed == 0 || now - authorization.completed <= _ttl)) {
+                    promises.add(authorization.promise);
+                    continue;
+                }
+                _authorizations.put(key, new Authorization(promise));
+                keys.add(key);
+                UserIdGroupPairType pair = new UserIdGroupPairType();
+                pair.setGroupId(lbGroupId);
+                pairs.getItem().add(pair);
+            }
+        }
+        if (keys.isEmpty())
+            return Promise.sequence(promises);
+
+        IpPermissionType permToAdd = new IpPermissionType();
+        permToAdd.setFromPort(perm.getFromPort());
+        permToAdd.setToPort(perm.getToPort());
+        permToAdd.setIpProtocol(perm.getIpProtocol());
+        permToAdd.setGroups(pairs);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Authorizing " + keys.size() + " load balancer group(s) on " + group.getGroupId() + " "
+                    + perm.getIpProtocol() + " " + perm.getFromPort() + "-" + perm.getToPort());
+        }
+        try {
+            Promise<AuthorizeSecurityGroupIngressResponseType> authorize =
+                    ops.authorizeSecurityGroupIngress(group.getGroupId(), permToAdd);
+            authorize.onComplete(new Callback<AuthorizeSecurityGroupIngressResponseType>() {
+
+                @Override
+                public void invoke(AuthorizeSecurityGroupIngressResponseType arg)
+                {
+                    long completed = System.currentTimeMillis();
+                    synchronized (_vpcs) {
+                        for (String key : keys) {
+                            Authorization authorization = _authorizations.get(key);
+                            if (authorization != null && authorization.promise == promise)
+                                authorization.completed = completed;
+                        }
+                    }
+                    promise.complete(Boolean.TRUE);
+                }
+            });
+            authorize.onFailure(new Callback<Throwable>() {
+
+                @Override
+                public void invoke(Throwable t)
+                {
+                    authorizeFailed(vpc, group.getGroupId(), keys, promise, t);
+                }
+            });
+        }
+        catch (Throwable t) {
+            authorizeFailed(vpc, group.getGroupId(), keys, promise, t);
+        }
+        promises.add(promise);
+        return Promise.sequence(promises);
+    }
+
+    /**
+     * Drops the cached groups of a VPC.
+     *
+     * @param vpc
+     *            Identifies the provider and VPC of the groups
+     */
+    public void invalidate(String vpc)
+    {
+        synchronized (_vpcs) {
+            _vpcs.remove(vpc);
+        }
+    }
+
+    private void describe(EC2SecurityGroupOperations ops, final String vpc,
+            final Map<String, CompletablePromise<SecurityGroupItemType>> describe)
+    {
+        try {
+            Promise<List<SecurityGroupItemType>> promise = ops.getSecurityGroups(new ArrayList<String>(describe.keySet()));
+            promise.onComplete(new Callback<List<SecurityGroupItemType>>() {
+
+                @Override
+                public void invoke(List<SecurityGroupItemType> groups)
+                {
+                    long now = System.currentTimeMillis();
+                    Map<String, SecurityGroupItemType> found = new HashMap<String, SecurityGroupItemType>();
+                    synchronized (_vpcs) {
+                        Map<String, CachedGroup> cached = getGroups(vpc, now);
+                        if (groups != null) {
+                            for (SecurityGroupItemType group : groups) {
+                                found.put(group.getGroupId(), group);
+                                cached.put(group.getGroupId(), new CachedGroup(group, now));
+                            }
+                        }
+                        for (String groupId : describe.keySet())
+                            _describing.remove(vpc + "/" + groupId);
+                    }
+                    for (Map.Entry<String, CompletablePromise<SecurityGroupItemType>> entry : describe.entrySet())
+                        entry.getValue().complete(found.get(entry.getKey()));
+                }
+            });
+            promise.onFailure(new Callback<Throwable>() {
+
+                @Override
+                public void invoke(Throwable t)
+                {
+                    describeFailed(vpc, describe, t);
+                }
+            });
+        }
+        catch (Throwable t) {
+            describeFailed(vpc, describe, t);
+        }
+    }
+
+    private void describeFailed(String vpc, Map<String, CompletablePromise<SecurityGroupItemType>> describe, Throwable t)
+    {
+        synchronized (_vpcs) {
+            for (String groupId : describe.keySet())
+                _describing.remove(vpc + "/" + groupId);
+        }
+        for (CompletablePromise<SecurityGroupItemType> promise : describe.values())
+            promise.failure(t);
+    }
+
+    private void authorizeFailed(String vpc, String groupId, List<String> keys, CompletablePromise<Boolean> promise, Throwable t)
+    {
+        synchronized (_vpcs) {
+            for (String key : keys) {
+                Authorization authorization = _authorizations.get(key);
+                if (authorization != null && authorization.promise == promise)
+                    _authorizations.remove(key);
+            }
+            // the group may have been changed by someone else, describe it again next time
+            Map<String, CachedGroup> groups = _vpcs.get(vpc);
+            if (groups != null)
+                groups.remove(groupId);
+        }
+        promise.failure(t);
+    }
+
+    // must be called with _vpcs held
+    private Map<String, CachedGroup> getGroups(String vpc, long now)
+    {
+        Map<String, CachedGroup> groups = _vpcs.get(vpc);
+        if (groups == null) {
+            groups = new HashMap<String, CachedGroup>();
+            _vpcs.put(vpc, groups);
+        }
+        for (Iterator<CachedGroup> i = groups.values().iterator(); i.hasNext();) {
+            if (now - i.next().described > _ttl)
+                i.remove();
+        }
+        for (Iterator<Authorization> i = _authorizations.values().iterator(); i.hasNext();) {
+            Authorization authorization = i.next();
+            if (authorization.completed != 0 && now - authorization.completed > _ttl)
+                i.remove();
+        }
+        return groups;
+    }
+
+    private static boolean grants(IpPermissionType perm, String lbGroupId)
+    {
+        if (perm.getGroups() == null)
+            return false;
+        for (UserIdGroupPairType pair : perm.getGroups().getItem()) {
+            if (lbGroupId.equals(pair.getGroupId()))
+                return true;
+        }
+        return false;
+    }
+
+    private static class CachedGroup
+    {
+        private final SecurityGroupItemType group;
+        private final long described;
+
+        private CachedGroup(SecurityGroupItemType group, long described)
+        {
+            this.group = group;
+            this.described = described;
+        }
+    }
+
+    private static class Authorization
+    {
+        private final CompletablePromise<Boolean> promise;
+        private long completed;
+
+        private Authorization(CompletablePromise<Boolean> promise)
+        {
+            this.promise = promise;
+        }
+    }
+}
@@ -262,13 +262,14 @@ public class ELBServiceOperations extends ServiceInstanceOperations
                     response.setStatus(Status.COMPLETE);
                     return Promise.pure(response);
                 }
-                return updateFirewallRules(request, vpcId);
+                return updateFirewallRules(connection, request, vpcId);
             }
         });
 
     }
 
-    private Promise<ServiceProviderResponse> updateFirewallRules(final ServiceInstanceRequest request, String vpcId)
+    private Promise<ServiceProviderResponse> updateFirewallRules(final AWSConnectionProxy elb,
+            final ServiceInstanceRequest request, String vpcId)
     {
         final ServiceInstance serviceInstance = request.getServiceInstance();
         final AWSConnectionProxy securityGroups;
@@ -286,13 +287,6 @@ public class ELBServiceOperations extends ServiceInstanceOperations
             @Override
             public Promise<ServiceProviderResponse> invoke(List<CreateSecurityGroupResponseType> securityGroups)
             {
-                final AWSConnectionProxy elb;
-                try {
-                    elb = _factory.getELBConnection(request);
-                }
-                catch (Exception ex) {
-                    return Promise.pure(ex);
-                }
                 QueryParams params = elb.newQueryParams(ELBEndpoint.ELB_APPLY_SECURITY_GROUPS);
                 params.add(new QueryParam(ELBEndpoint.ELB_NAME, ELBEndpoint.getName(serviceInstance)));
                 int i = 1;
@@ -341,6 +335,7 @@ public class ELBServiceOperations extends ServiceInstanceOperations
         if (serviceInstance == null || provider == null)
             return Promise.pure(new Exception("Invalid parameters"));
 
+        ELBHealthMonitor.getInstance().unwatch(ELBEndpoint.getRegionKey(provider), ELBEndpoint.getName(serviceInstance));
         QueryParams params = connection.newQueryParams(ELBEndpoint.ELB_DELETE_LOAD_BALANCER);
         params.add(new QueryParam(ELBEndpoint.ELB_NAME, ELBEndpoint.getName(serviceInstance)));
         Promise<DeleteLoadBalancerResponse> promise = connection.execute(params, DeleteLoadBalancerResponse.class);
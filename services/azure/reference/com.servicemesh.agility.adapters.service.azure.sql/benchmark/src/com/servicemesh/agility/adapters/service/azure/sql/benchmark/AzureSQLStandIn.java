@@ -0,0 +1,588 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Azure SQL management API. It answers the calls the adapter makes under
+ * {subscription}/services/sqlservers/servers - servers, databases, firewall rules and service objectives - from in-memory state
+ * with the same XML the service returns. Every response is delayed by a fixed latency plus random jitter, and a configurable
+ * fraction of calls fail with a SQL Server Error response. New databases report "Creating" until the provision delay passes.
+ * Point the adapter at it by passing getAddress() to LoadTestEndpoints.setAddress().
+ */
+public class AzureSQLStandIn
+{
+    private static final String GENERIC_NS = "http://schemas.microsoft.com/windowsazure";
+    private static final String AZURE_201012_NS = "http://schemas.microsoft.com/sqlazure/2010/12/";
+    private static final String SQLSERVER_NS = "Microsoft.SqlServer.Management.Framework.Web.Services";
+    private static final String SERVERS_PATH = "/" + AzureSQLConstants.AZURE_SQL_BASE_URI;
+    private static final String[][] SERVICE_OBJECTIVES = { { "Basic", "dd6d99bb-f193-4ec1-86f2-43d3bccbc49c" },
+            { "S0", "f1173c43-91bd-4aaa-973c-54e79e15235b" }, { "S1", "1b1ebd4d-d903-4baa-97f9-4ea675f5e928" },
+            { "S2", "455330e1-00cd-488b-b5fa-177c226f28b7" }, { "S3", "789681b8-ca10-4eb0-bdf2-e0b050601b40" },
+            { "P1", "7203483a-c4fb-4304-9e9f-17c71c904f5d" }, { "P2", "a7d1b92d-c987-4375-b54d-2b1d0e0f5bb0" },
+            { "P3", "a7c4c615-cfb1-464b-b252-925be0a19446" } };
+
+    private final int port;
+    private final long latency;
+    private final long jitter;
+    private final double errorRate;
+    private final long provisionDelay;
+    private final Random random = new Random();
+    private final Map<String, SqlServer> servers = new ConcurrentHashMap<String, SqlServer>();
+    private final AtomicInteger serverSequence = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private HttpServer server;
+    private ScheduledExecutorService responder;
+    private ExecutorService handlers;
+
+    /**
+     * Constructor.
+     *
+     * @param int
+     *            port - port to listen on; zero picks a free port
+     * @param long
+     *            latency - fixed delay in milliseconds added to every response
+     * @param long
+     *            jitter - maximum random delay in milliseconds added on top of the latency
+     * @param double
+     *            errorRate - fraction of calls, between 0 and 1, answered with a 500 Error response
+     * @param long
+     *            provisionDelay - milliseconds a new database stays in the "Creating" state
+     */
+    public AzureSQLStandIn(int port, long latency, long jitter, double errorRate, long provisionDelay)
+    {
+        this.port = port;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.provisionDelay = provisionDelay;
+    }
+
+    public void start(int threads) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 512);
+        responder = Executors.newScheduledThreadPool(threads);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                dispatch(exchange);
+            }
+        });
+        handlers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null) {
+            server.stop(0);
+            responder.shutdownNow();
+            handlers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return String - address to pass to LoadTestEndpoints.setAddress(), including the trailing slash
+     */
+    public String getAddress()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    public long getInjectedErrorCount()
+    {
+        return injectedErrors.get();
+    }
+
+    public int getServerCount()
+    {
+        return servers.size();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+        String body = AzureSQLStandIn.read(exchange.getRequestBody());
+        Reply reply;
+
+        requests.incrementAndGet();
+
+        try {
+            int index = path.indexOf(AzureSQLStandIn.SERVERS_PATH);
+
+            if (index < 0) {
+                reply = AzureSQLStandIn.error(404, "ResourceNotFound", "Unknown resource " + path);
+            }
+            else if (nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                reply = AzureSQLStandIn.error(500, "40001", "Injected failure for " + method + " " + path);
+            }
+            else {
+                String rest = path.substring(index + AzureSQLStandIn.SERVERS_PATH.length());
+                String[] parts = rest.isEmpty() || rest.equals("/") ? new String[0] : rest.substring(1).split("/");
+
+                reply = route(method, parts, query, body);
+            }
+        }
+        catch (Exception e) {
+            reply = AzureSQLStandIn.error(500, "InternalError", String.valueOf(e));
+        }
+
+        respond(exchange, reply);
+    }
+
+    private Reply route(String method, String[] parts, String query, String body)
+    {
+        if (parts.length == 0) {
+            if (method.equals("GET")) {
+                return query != null && query.contains("contentview=generic") ? listServersGeneric() : listServers2010();
+            }
+            if (method.equals("POST")) {
+                return createServer(body);
+            }
+            return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+        }
+
+        SqlServer sqlServer = servers.get(parts[0]);
+
+        if (sqlServer == null) {
+            return AzureSQLStandIn.error(404, "ResourceNotFound", "Server " + parts[0] + " was not found.");
+        }
+
+        if (parts.length == 1) {
+            if (method.equals("DELETE")) {
+                servers.remove(sqlServer.name);
+                return new Reply(200, "");
+            }
+            if (method.equals("POST") && query != null && query.contains("op=ResetPassword")) {
+                synchronized (sqlServer) {
+                    sqlServer.password = AzureSQLStandIn.element(body, "AdministratorLoginPassword");
+                }
+                return new Reply(200, "");
+            }
+            return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+        }
+
+        synchronized (sqlServer) {
+            if (parts[1].equals("databases")) {
+                return routeDatabase(sqlServer, method, parts, body);
+            }
+            if (parts[1].equals("firewallrules")) {
+                return routeFirewallRule(sqlServer, method, parts, body);
+            }
+            if (parts[1].equals("serviceobjectives") && method.equals("GET")) {
+                return listServiceObjectives(sqlServer);
+            }
+        }
+
+        return AzureSQLStandIn.error(404, "ResourceNotFound", "Unknown resource " + parts[1]);
+    }
+
+    private Reply createServer(String body)
+    {
+        SqlServer sqlServer = new SqlServer();
+
+        sqlServer.name =
+                "standin" + Integer.toString(serverSequence.incrementAndGet(), 36) + Long.toString(nextLong() & 0xffff, 36);
+        sqlServer.login = AzureSQLStandIn.element(body, "AdministratorLogin");
+        sqlServer.password = AzureSQLStandIn.element(body, "AdministratorLoginPassword");
+        sqlServer.location = AzureSQLStandIn.element(body, "Location");
+        servers.put(sqlServer.name, sqlServer);
+
+        return new Reply(201, "<ServerName xmlns=\"" + AzureSQLStandIn.AZURE_201012_NS + "\">" + sqlServer.name
+                + "</ServerName>");
+    }
+
+    private Reply listServers2010()
+    {
+        StringBuilder buf = new StringBuilder("<Servers xmlns=\"" + AzureSQLStandIn.AZURE_201012_NS + "\">");
+
+        for (SqlServer sqlServer : servers.values()) {
+            buf.append("<Server>");
+            AzureSQLStandIn.append(buf, "Name", sqlServer.name);
+            AzureSQLStandIn.append(buf, "AdministratorLogin", sqlServer.login);
+            AzureSQLStandIn.append(buf, "Location", sqlServer.location);
+            AzureSQLStandIn.append(buf, "FullyQualifiedDomainName", sqlServer.name + AzureSQLConstants.AZURE_DOMAIN_SUFFIX);
+            AzureSQLStandIn.append(buf, "Version", "12.0");
+            buf.append("</Server>");
+        }
+
+        return new Reply(200, buf.append("</Servers>").toString());
+    }
+
+    private Reply listServersGeneric()
+    {
+        StringBuilder buf = AzureSQLStandIn.startList();
+
+        for (SqlServer sqlServer : servers.values()) {
+            serverResource(buf, sqlServer);
+        }
+
+        return new Reply(200, buf.append("</ServiceResources>").toString());
+    }
+
+    private Reply routeDatabase(SqlServer sqlServer, String method, String[] parts, String body)
+    {
+        if (parts.length == 2) {
+            if (method.equals("GET")) {
+                StringBuilder buf = AzureSQLStandIn.startList();
+
+                for (SqlDatabase db : sqlServer.databases.values()) {
+                    databaseResource(buf, sqlServer, db, false);
+                }
+
+                return new Reply(200, buf.append("</ServiceResources>").toString());
+            }
+            if (method.equals("POST")) {
+                SqlDatabase db = new SqlDatabase();
+
+                db.name = AzureSQLStandIn.element(body, "Name");
+                db.readyAt = System.currentTimeMillis() + provisionDelay;
+                db.update(body);
+
+                if (db.name == null || sqlServer.databases.containsKey(db.name)) {
+                    return AzureSQLStandIn.error(409, "40662", "Database " + db.name + " already exists.");
+                }
+
+                sqlServer.databases.put(db.name, db);
+                return new Reply(201, databaseResource(new StringBuilder(), sqlServer, db, true).toString());
+            }
+            return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+        }
+
+        SqlDatabase db = sqlServer.databases.get(parts[2]);
+
+        if (db == null) {
+            return AzureSQLStandIn.error(404, "ResourceNotFound", "Database " + parts[2] + " was not found.");
+        }
+
+        if (method.equals("GET")) {
+            return new Reply(200, databaseResource(new StringBuilder(), sqlServer, db, true).toString());
+        }
+        if (method.equals("PUT")) {
+            String newName = AzureSQLStandIn.element(body, "Name");
+
+            db.update(body);
+
+            if (newName != null && !newName.equals(db.name)) {
+                sqlServer.databases.remove(db.name);
+                db.name = newName;
+                sqlServer.databases.put(db.name, db);
+            }
+
+            return new Reply(200, databaseResource(new StringBuilder(), sqlServer, db, true).toString());
+        }
+        if (method.equals("DELETE")) {
+            sqlServer.databases.remove(db.name);
+            return new Reply(200, "");
+        }
+
+        return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+    }
+
+    private Reply routeFirewallRule(SqlServer sqlServer, String method, String[] parts, String body)
+    {
+        if (parts.length == 2) {
+            if (method.equals("GET")) {
+                StringBuilder buf = AzureSQLStandIn.startList();
+
+                for (SqlFirewallRule rule : sqlServer.firewallRules.values()) {
+                    firewallRuleResource(buf, sqlServer, rule, false);
+                }
+
+                return new Reply(200, buf.append("</ServiceResources>").toString());
+            }
+            if (method.equals("POST")) {
+                SqlFirewallRule rule = new SqlFirewallRule();
+
+                rule.name = AzureSQLStandIn.element(body, "Name");
+                rule.update(body);
+                sqlServer.firewallRules.put(rule.name, rule);
+                return new Reply(201, firewallRuleResource(new StringBuilder(), sqlServer, rule, true).toString());
+            }
+            return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+        }
+
+        SqlFirewallRule rule = sqlServer.firewallRules.get(parts[2]);
+
+        if (method.equals("PUT")) {
+            if (rule == null) {
+                rule = new SqlFirewallRule();
+                rule.name = parts[2];
+                sqlServer.firewallRules.put(rule.name, rule);
+            }
+
+            rule.update(body);
+            return new Reply(200, firewallRuleResource(new StringBuilder(), sqlServer, rule, true).toString());
+        }
+
+        if (rule == null) {
+            return AzureSQLStandIn.error(404, "ResourceNotFound", "Firewall rule " + parts[2] + " was not found.");
+        }
+
+        if (method.equals("GET")) {
+            return new Reply(200, firewallRuleResource(new StringBuilder(), sqlServer, rule, true).toString());
+        }
+        if (method.equals("DELETE")) {
+            sqlServer.firewallRules.remove(rule.name);
+            return new Reply(200, "");
+        }
+
+        return AzureSQLStandIn.error(405, "MethodNotAllowed", method);
+    }
+
+    private Reply listServiceObjectives(SqlServer sqlServer)
+    {
+        StringBuilder buf = AzureSQLStandIn.startList();
+
+        for (String[] slo : AzureSQLStandIn.SERVICE_OBJECTIVES) {
+            buf.append("<ServiceResource>");
+            AzureSQLStandIn.append(buf, "Name", slo[0]);
+            AzureSQLStandIn.append(buf, "Type", AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_SERVICE_OBJECTIVE);
+            AzureSQLStandIn.append(buf, "State", "Normal");
+            AzureSQLStandIn.append(buf, "SelfLink", selfLink(sqlServer) + "/serviceobjectives/" + slo[1]);
+            AzureSQLStandIn.append(buf, "ParentLink", selfLink(sqlServer));
+            buf.append("</ServiceResource>");
+        }
+
+        return new Reply(200, buf.append("</ServiceResources>").toString());
+    }
+
+    private StringBuilder serverResource(StringBuilder buf, SqlServer sqlServer)
+    {
+        buf.append("<ServiceResource>");
+        AzureSQLStandIn.append(buf, "Name", sqlServer.name);
+        AzureSQLStandIn.append(buf, "Type", AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_SERVER);
+        AzureSQLStandIn.append(buf, "State", "Ready");
+        AzureSQLStandIn.append(buf, "SelfLink", selfLink(sqlServer));
+        AzureSQLStandIn.append(buf, "ParentLink", "https://localhost" + AzureSQLStandIn.SERVERS_PATH);
+        AzureSQLStandIn.append(buf, "AdministratorLogin", sqlServer.login);
+        AzureSQLStandIn.append(buf, "Location", sqlServer.location);
+        AzureSQLStandIn.append(buf, "FullyQualifiedDomainName", sqlServer.name + AzureSQLConstants.AZURE_DOMAIN_SUFFIX);
+        AzureSQLStandIn.append(buf, "Version", "12.0");
+        return buf.append("</ServiceResource>");
+    }
+
+    private StringBuilder databaseResource(StringBuilder buf, SqlServer sqlServer, SqlDatabase db, boolean root)
+    {
+        buf.append(root ? "<ServiceResource xmlns=\"" + AzureSQLStandIn.GENERIC_NS + "\">" : "<ServiceResource>");
+        AzureSQLStandIn.append(buf, "Name", db.name);
+        AzureSQLStandIn.append(buf, "Type", AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_DATABASE);
+        AzureSQLStandIn.append(buf, "State", System.currentTimeMillis() < db.readyAt ? "Creating" : "Normal");
+        AzureSQLStandIn.append(buf, "SelfLink", selfLink(sqlServer) + "/databases/" + db.name);
+        AzureSQLStandIn.append(buf, "ParentLink", selfLink(sqlServer));
+        AzureSQLStandIn.append(buf, "Edition", db.edition);
+        AzureSQLStandIn.append(buf, "CollationName", db.collation);
+        AzureSQLStandIn.append(buf, "MaxSizeBytes", String.valueOf(db.maxSizeBytes));
+        AzureSQLStandIn.append(buf, "ServiceObjectiveId", db.serviceObjectiveId);
+        AzureSQLStandIn.append(buf, "AssignedServiceObjectiveId", db.serviceObjectiveId);
+        return buf.append("</ServiceResource>");
+    }
+
+    private StringBuilder firewallRuleResource(StringBuilder buf, SqlServer sqlServer, SqlFirewallRule rule, boolean root)
+    {
+        buf.append(root ? "<ServiceResource xmlns=\"" + AzureSQLStandIn.GENERIC_NS + "\">" : "<ServiceResource>");
+        AzureSQLStandIn.append(buf, "Name", rule.name);
+        AzureSQLStandIn.append(buf, "Type", AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_FIREWALL_RULE);
+        AzureSQLStandIn.append(buf, "State", "Normal");
+        AzureSQLStandIn.append(buf, "SelfLink", selfLink(sqlServer) + "/firewallrules/" + rule.name);
+        AzureSQLStandIn.append(buf, "ParentLink", selfLink(sqlServer));
+        AzureSQLStandIn.append(buf, "StartIPAddress", rule.startIp);
+        AzureSQLStandIn.append(buf, "EndIPAddress", rule.endIp);
+        return buf.append("</ServiceResource>");
+    }
+
+    private String selfLink(SqlServer sqlServer)
+    {
+        return "https://localhost" + AzureSQLStandIn.SERVERS_PATH + "/" + sqlServer.name;
+    }
+
+    private void respond(final HttpExchange exchange, final Reply reply)
+    {
+        long delay = latency + (jitter > 0 ? nextLong() % (jitter + 1) : 0);
+
+        responder.schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    byte[] content = reply.content.getBytes(StandardCharsets.UTF_8);
+
+                    exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                    exchange.sendResponseHeaders(reply.status, content.length > 0 ? content.length : -1);
+
+                    if (content.length > 0) {
+                        OutputStream out = exchange.getResponseBody();
+
+                        out.write(content);
+                        out.close();
+                    }
+                }
+                catch (IOException e) {
+                    // the client went away - nothing to answer
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private double nextDouble()
+    {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private long nextLong()
+    {
+        synchronized (random) {
+            return random.nextLong() & Long.MAX_VALUE;
+        }
+    }
+
+    private static Reply error(int status, String code, String message)
+    {
+        return new Reply(status, "<Error xmlns=\"" + AzureSQLStandIn.SQLSERVER_NS + "\"><Code>" + code + "</Code><Message>"
+                + AzureSQLStandIn.escape(message) + "</Message><Severity>16</Severity><State>1</State></Error>");
+    }
+
+    private static StringBuilder startList()
+    {
+        return new StringBuilder("<ServiceResources xmlns=\"" + AzureSQLStandIn.GENERIC_NS
+                + "\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
+    }
+
+    private static void append(StringBuilder buf, String name, String value)
+    {
+        if (value != null) {
+            buf.append('<').append(name).append('>').append(AzureSQLStandIn.escape(value)).append("</").append(name).append('>');
+        }
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * @return String - text of the first element with the given local name in the request body, or null if there is none
+     */
+    private static String element(String body, String name)
+    {
+        Matcher m = Pattern.compile("<(?:\\w+:)?" + name + "(?:\\s[^>]*)?>([^<]*)</").matcher(body);
+
+        return m.find() ? m.group(1).replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&") : null;
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static class Reply
+    {
+        private final int status;
+        private final String content;
+
+        private Reply(int status, String content)
+        {
+            this.status = status;
+            this.content = content;
+        }
+    }
+
+    private static class SqlServer
+    {
+        private String name;
+        private String login;
+        private String password;
+        private String location;
+        private final Map<String, SqlDatabase> databases = new LinkedHashMap<String, SqlDatabase>();
+        private final Map<String, SqlFirewallRule> firewallRules = new LinkedHashMap<String, SqlFirewallRule>();
+    }
+
+    private static class SqlDatabase
+    {
+        private String name;
+        private String edition = "Standard";
+        private String collation = "SQL_Latin1_General_CP1_CI_AS";
+        private String serviceObjectiveId = "f1173c43-91bd-4aaa-973c-54e79e15235b";
+        private long maxSizeBytes = 268435456000L;
+        private long readyAt;
+
+        private void update(String body)
+        {
+            String value = AzureSQLStandIn.element(body, "Edition");
+
+            edition = value != null ? value : edition;
+            value = AzureSQLStandIn.element(body, "CollationName");
+            collation = value != null ? value : collation;
+            value = AzureSQLStandIn.element(body, "ServiceObjectiveId");
+            serviceObjectiveId = value != null ? value : serviceObjectiveId;
+            value = AzureSQLStandIn.element(body, "MaxSizeBytes");
+            maxSizeBytes = value != null ? Long.parseLong(value.trim()) : maxSizeBytes;
+        }
+    }
+
+    private static class SqlFirewallRule
+    {
+        private String name;
+        private String startIp;
+        private String endIp;
+
+        private void update(String body)
+        {
+            String value = AzureSQLStandIn.element(body, "StartIPAddress");
+
+            startIp = value != null ? value : startIp;
+            value = AzureSQLStandIn.element(body, "EndIPAddress");
+            endIp = value != null ? value : endIp;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import com.microsoft.schemas.windowsazure.ServiceResource;
+import com.microsoft.schemas.windowsazure.ServiceResources;
+import com.servicemesh.agility.adapters.service.azure.sql.AzureSQLConfig;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.api.AssetProperty;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.azure.sql.models.Database;
+import com.servicemesh.azure.sql.models.DatabaseList;
+import com.servicemesh.azure.sql.models.FirewallRule;
+import com.servicemesh.azure.sql.models.FirewallRuleList;
+import com.servicemesh.azure.sql.models.Server;
+
+/**
+ * Builds the fixtures shared by the benchmarks. The values mirror what the Azure SQL management API returns for a server with
+ * the given number of databases and firewall rules.
+ */
+public class Fixtures
+{
+    private static final String SERVERS_URI = "https://management.core.windows.net/subscription/services/sqlservers/servers";
+
+    private Fixtures()
+    {
+    }
+
+    public static ServiceResource databaseResource(int i)
+    {
+        ServiceResource retval = new ServiceResource();
+
+        retval.setName("database" + i);
+        retval.setType(AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_DATABASE);
+        retval.setState("Normal");
+        retval.setSelfLink(Fixtures.SERVERS_URI + "/benchsvr/databases/database" + i);
+        retval.setParentLink(Fixtures.SERVERS_URI + "/benchsvr");
+        retval.setEdition("Standard");
+        retval.setCollationName("SQL_Latin1_General_CP1_CI_AS");
+        retval.setMaxSizeBytes(268435456000L);
+        retval.setServiceObjectiveId("455330e1-00cd-488b-b5fa-177c226f28b7");
+        retval.setAssignedServiceObjectiveId("455330e1-00cd-488b-b5fa-177c226f28b7");
+        retval.setServiceObjectiveAssignmentState("1");
+        retval.setServiceObjectiveAssignmentStateDescription("Complete");
+        retval.setServiceObjectiveAssignmentSuccessDate("2015-03-25T17:14:26.493Z");
+        return retval;
+    }
+
+    public static ServiceResource firewallRuleResource(int i)
+    {
+        ServiceResource retval = new ServiceResource();
+
+        retval.setName("rule" + i);
+        retval.setType(AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_FIREWALL_RULE);
+        retval.setState("Normal");
+        retval.setSelfLink(Fixtures.SERVERS_URI + "/benchsvr/firewallrules/rule" + i);
+        retval.setParentLink(Fixtures.SERVERS_URI + "/benchsvr");
+        retval.setStartIPAddress("10." + (i / 256 % 256) + "." + (i % 256) + ".0");
+        retval.setEndIPAddress("10." + (i / 256 % 256) + "." + (i % 256) + ".255");
+        return retval;
+    }
+
+    public static ServiceResource serverResource(int i)
+    {
+        ServiceResource retval = new ServiceResource();
+
+        retval.setName("benchsvr" + i);
+        retval.setType(AzureSQLConstants.MICROSOFT_RESOURCE_TYPE_SERVER);
+        retval.setState("Ready");
+        retval.setSelfLink(Fixtures.SERVERS_URI + "/benchsvr" + i);
+        retval.setParentLink(Fixtures.SERVERS_URI);
+        retval.setAdministratorLogin("benchadmin");
+        retval.setLocation("West US");
+        retval.setFullyQualifiedDomainName("benchsvr" + i + AzureSQLConstants.AZURE_DOMAIN_SUFFIX);
+        retval.setVersion("12.0");
+        return retval;
+    }
+
+    public static ServiceResources databaseResources(int count)
+    {
+        ServiceResources retval = new ServiceResources();
+
+        for (int i = 0; i < count; i++) {
+            retval.getServiceResources().add(Fixtures.databaseResource(i));
+        }
+
+        return retval;
+    }
+
+    public static ServiceResources firewallRuleResources(int count)
+    {
+        ServiceResources retval = new ServiceResources();
+
+        for (int i = 0; i < count; i++) {
+            retval.getServiceResources().add(Fixtures.firewallRuleResource(i));
+        }
+
+        return retval;
+    }
+
+    public static DatabaseList databaseList(int count)
+    {
+        return AzureSQLUtil.mapResourcesToDatabaseList(Fixtures.databaseResources(count));
+    }
+
+    public static FirewallRuleList firewallRuleList(int count)
+    {
+        return AzureSQLUtil.mapResourcesToFirewallRuleList(Fixtures.firewallRuleResources(count));
+    }
+
+    /**
+     * @return String - ServiceResources XML as returned by a 'contentview=generic' list call
+     */
+    public static String toXml(ServiceResources resources) throws Exception
+    {
+        JAXBContext context = JAXBContext.newInstance(AzureSQLConstants.GENERIC_AZURE_CONTEXT);
+        Marshaller marshaller = context.createMarshaller();
+        StringWriter writer = new StringWriter();
+
+        marshaller.marshal(resources, writer);
+        return writer.toString();
+    }
+
+    /**
+     * @return ServiceInstance - provisioned SQL service instance with a server, database and firewall rule plus padding
+     *         properties so the asset property list is a realistic length
+     */
+    public static ServiceInstance serviceInstance(int paddingProperties)
+    {
+        ServiceInstance retval = new ServiceInstance();
+        Server server = AzureSQLUtil.mapResourceToServer(Fixtures.serverResource(0));
+        Database database = AzureSQLUtil.mapResourceToDatabase(Fixtures.databaseResource(0));
+        FirewallRule fwRule = AzureSQLUtil.mapResourceToFirewallRule(Fixtures.firewallRuleResource(0));
+
+        retval.setName("benchmark-sql-service");
+        server.setAdministratorLoginPassword("NotARealPassword1!");
+
+        for (int i = 0; i < paddingProperties; i++) {
+            retval.getAssetProperties().add(AzureSQLUtil.makeAssetProperty("padding.property." + i, "value" + i));
+        }
+
+        AzureSQLUtil.updateServer(retval, server);
+        AzureSQLUtil.updateDatabase(retval, database);
+        AzureSQLUtil.updateFirewallRule(retval, fwRule);
+        return retval;
+    }
+
+    /**
+     * @return List<AssetProperty> - property list whose last entry is the server name property
+     */
+    public static List<AssetProperty> assetProperties(int count)
+    {
+        List<AssetProperty> retval = new ArrayList<AssetProperty>();
+
+        for (int i = 0; i < count - 1; i++) {
+            retval.add(AzureSQLUtil.makeAssetProperty("padding.property." + i, "value" + i));
+        }
+
+        retval.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_SERVER_NAME, "benchsvr0"));
+        return retval;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.servicemesh.agility.adapters.core.azure.Config;
+import com.servicemesh.agility.adapters.service.azure.sql.AzureSQLAdapter;
+import com.servicemesh.agility.adapters.service.azure.sql.AzureSQLConfig;
+import com.servicemesh.agility.adapters.service.azure.sql.connection.LoadTestEndpoints;
+import com.servicemesh.agility.adapters.service.azure.sql.operations.AzureSQLServiceOperations;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.api.AssetProperty;
+import com.servicemesh.agility.api.Credential;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.api.ServiceProvider;
+import com.servicemesh.agility.api.ServiceState;
+import com.servicemesh.agility.sdk.service.msgs.MethodRequest;
+import com.servicemesh.agility.sdk.service.msgs.MethodResponse;
+import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceProvisionRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceReconfigureRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceReleaseRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.messaging.Status;
+
+/**
+ * Drives the adapter against the AzureSQLStandIn at a fixed rate. Each iteration provisions a SQL service (server, database and
+ * firewall rule), grows its database, runs a health check and releases it, all through AzureSQLServiceOperations so the
+ * helper cache, server index, poll scheduler and payload codec are exercised as they are in production. The latency of every
+ * operation is recorded and p50/p99 and throughput are reported per operation when the run finishes.
+ *
+ * Settings are read from system properties (see benchmark/README):
+ *
+ * <pre>
+ * loadtest.rate            iterations started per second (default 5)
+ * loadtest.duration        seconds to keep starting iterations (default 60)
+ * loadtest.latency         stand-in latency in milliseconds (default 50)
+ * loadtest.jitter          stand-in jitter in milliseconds (default 25)
+ * loadtest.errorRate       fraction of stand-in calls that fail (default 0)
+ * loadtest.provisionDelay  milliseconds a new database reports "Creating" (default 2000)
+ * loadtest.keystore        PKCS12 keystore used as the provider certificate (required)
+ * loadtest.keystorePass    password of the keystore (required)
+ * </pre>
+ */
+public class LoadDriver
+{
+    private static final String[] OPERATIONS = { "provision", "reconfigure", "healthcheck", "release" };
+
+    private final AzureSQLServiceOperations operations;
+    private final ServiceProvider provider;
+    private final Map<String, List<Long>> latencies = new LinkedHashMap<String, List<Long>>();
+    private final Map<String, AtomicInteger> failures = new LinkedHashMap<String, AtomicInteger>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    public LoadDriver(AzureSQLServiceOperations operations, ServiceProvider provider)
+    {
+        this.operations = operations;
+        this.provider = provider;
+
+        for (String op : LoadDriver.OPERATIONS) {
+            latencies.put(op, Collections.synchronizedList(new ArrayList<Long>()));
+            failures.put(op, new AtomicInteger());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int rate = Integer.getInteger("loadtest.rate", 5);
+        int duration = Integer.getInteger("loadtest.duration", 60);
+        AzureSQLStandIn standIn =
+                new AzureSQLStandIn(0, Long.getLong("loadtest.latency", 50), Long.getLong("loadtest.jitter", 25),
+                        Double.parseDouble(System.getProperty("loadtest.errorRate", "0")), Long.getLong(
+                                "loadtest.provisionDelay", 2000));
+
+        standIn.start(16);
+        LoadTestEndpoints.setAddress(standIn.getAddress());
+
+        try {
+            AzureSQLAdapter adapter = new AzureSQLAdapter();
+            LoadDriver driver =
+                    new LoadDriver((AzureSQLServiceOperations) adapter.getServiceInstanceOperations(), LoadDriver.provider(
+                            System.getProperty("loadtest.keystore"), System.getProperty("loadtest.keystorePass")));
+
+            System.out.println("Stand-in listening on " + standIn.getAddress());
+            System.out.println("Running " + rate + " iterations/s for " + duration + " s");
+
+            long elapsed = driver.run(rate, duration);
+
+            driver.report(elapsed);
+            System.out.println(String.format("Stand-in calls: %d (%d injected errors)", standIn.getRequestCount(),
+                    standIn.getInjectedErrorCount()));
+        }
+        finally {
+            standIn.stop();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * This method will start iterations at the given rate for the given duration and wait for all of them to finish.
+     *
+     * @return long - elapsed time of the run in milliseconds
+     */
+    public long run(int rate, int duration) throws InterruptedException
+    {
+        final int total = rate * duration;
+        final CountDownLatch done = new CountDownLatch(total);
+        ScheduledExecutorService starter = Executors.newSingleThreadScheduledExecutor();
+        long start = System.currentTimeMillis();
+
+        starter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run()
+            {
+                if (sequence.get() < total) {
+                    iterate(sequence.incrementAndGet(), done);
+                }
+            }
+        }, 0, 1000000L / Math.max(1, rate), TimeUnit.MICROSECONDS);
+
+        done.await();
+        starter.shutdownNow();
+        return System.currentTimeMillis() - start;
+    }
+
+    private void iterate(int id, final CountDownLatch done)
+    {
+        final ServiceInstance instance = LoadDriver.serviceInstance(id);
+        final ServiceInstanceProvisionRequest provisionReq = new ServiceInstanceProvisionRequest();
+        final long start = System.currentTimeMillis();
+
+        provisionReq.setProvider(provider);
+        provisionReq.setServiceInstance(instance);
+
+        Promise<ServiceProviderResponse> chain =
+                timed("provision", start, operations.provision(provisionReq)).flatMap(
+                        new Function<ServiceProviderResponse, Promise<ServiceProviderResponse>>() {
+                            @Override
+                            public Promise<ServiceProviderResponse> invoke(ServiceProviderResponse provisioned)
+                            {
+                                ServiceInstanceReconfigureRequest reconfigureReq = new ServiceInstanceReconfigureRequest();
+                                ServiceInstance current = provisionReq.getServiceInstance();
+                                ServiceInstance desired = AzureSQLUtil.clone(current);
+
+                                current.setState(ServiceState.RUNNING);
+                                desired.setState(ServiceState.RUNNING);
+                                AzureSQLUtil.clearProperty(desired.getAssetProperties(), AzureSQLConfig.CONFIG_MAX_SIZE);
+                                desired.getAssetProperties().add(
+                                        AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_MAX_SIZE,
+                                                AzureSQLConfig.CONFIG_2_GB));
+                                reconfigureReq.setProvider(provider);
+                                reconfigureReq.setOriginalServiceInstance(current);
+                                reconfigureReq.setServiceInstance(desired);
+                                return timed("reconfigure", System.currentTimeMillis(), operations.reconfigure(reconfigureReq));
+                            }
+                        }).flatMap(new Function<ServiceProviderResponse, Promise<ServiceProviderResponse>>() {
+                    @Override
+                    public Promise<ServiceProviderResponse> invoke(ServiceProviderResponse reconfigured)
+                    {
+                        MethodRequest healthReq = new MethodRequest();
+                        final long healthStart = System.currentTimeMillis();
+
+                        healthReq.setProvider(provider);
+                        healthReq.setName(AzureSQLConstants.METHOD_PROCESS_HEALTH_CHECK);
+                        healthReq.getArguments().add(
+                                AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_SERVICE,
+                                        AzureSQLUtil.serialize(provisionReq.getServiceInstance())));
+
+                        Promise<MethodResponse> healthCheck = AzureSQLServiceOperations.processHealthCheck(healthReq);
+
+                        // a failed health check is a sample too
+                        healthCheck.onFailure(new Callback<Throwable>() {
+                            @Override
+                            public void invoke(Throwable t)
+                            {
+                                record("healthcheck", healthStart, Status.FAILURE);
+                            }
+                        });
+
+                        return healthCheck.map(new Function<MethodResponse, ServiceProviderResponse>() {
+                            @Override
+                            public ServiceProviderResponse invoke(MethodResponse health)
+                            {
+                                record("healthcheck", healthStart, health.getStatus());
+                                return null;
+                            }
+                        });
+                    }
+                }).flatMap(new Function<ServiceProviderResponse, Promise<ServiceProviderResponse>>() {
+                    @Override
+                    public Promise<ServiceProviderResponse> invoke(ServiceProviderResponse ignored)
+                    {
+                        ServiceInstanceReleaseRequest releaseReq = new ServiceInstanceReleaseRequest();
+
+                        releaseReq.setProvider(provider);
+                        releaseReq.setServiceInstance(provisionReq.getServiceInstance());
+                        return timed("release", System.currentTimeMillis(), operations.release(releaseReq));
+                    }
+                });
+
+        chain.onComplete(new Callback<ServiceProviderResponse>() {
+            @Override
+            public void invoke(ServiceProviderResponse response)
+            {
+                done.countDown();
+            }
+        });
+        chain.onFailure(new Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable t)
+            {
+                done.countDown();
+            }
+        });
+    }
+
+    private Promise<ServiceProviderResponse> timed(final String op, final long start, Promise<ServiceProviderResponse> promise)
+    {
+        promise.onFailure(new Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable t)
+            {
+                record(op, start, Status.FAILURE);
+            }
+        });
+
+        return promise.map(new Function<ServiceProviderResponse, ServiceProviderResponse>() {
+            @Override
+            public ServiceProviderResponse invoke(ServiceProviderResponse response)
+            {
+                record(op, start, response.getStatus());
+                return response;
+            }
+        });
+    }
+
+    private void record(String op, long start, Status status)
+    {
+        latencies.get(op).add(System.currentTimeMillis() - start);
+
+        if (status != Status.COMPLETE) {
+            failures.get(op).incrementAndGet();
+        }
+    }
+
+    public void report(long elapsed)
+    {
+        System.out.println(String.format("%-12s %8s %8s %8s %8s %8s %10s", "operation", "count", "failed", "p50 ms", "p99 ms",
+                "max ms", "ops/s"));
+
+        for (String op : LoadDriver.OPERATIONS) {
+            List<Long> sorted;
+
+            synchronized (latencies.get(op)) {
+                sorted = new ArrayList<Long>(latencies.get(op));
+            }
+
+            Collections.sort(sorted);
+            System.out.println(String.format("%-12s %8d %8d %8d %8d %8d %10.2f", op, sorted.size(), failures.get(op).get(),
+                    LoadDriver.percentile(sorted, 50), LoadDriver.percentile(sorted, 99),
+                    sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1), sorted.size() * 1000.0 / Math.max(1, elapsed)));
+        }
+    }
+
+    static long percentile(List<Long> sorted, int percent)
+    {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static ServiceProvider provider(String keystore, String password) throws Exception
+    {
+        if (keystore == null || password == null) {
+            throw new IllegalArgumentException("loadtest.keystore and loadtest.keystorePass must be set - see benchmark/README");
+        }
+
+        ServiceProvider retval = new ServiceProvider();
+        Credential credential = new Credential();
+
+        credential.setCertificate(Files.readAllBytes(Paths.get(keystore)));
+        credential.setPrivateKey(password);
+        retval.setCredentials(credential);
+        retval.getProperties().add(AzureSQLUtil.makeAssetProperty(Config.CONFIG_SUBSCRIPTION, "loadtest-subscription"));
+        return retval;
+    }
+
+    private static ServiceInstance serviceInstance(int id)
+    {
+        ServiceInstance retval = new ServiceInstance();
+        List<AssetProperty> props = retval.getAssetProperties();
+
+        retval.setName("loadtest-sql-" + id);
+        retval.setState(ServiceState.UNPROVISIONED);
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_ADMIN_LOGIN, "loadadmin"));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_ADMIN_PASS, "NotARealPassword1!"));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_AZURE_SQL_SERVER_LOCATION,
+                AzureSQLConfig.CONFIG_LOCATION_WEST_US));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_DB_NAME, "loaddb" + id));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_EDITION, AzureSQLConfig.CONFIG_EDITION_STANDARD));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_MAX_SIZE, AzureSQLConfig.CONFIG_1_GB));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_SERVICE_OBJECTIVE_ID,
+                AzureSQLConstants.SLO_S0.getValue()));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_FIREWALL_RULE_NAME, "loadrule" + id));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_STARTING_ALLOWED_IP, "10.0.0.0"));
+        props.add(AzureSQLUtil.makeAssetProperty(AzureSQLConfig.CONFIG_ENDING_ALLOWED_IP, "10.0.0.255"));
+        return retval;
+    }
+}
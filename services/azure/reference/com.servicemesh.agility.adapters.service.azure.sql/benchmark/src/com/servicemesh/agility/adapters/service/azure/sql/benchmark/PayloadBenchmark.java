@@ -0,0 +1,120 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.adapters.service.azure.sql.util.JavaSerializationCodec;
+import com.servicemesh.agility.adapters.service.azure.sql.util.ModelBinaryCodec;
+import com.servicemesh.agility.adapters.service.azure.sql.util.ModelCopier;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.azure.sql.models.DatabaseList;
+import com.servicemesh.azure.sql.models.FirewallRuleList;
+
+/**
+ * Payload encoding and copying: AzureSQLUtil.serialize/deserialize/clone and the two PayloadCodec implementations they can use.
+ * The database and firewall rule lists are what a server sync passes between sub-requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark
+{
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    private final ModelBinaryCodec modelCodec = new ModelBinaryCodec();
+    private final JavaSerializationCodec javaCodec = new JavaSerializationCodec();
+
+    private DatabaseList databases;
+    private FirewallRuleList firewallRules;
+    private ServiceInstance serviceInstance;
+    private byte[] databasesModel;
+    private byte[] databasesJava;
+    private byte[] serviceInstanceBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        databases = Fixtures.databaseList(size);
+        firewallRules = Fixtures.firewallRuleList(size);
+        serviceInstance = Fixtures.serviceInstance(size);
+        databasesModel = modelCodec.encode(databases);
+        databasesJava = javaCodec.encode(databases);
+        serviceInstanceBytes = AzureSQLUtil.serialize(serviceInstance);
+    }
+
+    @Benchmark
+    public byte[] serializeDatabases()
+    {
+        return AzureSQLUtil.serialize(databases);
+    }
+
+    @Benchmark
+    public byte[] serializeFirewallRules()
+    {
+        return AzureSQLUtil.serialize(firewallRules);
+    }
+
+    @Benchmark
+    public Object deserializeServiceInstance()
+    {
+        return AzureSQLUtil.deserialize(serviceInstanceBytes);
+    }
+
+    @Benchmark
+    public ServiceInstance cloneServiceInstance()
+    {
+        return AzureSQLUtil.clone(serviceInstance);
+    }
+
+    @Benchmark
+    public DatabaseList copyDatabases() throws Exception
+    {
+        return ModelCopier.copy(databases);
+    }
+
+    @Benchmark
+    public byte[] encodeDatabasesModelCodec() throws Exception
+    {
+        return modelCodec.encode(databases);
+    }
+
+    @Benchmark
+    public byte[] encodeDatabasesJavaCodec() throws Exception
+    {
+        return javaCodec.encode(databases);
+    }
+
+    @Benchmark
+    public Object decodeDatabasesModelCodec() throws Exception
+    {
+        return modelCodec.decode(databasesModel);
+    }
+
+    @Benchmark
+    public Object decodeDatabasesJavaCodec() throws Exception
+    {
+        return javaCodec.decode(databasesJava);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.schemas.windowsazure.ServiceResource;
+import com.microsoft.schemas.windowsazure.ServiceResources;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.adapters.service.azure.sql.util.ServiceResourceStreamDecoder;
+import com.servicemesh.azure.sql.models.DatabaseList;
+import com.servicemesh.azure.sql.models.FirewallRuleList;
+import com.servicemesh.azure.sql.models.Server;
+
+/**
+ * Decoding of 'contentview=generic' list responses: the JAXB decode followed by AzureSQLUtil.mapResourcesTo... against the
+ * streaming ServiceResourceStreamDecoder, plus the single resource mapping methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceMappingBenchmark
+{
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    private JAXBContext context;
+    private ServiceResources databaseResources;
+    private String databaseXml;
+    private String firewallRuleXml;
+    private String serverXml;
+    private ServiceResource serverResource;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        ServiceResources servers = new ServiceResources();
+
+        for (int i = 0; i < size; i++) {
+            servers.getServiceResources().add(Fixtures.serverResource(i));
+        }
+
+        context = JAXBContext.newInstance(AzureSQLConstants.GENERIC_AZURE_CONTEXT);
+        databaseResources = Fixtures.databaseResources(size);
+        databaseXml = Fixtures.toXml(databaseResources);
+        firewallRuleXml = Fixtures.toXml(Fixtures.firewallRuleResources(size));
+        serverXml = Fixtures.toXml(servers);
+        serverResource = Fixtures.serverResource(0);
+    }
+
+    @Benchmark
+    public DatabaseList jaxbDecodeDatabaseList() throws Exception
+    {
+        ServiceResources resources = (ServiceResources) context.createUnmarshaller().unmarshal(new StringReader(databaseXml));
+
+        return AzureSQLUtil.mapResourcesToDatabaseList(resources);
+    }
+
+    @Benchmark
+    public DatabaseList streamDecodeDatabaseList()
+    {
+        return ServiceResourceStreamDecoder.decodeDatabaseList(databaseXml);
+    }
+
+    @Benchmark
+    public FirewallRuleList jaxbDecodeFirewallRuleList() throws Exception
+    {
+        ServiceResources resources = (ServiceResources) context.createUnmarshaller().unmarshal(new StringReader(firewallRuleXml));
+
+        return AzureSQLUtil.mapResourcesToFirewallRuleList(resources);
+    }
+
+    @Benchmark
+    public FirewallRuleList streamDecodeFirewallRuleList()
+    {
+        return ServiceResourceStreamDecoder.decodeFirewallRuleList(firewallRuleXml);
+    }
+
+    @Benchmark
+    public Server streamFindLastServer()
+    {
+        return ServiceResourceStreamDecoder.findServer(serverXml, "benchsvr" + (size - 1));
+    }
+
+    @Benchmark
+    public Server streamFindFirstServer()
+    {
+        return ServiceResourceStreamDecoder.findServer(serverXml, "benchsvr0");
+    }
+
+    @Benchmark
+    public DatabaseList mapResourcesToDatabaseList()
+    {
+        return AzureSQLUtil.mapResourcesToDatabaseList(databaseResources);
+    }
+
+    @Benchmark
+    public Server mapResourceToServer()
+    {
+        return AzureSQLUtil.mapResourceToServer(serverResource);
+    }
+}
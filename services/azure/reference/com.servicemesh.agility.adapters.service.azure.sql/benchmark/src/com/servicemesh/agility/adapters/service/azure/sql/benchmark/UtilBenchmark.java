@@ -0,0 +1,93 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servicemesh.agility.adapters.core.azure.util.KeyValuePair;
+import com.servicemesh.agility.adapters.service.azure.sql.AzureSQLConfig;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.api.AssetProperty;
+import com.servicemesh.agility.sdk.service.msgs.MethodVariable;
+import com.servicemesh.azure.sql.models.FirewallRule;
+import com.servicemesh.azure.sql.models.FirewallRuleList;
+
+/**
+ * Small AzureSQLUtil helpers that run inside the per-instance and per-rule loops of validation, health checks and sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark
+{
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    private List<AssetProperty> properties;
+    private List<KeyValuePair> kvps;
+    private FirewallRuleList firewallRules;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        properties = Fixtures.assetProperties(size);
+        kvps = new ArrayList<KeyValuePair>();
+        firewallRules = Fixtures.firewallRuleList(size);
+
+        for (int i = 0; i < size; i++) {
+            kvps.add(new KeyValuePair("argument" + i, "value" + i));
+        }
+    }
+
+    @Benchmark
+    public long convertMaxSizeToBytes() throws Exception
+    {
+        return AzureSQLUtil.convertMaxSizeToBytes("250 GB");
+    }
+
+    @Benchmark
+    public int isIpInRangeAllRules()
+    {
+        int retval = 0;
+
+        // the check a health check makes for a client address against every firewall rule on the server
+        for (FirewallRule rule : firewallRules.getFirewallRules()) {
+            retval += AzureSQLUtil.isIpInRange("10.0.7.42", rule.getStartIPAddress(), rule.getEndIPAddress()) ? 1 : 0;
+        }
+
+        return retval;
+    }
+
+    @Benchmark
+    public AssetProperty getAssetPropertyLast()
+    {
+        return AzureSQLUtil.getAssetProperty(AzureSQLConfig.CONFIG_SERVER_NAME, properties);
+    }
+
+    @Benchmark
+    public List<MethodVariable> createStringArguments()
+    {
+        return AzureSQLUtil.createStringArguments(kvps);
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.connection;
+
+/**
+ * Points the adapter at the AzureSQLStandIn. This class is part of the benchmark sources only; it lives in the connection
+ * package so it can reach the package private address override of AzureSQLEndpoint, which the bundle itself never sets.
+ */
+public class LoadTestEndpoints
+{
+    private LoadTestEndpoints()
+    {
+    }
+
+    /**
+     * This method will make every AzureSQLEndpoint created afterwards use the given management address.
+     *
+     * @param String
+     *            address - address of the stand-in, including the trailing slash
+     */
+    public static void setAddress(String address)
+    {
+        AzureSQLEndpoint.setAddressOverride(address);
+    }
+}
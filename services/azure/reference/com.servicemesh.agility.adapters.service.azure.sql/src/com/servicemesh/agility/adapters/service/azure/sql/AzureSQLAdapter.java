@@ -17,6 +17,7 @@ import com.servicemesh.agility.adapters.service.azure.sql.operations.AzureSQLIns
 import com.servicemesh.agility.adapters.service.azure.sql.operations.AzureSQLProviderOperations;
 import com.servicemesh.agility.adapters.service.azure.sql.operations.AzureSQLServiceLifecycleOperations;
 import com.servicemesh.agility.adapters.service.azure.sql.operations.AzureSQLServiceOperations;
+import com.servicemesh.agility.adapters.service.azure.sql.util.DatabasePollScheduler;
 import com.servicemesh.agility.api.AssetType;
 import com.servicemesh.agility.api.ConnectionDefinition;
 import com.servicemesh.agility.api.FieldValidators;
@@ -86,13 +87,25 @@ public class AzureSQLAdapter extends ServiceAdapter
     }
 
     private final AzureSQLConnectionFactory _factory = new AzureSQLConnectionFactory();
+    private final DatabasePollScheduler _pollScheduler;
 
     public AzureSQLAdapter() throws Exception
     {
         super(TimerReactor.getTimerReactor(AzureSQLAdapter.SERVICE_PROVIDER_NAME));
+        _pollScheduler = new DatabasePollScheduler(TimerReactor.getTimerReactor(AzureSQLAdapter.SERVICE_PROVIDER_NAME));
         AzureSQLAdapter.logger.info(AzureSQLAdapter.SERVICE_PROVIDER_DESCRIPTION);
     }
 
+    /**
+     * This method will return the scheduler shared by all database status polls of this adapter.
+     *
+     * @return DatabasePollScheduler - database poll scheduler
+     */
+    public DatabasePollScheduler getDatabasePollScheduler()
+    {
+        return _pollScheduler;
+    }
+
     @Override
     public List<ServiceProviderType> getServiceProviderTypes()
     {
@@ -22,7 +22,12 @@ public class AzureSQLEndpoint implements Serializable, AzureEndpoint
     private static Logger logger = Logger.getLogger(AzureSQLEndpoint.class);
     private static final long serialVersionUID = 20150123;
 
+    // replaces the management endpoint address of every endpoint created afterwards. It can only be set in code by the load
+    // test harness through LoadTestEndpoints, never from configuration.
+    private static volatile String addressOverride;
+
     private AzureEndpoint endpoint;
+    private String address;
 
     public <E> AzureSQLEndpoint(String subscription, String msVersion, String msContextPath, Class<E> msErrorClass)
             throws AzureAdapterException
@@ -36,6 +41,7 @@ public class AzureSQLEndpoint implements Serializable, AzureEndpoint
 
         try {
             endpoint = AzureEndpointFactory.getInstance().getEndpoint(subscription, msVersion, msContextPath, msErrorClass);
+            address = AzureSQLEndpoint.addressOverride;
         }
         catch (Exception e) {
             String msg = "An exception occurred while creating an AzureSQLEndpoint.";
@@ -46,6 +52,19 @@ public class AzureSQLEndpoint implements Serializable, AzureEndpoint
         }
     }
 
+    /**
+     * This method will replace the management endpoint address of the endpoints created afterwards. It is only meant for the
+     * load test harness, which points the adapter at an in-process stand-in.
+     *
+     * @param String
+     *            address - the address to use, null to use the Azure endpoint address again
+     */
+    static void setAddressOverride(String address)
+    {
+        AzureSQLEndpoint.addressOverride = address;
+        AzureSQLEndpoint.logger.warn("Azure SQL endpoint address overridden with " + address);
+    }
+
     @Override
     public <T> T decode(IHttpResponse response, Class<T> responseClass)
     {
@@ -73,6 +92,10 @@ public class AzureSQLEndpoint implements Serializable, AzureEndpoint
     @Override
     public String getAddress()
     {
+        if (address != null && !address.isEmpty()) {
+            return address;
+        }
+
         return endpoint.getAddress();
     }
 
@@ -146,7 +146,7 @@ public class AzureSQLInstanceOperations extends InstanceOperations
                     String instanceIP = instance.getPublicAddress();
                     if (instanceIP != null) {
                         try {
-                            final AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
+                            final AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
                             ServiceResource firewallRule = new ServiceResource();
                             firewallRule.setName(instance.getName() + AzureSQLConstants.INSTANCE_FIREWALL_SUFFIX);
                             firewallRule.setStartIPAddress(instanceIP);
@@ -356,7 +356,7 @@ public class AzureSQLInstanceOperations extends InstanceOperations
                     return Promise.pure(response);
                 }
                 try {
-                    final AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
+                    final AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
                     Promise<IHttpResponse> firewallDelete = helper.deleteFirewallRule(serverName, firewallName);
                     Promise<InstanceResponse> result = firewallDelete.map(new Function<IHttpResponse, InstanceResponse>() {
                         public InstanceResponse invoke(IHttpResponse httpResponse)
@@ -78,7 +78,7 @@ public class AzureSQLProviderOperations extends ServiceProviderOperations
     {
         if (AzureSQLUtil.isValued(request)) {
             try {
-                return new AzureSQLRestHelper(request).listServers().map(new Function<Servers, ServiceProviderResponse>() {
+                return AzureSQLRestHelperCache.getHelper(request).listServers().map(new Function<Servers, ServiceProviderResponse>() {
                     @Override
                     public ServiceProviderResponse invoke(Servers servers)
                     {
@@ -131,6 +131,8 @@ public class AzureSQLProviderOperations extends ServiceProviderOperations
     @Override
     public Promise<ServiceProviderResponse> postUpdate(ServiceProviderPostUpdateRequest request)
     {
+        // credentials or subscription may have changed
+        AzureSQLRestHelperCache.invalidate(request);
         return super.postUpdate(request);
     }
 
@@ -143,6 +145,7 @@ public class AzureSQLProviderOperations extends ServiceProviderOperations
     @Override
     public Promise<ServiceProviderResponse> postDelete(ServiceProviderPostDeleteRequest request)
     {
+        AzureSQLRestHelperCache.invalidate(request);
         return super.postDelete(request);
     }
 
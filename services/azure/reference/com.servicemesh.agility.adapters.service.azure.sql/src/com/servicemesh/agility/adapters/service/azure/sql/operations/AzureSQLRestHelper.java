@@ -6,7 +6,9 @@
 package com.servicemesh.agility.adapters.service.azure.sql.operations;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +32,7 @@ import com.servicemesh.azure.sql.models.Server;
 import com.servicemesh.azure.sql.models.ServerList;
 import com.servicemesh.azure.sql.models.ServerName;
 import com.servicemesh.azure.sql.models.Servers;
+import com.servicemesh.core.async.Callback;
 import com.servicemesh.core.async.CompletablePromise;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
@@ -52,6 +55,12 @@ public class AzureSQLRestHelper
     private AzureConnection _conn2010Context;
     private AzureConnection _connGenericContext;
 
+    // name -> server index built from a single server list call. shared by all callers of getServer for this subscription.
+    private final Object _serverIndexLock = new Object();
+    private Map<String, Server> _serverIndex;
+    private long _serverIndexExpires;
+    private CompletablePromise<Map<String, Server>> _serverIndexPending;
+
     /**
      * Constructor.
      *
@@ -63,15 +72,46 @@ public class AzureSQLRestHelper
     public AzureSQLRestHelper(ServiceProviderRequest request) throws AzureAdapterException
     {
         try {
-            String subscription = AzureSQLConnectionFactory.getSubscription(request.getProvider(), request.getClouds());
+            init(AzureSQLConnectionFactory.getSubscription(request.getProvider(), request.getClouds()),
+                    AzureSQLConnectionFactory.getCredentials(request.getProvider(), request.getClouds()), null);
+        }
+        catch (AzureAdapterException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            String msg = "An exception has occurred while initiating an AzureSQLRestHelper.";
+
+            AzureSQLRestHelper.logger.error(msg, e);
+            throw new AzureAdapterException(e);
+        }
+    }
+
+    /**
+     * Constructor used by AzureSQLRestHelperCache once the subscription and credentials have been resolved.
+     *
+     * @param String
+     *            subscription - Azure subscription identifier
+     * @param Credential
+     *            credential - credential containing the certificate and private key for the subscription
+     * @param Proxy
+     *            proxy - the proxy to be utilized. Optional - may be null.
+     * @throws AzureAdapterException
+     *             - if any exception occurs during initiation
+     */
+    AzureSQLRestHelper(String subscription, Credential credential, Proxy proxy) throws AzureAdapterException
+    {
+        init(subscription, credential, proxy);
+    }
+
+    private void init(String subscription, Credential credential, Proxy proxy) throws AzureAdapterException
+    {
+        try {
             String version = AzureSQLConstants.AZURE_SQL_VERSION;
             String context201012 = AzureSQLConstants.AZURE_201012_CONTEXT;
             String contextGeneric = AzureSQLConstants.GENERIC_AZURE_CONTEXT;
             Class<?> errorClass201012 = AzureSQLUtil.getErrorClass(AzureSQLConstants.AZURE_201012_CONTEXT);
             Class<?> errorClassGeneric = AzureSQLUtil.getErrorClass(AzureSQLConstants.GENERIC_AZURE_CONTEXT);
             List<Property> settings = new ArrayList<Property>();
-            Proxy proxy = null;
-            Credential credential = AzureSQLConnectionFactory.getCredentials(request.getProvider(), request.getClouds());
             AzureSQLConnectionFactory connFactory = new AzureSQLConnectionFactory();
 
             _endpoint2010Context = new AzureSQLEndpoint(subscription, version, context201012, errorClass201012);
@@ -139,8 +179,14 @@ public class AzureSQLRestHelper
         AzureSQLRestHelper.logger.trace("Creating Azure SQL Server using URI = " + uri + "\n" + serverStr);
 
         try {
-            return _conn2010Context.post(uri, server, IHttpResponse.class).map(
-                    AzureSQLUtil.createServerNameMap(_endpoint2010Context));
+            invalidateServerIndex();
+            Promise<ServerName> promise =
+                    _conn2010Context.post(uri, server, IHttpResponse.class).map(
+                            AzureSQLUtil.createServerNameMap(_endpoint2010Context));
+
+            // the server may have been created even if the call failed, so the index is dropped either way
+            invalidateServerIndexOnSettle(promise);
+            return promise;
         }
         catch (Exception e) {
             String msg = "An exception occurred while creating an Azure SQL server with the following properties:\n" + serverStr;
@@ -200,7 +246,7 @@ public class AzureSQLRestHelper
 
     /**
      * This method will get a specific server from a list of servers for a given subscription. If the server is not found, null
-     * will be returned.
+     * will be returned. The server is a copy of the indexed one, so the caller is free to modify it.
      *
      * @param String
      *            serverName - name of server for which to search
@@ -208,6 +254,51 @@ public class AzureSQLRestHelper
      * @return Promise<AzureAdapterException> - promise for any wrapped Azure exception or mapping errors
      */
     public Promise<Server> getServer(final String serverName)
+    {
+        if (AzureSQLUtil.isValued(serverName)) {
+            AzureSQLRestHelper.logger.trace("Find server with name " + serverName);
+
+            try {
+                return getServerIndex().map(new Function<Map<String, Server>, Server>() {
+                    @Override
+                    public Server invoke(Map<String, Server> index)
+                    {
+                        Server retval = index.get(serverName);
+
+                        if (retval == null) {
+                            AzureSQLRestHelper.logger.debug("No server with name " + serverName + " was found.");
+                        }
+
+                        // the indexed server is shared by every caller until the index expires
+                        return AzureSQLUtil.clone(retval);
+                    }
+                });
+            }
+            catch (Exception e) {
+                String msg = "An exception occurred while searching for server " + serverName;
+
+                AzureSQLRestHelper.logger.error(msg, e);
+                return Promise.pure(new AzureAdapterException(msg + "\n" + e));
+            }
+        }
+        else {
+            AzureSQLRestHelper.logger.debug("The name of the server does not have a value.  No work to do.");
+            CompletablePromise<Server> p = PromiseFactory.create();
+            p.complete(null);
+            return p;
+        }
+    }
+
+    /**
+     * This method will search the live server list for a specific server without using the server index. The list content is read
+     * only up to the matching server, so the search stops at the first match. If the server is not found, null will be returned.
+     *
+     * @param String
+     *            serverName - name of server for which to search
+     * @return Promise<Server> - promise for a Server object that matches the given name
+     * @return Promise<AzureAdapterException> - promise for any wrapped Azure exception or mapping errors
+     */
+    public Promise<Server> findServer(String serverName)
     {
         if (AzureSQLUtil.isValued(serverName)) {
             String uri = AzureSQLConstants.AZURE_SQL_BASE_URI + AzureSQLConstants.URI_GENERIC_TAG;
@@ -215,30 +306,8 @@ public class AzureSQLRestHelper
             AzureSQLRestHelper.logger.trace("Find server with name " + serverName + " using URI = " + uri);
 
             try {
-                return _connGenericContext.get(uri, null, IHttpResponse.class)
-                        .map(AzureSQLUtil.createServerListMap(_endpointGenericContext)).map(new Function<ServerList, Server>() {
-                            @Override
-                            public Server invoke(ServerList list)
-                            {
-                                Server retval = null;
-
-                                if (list != null) {
-                                    // see if the server is in the list
-                                    for (Server server : list.getServers()) {
-                                        if (serverName.equals(server.getName())) {
-                                            retval = server;
-                                            break;
-                                        }
-                                    }
-                                }
-
-                                if (retval == null) {
-                                    AzureSQLRestHelper.logger.debug("No server with name " + serverName + " was found.");
-                                }
-
-                                return retval;
-                            }
-                        });
+                return _connGenericContext.get(uri, null, IHttpResponse.class).map(
+                        AzureSQLUtil.createServerFindMap(_endpointGenericContext, serverName));
             }
             catch (Exception e) {
                 String msg = "An exception occurred while searching for server " + serverName;
@@ -255,6 +324,125 @@ public class AzureSQLRestHelper
         }
     }
 
+    /**
+     * This method will return the name to server index for the subscription. The index is built from a single server list call
+     * and is reused until it is older than SERVER_INDEX_TTL, or a server is created or deleted. Callers that arrive while the
+     * list call is outstanding will share the same promise rather than issuing another call. The indexed servers are shared
+     * and must be treated as read only.
+     *
+     * @return Promise<Map<String, Server>> - promise for the server index keyed by server name
+     * @return Promise<AzureAdapterException> - promise for any wrapped Azure exception or mapping errors
+     */
+    protected Promise<Map<String, Server>> getServerIndex()
+    {
+        final CompletablePromise<Map<String, Server>> pending;
+
+        synchronized (_serverIndexLock) {
+            if (_serverIndex != null && System.currentTimeMillis() < _serverIndexExpires) {
+                return Promise.pure(_serverIndex);
+            }
+
+            if (_serverIndexPending != null) {
+                return _serverIndexPending;
+            }
+
+            pending = PromiseFactory.create();
+            _serverIndexPending = pending;
+        }
+
+        Promise<ServerList> listPromise = getServerList();
+
+        listPromise.onComplete(new Callback<ServerList>() {
+            @Override
+            public void invoke(ServerList list)
+            {
+                Map<String, Server> index = new HashMap<String, Server>();
+
+                if (list != null) {
+                    for (Server server : list.getServers()) {
+                        if (server.getName() != null) {
+                            index.put(server.getName(), server);
+                        }
+                    }
+                }
+
+                synchronized (_serverIndexLock) {
+                    if (_serverIndexPending == pending) {
+                        _serverIndex = index;
+                        _serverIndexExpires = System.currentTimeMillis() + AzureSQLConstants.SERVER_INDEX_TTL;
+                        _serverIndexPending = null;
+                    }
+                }
+
+                pending.complete(index);
+            }
+        });
+        listPromise.onFailure(new Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable t)
+            {
+                synchronized (_serverIndexLock) {
+                    if (_serverIndexPending == pending) {
+                        _serverIndexPending = null;
+                    }
+                }
+
+                pending.failure(t);
+            }
+        });
+        listPromise.onCancel(new Callback<Void>() {
+            @Override
+            public void invoke(Void t)
+            {
+                synchronized (_serverIndexLock) {
+                    if (_serverIndexPending == pending) {
+                        _serverIndexPending = null;
+                    }
+                }
+
+                pending.failure(new AzureAdapterException("The server list request was cancelled."));
+            }
+        });
+
+        return pending;
+    }
+
+    /**
+     * This method will discard the server index so the next lookup will reload the server list. It is called whenever a server
+     * is created or deleted.
+     */
+    public void invalidateServerIndex()
+    {
+        synchronized (_serverIndexLock) {
+            _serverIndex = null;
+            _serverIndexPending = null;
+        }
+    }
+
+    /**
+     * This method will discard the server index once a call that creates or deletes a server has completed or failed.
+     *
+     * @param Promise
+     *            <T> promise - promise for the create or delete call
+     */
+    private <T> void invalidateServerIndexOnSettle(Promise<T> promise)
+    {
+        promise.onComplete(new Callback<T>() {
+            @Override
+            public void invoke(T arg)
+            {
+                invalidateServerIndex();
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable t)
+            {
+                invalidateServerIndex();
+            }
+        });
+    }
+
     /**
      * This method will delete an Azure SQL server given a server name.
      *
@@ -272,7 +460,11 @@ public class AzureSQLRestHelper
             AzureSQLRestHelper.logger.trace("Deleting server with name " + serverName + " using URI = " + uri);
 
             try {
-                return _conn2010Context.delete(uri);
+                invalidateServerIndex();
+                Promise<IHttpResponse> promise = _conn2010Context.delete(uri);
+
+                invalidateServerIndexOnSettle(promise);
+                return promise;
             }
             catch (Exception e) {
                 String msg = "An exception occurred while deleting server " + serverName;
@@ -827,17 +1019,8 @@ public class AzureSQLRestHelper
     public static AzureConnection getConnectionGeneric(ServiceProviderRequest request)
     {
         if (request != null) {
-            String subscription = null;
-            Credential credential = null;
             try {
-                subscription = AzureSQLConnectionFactory.getSubscription(request.getProvider(), request.getClouds());
-                credential = AzureSQLConnectionFactory.getCredentials(request.getProvider(), request.getClouds());
-                AzureSQLConnectionFactory factory = new AzureSQLConnectionFactory();
-                AzureSQLEndpoint _endpointGenericContext =
-                        new AzureSQLEndpoint(subscription, AzureSQLConstants.AZURE_SQL_VERSION,
-                                AzureSQLConstants.GENERIC_AZURE_CONTEXT,
-                                AzureSQLUtil.getErrorClass(AzureSQLConstants.GENERIC_AZURE_CONTEXT));
-                return factory.getConnection(new ArrayList<Property>(), credential, null, _endpointGenericContext);
+                return AzureSQLRestHelperCache.getHelper(request)._connGenericContext;
             }
             catch (Exception e) {
                 AzureSQLRestHelper.logger.error(e);
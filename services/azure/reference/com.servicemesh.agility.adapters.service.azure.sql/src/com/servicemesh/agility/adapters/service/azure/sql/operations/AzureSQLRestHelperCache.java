@@ -0,0 +1,267 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.operations;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.exception.AzureAdapterException;
+import com.servicemesh.agility.adapters.service.azure.sql.connection.AzureSQLConnectionFactory;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.servicemesh.agility.api.Credential;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderRequest;
+
+/**
+ * This class will cache AzureSQLRestHelper objects so the endpoint and connection pairs for a subscription are only built once.
+ * Entries are keyed by subscription. The credential fingerprint and the id of the provider that created the entry are kept
+ * with each entry so a change to the provider credentials will replace the cached helper, and an update or delete of the
+ * provider will remove it even when the subscription has changed. Entries that have not been used within the idle timeout
+ * are evicted and the cache will never hold more than the configured maximum number of helpers.
+ */
+public class AzureSQLRestHelperCache
+{
+    private static Logger logger = Logger.getLogger(AzureSQLRestHelperCache.class);
+
+    private static final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+    private static volatile long lastSweep = System.currentTimeMillis();
+
+    private AzureSQLRestHelperCache()
+    {
+    }
+
+    /**
+     * This method will return a helper for the subscription and credentials associated with the request. A cached helper is
+     * returned when one exists for the same subscription and credential fingerprint. Otherwise a new helper is created
+     * and cached.
+     *
+     * @param ServiceProviderRequest
+     *            request - a request object that contains the provider and clouds used to identify the subscription
+     * @return AzureSQLRestHelper - helper for the subscription
+     * @throws AzureAdapterException
+     *             - if any exception occurs while creating the helper
+     */
+    public static AzureSQLRestHelper getHelper(ServiceProviderRequest request) throws AzureAdapterException
+    {
+        String subscription = null;
+        Credential credential = null;
+
+        try {
+            subscription = AzureSQLConnectionFactory.getSubscription(request.getProvider(), request.getClouds());
+            credential = AzureSQLConnectionFactory.getCredentials(request.getProvider(), request.getClouds());
+        }
+        catch (Exception e) {
+            String msg = "An exception has occurred while resolving the subscription for an AzureSQLRestHelper.";
+
+            AzureSQLRestHelperCache.logger.error(msg, e);
+            throw new AzureAdapterException(e);
+        }
+
+        AzureSQLRestHelperCache.sweep();
+
+        String key = subscription;
+        Integer providerId = request.getProvider() != null ? request.getProvider().getId() : null;
+        String fingerprint = AzureSQLRestHelperCache.fingerprint(credential);
+        CacheEntry entry = AzureSQLRestHelperCache.cache.get(key);
+
+        if (entry != null) {
+            if (entry.fingerprint.equals(fingerprint)) {
+                entry.lastAccess = System.currentTimeMillis();
+                return entry.helper;
+            }
+
+            AzureSQLRestHelperCache.logger.debug("Credentials have changed for subscription " + subscription
+                    + ".  The cached AzureSQLRestHelper will be replaced.");
+        }
+
+        CacheEntry newEntry = new CacheEntry(new AzureSQLRestHelper(subscription, credential, null), fingerprint, providerId);
+
+        if (entry != null) {
+            if (!AzureSQLRestHelperCache.cache.replace(key, entry, newEntry)) {
+                CacheEntry current = AzureSQLRestHelperCache.cache.get(key);
+
+                if (current != null && current.fingerprint.equals(fingerprint)) {
+                    return current.helper;
+                }
+
+                AzureSQLRestHelperCache.cache.put(key, newEntry);
+            }
+        }
+        else {
+            CacheEntry current = AzureSQLRestHelperCache.cache.putIfAbsent(key, newEntry);
+
+            if (current != null) {
+                if (current.fingerprint.equals(fingerprint)) {
+                    current.lastAccess = System.currentTimeMillis();
+                    return current.helper;
+                }
+
+                AzureSQLRestHelperCache.cache.put(key, newEntry);
+            }
+        }
+
+        AzureSQLRestHelperCache.trim();
+        return newEntry.helper;
+    }
+
+    /**
+     * This method will remove any cached helper created for the provider of the request, as well as any cached helper for the
+     * subscription now associated with the request. It should be called when a service provider is updated or deleted, the
+     * request may already hold the new subscription so the helper of the previous subscription is found by provider id.
+     *
+     * @param ServiceProviderRequest
+     *            request - a request object that contains the provider and clouds used to identify the subscription
+     */
+    public static void invalidate(ServiceProviderRequest request)
+    {
+        if (request != null) {
+            Integer providerId = request.getProvider() != null ? request.getProvider().getId() : null;
+
+            if (providerId != null) {
+                for (Iterator<CacheEntry> i = AzureSQLRestHelperCache.cache.values().iterator(); i.hasNext();) {
+                    if (providerId.equals(i.next().providerId)) {
+                        i.remove();
+                    }
+                }
+
+                AzureSQLRestHelperCache.logger.debug("Cached AzureSQLRestHelper removed for provider " + providerId);
+            }
+
+            try {
+                String subscription = AzureSQLConnectionFactory.getSubscription(request.getProvider(), request.getClouds());
+
+                if (AzureSQLRestHelperCache.cache.remove(subscription) != null) {
+                    AzureSQLRestHelperCache.logger.debug("Cached AzureSQLRestHelper removed for subscription " + subscription);
+                }
+            }
+            catch (Exception e) {
+                AzureSQLRestHelperCache.logger.warn("Unable to invalidate the AzureSQLRestHelper cache - " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This method will remove all cached helpers.
+     */
+    public static void clear()
+    {
+        AzureSQLRestHelperCache.cache.clear();
+    }
+
+    /**
+     * This method will return the number of cached helpers.
+     *
+     * @return int - number of cached helpers
+     */
+    public static int size()
+    {
+        return AzureSQLRestHelperCache.cache.size();
+    }
+
+    /**
+     * This method will remove entries that have been idle for longer than the idle timeout. The sweep is only run once per
+     * sweep interval regardless of how many lookups occur.
+     */
+    private static void sweep()
+    {
+        long now = System.currentTimeMillis();
+
+        if (now - AzureSQLRestHelperCache.lastSweep < AzureSQLConstants.HELPER_CACHE_SWEEP_INTERVAL) {
+            return;
+        }
+
+        AzureSQLRestHelperCache.lastSweep = now;
+
+        for (Iterator<CacheEntry> i = AzureSQLRestHelperCache.cache.values().iterator(); i.hasNext();) {
+            if (now - i.next().lastAccess > AzureSQLConstants.HELPER_CACHE_IDLE_TIMEOUT) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * This method will evict the least recently used entries until the cache is within its maximum size.
+     */
+    private static void trim()
+    {
+        while (AzureSQLRestHelperCache.cache.size() > AzureSQLConstants.HELPER_CACHE_MAX_SIZE) {
+            String oldestKey = null;
+            long oldest = Long.MAX_VALUE;
+
+            for (Map.Entry<String, CacheEntry> e : AzureSQLRestHelperCache.cache.entrySet()) {
+                if (e.getValue().lastAccess < oldest) {
+                    oldest = e.getValue().lastAccess;
+                    oldestKey = e.getKey();
+                }
+            }
+
+            if (oldestKey == null) {
+                break;
+            }
+
+            AzureSQLRestHelperCache.cache.remove(oldestKey);
+        }
+    }
+
+    /**
+     * This method will produce a digest of the credential values so a credential change can be detected without holding the
+     * key material in the cache key.
+     *
+     * @param Credential
+     *            credential - credential used to create the connections
+     * @return String - hex encoded digest of the credential
+     */
+    private static String fingerprint(Credential credential)
+    {
+        if (credential == null) {
+            return "";
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Object[] values =
+                    { credential.getCredentialId(), credential.getCertificateName(), credential.getPublicKey(),
+                            credential.getPrivateKey() };
+
+            for (Object value : values) {
+                digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+
+            StringBuilder buf = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                buf.append(String.format("%02x", b));
+            }
+
+            return buf.toString();
+        }
+        catch (Exception e) {
+            AzureSQLRestHelperCache.logger.warn("Unable to fingerprint credential - " + e.getMessage());
+            return String.valueOf(System.identityHashCode(credential));
+        }
+    }
+
+    private static class CacheEntry
+    {
+        private final AzureSQLRestHelper helper;
+        private final String fingerprint;
+        private final Integer providerId;
+        private volatile long lastAccess;
+
+        private CacheEntry(AzureSQLRestHelper helper, String fingerprint, Integer providerId)
+        {
+            this.helper = helper;
+            this.fingerprint = fingerprint;
+            this.providerId = providerId;
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+}
@@ -8,7 +8,11 @@ package com.servicemesh.agility.adapters.service.azure.sql.operations;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -22,7 +26,7 @@ import com.servicemesh.agility.adapters.service.azure.sql.connection.AzureSQLCon
 import com.servicemesh.agility.adapters.service.azure.sql.connection.AzureSQLEndpoint;
 import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
 import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
-import com.servicemesh.agility.adapters.service.azure.sql.util.DatabasePoller;
+import com.servicemesh.agility.adapters.service.azure.sql.util.FanOut;
 import com.servicemesh.agility.api.Asset;
 import com.servicemesh.agility.api.AssetProperty;
 import com.servicemesh.agility.api.Instance;
@@ -51,9 +55,8 @@ import com.servicemesh.azure.sql.models.ServerList;
 import com.servicemesh.azure.sql.models.ServerName;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
-import com.servicemesh.core.async.CompletablePromise;
-import com.servicemesh.core.async.PromiseFactory;
 import com.servicemesh.core.messaging.Status;
+import com.servicemesh.core.reactor.TimerReactor;
 import com.servicemesh.io.http.IHttpResponse;
 
 /**
@@ -303,13 +306,10 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                                     AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_DATABASE,
                                                             AzureSQLUtil.serialize(database)));
                                             seqList.add(AzureSQLServiceOperations.processDatabaseChange(dbReq));
-                                            CompletablePromise<MethodResponse> dbPoller = PromiseFactory.create();
-                                            adapter.getReactor().timerCreateRel(
-                                                    AzureSQLConstants.POLL_INTERVAL,
-                                                    new DatabasePoller(request, dbPoller, AzureSQLConstants.POLL_INTERVAL,
-                                                            AzureSQLConstants.POLL_RETRIES, AzureSQLConstants.DB_EXPECTED_STATUS,
-                                                            AzureSQLRestHelper.getConnectionGeneric(request), true));
-                                            seqList.add(dbPoller);
+                                            // polls for databases on the same server are coalesced by the scheduler
+                                            seqList.add(adapter.getDatabasePollScheduler().waitForDatabase(request,
+                                                    AzureSQLConstants.DB_EXPECTED_STATUS,
+                                                    AzureSQLRestHelper.getConnectionGeneric(request)));
                                         }
 
                                         if (fwRule != null) {
@@ -462,8 +462,9 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                 return Promise.pure(response);
             }
             try {
-                final AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
-                Promise<Server> getServerPromise = helper.getServer(serverName);
+                final AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
+                // release acts on the live server list rather than the cached index
+                Promise<Server> getServerPromise = helper.findServer(serverName);
                 Promise<ServiceProviderResponse> result =
                         getServerPromise.flatMap(new Function<Server, Promise<ServiceProviderResponse>>() {
                             public Promise<ServiceProviderResponse> invoke(Server server)
@@ -621,12 +622,12 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
                         try {
                             Server server = AzureSQLUtil.getServer(serviceInstanceOrig);
-                            final AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
+                            final AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
                             Promise<Server> serverPromise = helper.getServer(server != null ? server.getName() : ""); // server should not be null here
 
                             return serverPromise.flatMap(
                                     AzureSQLServiceOperations.getServerPromiseFunction(request, serviceInstanceOrig,
-                                            serviceInstance, helper)).recover(
+                                            serviceInstance)).recover(
                                     AzureSQLServiceOperations.getRecoverFunction(request));
                         }
                         catch (Exception e) {
@@ -719,7 +720,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                         try {
                             Server server = AzureSQLUtil.getServer(serviceInstance);
                             Database database = AzureSQLUtil.getDatabase(serviceInstance);
-                            AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
+                            AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
                             ServiceResource dbResource = new ServiceResource();
 
                             dbResource.setName(database.getName());
@@ -827,7 +828,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                     dbResource.setName(newDbName);
 
                     try {
-                        return new AzureSQLRestHelper(request).updateDatabase(serverName, dbName, dbResource).map(
+                        return AzureSQLRestHelperCache.getHelper(request).updateDatabase(serverName, dbName, dbResource).map(
                                 new Function<Database, MethodResponse>() {
                                     @Override
                                     public MethodResponse invoke(Database database)
@@ -1007,11 +1008,11 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                     }
 
                     if (doCreate) {
-                        return new AzureSQLRestHelper(request).createDatabase(serverName, dbResource).map(mapFunction)
+                        return AzureSQLRestHelperCache.getHelper(request).createDatabase(serverName, dbResource).map(mapFunction)
                                 .recover(AzureSQLServiceOperations.getRecoverFunction(request));
                     }
                     else {
-                        return new AzureSQLRestHelper(request).updateDatabase(serverName, dbName, dbResource).map(mapFunction)
+                        return AzureSQLRestHelperCache.getHelper(request).updateDatabase(serverName, dbName, dbResource).map(mapFunction)
                                 .recover(AzureSQLServiceOperations.getRecoverFunction(request));
                     }
                 }
@@ -1124,7 +1125,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName)) {
                 try {
-                    AzureSQLRestHelper helper = new AzureSQLRestHelper(request);
+                    AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
                     List<Promise<MethodResponse>> seqList = new ArrayList<Promise<MethodResponse>>();
 
                     if (AzureSQLUtil.isValued(deletes)) {
@@ -1325,7 +1326,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
                     newPw.setValue(newPassword);
 
-                    return new AzureSQLRestHelper(request).changeServerPassword(serverName, newPw).map(
+                    return AzureSQLRestHelperCache.getHelper(request).changeServerPassword(serverName, newPw).map(
                             new Function<IHttpResponse, MethodResponse>() {
                                 @Override
                                 public MethodResponse invoke(IHttpResponse httpResp)
@@ -1410,6 +1411,8 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
      *      that the server, database, and firewall rule exists. The health check method will return COMPLETE unless an exception
      *      occurs. The details of the health check will be stored in the request.message. Three SUCCESS messages imply all is
      *      good. The message may have FAILED messages and/or exceptions. If the server does not exist, exceptions will be thrown.
+     *      The checks run concurrently under a shared deadline (@see AzureSQLConstants.FAN_OUT_TIMEOUT); a check that does not
+     *      respond in time is reported as TIMEOUT and the remaining results are still returned.
      *      The response results list will contain all the objects found, i.e. Server, Database, FirewallRule. The variable name
      *      will match the property names from the constants file:
      * @see AzureSQLConstants.PROP_SERVER
@@ -1440,7 +1443,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
                 if (server != null) {
                     List<String> errMsgs = new ArrayList<String>();
-                    List<Promise<MethodResponse>> seqList = new ArrayList<Promise<MethodResponse>>();
+                    FanOut<MethodResponse> fanOut = AzureSQLServiceOperations.newFanOut();
 
                     try {
                         MethodRequest svrReq = AzureSQLUtil.makeMethodRequest(request);
@@ -1449,7 +1452,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                         svrReq.getArguments().addAll(
                                 AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                         AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()))));
-                        seqList.add(AzureSQLServiceOperations.getServer(svrReq));
+                        fanOut.add(AzureSQLConstants.PROP_SERVER, AzureSQLServiceOperations.getServer(svrReq));
 
                         if (database != null) {
                             MethodRequest dbReq = AzureSQLUtil.makeMethodRequest(request);
@@ -1459,7 +1462,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                     AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                             AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()), new KeyValuePair(
                                             AzureSQLConstants.PROP_DATABASE_NAME_STR, database.getName()))));
-                            seqList.add(AzureSQLServiceOperations.getDatabase(dbReq));
+                            fanOut.add(AzureSQLConstants.PROP_DATABASE, AzureSQLServiceOperations.getDatabase(dbReq));
                         }
                         else {
                             errMsgs.add("WARNING: The Database object is null.  This is expected only if the server was created without a database.");
@@ -1473,20 +1476,25 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                     AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                             AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()), new KeyValuePair(
                                             AzureSQLConstants.PROP_FIREWALL_RULE_NAME_STR, fwRule.getName()))));
-                            seqList.add(AzureSQLServiceOperations.getFirewallRule(ruleReq));
+                            fanOut.add(AzureSQLConstants.PROP_FIREWALL_RULE,
+                                    AzureSQLServiceOperations.getFirewallRule(ruleReq));
                         }
                         else {
                             errMsgs.add("WARNING: The FirewallRule object is null.  This is expected only if the server was created without a rule.");
                         }
 
-                        AzureSQLServiceOperations.logger.trace("The health check sequence has " + seqList.size()
+                        AzureSQLServiceOperations.logger.trace("The health check sequence has " + fanOut.size()
                                 + " task(s) to run.");
 
-                        return Promise.sequence(seqList).map(new Function<List<MethodResponse>, MethodResponse>() {
+                        return fanOut.join().map(new Function<List<FanOut.Result<MethodResponse>>, MethodResponse>() {
 
                             @Override
-                            public MethodResponse invoke(List<MethodResponse> results)
+                            public MethodResponse invoke(List<FanOut.Result<MethodResponse>> fanResults)
                             {
+                                StringBuilder partial = new StringBuilder();
+                                List<MethodResponse> results =
+                                        AzureSQLServiceOperations.completedResults(fanResults, partial);
+
                                 if (results != null && !results.isEmpty()) {
                                     MethodResponse resp =
                                             AzureSQLUtil.buildResponse(MethodResponse.class, request.getReqId(), Status.COMPLETE,
@@ -1529,6 +1537,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                         }
                                     }
 
+                                    buf.append(partial);
                                     buf.append("\n");
 
                                     resp.setMessage(buf.toString());
@@ -1540,7 +1549,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                 }
                                 else {
                                     return AzureSQLUtil.buildFailedMethodResponse(request.getReqId(),
-                                            "The results object from the health check sequence was null.",
+                                            "The results object from the health check sequence was null." + partial,
                                             AzureSQLServiceOperations.logger);
                                 }
                             }
@@ -1582,7 +1591,8 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
      * string from the arguments list and checks that the server exists. If the server exists, all databases and firewall rules
      * will be gathered for the server. The method will return COMPLETE unless an exception occurs. The details of the health
      * check will be stored in the request.message. SUCCESS implies all is good. The message may have FAILED messages and/or
-     * exceptions. If the server does not exist, exceptions will be thrown. The response results list will contain all the objects
+     * exceptions. If the server does not exist, exceptions will be thrown. The calls run concurrently under a shared deadline and a
+     * call that does not respond in time is reported as TIMEOUT. The response results list will contain all the objects
      * found, i.e. Server, DatabaseList, FirewallRuleList. The variable name will match the property names from the constants
      * file:
      * 
@@ -1606,7 +1616,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
             if (AzureSQLUtil.isValued(serverName)) {
                 AzureSQLServiceOperations.logger.trace("\nSync'ing Azure SQL Server '" + serverName + "'");
 
-                List<Promise<MethodResponse>> seqList = new ArrayList<Promise<MethodResponse>>();
+                FanOut<MethodResponse> fanOut = AzureSQLServiceOperations.newFanOut();
 
                 try {
                     MethodRequest svrReq = AzureSQLUtil.makeMethodRequest(request);
@@ -1615,7 +1625,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                     svrReq.getArguments().addAll(
                             AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                     AzureSQLConstants.PROP_SERVER_NAME_STR, serverName))));
-                    seqList.add(AzureSQLServiceOperations.getServer(svrReq));
+                    fanOut.add(AzureSQLConstants.PROP_SERVER, AzureSQLServiceOperations.getServer(svrReq));
 
                     MethodRequest dbReq = AzureSQLUtil.makeMethodRequest(request);
 
@@ -1623,7 +1633,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                     dbReq.getArguments().addAll(
                             AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                     AzureSQLConstants.PROP_SERVER_NAME_STR, serverName))));
-                    seqList.add(AzureSQLServiceOperations.listDatabases(dbReq));
+                    fanOut.add(AzureSQLConstants.PROP_DATABASE_LIST, AzureSQLServiceOperations.listDatabases(dbReq));
 
                     MethodRequest ruleReq = AzureSQLUtil.makeMethodRequest(request);
 
@@ -1631,15 +1641,19 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                     ruleReq.getArguments().addAll(
                             AzureSQLUtil.createStringArguments(Arrays.asList(new KeyValuePair(
                                     AzureSQLConstants.PROP_SERVER_NAME_STR, serverName))));
-                    seqList.add(AzureSQLServiceOperations.listFirewallRules(ruleReq));
+                    fanOut.add(AzureSQLConstants.PROP_FIREWALL_RULE_LIST,
+                            AzureSQLServiceOperations.listFirewallRules(ruleReq));
 
-                    AzureSQLServiceOperations.logger.trace("The server sync sequence has " + seqList.size() + " task(s) to run.");
+                    AzureSQLServiceOperations.logger.trace("The server sync sequence has " + fanOut.size() + " task(s) to run.");
 
-                    return Promise.sequence(seqList).map(new Function<List<MethodResponse>, MethodResponse>() {
+                    return fanOut.join().map(new Function<List<FanOut.Result<MethodResponse>>, MethodResponse>() {
 
                         @Override
-                        public MethodResponse invoke(List<MethodResponse> results)
+                        public MethodResponse invoke(List<FanOut.Result<MethodResponse>> fanResults)
                         {
+                            StringBuilder partial = new StringBuilder();
+                            List<MethodResponse> results = AzureSQLServiceOperations.completedResults(fanResults, partial);
+
                             if (results != null && !results.isEmpty()) {
                                 MethodResponse resp =
                                         AzureSQLUtil.buildResponse(MethodResponse.class, request.getReqId(), Status.COMPLETE, "",
@@ -1659,6 +1673,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                                     }
                                 }
 
+                                buf.append(partial);
                                 buf.append("\n");
 
                                 resp.setMessage(buf.toString());
@@ -1667,7 +1682,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                             }
                             else {
                                 return AzureSQLUtil.buildFailedMethodResponse(request.getReqId(),
-                                        "The results object from the Server Sync sequence was null.",
+                                        "The results object from the Server Sync sequence was null." + partial,
                                         AzureSQLServiceOperations.logger);
                             }
                         }
@@ -1695,6 +1710,225 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
         }
     }
 
+    /**
+     * This operation will check the health status of many SQL services in one pass. The input method argument must be configured
+     * with the proper method name (@see AzureSQLConstants.METHOD_PROCESS_BULK_HEALTH_CHECK). Each ServiceInstance to be checked
+     * must be assigned to the arguments list using the property name @see AzureSQLConstants.PROP_SERVICE_INSTANCE. All of the
+     * instances in a request belong to the request's provider, so they share one subscription. The instances are grouped by
+     * server and each distinct server is queried once - the server lookup (served from the subscription's server index), one
+     * database list and one firewall rule list. The results are then matched to every instance in memory. This replaces three
+     * REST calls per instance with roughly three calls per server. The checks run under a shared deadline (@see
+     * AzureSQLConstants.FAN_OUT_TIMEOUT).
+     * 
+     * The response message will have a "Health Check Results" section for each instance in the same SUCCESS/FAILED form used by
+     * processHealthCheck. The response results list will contain one ServiceInstance per input instance, in the same order,
+     * carrying the id and name of the input instance and the Server, Database and FirewallRule that were found.
+     * 
+     * @param MethodRequest
+     *            request - the configuration of the operation request. It will identify the method and the service instances to
+     *            check.
+     * @return Promise<MethodResponse> - the response will have a result of COMPLETE unless an exception is thrown or no
+     *         ServiceInstance objects are provided, in which case FAILURE will be returned.
+     */
+    public static Promise<MethodResponse> processBulkHealthCheck(final MethodRequest request)
+    {
+        String methodName = AzureSQLConstants.METHOD_PROCESS_BULK_HEALTH_CHECK;
+
+        if (AzureSQLUtil.isValued(request) && methodName.equals(request.getName())) {
+            final List<ServiceInstance> instances = AzureSQLUtil.getServiceInstances(request.getArguments());
+
+            if (!instances.isEmpty()) {
+                try {
+                    AzureSQLRestHelper helper = AzureSQLRestHelperCache.getHelper(request);
+                    FanOut<Object> fanOut = AzureSQLServiceOperations.newFanOut();
+                    Set<String> serverNames = new LinkedHashSet<String>();
+
+                    for (ServiceInstance instance : instances) {
+                        Server server = AzureSQLUtil.getServer(instance);
+
+                        if (server != null && AzureSQLUtil.isValued(server.getName())) {
+                            serverNames.add(server.getName());
+                        }
+                    }
+
+                    for (String serverName : serverNames) {
+                        fanOut.add(serverName + "/" + AzureSQLConstants.PROP_SERVER, helper.getServer(serverName));
+                        fanOut.add(serverName + "/" + AzureSQLConstants.PROP_DATABASE_LIST, helper.listDatabases(serverName));
+                        fanOut.add(serverName + "/" + AzureSQLConstants.PROP_FIREWALL_RULE_LIST,
+                                helper.listFirewallRules(serverName));
+                    }
+
+                    AzureSQLServiceOperations.logger.trace("The bulk health check has " + instances.size() + " instance(s) on "
+                            + serverNames.size() + " server(s) - " + fanOut.size() + " task(s) to run.");
+
+                    return fanOut.join().map(new Function<List<FanOut.Result<Object>>, MethodResponse>() {
+
+                        @Override
+                        public MethodResponse invoke(List<FanOut.Result<Object>> fanResults)
+                        {
+                            Map<String, FanOut.Result<Object>> byLabel = new HashMap<String, FanOut.Result<Object>>();
+
+                            for (FanOut.Result<Object> fanResult : fanResults) {
+                                byLabel.put(fanResult.getLabel(), fanResult);
+                                AzureSQLServiceOperations.logger.debug("Sub-call " + fanResult.getLabel() + " "
+                                        + fanResult.getOutcome() + " in " + fanResult.getLatency() + " ms");
+                            }
+
+                            MethodResponse resp =
+                                    AzureSQLUtil.buildResponse(MethodResponse.class, request.getReqId(), Status.COMPLETE, "",
+                                            Level.TRACE, AzureSQLServiceOperations.logger, null);
+                            StringBuilder buf = new StringBuilder();
+
+                            for (ServiceInstance instance : instances) {
+                                ServiceInstance checked = new ServiceInstance();
+                                Server server = AzureSQLUtil.getServer(instance);
+
+                                checked.setId(instance.getId());
+                                checked.setName(instance.getName());
+                                buf.append("\nHealth Check Results for " + instance.getName() + ":");
+
+                                if (server == null || !AzureSQLUtil.isValued(server.getName())) {
+                                    buf.append("\nFAILED - The server object is null.  A health check cannot be performed.");
+                                }
+                                else {
+                                    String serverName = server.getName();
+                                    FanOut.Result<Object> svrResult =
+                                            byLabel.get(serverName + "/" + AzureSQLConstants.PROP_SERVER);
+
+                                    if (AzureSQLServiceOperations.checkBulkResult(svrResult, buf)) {
+                                        if (svrResult.getValue() != null) {
+                                            buf.append("\nSUCCESS - " + AzureSQLConstants.PROP_SERVER);
+                                            checked = AzureSQLUtil.updateServer(checked, (Server) svrResult.getValue());
+                                        }
+                                        else {
+                                            buf.append("\nFAILED - Server " + serverName + " was not found.");
+                                        }
+                                    }
+
+                                    Database database = AzureSQLUtil.getDatabase(instance);
+
+                                    if (database != null && AzureSQLUtil.isValued(database.getName())) {
+                                        FanOut.Result<Object> dbResult =
+                                                byLabel.get(serverName + "/" + AzureSQLConstants.PROP_DATABASE_LIST);
+
+                                        if (AzureSQLServiceOperations.checkBulkResult(dbResult, buf)) {
+                                            Database found = null;
+                                            DatabaseList dbList = (DatabaseList) dbResult.getValue();
+
+                                            if (dbList != null) {
+                                                for (Database db : dbList.getDatabases()) {
+                                                    if (database.getName().equals(db.getName())) {
+                                                        found = db;
+                                                        break;
+                                                    }
+                                                }
+                                            }
+
+                                            if (found != null) {
+                                                buf.append("\nSUCCESS - " + AzureSQLConstants.PROP_DATABASE);
+                                                checked = AzureSQLUtil.updateDatabase(checked, found);
+                                            }
+                                            else {
+                                                buf.append("\nFAILED - Database " + database.getName() + " was not found on server "
+                                                        + serverName);
+                                            }
+                                        }
+                                    }
+
+                                    FirewallRule fwRule = AzureSQLUtil.getFirewallRule(instance);
+
+                                    if (fwRule != null && AzureSQLUtil.isValued(fwRule.getName())) {
+                                        FanOut.Result<Object> ruleResult =
+                                                byLabel.get(serverName + "/" + AzureSQLConstants.PROP_FIREWALL_RULE_LIST);
+
+                                        if (AzureSQLServiceOperations.checkBulkResult(ruleResult, buf)) {
+                                            FirewallRule found = null;
+                                            FirewallRuleList ruleList = (FirewallRuleList) ruleResult.getValue();
+
+                                            if (ruleList != null) {
+                                                for (FirewallRule rule : ruleList.getFirewallRules()) {
+                                                    if (fwRule.getName().equals(rule.getName())) {
+                                                        found = rule;
+                                                        break;
+                                                    }
+                                                }
+                                            }
+
+                                            if (found != null) {
+                                                buf.append("\nSUCCESS - " + AzureSQLConstants.PROP_FIREWALL_RULE);
+                                                checked = AzureSQLUtil.updateFirewallRule(checked, found);
+                                            }
+                                            else {
+                                                buf.append("\nFAILED - Firewall rule " + fwRule.getName()
+                                                        + " was not found on server " + serverName);
+                                            }
+                                        }
+                                    }
+                                }
+
+                                buf.append("\n");
+                                resp.getResults().add(
+                                        AzureSQLUtil.makeMethodVariable(AzureSQLConstants.PROP_SERVICE_INSTANCE, checked));
+                            }
+
+                            resp.setMessage(buf.toString());
+
+                            return resp;
+                        }
+                    });
+                }
+                catch (Exception ex) {
+                    String msg = "An exception occurred while performing the 'processBulkHealthCheck' operation.";
+                    AzureSQLServiceOperations.logger.error(msg, ex);
+                    return Promise.pure(AzureSQLUtil.buildFailedMethodResponse(request.getReqId(), msg,
+                            AzureSQLServiceOperations.logger, ex));
+                }
+            }
+            else {
+                return Promise.pure(AzureSQLUtil.buildFailedMethodResponse(request.getReqId(),
+                        "No ServiceInstance objects were provided.  A health check cannot be assessed.",
+                        AzureSQLServiceOperations.logger));
+            }
+        }
+        else {
+            String msg =
+                    "The request object cannot be null and the method name [" + (request != null ? request.getName() : null)
+                            + "] must be " + methodName;
+            AzureSQLServiceOperations.logger.error(msg);
+            return Promise.pure(AzureSQLUtil.buildFailedMethodResponse(request != null ? request.getReqId()
+                    : AzureSQLConstants.UNDEFINED, msg, AzureSQLServiceOperations.logger));
+        }
+    }
+
+    /**
+     * This method will check the outcome of a shared bulk health check call. A FAILED or TIMEOUT line is appended to the buffer
+     * if the call did not succeed.
+     * 
+     * @param FanOut
+     *            .Result<Object> result - result of the shared call; null if the call was never made
+     * @param StringBuilder
+     *            buf - health check message buffer
+     * @return boolean - true if the call succeeded and its value can be used
+     */
+    private static boolean checkBulkResult(FanOut.Result<Object> result, StringBuilder buf)
+    {
+        if (result == null) {
+            buf.append("\nFAILED - No result is available.");
+            return false;
+        }
+        else if (result.getOutcome() == FanOut.Outcome.TIMEOUT) {
+            buf.append("\nTIMEOUT - " + result.getLabel() + " did not respond within " + result.getLatency() + " ms");
+            return false;
+        }
+        else if (result.getOutcome() == FanOut.Outcome.FAILED) {
+            buf.append("\nFAILED - " + result.getLabel()
+                    + (result.getError() != null ? " - " + result.getError().getMessage() : ""));
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      * This operation will get a list of databases for a given SQL server. The input method argument must be configured with the
      * proper method name (@see AzureSQLConstants.METHOD_LIST_DATABASES). The name of the server must be assigned to the arguments
@@ -1715,7 +1949,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName)) {
                 try {
-                    return new AzureSQLRestHelper(request).listDatabases(serverName).map(
+                    return AzureSQLRestHelperCache.getHelper(request).listDatabases(serverName).map(
                             new Function<DatabaseList, MethodResponse>() {
                                 @Override
                                 public MethodResponse invoke(DatabaseList databaseList)
@@ -1791,7 +2025,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName) && AzureSQLUtil.isValued(databaseName)) {
                 try {
-                    return new AzureSQLRestHelper(request).getDatabase(serverName, databaseName)
+                    return AzureSQLRestHelperCache.getHelper(request).getDatabase(serverName, databaseName)
                             .map(new Function<Database, MethodResponse>() {
                                 @Override
                                 public MethodResponse invoke(Database database)
@@ -1861,7 +2095,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName)) {
                 try {
-                    return new AzureSQLRestHelper(request).listFirewallRules(serverName).map(
+                    return AzureSQLRestHelperCache.getHelper(request).listFirewallRules(serverName).map(
                             new Function<FirewallRuleList, MethodResponse>() {
                                 @Override
                                 public MethodResponse invoke(FirewallRuleList firewallRuleList)
@@ -1938,7 +2172,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName) && AzureSQLUtil.isValued(ruleName)) {
                 try {
-                    return new AzureSQLRestHelper(request).getFirewallRule(serverName, ruleName)
+                    return AzureSQLRestHelperCache.getHelper(request).getFirewallRule(serverName, ruleName)
                             .map(new Function<FirewallRule, MethodResponse>() {
                                 @Override
                                 public MethodResponse invoke(FirewallRule firewallRule)
@@ -2004,7 +2238,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
         if (AzureSQLUtil.isValued(request) && methodName.equals(request.getName())) {
             try {
-                return new AzureSQLRestHelper(request).getServerList().map(new Function<ServerList, MethodResponse>() {
+                return AzureSQLRestHelperCache.getHelper(request).getServerList().map(new Function<ServerList, MethodResponse>() {
                     @Override
                     public MethodResponse invoke(ServerList serverList)
                     {
@@ -2060,7 +2294,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
 
             if (AzureSQLUtil.isValued(serverName)) {
                 try {
-                    return new AzureSQLRestHelper(request).getServer(serverName).map(new Function<Server, MethodResponse>() {
+                    return AzureSQLRestHelperCache.getHelper(request).getServer(serverName).map(new Function<Server, MethodResponse>() {
                         @Override
                         public MethodResponse invoke(Server server)
                         {
@@ -2128,7 +2362,7 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
                 Server server = AzureSQLUtil.getServerObject(request.getArguments());
 
                 if (server != null) {
-                    return new AzureSQLRestHelper(request).createServer(server).map(new Function<ServerName, MethodResponse>() {
+                    return AzureSQLRestHelperCache.getHelper(request).createServer(server).map(new Function<ServerName, MethodResponse>() {
                         @Override
                         public MethodResponse invoke(ServerName serverName)
                         {
@@ -2493,6 +2727,49 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
         return retval;
     }
 
+    /**
+     * This method will create a FanOut for the sub-calls of a health check or server sync. All of the sub-calls share a single
+     * deadline of AzureSQLConstants.FAN_OUT_TIMEOUT.
+     * 
+     * @return FanOut<T> - empty fan out
+     */
+    private static <T> FanOut<T> newFanOut()
+    {
+        return new FanOut<T>(TimerReactor.getTimerReactor(AzureSQLAdapter.SERVICE_PROVIDER_NAME),
+                AzureSQLConstants.FAN_OUT_TIMEOUT);
+    }
+
+    /**
+     * This method will return the responses of the sub-calls that completed. A line is appended to the status buffer for each
+     * sub-call that failed or did not finish before the deadline. The latency of each sub-call is logged.
+     * 
+     * @param List
+     *            <FanOut.Result<MethodResponse>> fanResults - results of a FanOut join
+     * @param StringBuilder
+     *            status - buffer to which FAILED/TIMEOUT lines are appended
+     * @return List<MethodResponse> - responses of the completed sub-calls
+     */
+    private static List<MethodResponse> completedResults(List<FanOut.Result<MethodResponse>> fanResults, StringBuilder status)
+    {
+        List<MethodResponse> retval = new ArrayList<MethodResponse>();
+
+        // the latency of each sub-call is logged by FanOut
+        for (FanOut.Result<MethodResponse> fanResult : fanResults) {
+            if (fanResult.getOutcome() == FanOut.Outcome.SUCCESS && fanResult.getValue() != null) {
+                retval.add(fanResult.getValue());
+            }
+            else if (fanResult.getOutcome() == FanOut.Outcome.TIMEOUT) {
+                status.append("\nTIMEOUT - " + fanResult.getLabel() + " did not respond within " + fanResult.getLatency() + " ms");
+            }
+            else {
+                status.append("\nFAILED - " + fanResult.getLabel()
+                        + (fanResult.getError() != null ? " - " + fanResult.getError().getMessage() : ""));
+            }
+        }
+
+        return retval;
+    }
+
     /**
      * This method will return a new Function that can be used in the 'recover' option of a Promise. The recover operation will
      * properly handle an exception.
@@ -2555,288 +2832,42 @@ public class AzureSQLServiceOperations extends ServiceInstanceOperations
      *            serviceInstanceOrig - current service information
      * @param ServiceInstance
      *            serviceInstance - new service information
-     * @param AzureSQLRestHelper
-     *            helper - object that has helper methods for accessing Azure REST calls
      * @return Function<Server,Promise<ServiceProviderResponse>> - function that can be used in the flatMap operation
      */
     private static Function<Server, Promise<ServiceProviderResponse>> getServerPromiseFunction(
             final ServiceInstanceReconfigureRequest request, final ServiceInstance serviceInstanceOrig,
-            final ServiceInstance serviceInstance, final AzureSQLRestHelper helper)
+            final ServiceInstance serviceInstance)
     {
         final Server serverOrig = AzureSQLUtil.getServer(serviceInstanceOrig);
-        final Database databaseOrig = AzureSQLUtil.getDatabase(serviceInstanceOrig);
-        final FirewallRule fwRuleOrig = AzureSQLUtil.getFirewallRule(serviceInstanceOrig);
-        final Server serverNew = AzureSQLUtil.getServer(serviceInstance);
-        final Database databaseNew = AzureSQLUtil.getDatabase(serviceInstance);
-        final FirewallRule fwRuleNew = AzureSQLUtil.getFirewallRule(serviceInstance);
 
         return new Function<Server, Promise<ServiceProviderResponse>>() {
             String curServerName = serverOrig != null ? serverOrig.getName() : null;
-            String curServerPw = serverOrig != null ? serverOrig.getAdministratorLoginPassword() : null;
-            String curDbName = databaseOrig != null ? databaseOrig.getName() : null;
-            String curDbEdition = databaseOrig != null ? databaseOrig.getEdition() : null;
-            String curDbObjId = databaseOrig != null ? databaseOrig.getServiceObjectiveId() : null;
-            Long curDbMaxBytes = databaseOrig != null && databaseOrig.getMaxSizeBytes() != null ? databaseOrig.getMaxSizeBytes()
-                    : 0L;
-            String curFwRuleName = fwRuleOrig != null ? fwRuleOrig.getName() : null;
-            String curFwStartIp = fwRuleOrig != null ? fwRuleOrig.getStartIPAddress() : null;
-            String curFwEndIp = fwRuleOrig != null ? fwRuleOrig.getEndIPAddress() : null;
-            String newServerPw = serverNew != null ? serverNew.getAdministratorLoginPassword() : null;
-            String newDbName = databaseNew != null ? databaseNew.getName() : null;
-            String newDbEdition = databaseNew != null ? databaseNew.getEdition() : null;
-            String newDbObjId = databaseNew != null ? databaseNew.getServiceObjectiveId() : null;
-            Long newDbMaxBytes = databaseNew != null && databaseNew.getMaxSizeBytes() != null ? databaseNew.getMaxSizeBytes()
-                    : 0L;
-            String newFwRuleName = fwRuleNew != null ? fwRuleNew.getName() : null;
-            String newFwStartIp = fwRuleNew != null ? fwRuleNew.getStartIPAddress() : null;
-            String newFwEndIp = fwRuleNew != null ? fwRuleNew.getEndIPAddress() : null;
-            boolean isNewDatabase = !AzureSQLUtil.isValued(curDbName) && AzureSQLUtil.isValued(newDbName);
-            boolean isDbNameChange = AzureSQLUtil.isValued(newDbName) && AzureSQLUtil.isValued(curDbName)
-                    && !curDbName.equals(newDbName);
-            boolean isNewDbEdition = AzureSQLUtil.isValued(newDbEdition) && AzureSQLUtil.isValued(curDbEdition)
-                    && !curDbEdition.equals(newDbEdition);
-            boolean isNewDbObjId = AzureSQLUtil.isValued(newDbObjId) && AzureSQLUtil.isValued(curDbObjId)
-                    && !curDbObjId.equals(newDbObjId);
-            boolean isNewDbSize = AzureSQLUtil.isValued(newDbMaxBytes) && AzureSQLUtil.isValued(curDbMaxBytes)
-                    && newDbMaxBytes.longValue() > 0 && curDbMaxBytes.longValue() != newDbMaxBytes.longValue();
-            boolean isNewServerPw = AzureSQLUtil.isValued(newServerPw) && AzureSQLUtil.isValued(curServerPw)
-                    && !curServerPw.equals(newServerPw);
-            boolean isDeleteFwRule = AzureSQLUtil.isValued(newFwRuleName) && AzureSQLUtil.isValued(curFwRuleName)
-                    && !curFwRuleName.equals(newFwRuleName);
-            boolean isNewStartIp = AzureSQLUtil.isValued(newFwStartIp) && AzureSQLUtil.isValued(curFwStartIp)
-                    && !curFwStartIp.equals(newFwStartIp);
-            boolean isNewEndIp = AzureSQLUtil.isValued(newFwEndIp) && AzureSQLUtil.isValued(curFwEndIp)
-                    && !curFwEndIp.equals(newFwEndIp);
 
             @Override
             public Promise<ServiceProviderResponse> invoke(Server server) throws RuntimeException
             {
                 ServiceProviderResponse resp = new ServiceProviderResponse();
-                List<Promise<MethodResponse>> seqList = new ArrayList<Promise<MethodResponse>>();
-                ServiceInstance siResp = AzureSQLUtil.clone(serviceInstanceOrig); // start with the original object
 
                 resp.setReqId(request.getReqId());
 
                 if (server != null) {
                     AzureSQLServiceOperations.logger.trace("Found server '" + curServerName + "'");
 
-                    // start packaging Server changes
-                    if (isNewServerPw) {
-                        MethodRequest svrRequest = new MethodRequest();
-                        List<KeyValuePair> kvps = new ArrayList<KeyValuePair>();
-                        Server svr = AzureSQLUtil.getServer(serviceInstanceOrig);
-
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, svr.getName()));
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_PASSWORD_STR, svr.getAdministratorLoginPassword()));
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_NEW_PASSWORD_STR, newServerPw));
-
-                        svr.setAdministratorLoginPassword(newServerPw);
-
-                        svrRequest.setReqId(request.getReqId());
-                        svrRequest.setName(AzureSQLConstants.METHOD_PROCESS_SERVER_CHANGE);
-                        svrRequest.setProvider(request.getProvider());
-                        svrRequest.setOriginalServiceInstance(serviceInstanceOrig);
-                        svrRequest.setServiceInstance(serviceInstance);
-                        svrRequest.setUser(request.getUser());
-                        svrRequest.getClouds().addAll(request.getClouds());
-                        svrRequest.getArguments().clear();
-                        svrRequest.getArguments().addAll(AzureSQLUtil.createStringArguments(kvps));
-
-                        AzureSQLServiceOperations.logger.trace("Changing the password for server '" + server.getName() + "' to "
-                                + AzureSQLUtil.maskPrivateKey(newServerPw));
-
-                        siResp = AzureSQLUtil.updateServer(siResp, svr); // update object for response
-                        seqList.add(AzureSQLServiceOperations.processServerChange(svrRequest));
-                    }
-                    // end packaging Server changes
-
-                    // start packaging FirewallRule changes
-                    ArrayList<FirewallRule> adds = new ArrayList<FirewallRule>();
-                    ArrayList<FirewallRule> deletes = new ArrayList<FirewallRule>();
-                    ArrayList<FirewallRule> changes = new ArrayList<FirewallRule>();
-
-                    if (isDeleteFwRule) {
-                        FirewallRule delete = new FirewallRule();
-                        FirewallRule add = new FirewallRule();
-
-                        delete.setName(curFwRuleName);
-                        delete.setStartIPAddress(curFwStartIp);
-                        delete.setEndIPAddress(curFwEndIp);
-
-                        add.setName(newFwRuleName);
-                        add.setStartIPAddress(newFwStartIp);
-                        add.setEndIPAddress(newFwEndIp);
-
-                        AzureSQLServiceOperations.logger.trace("Adding FirewallRule: " + add.getName() + ":"
-                                + add.getStartIPAddress() + ":" + add.getEndIPAddress());
-                        AzureSQLServiceOperations.logger.trace("Deleting FirewallRule: " + delete.getName() + ":"
-                                + delete.getStartIPAddress() + ":" + delete.getEndIPAddress());
-
-                        siResp = AzureSQLUtil.updateFirewallRule(siResp, add); // update the response object
-                        adds.add(add);
-                        deletes.add(delete);
-                    }
-                    else if (isNewStartIp || isNewEndIp) { // check to see if the range changed
-                        FirewallRule fwRule = new FirewallRule();
-
-                        fwRule.setName(curFwRuleName);
-                        fwRule.setStartIPAddress(isNewStartIp ? newFwStartIp : curFwStartIp);
-                        fwRule.setEndIPAddress(isNewEndIp ? newFwEndIp : curFwEndIp);
-
-                        AzureSQLServiceOperations.logger.trace("Changing FirewallRule '" + fwRule.getName() + "' from "
-                                + curFwStartIp + ":" + curFwEndIp + " to " + fwRule.getStartIPAddress() + ":"
-                                + fwRule.getEndIPAddress());
-
-                        siResp = AzureSQLUtil.updateFirewallRule(siResp, fwRule); // update the response object
-                        changes.add(fwRule);
-                    }
-
-                    if (!adds.isEmpty() || !deletes.isEmpty() || !changes.isEmpty()) {
-                        MethodRequest fwRequest = new MethodRequest();
-
-                        fwRequest.setReqId(request.getReqId());
-                        fwRequest.setName(AzureSQLConstants.METHOD_PROCESS_FIREWALL_RULE_CHANGE);
-                        fwRequest.setProvider(request.getProvider());
-                        fwRequest.setOriginalServiceInstance(serviceInstanceOrig);
-                        fwRequest.setServiceInstance(serviceInstance);
-                        fwRequest.setUser(request.getUser());
-                        fwRequest.getClouds().addAll(request.getClouds());
-                        fwRequest.getArguments().clear();
-                        fwRequest.getArguments().addAll(
-                                AzureSQLUtil.createStringArgument(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, server
-                                        .getName())));
-                        fwRequest.getArguments().add(
-                                AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_FIREWALL_RULE_DELETE,
-                                        AzureSQLUtil.serialize(deletes)));
-                        fwRequest.getArguments().add(
-                                AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_FIREWALL_RULE_ADD,
-                                        AzureSQLUtil.serialize(adds)));
-                        fwRequest.getArguments().add(
-                                AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_FIREWALL_RULE_CHANGE,
-                                        AzureSQLUtil.serialize(changes)));
-
-                        seqList.add(AzureSQLServiceOperations.processFirewallRuleChange(fwRequest));
-                    }
-                    // end packaging FirewallRule changes
-
-                    // start packaging Database changes
-                    if (isDbNameChange) {
-                        MethodRequest dbRequest = new MethodRequest();
-                        Database database = new Database();
-                        List<KeyValuePair> kvps = new ArrayList<KeyValuePair>();
-
-                        AzureSQLServiceOperations.logger.trace("Changing database name from '" + curDbName + "' to '" + newDbName
-                                + "'");
-
-                        database.setName(newDbName);
-                        database.setEdition(curDbEdition);
-                        database.setServiceObjectiveId(curDbObjId);
-                        database.setMaxSizeBytes(curDbMaxBytes);
-
-                        dbRequest.setReqId(request.getReqId());
-                        dbRequest.setName(AzureSQLConstants.METHOD_PROCESS_DATABASE_CHANGE);
-                        dbRequest.setProvider(request.getProvider());
-                        dbRequest.setOriginalServiceInstance(serviceInstanceOrig);
-                        dbRequest.setServiceInstance(serviceInstance);
-                        dbRequest.getClouds().addAll(request.getClouds());
-                        dbRequest.setUser(request.getUser());
-
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()));
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_DATABASE_NAME_STR, curDbName));
-
-                        dbRequest.getArguments().clear();
-                        dbRequest.getArguments().addAll(AzureSQLUtil.createStringArguments(kvps));
-                        dbRequest.getArguments()
-                                .add(AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_DATABASE,
-                                        AzureSQLUtil.serialize(database)));
-
-                        siResp = AzureSQLUtil.updateDatabase(siResp, database); // update the response object
-                        seqList.add(AzureSQLServiceOperations.processDatabaseChange(dbRequest));
-                    }
-                    else if (isNewDatabase) { // not originally created so need to create a new database
-                        MethodRequest dbRequest = new MethodRequest();
-                        Database database = new Database();
-                        List<KeyValuePair> kvps = new ArrayList<KeyValuePair>();
-
-                        database.setName(newDbName);
-                        database.setEdition(newDbEdition);
-                        database.setServiceObjectiveId(newDbObjId);
-                        database.setMaxSizeBytes(newDbMaxBytes);
-
-                        AzureSQLServiceOperations.logger.trace("Creating new database with name = " + database.getName()
-                                + "  edition = " + database.getEdition() + "  service objective ID = "
-                                + database.getServiceObjectiveId() + "  size = " + database.getMaxSizeBytes() + " bytes");
-
-                        dbRequest.setReqId(request.getReqId());
-                        dbRequest.setName(AzureSQLConstants.METHOD_PROCESS_DATABASE_CHANGE);
-                        dbRequest.setProvider(request.getProvider());
-                        dbRequest.setOriginalServiceInstance(serviceInstanceOrig);
-                        dbRequest.setServiceInstance(serviceInstance);
-                        dbRequest.getClouds().addAll(request.getClouds());
-                        dbRequest.setUser(request.getUser());
-
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()));
-
-                        dbRequest.getArguments().clear();
-                        dbRequest.getArguments().addAll(AzureSQLUtil.createStringArguments(kvps));
-                        dbRequest.getArguments()
-                                .add(AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_DATABASE,
-                                        AzureSQLUtil.serialize(database)));
-
-                        siResp = AzureSQLUtil.updateDatabase(siResp, database);
-                        seqList.add(AzureSQLServiceOperations.processDatabaseChange(dbRequest));
-                    }
-                    else if (isNewDbEdition || isNewDbSize || isNewDbObjId) { // may have database property changes
-                        MethodRequest dbRequest = new MethodRequest();
-                        Database database = new Database();
-                        List<KeyValuePair> kvps = new ArrayList<KeyValuePair>();
-
-                        database.setName(curDbName);
-                        database.setEdition(AzureSQLUtil.isValued(newDbEdition) && !curDbEdition.equals(newDbEdition) ? newDbEdition
-                                : curDbEdition);
-                        database.setServiceObjectiveId(AzureSQLUtil.isValued(newDbObjId) && !curDbObjId.equals(newDbObjId) ? newDbObjId
-                                : curDbObjId);
-                        database.setMaxSizeBytes(newDbMaxBytes > 0 && curDbMaxBytes != newDbMaxBytes ? newDbMaxBytes
-                                : curDbMaxBytes);
-
-                        AzureSQLServiceOperations.logger.trace("Updating database with name = " + database.getName()
-                                + "  edition = " + database.getEdition() + "  service objective ID = "
-                                + database.getServiceObjectiveId() + "  size = " + database.getMaxSizeBytes() + " bytes");
-
-                        dbRequest.setReqId(request.getReqId());
-                        dbRequest.setName(AzureSQLConstants.METHOD_PROCESS_DATABASE_CHANGE);
-                        dbRequest.setProvider(request.getProvider());
-                        dbRequest.setOriginalServiceInstance(serviceInstanceOrig);
-                        dbRequest.setServiceInstance(serviceInstance);
-                        dbRequest.getClouds().addAll(request.getClouds());
-                        dbRequest.setUser(request.getUser());
-
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, server.getName()));
-                        kvps.add(new KeyValuePair(AzureSQLConstants.PROP_DATABASE_NAME_STR, curDbName));
-
-                        dbRequest.getArguments().clear();
-                        dbRequest.getArguments().addAll(AzureSQLUtil.createStringArguments(kvps));
-                        dbRequest.getArguments()
-                                .add(AzureSQLUtil.createByteArgument(AzureSQLConstants.PROP_DATABASE,
-                                        AzureSQLUtil.serialize(database)));
-
-                        siResp = AzureSQLUtil.updateDatabase(siResp, database);
-                        seqList.add(AzureSQLServiceOperations.processDatabaseChange(dbRequest));
-                    }
-                    // end packaging Database changes
+                    final ReconfigurePlan plan = ReconfigurePlan.diff(serviceInstanceOrig, serviceInstance, server.getName());
 
-                    if (seqList.isEmpty()) {
-                        AzureSQLServiceOperations.logger.trace("The sequence list is null - no work to do.");
+                    if (plan.isEmpty()) {
+                        AzureSQLServiceOperations.logger.trace("The reconfigure plan is empty - no work to do.");
                         resp.setStatus(Status.COMPLETE);
                     }
                     else {
-                        final ServiceInstance si = siResp; // need this as final so it can be sent into the function
-                        int seqCnt = seqList.size();
+                        // start with the original object and apply the planned changes for the response
+                        final ServiceInstance si = plan.apply(AzureSQLUtil.clone(serviceInstanceOrig));
+                        int opCnt = plan.getOperations().size();
 
-                        AzureSQLServiceOperations.logger.trace("There " + (seqCnt == 1 ? "is " : "are ") + seqCnt
-                                + " sequence task" + (seqCnt == 1 ? "" : "s") + " to run.");
+                        AzureSQLServiceOperations.logger.trace("There " + (opCnt == 1 ? "is " : "are ") + opCnt
+                                + " reconfigure operation" + (opCnt == 1 ? "" : "s") + " to run.");
 
-                        return Promise.sequence(seqList).map(new Function<List<MethodResponse>, ServiceProviderResponse>() {
+                        return plan.execute(request, serviceInstanceOrig, serviceInstance).map(new Function<List<MethodResponse>, ServiceProviderResponse>() {
                             @Override
                             public ServiceProviderResponse invoke(List<MethodResponse> results)
                             {
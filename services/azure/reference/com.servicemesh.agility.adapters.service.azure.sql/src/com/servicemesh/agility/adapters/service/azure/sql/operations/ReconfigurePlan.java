@@ -0,0 +1,465 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.util.KeyValuePair;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLConstants;
+import com.servicemesh.agility.adapters.service.azure.sql.util.AzureSQLUtil;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.sdk.service.msgs.MethodRequest;
+import com.servicemesh.agility.sdk.service.msgs.MethodResponse;
+import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceReconfigureRequest;
+import com.servicemesh.azure.sql.models.Database;
+import com.servicemesh.azure.sql.models.FirewallRule;
+import com.servicemesh.azure.sql.models.Server;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.messaging.Status;
+
+/**
+ * This class will work out the changes needed to move a SQL service from its original ServiceInstance to a new ServiceInstance.
+ * The difference is expressed as a list of typed operations. Operations on the same resource (server, firewall rule or database)
+ * depend on each other and run in order; operations on different resources are independent and run in parallel. All operations
+ * obtain their AzureSQLRestHelper, and so their connection, from AzureSQLRestHelperCache.
+ */
+public class ReconfigurePlan
+{
+    private static final Logger logger = Logger.getLogger(ReconfigurePlan.class);
+
+    /**
+     * Resource touched by an operation. Operations on the same resource are run in order.
+     */
+    public enum Resource
+    {
+        SERVER, FIREWALL_RULE, DATABASE
+    }
+
+    public enum OperationType
+    {
+        SERVER_PASSWORD(Resource.SERVER),
+        FIREWALL_RULE_REPLACE(Resource.FIREWALL_RULE),
+        FIREWALL_RULE_RANGE(Resource.FIREWALL_RULE),
+        DATABASE_CREATE(Resource.DATABASE),
+        DATABASE_RENAME(Resource.DATABASE),
+        DATABASE_UPDATE(Resource.DATABASE);
+
+        private final Resource resource;
+
+        private OperationType(Resource resource)
+        {
+            this.resource = resource;
+        }
+
+        public Resource getResource()
+        {
+            return resource;
+        }
+    }
+
+    /**
+     * A single change to be sent as one sub-request.
+     */
+    public static class Operation
+    {
+        private final OperationType type;
+        private final String description;
+        private final List<KeyValuePair> stringArgs = new ArrayList<KeyValuePair>();
+        private final Map<String, Object> byteArgs = new LinkedHashMap<String, Object>();
+        private Object model;
+
+        private Operation(OperationType type, String description)
+        {
+            this.type = type;
+            this.description = description;
+        }
+
+        public OperationType getType()
+        {
+            return type;
+        }
+
+        public String getDescription()
+        {
+            return description;
+        }
+
+        /**
+         * @return Object - the Server, FirewallRule or Database as it will be after the operation
+         */
+        public Object getModel()
+        {
+            return model;
+        }
+
+        @Override
+        public String toString()
+        {
+            return type + ": " + description;
+        }
+    }
+
+    private final String serverName;
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    private ReconfigurePlan(String serverName)
+    {
+        this.serverName = serverName;
+    }
+
+    /**
+     * This method will compare the original and new service instances and build the operations needed to apply the changes. The
+     * rules for what counts as a change are the same as the original reconfigure logic, except that a database rename and a
+     * database property change are now both applied (the rename first) rather than only the rename.
+     *
+     * @param ServiceInstance
+     *            serviceInstanceOrig - current service information
+     * @param ServiceInstance
+     *            serviceInstance - new service information
+     * @param String
+     *            serverName - name of the existing Azure SQL server
+     * @return ReconfigurePlan - plan with zero or more operations
+     */
+    public static ReconfigurePlan diff(ServiceInstance serviceInstanceOrig, ServiceInstance serviceInstance, String serverName)
+    {
+        ReconfigurePlan plan = new ReconfigurePlan(serverName);
+
+        plan.diffServer(AzureSQLUtil.getServer(serviceInstanceOrig), AzureSQLUtil.getServer(serviceInstance));
+        plan.diffFirewallRule(AzureSQLUtil.getFirewallRule(serviceInstanceOrig), AzureSQLUtil.getFirewallRule(serviceInstance));
+        plan.diffDatabase(AzureSQLUtil.getDatabase(serviceInstanceOrig), AzureSQLUtil.getDatabase(serviceInstance));
+
+        return plan;
+    }
+
+    /**
+     * @return List<Operation> - operations in the order they were planned
+     */
+    public List<Operation> getOperations()
+    {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public boolean isEmpty()
+    {
+        return operations.isEmpty();
+    }
+
+    /**
+     * This method will update a service instance with the models of every operation so it reflects the state after the plan
+     * is applied.
+     *
+     * @param ServiceInstance
+     *            serviceInstance - service instance to update
+     * @return ServiceInstance - updated service instance
+     */
+    public ServiceInstance apply(ServiceInstance serviceInstance)
+    {
+        ServiceInstance retval = serviceInstance;
+
+        for (Operation op : operations) {
+            switch (op.type.getResource()) {
+                case SERVER:
+                    retval = AzureSQLUtil.updateServer(retval, (Server) op.model);
+                    break;
+                case FIREWALL_RULE:
+                    retval = AzureSQLUtil.updateFirewallRule(retval, (FirewallRule) op.model);
+                    break;
+                case DATABASE:
+                    retval = AzureSQLUtil.updateDatabase(retval, (Database) op.model);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return retval;
+    }
+
+    /**
+     * This method will run the plan. Each resource's operations are chained in plan order, and an operation is skipped with a
+     * FAILURE response if an earlier operation on the same resource failed. The chains for different resources run in parallel.
+     *
+     * @param ServiceInstanceReconfigureRequest
+     *            request - reconfigure request that initiated the process
+     * @param ServiceInstance
+     *            serviceInstanceOrig - current service information
+     * @param ServiceInstance
+     *            serviceInstance - new service information
+     * @return Promise<List<MethodResponse>> - promise for one response per operation, grouped by resource
+     */
+    public Promise<List<MethodResponse>> execute(ServiceInstanceReconfigureRequest request, ServiceInstance serviceInstanceOrig,
+            ServiceInstance serviceInstance)
+    {
+        Map<Resource, List<Operation>> chains = new LinkedHashMap<Resource, List<Operation>>();
+
+        for (Operation op : operations) {
+            List<Operation> chain = chains.get(op.type.getResource());
+
+            if (chain == null) {
+                chain = new ArrayList<Operation>();
+                chains.put(op.type.getResource(), chain);
+            }
+
+            chain.add(op);
+        }
+
+        List<Promise<List<MethodResponse>>> chainPromises = new ArrayList<Promise<List<MethodResponse>>>();
+
+        for (List<Operation> chain : chains.values()) {
+            ReconfigurePlan.logger.trace("Running " + chain.size() + " dependent operation(s) on "
+                    + chain.get(0).type.getResource());
+            chainPromises.add(runChain(chain, 0, new ArrayList<MethodResponse>(), request, serviceInstanceOrig, serviceInstance));
+        }
+
+        return Promise.sequence(chainPromises).map(new Function<List<List<MethodResponse>>, List<MethodResponse>>() {
+            @Override
+            public List<MethodResponse> invoke(List<List<MethodResponse>> results)
+            {
+                List<MethodResponse> retval = new ArrayList<MethodResponse>();
+
+                for (List<MethodResponse> chainResults : results) {
+                    retval.addAll(chainResults);
+                }
+
+                return retval;
+            }
+        });
+    }
+
+    private Promise<List<MethodResponse>> runChain(final List<Operation> chain, final int index,
+            final List<MethodResponse> results, final ServiceInstanceReconfigureRequest request,
+            final ServiceInstance serviceInstanceOrig, final ServiceInstance serviceInstance)
+    {
+        if (index >= chain.size()) {
+            return Promise.pure(results);
+        }
+
+        final Operation op = chain.get(index);
+
+        return run(op, request, serviceInstanceOrig, serviceInstance).flatMap(
+                new Function<MethodResponse, Promise<List<MethodResponse>>>() {
+                    @Override
+                    public Promise<List<MethodResponse>> invoke(MethodResponse response)
+                    {
+                        results.add(response);
+
+                        if (response.getStatus() == Status.FAILURE) {
+                            for (int i = index + 1; i < chain.size(); i++) {
+                                results.add(AzureSQLUtil.buildFailedMethodResponse(request.getReqId(), "Skipped "
+                                        + chain.get(i) + " because " + op + " failed.", ReconfigurePlan.logger));
+                            }
+
+                            return Promise.pure(results);
+                        }
+
+                        return runChain(chain, index + 1, results, request, serviceInstanceOrig, serviceInstance);
+                    }
+                });
+    }
+
+    private Promise<MethodResponse> run(Operation op, ServiceInstanceReconfigureRequest request,
+            ServiceInstance serviceInstanceOrig, ServiceInstance serviceInstance)
+    {
+        MethodRequest methodRequest = new MethodRequest();
+
+        methodRequest.setReqId(request.getReqId());
+        methodRequest.setProvider(request.getProvider());
+        methodRequest.setOriginalServiceInstance(serviceInstanceOrig);
+        methodRequest.setServiceInstance(serviceInstance);
+        methodRequest.setUser(request.getUser());
+        methodRequest.getClouds().addAll(request.getClouds());
+        methodRequest.getArguments().clear();
+        methodRequest.getArguments().addAll(AzureSQLUtil.createStringArguments(op.stringArgs));
+
+        for (Map.Entry<String, Object> arg : op.byteArgs.entrySet()) {
+            methodRequest.getArguments().add(
+                    AzureSQLUtil.createByteArgument(arg.getKey(), AzureSQLUtil.serialize(arg.getValue())));
+        }
+
+        ReconfigurePlan.logger.trace("Running " + op);
+
+        switch (op.type.getResource()) {
+            case SERVER:
+                methodRequest.setName(AzureSQLConstants.METHOD_PROCESS_SERVER_CHANGE);
+                return AzureSQLServiceOperations.processServerChange(methodRequest);
+            case FIREWALL_RULE:
+                methodRequest.setName(AzureSQLConstants.METHOD_PROCESS_FIREWALL_RULE_CHANGE);
+                return AzureSQLServiceOperations.processFirewallRuleChange(methodRequest);
+            default:
+                methodRequest.setName(AzureSQLConstants.METHOD_PROCESS_DATABASE_CHANGE);
+                return AzureSQLServiceOperations.processDatabaseChange(methodRequest);
+        }
+    }
+
+    private void diffServer(Server serverOrig, Server serverNew)
+    {
+        String curServerPw = serverOrig != null ? serverOrig.getAdministratorLoginPassword() : null;
+        String newServerPw = serverNew != null ? serverNew.getAdministratorLoginPassword() : null;
+
+        if (ReconfigurePlan.isChanged(curServerPw, newServerPw)) {
+            Operation op =
+                    new Operation(OperationType.SERVER_PASSWORD, "change the password for server '" + serverName + "' to "
+                            + AzureSQLUtil.maskPrivateKey(newServerPw));
+
+            op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, serverOrig.getName()));
+            op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_PASSWORD_STR, curServerPw));
+            op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_NEW_PASSWORD_STR, newServerPw));
+
+            serverOrig.setAdministratorLoginPassword(newServerPw);
+            op.model = serverOrig;
+            add(op);
+        }
+    }
+
+    private void diffFirewallRule(FirewallRule fwRuleOrig, FirewallRule fwRuleNew)
+    {
+        String curFwRuleName = fwRuleOrig != null ? fwRuleOrig.getName() : null;
+        String curFwStartIp = fwRuleOrig != null ? fwRuleOrig.getStartIPAddress() : null;
+        String curFwEndIp = fwRuleOrig != null ? fwRuleOrig.getEndIPAddress() : null;
+        String newFwRuleName = fwRuleNew != null ? fwRuleNew.getName() : null;
+        String newFwStartIp = fwRuleNew != null ? fwRuleNew.getStartIPAddress() : null;
+        String newFwEndIp = fwRuleNew != null ? fwRuleNew.getEndIPAddress() : null;
+        boolean isNewStartIp = ReconfigurePlan.isChanged(curFwStartIp, newFwStartIp);
+        boolean isNewEndIp = ReconfigurePlan.isChanged(curFwEndIp, newFwEndIp);
+        List<FirewallRule> adds = new ArrayList<FirewallRule>();
+        List<FirewallRule> deletes = new ArrayList<FirewallRule>();
+        List<FirewallRule> changes = new ArrayList<FirewallRule>();
+        Operation op;
+
+        if (ReconfigurePlan.isChanged(curFwRuleName, newFwRuleName)) {
+            FirewallRule delete = new FirewallRule();
+            FirewallRule add = new FirewallRule();
+
+            delete.setName(curFwRuleName);
+            delete.setStartIPAddress(curFwStartIp);
+            delete.setEndIPAddress(curFwEndIp);
+
+            add.setName(newFwRuleName);
+            add.setStartIPAddress(newFwStartIp);
+            add.setEndIPAddress(newFwEndIp);
+
+            adds.add(add);
+            deletes.add(delete);
+            op =
+                    new Operation(OperationType.FIREWALL_RULE_REPLACE, "replace firewall rule " + delete.getName() + ":"
+                            + delete.getStartIPAddress() + ":" + delete.getEndIPAddress() + " with " + add.getName() + ":"
+                            + add.getStartIPAddress() + ":" + add.getEndIPAddress());
+            op.model = add;
+        }
+        else if (isNewStartIp || isNewEndIp) {
+            FirewallRule fwRule = new FirewallRule();
+
+            fwRule.setName(curFwRuleName);
+            fwRule.setStartIPAddress(isNewStartIp ? newFwStartIp : curFwStartIp);
+            fwRule.setEndIPAddress(isNewEndIp ? newFwEndIp : curFwEndIp);
+
+            changes.add(fwRule);
+            op =
+                    new Operation(OperationType.FIREWALL_RULE_RANGE, "change firewall rule '" + fwRule.getName() + "' from "
+                            + curFwStartIp + ":" + curFwEndIp + " to " + fwRule.getStartIPAddress() + ":"
+                            + fwRule.getEndIPAddress());
+            op.model = fwRule;
+        }
+        else {
+            return;
+        }
+
+        op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, serverName));
+        op.byteArgs.put(AzureSQLConstants.PROP_FIREWALL_RULE_DELETE, deletes);
+        op.byteArgs.put(AzureSQLConstants.PROP_FIREWALL_RULE_ADD, adds);
+        op.byteArgs.put(AzureSQLConstants.PROP_FIREWALL_RULE_CHANGE, changes);
+        add(op);
+    }
+
+    private void diffDatabase(Database databaseOrig, Database databaseNew)
+    {
+        String curDbName = databaseOrig != null ? databaseOrig.getName() : null;
+        String curDbEdition = databaseOrig != null ? databaseOrig.getEdition() : null;
+        String curDbObjId = databaseOrig != null ? databaseOrig.getServiceObjectiveId() : null;
+        long curDbMaxBytes = databaseOrig != null && databaseOrig.getMaxSizeBytes() != null ? databaseOrig.getMaxSizeBytes() : 0L;
+        String newDbName = databaseNew != null ? databaseNew.getName() : null;
+        String newDbEdition = databaseNew != null ? databaseNew.getEdition() : null;
+        String newDbObjId = databaseNew != null ? databaseNew.getServiceObjectiveId() : null;
+        long newDbMaxBytes = databaseNew != null && databaseNew.getMaxSizeBytes() != null ? databaseNew.getMaxSizeBytes() : 0L;
+
+        if (!AzureSQLUtil.isValued(curDbName) && AzureSQLUtil.isValued(newDbName)) {
+            // not originally created so need to create a new database
+            Database database = ReconfigurePlan.makeDatabase(newDbName, newDbEdition, newDbObjId, newDbMaxBytes);
+
+            addDatabaseOperation(OperationType.DATABASE_CREATE, null, database, "create new database");
+            return;
+        }
+
+        String dbName = curDbName;
+
+        if (ReconfigurePlan.isChanged(curDbName, newDbName)) {
+            Database database = ReconfigurePlan.makeDatabase(newDbName, curDbEdition, curDbObjId, curDbMaxBytes);
+
+            addDatabaseOperation(OperationType.DATABASE_RENAME, curDbName, database, "rename database '" + curDbName + "' to");
+            dbName = newDbName;
+        }
+
+        boolean isNewDbEdition = ReconfigurePlan.isChanged(curDbEdition, newDbEdition);
+        boolean isNewDbObjId = ReconfigurePlan.isChanged(curDbObjId, newDbObjId);
+        boolean isNewDbSize = newDbMaxBytes > 0 && curDbMaxBytes != newDbMaxBytes;
+
+        if (isNewDbEdition || isNewDbObjId || isNewDbSize) {
+            // the update follows a rename, so it addresses the database by its new name
+            Database database =
+                    ReconfigurePlan.makeDatabase(dbName, isNewDbEdition ? newDbEdition : curDbEdition, isNewDbObjId ? newDbObjId
+                            : curDbObjId, isNewDbSize ? newDbMaxBytes : curDbMaxBytes);
+
+            addDatabaseOperation(OperationType.DATABASE_UPDATE, dbName, database, "update database");
+        }
+    }
+
+    private void addDatabaseOperation(OperationType type, String curDbName, Database database, String action)
+    {
+        Operation op =
+                new Operation(type, action + " '" + database.getName() + "' edition = " + database.getEdition()
+                        + "  service objective ID = " + database.getServiceObjectiveId() + "  size = "
+                        + database.getMaxSizeBytes() + " bytes");
+
+        op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_SERVER_NAME_STR, serverName));
+
+        if (curDbName != null) {
+            op.stringArgs.add(new KeyValuePair(AzureSQLConstants.PROP_DATABASE_NAME_STR, curDbName));
+        }
+
+        op.byteArgs.put(AzureSQLConstants.PROP_DATABASE, database);
+        op.model = database;
+        add(op);
+    }
+
+    private void add(Operation op)
+    {
+        ReconfigurePlan.logger.trace("Planned " + op);
+        operations.add(op);
+    }
+
+    private static Database makeDatabase(String name, String edition, String serviceObjectiveId, long maxSizeBytes)
+    {
+        Database database = new Database();
+
+        database.setName(name);
+        database.setEdition(edition);
+        database.setServiceObjectiveId(serviceObjectiveId);
+        database.setMaxSizeBytes(maxSizeBytes);
+        return database;
+    }
+
+    private static boolean isChanged(String current, String desired)
+    {
+        return AzureSQLUtil.isValued(current) && AzureSQLUtil.isValued(desired) && !current.equals(desired);
+    }
+}
@@ -112,6 +112,7 @@ public class AzureSQLConstants extends AzureConstants
     public static final String METHOD_PROCESS_SERVER_CHANGE = "processServerChange";
     public static final String METHOD_PROCESS_HEALTH_CHECK = "processHealthCheck";
     public static final String METHOD_SERVER_SYNC = "serverSync";
+    public static final String METHOD_PROCESS_BULK_HEALTH_CHECK = "processBulkHealthCheck";
 
     // Azure Server location constants
     public static final String LOCATION_EAST_US = "East US";
@@ -148,5 +149,20 @@ public class AzureSQLConstants extends AzureConstants
 
     public static final long POLL_INTERVAL = 5000;
     public static final long POLL_RETRIES = 12;
+    public static final long POLL_INTERVAL_CEILING = 20000; // poll interval backs off from POLL_INTERVAL up to this value
     public static final String DB_EXPECTED_STATUS = "Normal";
+
+    // AzureSQLRestHelper cache settings
+    public static final int HELPER_CACHE_MAX_SIZE = 64;
+    public static final long HELPER_CACHE_IDLE_TIMEOUT = 600000; // 10 minutes
+    public static final long HELPER_CACHE_SWEEP_INTERVAL = 60000;
+    public static final long SERVER_INDEX_TTL = 30000;
+
+    // system property that selects the MethodVariable payload codec; "binary" enables ModelBinaryCodec, anything else keeps
+    // Java serialization. Binary payloads cannot be read after rolling back to an adapter without ModelBinaryCodec.
+    public static final String PAYLOAD_CODEC_PROPERTY = "AgilityManager.azure.sql.PayloadCodec";
+    public static final String PAYLOAD_CODEC_BINARY = "binary";
+
+    // deadline shared by the sub-calls of a health check or server sync
+    public static final long FAN_OUT_TIMEOUT = 30000;
 }
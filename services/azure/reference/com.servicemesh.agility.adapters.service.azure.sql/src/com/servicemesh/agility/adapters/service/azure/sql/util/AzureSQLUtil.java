@@ -5,12 +5,6 @@
 
 package com.servicemesh.agility.adapters.service.azure.sql.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -64,10 +58,15 @@ import com.servicemesh.io.http.IHttpResponse;
 public class AzureSQLUtil extends AzureUtil
 {
     public static Logger logger = Logger.getLogger(AzureUtil.class);
+
     private static final long serialVersionUID = 20150121;
 
     private static final String NO_ERROR_MESSAGE = "No error message available.";
 
+    private static final JavaSerializationCodec javaCodec = new JavaSerializationCodec();
+    private static final ModelBinaryCodec binaryCodec = new ModelBinaryCodec();
+    private static volatile PayloadCodec payloadCodec = AzureSQLUtil.getDefaultPayloadCodec();
+
     public static Class<?> getErrorClass(String context)
     {
         Class<?> retval = null;
@@ -347,15 +346,8 @@ public class AzureSQLUtil extends AzureUtil
             {
                 try {
                     AzureSQLUtil.checkForSQLServerError(response, endpoint);
-                    ServiceResources resources =
-                            endpoint.decode(response, AzureSQLConstants.GENERIC_AZURE_CONTEXT, ServiceResources.class);
-                    DatabaseList dbList = new DatabaseList();
-
-                    for (ServiceResource serviceResource : resources.getServiceResources()) {
-                        dbList.getDatabases().add(AzureSQLUtil.mapResourceToDatabase(serviceResource));
-                    }
-
-                    return dbList;
+                    // map each ServiceResource straight to the model while reading the content
+                    return ServiceResourceStreamDecoder.decodeDatabaseList(response.getContent());
                 }
                 catch (AzureAdapterException ex) {
                     AzureSQLUtil.logger.error("An exception occurred while creating a DatabaseList mapping function.", ex);
@@ -382,15 +374,8 @@ public class AzureSQLUtil extends AzureUtil
             {
                 try {
                     AzureSQLUtil.checkForSQLServerError(response, endpoint);
-                    ServiceResources resources =
-                            endpoint.decode(response, AzureSQLConstants.GENERIC_AZURE_CONTEXT, ServiceResources.class);
-                    ServerList svrList = new ServerList();
-
-                    for (ServiceResource serviceResource : resources.getServiceResources()) {
-                        svrList.getServers().add(AzureSQLUtil.mapResourceToServer(serviceResource));
-                    }
-
-                    return svrList;
+                    // map each ServiceResource straight to the model while reading the content
+                    return ServiceResourceStreamDecoder.decodeServerList(response.getContent());
                 }
                 catch (AzureAdapterException ex) {
                     AzureSQLUtil.logger.error("An exception occurred while creating a ServerList mapping function.", ex);
@@ -400,6 +385,36 @@ public class AzureSQLUtil extends AzureUtil
         };
     }
 
+    /**
+     * This method will create a mapping function that can be used by the Promise.map(...) method. It will find a single server
+     * in a ServiceResources server list. The content is read only up to the matching server.
+     *
+     * @param AzureEndpoint
+     *            endpoint - the REST endpoint used by connection
+     * @param String
+     *            serverName - name of the server to find
+     * @return Function<IHttpResponse, Server> - returns a mapping function from ServiceResources to the matching Server, or null
+     *         if there is no match
+     */
+    public static Function<IHttpResponse, Server> createServerFindMap(final AzureEndpoint endpoint, final String serverName)
+            throws AzureAdapterException
+    {
+        return new Function<IHttpResponse, Server>() {
+            @Override
+            public Server invoke(IHttpResponse response) throws RuntimeException
+            {
+                try {
+                    AzureSQLUtil.checkForSQLServerError(response, endpoint);
+                    return ServiceResourceStreamDecoder.findServer(response.getContent(), serverName);
+                }
+                catch (AzureAdapterException ex) {
+                    AzureSQLUtil.logger.error("An exception occurred while creating a Server find mapping function.", ex);
+                    throw ex;
+                }
+            }
+        };
+    }
+
     /**
      * This method will create a mapping function that can be used by the Promise.map(...) method. It will map a more general
      * IHttpResponse type to a more specific Servers type.
@@ -504,15 +519,8 @@ public class AzureSQLUtil extends AzureUtil
             {
                 try {
                     AzureSQLUtil.checkForSQLServerError(response, endpoint);
-                    ServiceResources resources =
-                            endpoint.decode(response, AzureSQLConstants.GENERIC_AZURE_CONTEXT, ServiceResources.class);
-                    FirewallRuleList fwrList = new FirewallRuleList();
-
-                    for (ServiceResource serviceResource : resources.getServiceResources()) {
-                        fwrList.getFirewallRules().add(AzureSQLUtil.mapResourceToFirewallRule(serviceResource));
-                    }
-
-                    return fwrList;
+                    // map each ServiceResource straight to the model while reading the content
+                    return ServiceResourceStreamDecoder.decodeFirewallRuleList(response.getContent());
                 }
                 catch (AzureAdapterException ex) {
                     AzureSQLUtil.logger.error("An exception occurred while creating a FirewallRuleList mapping function.", ex);
@@ -839,6 +847,35 @@ public class AzureSQLUtil extends AzureUtil
         return retval;
     }
 
+    /**
+     * This method will extract every ServiceInstance object from a list of method variables. Each ServiceInstance must be assigned
+     * using the key name @see AzureSQLConstants.PROP_SERVICE_INSTANCE. The order of the method variables is preserved.
+     *
+     * @param List
+     *            <MethodVariable> mvs - list of method variables that will be searched.
+     * @return List<ServiceInstance> - all ServiceInstance values found; the list will be empty if none are found
+     */
+    public static List<ServiceInstance> getServiceInstances(List<MethodVariable> mvs)
+    {
+        List<ServiceInstance> retval = new ArrayList<ServiceInstance>();
+        String propKey = AzureSQLConstants.PROP_SERVICE_INSTANCE;
+
+        if (mvs != null) {
+            for (MethodVariable mv : mvs) {
+                if (propKey.equals(mv.getName())) {
+                    AssetProperty ap = AzureSQLUtil.getAssetProperty(propKey, mv);
+                    ServiceInstance si = ap != null ? AzureSQLUtil.<ServiceInstance> deserialize(ap.getByteValue()) : null;
+
+                    if (si != null) {
+                        retval.add(si);
+                    }
+                }
+            }
+        }
+
+        return retval;
+    }
+
     /**
      * This method will extract the value representing a FirewallRule list from a list of method variables. If variable does not
      * exist with the provided key, null will be returned.
@@ -1838,13 +1875,51 @@ public class AzureSQLUtil extends AzureUtil
     }
 
     /**
-     * This method will convert an object into an array of bytes. Note - this was used instead of
-     * org.apache.commons.lang.SerializationUtils methods because there is a bug that causes non-compliance with OSGi.
+     * This method will return the codec used to convert MethodVariable payloads to and from bytes.
+     *
+     * @return PayloadCodec - codec currently in use
+     */
+    public static PayloadCodec getPayloadCodec()
+    {
+        return AzureSQLUtil.payloadCodec;
+    }
+
+    /**
+     * This method will replace the codec used to convert MethodVariable payloads to and from bytes. Payloads that were written
+     * with Java serialization or ModelBinaryCodec can always be read regardless of the codec in use.
+     *
+     * @param PayloadCodec
+     *            codec - codec to use; null restores the default codec
+     */
+    public static void setPayloadCodec(PayloadCodec codec)
+    {
+        AzureSQLUtil.payloadCodec = (codec != null ? codec : AzureSQLUtil.getDefaultPayloadCodec());
+    }
+
+    /**
+     * This method will return the default payload codec. Payloads end up in asset properties stored by Agility, so Java
+     * serialization remains the default and ModelBinaryCodec is only used when enabled through the PAYLOAD_CODEC_PROPERTY
+     * system property. Once enabled, stored payloads cannot be read by an older adapter or by ObjectInputStream.
+     *
+     * @return PayloadCodec - the default codec
+     */
+    private static PayloadCodec getDefaultPayloadCodec()
+    {
+        if (AzureSQLConstants.PAYLOAD_CODEC_BINARY.equals(System.getProperty(AzureSQLConstants.PAYLOAD_CODEC_PROPERTY))) {
+            return AzureSQLUtil.binaryCodec;
+        }
+
+        return AzureSQLUtil.javaCodec;
+    }
+
+    /**
+     * This method will convert an object into an array of bytes using the current payload codec.
      *
      * @param Object
      *            obj - the object to be serialized. This object must implement java.io.Serializable.
      * @return byte[] - serialized form of the object. The array will be null if the input object is null, not serializable, or an
      *         exception occurs
+     * @see #getPayloadCodec()
      */
     public static byte[] serialize(Object obj)
     {
@@ -1852,38 +1927,12 @@ public class AzureSQLUtil extends AzureUtil
 
         if (obj != null) {
             if (obj instanceof java.io.Serializable) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutput output = null;
-
                 try {
-                    output = new ObjectOutputStream(bos);
-                    output.writeObject(obj);
-                    retval = bos.toByteArray();
+                    retval = AzureSQLUtil.payloadCodec.encode(obj);
                 }
                 catch (Exception e) {
                     AzureSQLUtil.logger.error("Unable to serialize object " + obj.getClass().getName() + " due to exception.", e);
                 }
-                finally {
-                    try {
-                        if (output != null) {
-                            output.close();
-                        }
-                    }
-                    catch (Exception ex) {
-                        AzureSQLUtil.logger.debug(
-                                "An exception occurred while closing the output object during the serialization of object."
-                                        + obj.getClass().getName(), ex);
-                    }
-
-                    try {
-                        bos.close();
-                    }
-                    catch (Exception ex) {
-                        AzureSQLUtil.logger
-                                .debug("An exception occurred while closing the byte output stream object during the serialization of object.",
-                                        ex);
-                    }
-                }
             }
             else {
                 AzureSQLUtil.logger.warn("The object " + obj.getClass().getName()
@@ -1898,8 +1947,8 @@ public class AzureSQLUtil extends AzureUtil
     }
 
     /**
-     * This method will convert a serialized object back into the original object. Note - this was used instead of
-     * org.apache.commons.lang.SerializationUtils methods because there is a bug that causes non-compliance with OSGi.
+     * This method will convert a serialized object back into the original object. Payloads produced by the current codec, by
+     * Java serialization or by ModelBinaryCodec are all accepted.
      *
      * @param byte[] array - array of bytes representing serialized object. This must represent an object that implements
      *        java.io.Serializable.
@@ -1912,39 +1961,26 @@ public class AzureSQLUtil extends AzureUtil
         T retval = null;
 
         if (array != null && array.length > 0) {
-            ByteArrayInputStream bis = new ByteArrayInputStream(array);
-            ObjectInput input = null;
-
-            try {
-                input = new ObjectInputStream(bis);
+            PayloadCodec codec = AzureSQLUtil.payloadCodec;
 
-                try {
-                    retval = (T) input.readObject();
+            if (!codec.canDecode(array)) {
+                if (AzureSQLUtil.javaCodec.canDecode(array)) {
+                    codec = AzureSQLUtil.javaCodec;
                 }
-                catch (Exception ce) {
-                    AzureSQLUtil.logger.error("An exception occurred while casting deserialized object.", ce);
+                else if (AzureSQLUtil.binaryCodec.canDecode(array)) {
+                    codec = AzureSQLUtil.binaryCodec;
                 }
             }
+
+            try {
+                retval = (T) codec.decode(array);
+            }
+            catch (ClassCastException ce) {
+                AzureSQLUtil.logger.error("An exception occurred while casting deserialized object.", ce);
+            }
             catch (Exception e) {
                 AzureSQLUtil.logger.error("Unable to deserialize object due to exception.", e);
             }
-            finally {
-                try {
-                    if (input != null) {
-                        input.close();
-                    }
-                }
-                catch (Exception ex) {
-                    AzureSQLUtil.logger.debug("An exception occurred while closing the output object.", ex);
-                }
-
-                try {
-                    bis.close();
-                }
-                catch (Exception ex) {
-                    AzureSQLUtil.logger.debug("An exception occurred while closing the byte input stream object.", ex);
-                }
-            }
         }
         else {
             AzureSQLUtil.logger.warn("The object cannot be deserialized because the contents are null.");
@@ -1954,9 +1990,9 @@ public class AzureSQLUtil extends AzureUtil
     }
 
     /**
-     * This method will create an exact copy of a given object. This is accomplished by serializing and deserializing the object.
-     * This implies that the object must be serializable. If it is not, null will be returned. Note - this was used instead of
-     * org.apache.commons.lang.SerializationUtils methods because there is a bug that causes non-compliance with OSGi.
+     * This method will create an exact copy of a given object. The object graph is copied directly by ModelCopier; if some part
+     * of the graph cannot be copied that way the object is serialized and deserialized instead. This implies that the object
+     * must be serializable. If it is not, null will be returned.
      *
      * @param T
      *            obj - object to be cloned
@@ -1969,7 +2005,14 @@ public class AzureSQLUtil extends AzureUtil
 
         if (obj != null) {
             if (obj instanceof java.io.Serializable) {
-                retval = AzureSQLUtil.deserialize(AzureSQLUtil.serialize(obj));
+                try {
+                    retval = ModelCopier.copy(obj);
+                }
+                catch (Exception e) {
+                    AzureSQLUtil.logger.debug("Unable to copy object " + obj.getClass().getName()
+                            + " directly.  Falling back to serialization.", e);
+                    retval = AzureSQLUtil.deserialize(AzureSQLUtil.serialize(obj));
+                }
             }
             else {
                 AzureSQLUtil.logger.warn("Only serializable objects can be cloned.  Object " + obj.getClass().getName()
@@ -0,0 +1,397 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.sdk.service.msgs.MethodResponse;
+import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceRequest;
+import com.servicemesh.azure.sql.models.Database;
+import com.servicemesh.azure.sql.models.DatabaseList;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.messaging.Status;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+import com.servicemesh.io.http.IHttpResponse;
+
+/**
+ * This class will wait for databases to reach an expected state. It polls once per server: every database waiting on the same
+ * server (and connection) is resolved from a single database list call. The poll interval starts at POLL_INTERVAL and doubles
+ * after each poll up to POLL_INTERVAL_CEILING, with jitter so that a burst of provisions does not poll in lock step. With the
+ * defaults a database is given up on after roughly 107 to 215 seconds (5 + 10 + 10 x 20 seconds, each jittered to half to
+ * all of its value), where the fixed 5 second interval gave up after 60 seconds. The most recent parsed list for a server is
+ * kept so a new waiter can be resolved without another call while it is still fresh.
+ */
+public class DatabasePollScheduler
+{
+    private static final Logger logger = Logger.getLogger(DatabasePollScheduler.class);
+
+    private final TimerReactor reactor;
+    private final long interval;
+    private final long ceiling;
+    private final long retries;
+    private final Random random = new Random();
+    private final Map<PollKey, ServerPoll> polls = new HashMap<PollKey, ServerPoll>();
+
+    /**
+     * Constructor using the default interval, ceiling and retries from AzureSQLConstants.
+     *
+     * @param TimerReactor
+     *            reactor - reactor used to schedule the polls
+     */
+    public DatabasePollScheduler(TimerReactor reactor)
+    {
+        this(reactor, AzureSQLConstants.POLL_INTERVAL, AzureSQLConstants.POLL_INTERVAL_CEILING, AzureSQLConstants.POLL_RETRIES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param TimerReactor
+     *            reactor - reactor used to schedule the polls
+     * @param long
+     *            interval - initial poll interval in milliseconds
+     * @param long
+     *            ceiling - maximum poll interval in milliseconds
+     * @param long
+     *            retries - number of polls a database may wait through before it is reported as failed
+     */
+    public DatabasePollScheduler(TimerReactor reactor, long interval, long ceiling, long retries)
+    {
+        this.reactor = reactor;
+        this.interval = interval;
+        this.ceiling = Math.max(interval, ceiling);
+        this.retries = retries;
+    }
+
+    /**
+     * This method will wait for the database of a service instance request to reach the desired state. When it does, the
+     * database of the request's service instance is updated and a COMPLETE response is returned. If the database enters a failed
+     * state or does not reach the desired state within the allowed polls, a FAILURE response is returned.
+     *
+     * @param ServiceInstanceRequest
+     *            request - request whose service instance identifies the server and database
+     * @param String
+     *            desiredState - state the database must reach, e.g. AzureSQLConstants.DB_EXPECTED_STATUS
+     * @param AzureConnection
+     *            conn - connection for the generic Azure context
+     * @return Promise<MethodResponse> - promise for the result of the wait
+     */
+    public Promise<MethodResponse> waitForDatabase(ServiceInstanceRequest request, String desiredState, AzureConnection conn)
+    {
+        CompletablePromise<MethodResponse> promise = PromiseFactory.create();
+        String serverName = AzureSQLUtil.getServerName(request);
+        String dbName = AzureSQLUtil.getDatabaseName(request);
+
+        if (conn == null || !AzureSQLUtil.isValued(serverName) || !AzureSQLUtil.isValued(dbName)) {
+            promise.complete(AzureSQLUtil.buildFailedMethodResponse(request.getReqId(),
+                    "Unable to poll database status - the connection, server name or database name is missing.",
+                    DatabasePollScheduler.logger));
+            return promise;
+        }
+
+        Waiter waiter = new Waiter(request, dbName, desiredState, promise);
+        PollKey key = new PollKey(conn, serverName);
+        ServerPoll poll;
+        boolean schedule = false;
+
+        // look up and join the poll under the same locks finishPoll takes to remove it, so a waiter never lands on a poll
+        // that has already been dropped from the map
+        synchronized (polls) {
+            poll = polls.get(key);
+
+            if (poll == null) {
+                poll = new ServerPoll(key);
+                polls.put(key, poll);
+            }
+
+            synchronized (poll) {
+                // resolve from the last parsed list if it is recent enough
+                if (poll.lastList != null && System.currentTimeMillis() - poll.lastPolled < interval
+                        && resolve(waiter, poll.lastList)) {
+                    return promise;
+                }
+
+                poll.waiters.add(waiter);
+
+                if (!poll.scheduled) {
+                    poll.scheduled = true;
+                    poll.attempt = 0;
+                    schedule = true;
+                }
+            }
+        }
+
+        if (schedule) {
+            scheduleNext(poll);
+        }
+
+        return promise;
+    }
+
+    /**
+     * This method will return the number of servers that currently have databases waiting.
+     *
+     * @return int - number of servers being polled
+     */
+    public int getActivePolls()
+    {
+        synchronized (polls) {
+            return polls.size();
+        }
+    }
+
+    private void scheduleNext(final ServerPoll poll)
+    {
+        long delay;
+
+        synchronized (poll) {
+            delay = nextDelay(poll.attempt);
+        }
+
+        DatabasePollScheduler.logger.trace("Next database poll for server " + poll.key.serverName + " in " + delay + " ms");
+
+        reactor.timerCreateRel(delay, new TimerHandler() {
+            @Override
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                runPoll(poll);
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * This method will compute the delay before the next poll: the interval doubled for each previous poll, limited to the
+     * ceiling, then jittered to between half and all of that value.
+     *
+     * @param int
+     *            attempt - number of polls already made
+     * @return long - delay in milliseconds
+     */
+    long nextDelay(int attempt)
+    {
+        long delay = interval << Math.min(attempt, 20);
+
+        if (delay <= 0 || delay > ceiling) {
+            delay = ceiling;
+        }
+
+        long half = delay / 2;
+
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    private void runPoll(final ServerPoll poll)
+    {
+        String uri = AzureSQLConstants.AZURE_SQL_BASE_URI + "/" + poll.key.serverName + "/databases"
+                + AzureSQLConstants.URI_GENERIC_TAG;
+        Promise<DatabaseList> listPromise;
+
+        try {
+            listPromise =
+                    poll.key.conn.get(uri, null, IHttpResponse.class).map(
+                            AzureSQLUtil.createDatabaseListMap(poll.key.conn.getEndpoint()));
+        }
+        catch (Exception e) {
+            DatabasePollScheduler.logger.error("Error checking database status for server " + poll.key.serverName, e);
+            finishPoll(poll, null);
+            return;
+        }
+
+        listPromise.onComplete(new Callback<DatabaseList>() {
+            @Override
+            public void invoke(DatabaseList list)
+            {
+                finishPoll(poll, list);
+            }
+        });
+        listPromise.onFailure(new Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable t)
+            {
+                // the server may not be visible yet - treat like a 404 and retry
+                DatabasePollScheduler.logger.debug("Database status poll for server " + poll.key.serverName + " failed - "
+                        + t.getMessage());
+                finishPoll(poll, null);
+            }
+        });
+    }
+
+    private void finishPoll(ServerPoll poll, DatabaseList list)
+    {
+        boolean reschedule = false;
+
+        synchronized (poll) {
+            if (list != null) {
+                poll.lastList = list;
+                poll.lastPolled = System.currentTimeMillis();
+            }
+
+            for (Iterator<Waiter> i = poll.waiters.iterator(); i.hasNext();) {
+                Waiter waiter = i.next();
+
+                waiter.attempts++;
+
+                if (list != null && resolve(waiter, list)) {
+                    i.remove();
+                }
+                else if (waiter.attempts >= retries) {
+                    i.remove();
+                    waiter.promise.complete(AzureSQLUtil.buildFailedMethodResponse(waiter.request.getReqId(), "Database "
+                            + waiter.dbName + " did not reach state " + waiter.desiredState + " after " + waiter.attempts
+                            + " polls.", DatabasePollScheduler.logger));
+                }
+            }
+
+            poll.attempt++;
+
+            if (poll.waiters.isEmpty()) {
+                poll.scheduled = false;
+            }
+            else {
+                reschedule = true;
+            }
+        }
+
+        if (reschedule) {
+            scheduleNext(poll);
+        }
+        else {
+            synchronized (polls) {
+                synchronized (poll) {
+                    if (!poll.scheduled && poll.waiters.isEmpty()) {
+                        polls.remove(poll.key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method will complete the waiter if its database is in the list and has either reached the desired state or entered a
+     * failed state.
+     *
+     * @return boolean - true if the waiter was completed
+     */
+    private boolean resolve(Waiter waiter, DatabaseList list)
+    {
+        Database found = null;
+
+        for (Database db : list.getDatabases()) {
+            if (waiter.dbName.equals(db.getName())) {
+                found = db;
+                break;
+            }
+        }
+
+        if (found == null || found.getState() == null) {
+            return false;
+        }
+
+        if (found.getState().equals(waiter.desiredState)) {
+            MethodResponse response = new MethodResponse();
+
+            AzureSQLUtil.updateDatabase(waiter.request.getServiceInstance(), found);
+            response.setReqId(waiter.request.getReqId());
+            response.setStatus(Status.COMPLETE);
+            response.setTimestamp(System.currentTimeMillis());
+            waiter.promise.complete(response);
+            return true;
+        }
+
+        if (DatabasePollScheduler.isFailedState(found.getState())) {
+            waiter.promise.complete(AzureSQLUtil.buildFailedMethodResponse(waiter.request.getReqId(), "Database "
+                    + waiter.dbName + " entered state " + found.getState() + " while waiting for " + waiter.desiredState,
+                    DatabasePollScheduler.logger));
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isFailedState(String statusValue)
+    {
+        // anything other than "Creating" is a failure
+        return !statusValue.equals("Creating");
+    }
+
+    private static class PollKey
+    {
+        private final AzureConnection conn;
+        private final String serverName;
+
+        private PollKey(AzureConnection conn, String serverName)
+        {
+            this.conn = conn;
+            this.serverName = serverName;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof PollKey)) {
+                return false;
+            }
+
+            PollKey other = (PollKey) obj;
+
+            return conn == other.conn && serverName.equals(other.serverName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(conn) * 31 + serverName.hashCode();
+        }
+    }
+
+    private static class ServerPoll
+    {
+        private final PollKey key;
+        private final List<Waiter> waiters = new ArrayList<Waiter>();
+        private DatabaseList lastList;
+        private long lastPolled;
+        private boolean scheduled;
+        private int attempt;
+
+        private ServerPoll(PollKey key)
+        {
+            this.key = key;
+        }
+    }
+
+    private static class Waiter
+    {
+        private final ServiceInstanceRequest request;
+        private final String dbName;
+        private final String desiredState;
+        private final CompletablePromise<MethodResponse> promise;
+        private int attempts;
+
+        private Waiter(ServiceInstanceRequest request, String dbName, String desiredState,
+                CompletablePromise<MethodResponse> promise)
+        {
+            this.request = request;
+            this.dbName = dbName;
+            this.desiredState = desiredState;
+            this.promise = promise;
+        }
+    }
+}
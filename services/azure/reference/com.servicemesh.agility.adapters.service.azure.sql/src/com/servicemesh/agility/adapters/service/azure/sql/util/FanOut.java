@@ -0,0 +1,293 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+
+/**
+ * This class will join a set of independent promises under a shared deadline. Unlike Promise.sequence, a failed or slow call does
+ * not hold or fail the whole set: when every call has finished, or the deadline expires, the joined promise completes with one
+ * Result per call. Each Result records whether the call succeeded, failed or timed out along with its latency.
+ *
+ * @param <T>
+ *            - type produced by each call
+ */
+public class FanOut<T>
+{
+    private static final Logger logger = Logger.getLogger(FanOut.class);
+
+    public enum Outcome
+    {
+        SUCCESS, FAILED, TIMEOUT
+    }
+
+    /**
+     * The outcome of one call in the fan out.
+     */
+    public static class Result<T>
+    {
+        private final String label;
+        private Outcome outcome = Outcome.TIMEOUT;
+        private T value;
+        private Throwable error;
+        private long latency;
+
+        private Result(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+
+        public Outcome getOutcome()
+        {
+            return outcome;
+        }
+
+        public T getValue()
+        {
+            return value;
+        }
+
+        public Throwable getError()
+        {
+            return error;
+        }
+
+        /**
+         * @return long - milliseconds from when the call was added until it finished, or until the deadline for a timeout
+         */
+        public long getLatency()
+        {
+            return latency;
+        }
+    }
+
+    private final TimerReactor reactor;
+    private final long timeout;
+    private final List<Result<T>> results = new ArrayList<Result<T>>();
+    private final List<Promise<T>> calls = new ArrayList<Promise<T>>();
+    private final List<Long> starts = new ArrayList<Long>();
+    private CompletablePromise<List<Result<T>>> joined;
+    private Deadline deadline;
+    private int remaining;
+
+    /**
+     * Constructor.
+     *
+     * @param TimerReactor
+     *            reactor - reactor used to schedule the deadline
+     * @param long
+     *            timeout - milliseconds allowed for all calls; zero or less means no deadline
+     */
+    public FanOut(TimerReactor reactor, long timeout)
+    {
+        this.reactor = reactor;
+        this.timeout = timeout;
+    }
+
+    /**
+     * This method will add a call to the fan out. The call should already be started; its latency is measured from this point.
+     *
+     * @param String
+     *            label - name used to identify the call in the results and in logging
+     * @param Promise
+     *            <T> call - promise for the call
+     * @return FanOut<T> - this object
+     */
+    @SuppressWarnings("unchecked")
+    public FanOut<T> add(String label, Promise<? extends T> call)
+    {
+        results.add(new Result<T>(label));
+        calls.add((Promise<T>) call);
+        starts.add(System.currentTimeMillis());
+        return this;
+    }
+
+    /**
+     * This method will return the number of calls that have been added.
+     *
+     * @return int - number of calls
+     */
+    public int size()
+    {
+        return calls.size();
+    }
+
+    /**
+     * This method will join the calls. The returned promise always completes; failures and timeouts are reported through the
+     * Result objects in the order the calls were added.
+     *
+     * @return Promise<List<Result<T>>> - promise for the results of every call
+     */
+    public Promise<List<Result<T>>> join()
+    {
+        joined = PromiseFactory.create();
+        remaining = calls.size();
+
+        if (remaining == 0) {
+            joined.complete(new ArrayList<Result<T>>());
+            return joined;
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+            final Result<T> result = results.get(i);
+            final long start = starts.get(i);
+            Promise<T> call = calls.get(i);
+
+            call.onComplete(new Callback<T>() {
+                @Override
+                public void invoke(T value)
+                {
+                    finish(result, start, Outcome.SUCCESS, value, null);
+                }
+            });
+            call.onFailure(new Callback<Throwable>() {
+                @Override
+                public void invoke(Throwable t)
+                {
+                    finish(result, start, Outcome.FAILED, null, t);
+                }
+            });
+            call.onCancel(new Callback<Void>() {
+                @Override
+                public void invoke(Void t)
+                {
+                    finish(result, start, Outcome.FAILED, null, new Exception(result.getLabel() + " was cancelled."));
+                }
+            });
+        }
+
+        if (timeout > 0 && reactor != null) {
+            Deadline timer = null;
+
+            // calls that completed right away may have finished the fan out already
+            synchronized (this) {
+                if (remaining > 0) {
+                    deadline = new Deadline(this);
+                    timer = deadline;
+                }
+            }
+
+            if (timer != null) {
+                reactor.timerCreateRel(timeout, timer);
+            }
+        }
+
+        return joined;
+    }
+
+    private void finish(Result<T> result, long start, Outcome outcome, T value, Throwable error)
+    {
+        boolean done = false;
+
+        synchronized (this) {
+            if (remaining <= 0) {
+                return;
+            }
+
+            result.outcome = outcome;
+            result.value = value;
+            result.error = error;
+            result.latency = System.currentTimeMillis() - start;
+            done = (--remaining == 0);
+        }
+
+        if (FanOut.logger.isDebugEnabled()) {
+            FanOut.logger.debug(result.getLabel() + " finished with " + outcome + " in " + result.getLatency() + " ms");
+        }
+
+        if (done) {
+            complete();
+        }
+    }
+
+    private void expire()
+    {
+        synchronized (this) {
+            if (remaining <= 0) {
+                return;
+            }
+
+            for (Result<T> result : results) {
+                if (result.outcome == Outcome.TIMEOUT) {
+                    result.latency = timeout;
+                    FanOut.logger.warn(result.getLabel() + " did not finish within " + timeout + " ms");
+                }
+            }
+
+            remaining = 0;
+        }
+
+        complete();
+    }
+
+    private void complete()
+    {
+        List<Result<T>> snapshot;
+
+        synchronized (this) {
+            snapshot = new ArrayList<Result<T>>(results);
+
+            // the deadline no longer applies, and must not keep the results reachable until it fires
+            if (deadline != null) {
+                deadline.cancel();
+                deadline = null;
+            }
+        }
+
+        joined.complete(snapshot);
+    }
+
+    /**
+     * The deadline of a fan out. It only refers to the fan out until it is cancelled, so a fan out that finished early is not
+     * kept alive by its pending timer.
+     */
+    private static class Deadline implements TimerHandler
+    {
+        private FanOut<?> fanOut;
+
+        private Deadline(FanOut<?> fanOut)
+        {
+            this.fanOut = fanOut;
+        }
+
+        private synchronized void cancel()
+        {
+            fanOut = null;
+        }
+
+        @Override
+        public long timerFire(long scheduledTime, long actualTime)
+        {
+            FanOut<?> expired;
+
+            synchronized (this) {
+                expired = fanOut;
+                fanOut = null;
+            }
+
+            if (expired != null) {
+                expired.expire();
+            }
+
+            return 0;
+        }
+    }
+}
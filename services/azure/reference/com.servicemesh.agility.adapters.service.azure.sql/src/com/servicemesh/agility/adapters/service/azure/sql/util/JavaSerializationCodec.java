@@ -0,0 +1,61 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+
+/**
+ * Payload codec based on standard Java serialization. Note - this was used instead of org.apache.commons.lang.SerializationUtils
+ * methods because there is a bug that causes non-compliance with OSGi.
+ */
+public class JavaSerializationCodec implements PayloadCodec
+{
+    @Override
+    public byte[] encode(Object obj) throws Exception
+    {
+        if (!(obj instanceof Serializable)) {
+            throw new IllegalArgumentException("The object " + obj.getClass().getName()
+                    + " cannot be serialized because it is not Serializable.");
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bos);
+
+        try {
+            output.writeObject(obj);
+            output.flush();
+            return bos.toByteArray();
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public Object decode(byte[] data) throws Exception
+    {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        try {
+            return input.readObject();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte[] data)
+    {
+        return data != null && data.length > 1 && data[0] == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8)
+                && data[1] == (byte) ObjectStreamConstants.STREAM_MAGIC;
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary codec for the Azure SQL model objects (Server, Database, FirewallRule, DatabaseList, FirewallRuleList,
+ * ServerName and lists of them). The layout of each model is taken from its generated class, so only field values are written
+ * - no class descriptors or field names. Objects that are not part of the Azure SQL models, such as ServiceInstance, are written
+ * as embedded Java serialization.
+ *
+ * Format: 2 byte magic, 1 byte version, then a tagged value. A model value is written as its class name followed by the value
+ * of each field in ModelCopier.getFields order.
+ */
+public class ModelBinaryCodec implements PayloadCodec
+{
+    private static final byte MAGIC_0 = (byte) 0x53;
+    private static final byte MAGIC_1 = (byte) 0x51;
+    private static final byte VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INTEGER = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final byte TAG_CALENDAR = 5;
+    private static final byte TAG_LIST = 6;
+    private static final byte TAG_MODEL = 7;
+    private static final byte TAG_SERIALIZED = 8;
+
+    private static final String[] MODEL_PACKAGES = { AzureSQLConstants.AZURE_201012_CONTEXT + ".",
+            AzureSQLConstants.GENERIC_AZURE_CONTEXT + "." };
+
+    private final JavaSerializationCodec fallback = new JavaSerializationCodec();
+    private final Map<String, Class<?>> classCache = new ConcurrentHashMap<String, Class<?>>();
+
+    @Override
+    public byte[] encode(Object obj) throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeByte(ModelBinaryCodec.MAGIC_0);
+        out.writeByte(ModelBinaryCodec.MAGIC_1);
+        out.writeByte(ModelBinaryCodec.VERSION);
+        writeValue(out, obj);
+        out.flush();
+
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws Exception
+    {
+        if (!canDecode(data)) {
+            throw new IOException("The data was not produced by " + ModelBinaryCodec.class.getSimpleName());
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 3, data.length - 3));
+
+        return readValue(in);
+    }
+
+    @Override
+    public boolean canDecode(byte[] data)
+    {
+        return data != null && data.length > 2 && data[0] == ModelBinaryCodec.MAGIC_0 && data[1] == ModelBinaryCodec.MAGIC_1
+                && data[2] == ModelBinaryCodec.VERSION;
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws Exception
+    {
+        if (value == null) {
+            out.writeByte(ModelBinaryCodec.TAG_NULL);
+        }
+        else if (value instanceof String) {
+            out.writeByte(ModelBinaryCodec.TAG_STRING);
+            ModelBinaryCodec.writeString(out, (String) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(ModelBinaryCodec.TAG_INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(ModelBinaryCodec.TAG_LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(ModelBinaryCodec.TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof GregorianCalendar) {
+            Calendar cal = (Calendar) value;
+
+            out.writeByte(ModelBinaryCodec.TAG_CALENDAR);
+            out.writeLong(cal.getTimeInMillis());
+            ModelBinaryCodec.writeString(out, cal.getTimeZone().getID());
+        }
+        else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+
+            out.writeByte(ModelBinaryCodec.TAG_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        }
+        else if (ModelBinaryCodec.isModelClass(value.getClass())) {
+            out.writeByte(ModelBinaryCodec.TAG_MODEL);
+            ModelBinaryCodec.writeString(out, value.getClass().getName());
+            for (Field field : ModelCopier.getFields(value.getClass())) {
+                writeValue(out, field.get(value));
+            }
+        }
+        else {
+            byte[] serialized = fallback.encode(value);
+
+            out.writeByte(ModelBinaryCodec.TAG_SERIALIZED);
+            out.writeInt(serialized.length);
+            out.write(serialized);
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws Exception
+    {
+        byte tag = in.readByte();
+
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return ModelBinaryCodec.readString(in);
+            case TAG_INTEGER:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_CALENDAR: {
+                long millis = in.readLong();
+                Calendar cal = new GregorianCalendar(TimeZone.getTimeZone(ModelBinaryCodec.readString(in)));
+
+                cal.setTimeInMillis(millis);
+                return cal;
+            }
+            case TAG_LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<Object>(size);
+
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case TAG_MODEL: {
+                Class<?> clazz = getModelClass(ModelBinaryCodec.readString(in));
+                Object retval = ModelCopier.newInstance(clazz);
+
+                for (Field field : ModelCopier.getFields(clazz)) {
+                    field.set(retval, readValue(in));
+                }
+                return retval;
+            }
+            case TAG_SERIALIZED: {
+                byte[] serialized = new byte[in.readInt()];
+
+                in.readFully(serialized);
+                return fallback.decode(serialized);
+            }
+            default:
+                throw new IOException("Unknown payload tag " + tag);
+        }
+    }
+
+    private Class<?> getModelClass(String className) throws Exception
+    {
+        Class<?> retval = classCache.get(className);
+
+        if (retval == null) {
+            // resolve through this bundle's class loader; only the generated model packages are accepted
+            retval = Class.forName(className, false, ModelBinaryCodec.class.getClassLoader());
+
+            if (!ModelBinaryCodec.isModelClass(retval)) {
+                throw new IOException("Class " + className + " is not an Azure SQL model class.");
+            }
+
+            classCache.put(className, retval);
+        }
+
+        return retval;
+    }
+
+    private static boolean isModelClass(Class<?> clazz)
+    {
+        for (String pkg : ModelBinaryCodec.MODEL_PACKAGES) {
+            if (clazz.getName().startsWith(pkg)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * This class will make deep copies of the JAXB generated model objects (Azure SQL models and the Agility API objects such as
+ * ServiceInstance) without serializing them. Model objects are copied field by field using a cached field layout for each class.
+ * Immutable values are shared, lists and calendars are copied and nested objects are copied recursively. The field layout is
+ * also used by ModelBinaryCodec.
+ */
+public class ModelCopier
+{
+    private static final Map<Class<?>, List<Field>> fieldCache = new ConcurrentHashMap<Class<?>, List<Field>>();
+    private static final Map<Class<?>, Constructor<?>> constructorCache = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private ModelCopier()
+    {
+    }
+
+    /**
+     * This method will create a deep copy of the given object.
+     *
+     * @param T
+     *            obj - object to be copied
+     * @return T - copy of the object; null if the object is null
+     * @throws Exception
+     *             - if some part of the object graph cannot be copied, for example a class without a no-arg constructor
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T copy(T obj) throws Exception
+    {
+        return (T) ModelCopier.copyValue(obj, new IdentityHashMap<Object, Object>());
+    }
+
+    private static Object copyValue(Object value, IdentityHashMap<Object, Object> copied) throws Exception
+    {
+        if (value == null || ModelCopier.isImmutable(value.getClass())) {
+            return value;
+        }
+
+        Object retval = copied.get(value);
+
+        if (retval != null) {
+            return retval;
+        }
+
+        if (value instanceof Calendar) {
+            retval = ((Calendar) value).clone();
+        }
+        else if (value instanceof XMLGregorianCalendar) {
+            retval = ((XMLGregorianCalendar) value).clone();
+        }
+        else if (value instanceof Date) {
+            retval = ((Date) value).clone();
+        }
+        else if (value instanceof byte[]) {
+            retval = ((byte[]) value).clone();
+        }
+        else if (value instanceof List) {
+            List<?> src = (List<?>) value;
+            List<Object> list = new ArrayList<Object>(src.size());
+
+            copied.put(value, list);
+            for (Object item : src) {
+                list.add(ModelCopier.copyValue(item, copied));
+            }
+            return list;
+        }
+        else {
+            retval = ModelCopier.newInstance(value.getClass());
+            copied.put(value, retval);
+
+            for (Field field : ModelCopier.getFields(value.getClass())) {
+                field.set(retval, ModelCopier.copyValue(field.get(value), copied));
+            }
+            return retval;
+        }
+
+        copied.put(value, retval);
+        return retval;
+    }
+
+    /**
+     * This method will indicate if a value of the given class can be shared between copies.
+     *
+     * @param Class
+     *            <?> clazz - class of the value
+     * @return boolean - true if instances of the class are immutable
+     */
+    static boolean isImmutable(Class<?> clazz)
+    {
+        return clazz == String.class || clazz == Integer.class || clazz == Long.class || clazz == Boolean.class
+                || clazz == Short.class || clazz == Byte.class || clazz == Character.class || clazz == Double.class
+                || clazz == Float.class || clazz == BigInteger.class || clazz == BigDecimal.class || clazz.isEnum()
+                || clazz == Class.class;
+    }
+
+    /**
+     * This method will return the instance fields of a class, including inherited fields, in a stable order (superclass fields
+     * first, then declaration order). Static and transient fields are skipped.
+     *
+     * @param Class
+     *            <?> clazz - model class
+     * @return List<Field> - accessible fields for the class
+     */
+    static List<Field> getFields(Class<?> clazz)
+    {
+        List<Field> retval = ModelCopier.fieldCache.get(clazz);
+
+        if (retval == null) {
+            List<Field> fields = new ArrayList<Field>();
+
+            if (clazz.getSuperclass() != null && clazz.getSuperclass() != Object.class) {
+                fields.addAll(ModelCopier.getFields(clazz.getSuperclass()));
+            }
+
+            for (Field field : clazz.getDeclaredFields()) {
+                int mod = field.getModifiers();
+
+                if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod) && !field.isSynthetic()) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+
+            retval = Collections.unmodifiableList(fields);
+            ModelCopier.fieldCache.put(clazz, retval);
+        }
+
+        return retval;
+    }
+
+    /**
+     * This method will create a new instance of a model class using its no-arg constructor.
+     *
+     * @param Class
+     *            <?> clazz - model class
+     * @return Object - new instance
+     * @throws Exception
+     *             - if the class does not have a no-arg constructor
+     */
+    static Object newInstance(Class<?> clazz) throws Exception
+    {
+        Constructor<?> ctor = ModelCopier.constructorCache.get(clazz);
+
+        if (ctor == null) {
+            ctor = clazz.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            ModelCopier.constructorCache.put(clazz, ctor);
+        }
+
+        return ctor.newInstance();
+    }
+}
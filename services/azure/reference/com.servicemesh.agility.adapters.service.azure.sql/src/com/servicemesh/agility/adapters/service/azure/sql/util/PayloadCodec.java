@@ -0,0 +1,44 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+/**
+ * A codec converts objects carried in the byte value of a MethodVariable asset property to and from their byte form.
+ *
+ * @see AzureSQLUtil#serialize(Object)
+ * @see AzureSQLUtil#deserialize(byte[])
+ */
+public interface PayloadCodec
+{
+    /**
+     * This method will convert an object into an array of bytes.
+     *
+     * @param Object
+     *            obj - the object to encode; must not be null
+     * @return byte[] - encoded form of the object
+     * @throws Exception
+     *             - if the object cannot be encoded
+     */
+    public byte[] encode(Object obj) throws Exception;
+
+    /**
+     * This method will convert an array of bytes produced by encode back into an object.
+     *
+     * @param byte[] data - encoded form of the object
+     * @return Object - new object created from the byte array
+     * @throws Exception
+     *             - if the bytes cannot be decoded
+     */
+    public Object decode(byte[] data) throws Exception;
+
+    /**
+     * This method will indicate if the bytes were produced by this codec.
+     *
+     * @param byte[] data - encoded form of an object
+     * @return boolean - true if this codec can decode the data
+     */
+    public boolean canDecode(byte[] data);
+}
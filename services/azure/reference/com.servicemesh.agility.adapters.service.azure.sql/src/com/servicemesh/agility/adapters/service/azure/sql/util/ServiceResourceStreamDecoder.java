@@ -0,0 +1,487 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+
+package com.servicemesh.agility.adapters.service.azure.sql.util;
+
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.exception.AzureAdapterException;
+import com.servicemesh.azure.sql.models.Database;
+import com.servicemesh.azure.sql.models.DatabaseList;
+import com.servicemesh.azure.sql.models.FirewallRule;
+import com.servicemesh.azure.sql.models.FirewallRuleList;
+import com.servicemesh.azure.sql.models.Server;
+import com.servicemesh.azure.sql.models.ServerList;
+
+/**
+ * This class will decode a ServiceResources XML document (the 'contentview=generic' list responses) with a StAX reader. Each
+ * ServiceResource element is mapped straight to the target model while the document is read, so no
+ * ServiceResources/ServiceResource tree is built. A handler can stop the read early, which lets a search by name end at the
+ * first match.
+ *
+ * The fields copied to each model are the same as the AzureSQLUtil.mapResourceTo... methods.
+ */
+public class ServiceResourceStreamDecoder
+{
+    private static final Logger logger = Logger.getLogger(ServiceResourceStreamDecoder.class);
+
+    private static final String ELEMENT_SERVICE_RESOURCES = "ServiceResources";
+    private static final String ELEMENT_SERVICE_RESOURCE = "ServiceResource";
+    private static final String ELEMENT_NAME = "Name";
+
+    private static final XMLInputFactory factory = ServiceResourceStreamDecoder.createFactory();
+
+    /**
+     * Receives the model for each ServiceResource element in document order.
+     *
+     * @param <T>
+     *            - model type created for each element
+     */
+    public interface ResourceHandler<T>
+    {
+        /**
+         * @return T - new, empty model object for the next element
+         */
+        T create();
+
+        /**
+         * This method will set the model field that corresponds to a ServiceResource child element.
+         *
+         * @param T
+         *            model - model being filled
+         * @param String
+         *            element - local name of the child element
+         * @param String
+         *            value - text of the child element
+         */
+        void setField(T model, String element, String value);
+
+        /**
+         * @param T
+         *            model - completed model
+         * @return boolean - true to continue reading, false to stop
+         */
+        boolean handle(T model);
+    }
+
+    private ServiceResourceStreamDecoder()
+    {
+    }
+
+    /**
+     * This method will read the ServiceResource elements of the document and pass each one to the handler.
+     *
+     * @param String
+     *            xml - ServiceResources document
+     * @param String
+     *            name - if valued, only elements with this Name are mapped and passed to the handler; others are skipped
+     * @param ResourceHandler
+     *            <T> handler - receives each mapped model
+     * @return int - number of models passed to the handler
+     * @throws AzureAdapterException
+     *             - if the document is not a well formed ServiceResources document
+     */
+    public static <T> int decode(String xml, String name, ResourceHandler<T> handler) throws AzureAdapterException
+    {
+        int count = 0;
+        XMLStreamReader reader = null;
+
+        try {
+            reader = ServiceResourceStreamDecoder.factory.createXMLStreamReader(new StringReader(xml));
+            reader.nextTag();
+
+            if (!ServiceResourceStreamDecoder.ELEMENT_SERVICE_RESOURCES.equals(reader.getLocalName())) {
+                throw new AzureAdapterException("Expected " + ServiceResourceStreamDecoder.ELEMENT_SERVICE_RESOURCES
+                        + " but found " + reader.getLocalName());
+            }
+
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (!ServiceResourceStreamDecoder.ELEMENT_SERVICE_RESOURCE.equals(reader.getLocalName())) {
+                    ServiceResourceStreamDecoder.skipElement(reader);
+                    continue;
+                }
+
+                T model = ServiceResourceStreamDecoder.readResource(reader, name, handler);
+
+                if (model != null) {
+                    count++;
+
+                    if (!handler.handle(model)) {
+                        break;
+                    }
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            ServiceResourceStreamDecoder.logger.error("Unable to decode ServiceResources content.", e);
+            throw new AzureAdapterException("Unable to decode ServiceResources content: " + e.getMessage());
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (XMLStreamException e) {
+                    ServiceResourceStreamDecoder.logger.trace("Unable to close reader - " + e.getMessage());
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * This method will decode a ServiceResources document to a DatabaseList.
+     *
+     * @param String
+     *            xml - ServiceResources document
+     * @return DatabaseList - databases in the document
+     */
+    public static DatabaseList decodeDatabaseList(String xml) throws AzureAdapterException
+    {
+        final DatabaseList retval = new DatabaseList();
+
+        ServiceResourceStreamDecoder.decode(xml, null, new DatabaseHandler() {
+            @Override
+            public boolean handle(Database model)
+            {
+                retval.getDatabases().add(model);
+                return true;
+            }
+        });
+
+        return retval;
+    }
+
+    /**
+     * This method will decode a ServiceResources document to a FirewallRuleList.
+     *
+     * @param String
+     *            xml - ServiceResources document
+     * @return FirewallRuleList - firewall rules in the document
+     */
+    public static FirewallRuleList decodeFirewallRuleList(String xml) throws AzureAdapterException
+    {
+        final FirewallRuleList retval = new FirewallRuleList();
+
+        ServiceResourceStreamDecoder.decode(xml, null, new FirewallRuleHandler() {
+            @Override
+            public boolean handle(FirewallRule model)
+            {
+                retval.getFirewallRules().add(model);
+                return true;
+            }
+        });
+
+        return retval;
+    }
+
+    /**
+     * This method will decode a ServiceResources document to a ServerList.
+     *
+     * @param String
+     *            xml - ServiceResources document
+     * @return ServerList - servers in the document
+     */
+    public static ServerList decodeServerList(String xml) throws AzureAdapterException
+    {
+        final ServerList retval = new ServerList();
+
+        ServiceResourceStreamDecoder.decode(xml, null, new ServerHandler() {
+            @Override
+            public boolean handle(Server model)
+            {
+                retval.getServers().add(model);
+                return true;
+            }
+        });
+
+        return retval;
+    }
+
+    /**
+     * This method will find a server by name in a ServiceResources document. Reading stops at the first match and only the
+     * matching element is mapped.
+     *
+     * @param String
+     *            xml - ServiceResources document
+     * @param String
+     *            serverName - name of the server
+     * @return Server - matching server; null if not found
+     */
+    public static Server findServer(String xml, String serverName) throws AzureAdapterException
+    {
+        final Server[] retval = new Server[1];
+
+        ServiceResourceStreamDecoder.decode(xml, serverName, new ServerHandler() {
+            @Override
+            public boolean handle(Server model)
+            {
+                retval[0] = model;
+                return false;
+            }
+        });
+
+        return retval[0];
+    }
+
+    private static <T> T readResource(XMLStreamReader reader, String name, ResourceHandler<T> handler)
+            throws XMLStreamException
+    {
+        T model = handler.create();
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            String value = ServiceResourceStreamDecoder.readText(reader);
+
+            if (name != null && ServiceResourceStreamDecoder.ELEMENT_NAME.equals(element) && !name.equals(value)) {
+                // not the resource being searched for - skip the rest of it without mapping
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    ServiceResourceStreamDecoder.skipElement(reader);
+                }
+                return null;
+            }
+
+            handler.setField(model, element, value);
+        }
+
+        return model;
+    }
+
+    private static String readText(XMLStreamReader reader) throws XMLStreamException
+    {
+        if ("true".equals(reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "nil"))) {
+            ServiceResourceStreamDecoder.skipElement(reader);
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        boolean complex = false;
+
+        // like getElementText, but child elements that are not simple values are skipped rather than rejected
+        for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ServiceResourceStreamDecoder.skipElement(reader);
+                complex = true;
+            }
+            else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE || event == XMLStreamConstants.ENTITY_REFERENCE) {
+                text.append(reader.getText());
+            }
+        }
+
+        return complex ? null : text.toString();
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static Long toLong(String value)
+    {
+        if (AzureSQLUtil.isValued(value)) {
+            try {
+                return Long.valueOf(value.trim());
+            }
+            catch (NumberFormatException e) {
+                ServiceResourceStreamDecoder.logger.warn("Ignoring invalid numeric value " + value);
+            }
+        }
+
+        return null;
+    }
+
+    private static XMLInputFactory createFactory()
+    {
+        XMLInputFactory retval = XMLInputFactory.newInstance();
+
+        retval.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        retval.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        retval.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return retval;
+    }
+
+    /**
+     * Maps ServiceResource elements to Database objects. @see AzureSQLUtil.mapResourceToDatabase
+     */
+    public abstract static class DatabaseHandler implements ResourceHandler<Database>
+    {
+        @Override
+        public Database create()
+        {
+            return new Database();
+        }
+
+        @Override
+        public void setField(Database database, String element, String value)
+        {
+            switch (element) {
+                case "Name":
+                    database.setName(value);
+                    break;
+                case "Edition":
+                    database.setEdition(value);
+                    break;
+                case "CollationName":
+                    database.setCollationName(value);
+                    break;
+                case "MaxSizeBytes":
+                    database.setMaxSizeBytes(ServiceResourceStreamDecoder.toLong(value));
+                    break;
+                case "ServiceObjectiveId":
+                    database.setServiceObjectiveId(value);
+                    break;
+                case "Type":
+                    database.setType(value);
+                    break;
+                case "State":
+                    database.setState(value);
+                    break;
+                case "SelfLink":
+                    database.setSelfLink(value);
+                    break;
+                case "ParentLink":
+                    database.setParentLink(value);
+                    break;
+                case "ServiceObjectiveAssignmentErrorCode":
+                    database.setServiceObjectiveAssignmentErrorCode(value);
+                    break;
+                case "ServiceObjectiveAssignmentErrorDescription":
+                    database.setServiceObjectiveAssignmentErrorDescription(value);
+                    break;
+                case "ServiceObjectiveAssignmentState":
+                    database.setServiceObjectiveAssignmentState(value);
+                    break;
+                case "ServiceObjectiveAssignmentStateDescription":
+                    database.setServiceObjectiveAssignmentStateDescription(value);
+                    break;
+                case "ServiceObjectiveAssignmentSuccessDate":
+                    database.setServiceObjectiveAssignmentSuccessDate(value);
+                    break;
+                case "AssignedServiceObjectiveId":
+                    database.setAssignedServiceObjectiveId(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Maps ServiceResource elements to Server objects. @see AzureSQLUtil.mapResourceToServer
+     */
+    public abstract static class ServerHandler implements ResourceHandler<Server>
+    {
+        @Override
+        public Server create()
+        {
+            return new Server();
+        }
+
+        @Override
+        public void setField(Server server, String element, String value)
+        {
+            switch (element) {
+                case "Name":
+                    server.setName(value);
+                    break;
+                case "Type":
+                    server.setType(value);
+                    break;
+                case "State":
+                    server.setState(value);
+                    break;
+                case "SelfLink":
+                    server.setSelfLink(value);
+                    break;
+                case "ParentLink":
+                    server.setParentLink(value);
+                    break;
+                case "AdministratorLogin":
+                    server.setAdministratorLogin(value);
+                    break;
+                case "AdministratorLoginPassword":
+                    server.setAdministratorLoginPassword(value);
+                    break;
+                case "FullyQualifiedDomainName":
+                    server.setFullyQualifiedDomainName(value);
+                    break;
+                case "GeoPairedRegion":
+                    server.setGeoPairedRegion(value);
+                    break;
+                case "Location":
+                    server.setLocation(value);
+                    break;
+                case "Version":
+                    server.setVersion(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Maps ServiceResource elements to FirewallRule objects. @see AzureSQLUtil.mapResourceToFirewallRule
+     */
+    public abstract static class FirewallRuleHandler implements ResourceHandler<FirewallRule>
+    {
+        @Override
+        public FirewallRule create()
+        {
+            return new FirewallRule();
+        }
+
+        @Override
+        public void setField(FirewallRule firewallRule, String element, String value)
+        {
+            switch (element) {
+                case "Name":
+                    firewallRule.setName(value);
+                    break;
+                case "StartIPAddress":
+                    firewallRule.setStartIPAddress(value);
+                    break;
+                case "EndIPAddress":
+                    firewallRule.setEndIPAddress(value);
+                    break;
+                case "Type":
+                    firewallRule.setType(value);
+                    break;
+                case "State":
+                    firewallRule.setState(value);
+                    break;
+                case "SelfLink":
+                    firewallRule.setSelfLink(value);
+                    break;
+                case "ParentLink":
+                    firewallRule.setParentLink(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.util.AzureUtil;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+
+/**
+ * Resolves the DNS names used to certify instance canonical names without blocking the reactor. Reverse lookups of addresses
+ * and forward lookups of domain names run on a bounded pool of resolver threads, and their promises are completed on the
+ * reactor. Results are cached, resolved names for the positive time to live and failed lookups for the negative one, and
+ * concurrent lookups of the same name share a single query. The cache is bounded, the least recently used name is dropped
+ * first. Code running on the reactor only reads the cache through getReverse() and getForward(), which never block.
+ */
+public class CanonicalNameResolver
+{
+    private static final Logger logger = Logger.getLogger(CanonicalNameResolver.class);
+
+    private static final String REVERSE = "ptr:";
+    private static final String FORWARD = "a:";
+    // maximum number of cached names
+    private static final int MAX_SIZE = 1024;
+
+    private final TimerReactor _reactor;
+    private final ThreadPoolExecutor _executor;
+    private final long _positiveTtl;
+    private final long _negativeTtl;
+    // access ordered, so the least recently used name is dropped first
+    private final Map<String, Entry> _cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, CanonicalNameResolver.Entry> eldest)
+        {
+            return size() > CanonicalNameResolver.MAX_SIZE;
+        }
+    };
+    private final Map<String, List<CompletablePromise<String>>> _pending =
+            new HashMap<String, List<CompletablePromise<String>>>();
+
+    /**
+     * @param reactor
+     *            Reactor on which lookup promises are completed
+     * @param threads
+     *            Maximum number of lookups running at once
+     * @param positiveTtl
+     *            Milliseconds a resolved name is cached
+     * @param negativeTtl
+     *            Milliseconds a failed lookup is cached
+     */
+    public CanonicalNameResolver(TimerReactor reactor, int threads, long positiveTtl, long negativeTtl)
+    {
+        _reactor = reactor;
+        _positiveTtl = positiveTtl;
+        _negativeTtl = negativeTtl;
+        final AtomicInteger count = new AtomicInteger();
+        _executor =
+                new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            public Thread newThread(Runnable runnable)
+                            {
+                                Thread thread = new Thread(runnable, "TrafficManager-Resolver-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Looks up the domain name of an address.
+     *
+     * @param address
+     *            An IP address, may be null
+     * @return A promise for the fully qualified domain name, or null if the address does not resolve
+     */
+    public Promise<String> reverse(String address)
+    {
+        return lookup(CanonicalNameResolver.REVERSE, address);
+    }
+
+    /**
+     * Checks that a domain name resolves to at least one address.
+     *
+     * @param domainName
+     *            A fully qualified domain name
+     * @return A promise for the domain name, or null if it does not resolve
+     */
+    public Promise<String> forward(String domainName)
+    {
+        return lookup(CanonicalNameResolver.FORWARD, domainName);
+    }
+
+    /**
+     * Returns the cached result of reverse() without blocking. On a cache miss a lookup is started on the resolver threads
+     * and null is returned, as if the address did not resolve.
+     */
+    public String getReverse(String address)
+    {
+        return getCached(CanonicalNameResolver.REVERSE, address);
+    }
+
+    /**
+     * Returns the cached result of forward() without blocking. On a cache miss a lookup is started on the resolver threads
+     * and null is returned, as if the domain name did not resolve.
+     */
+    public String getForward(String domainName)
+    {
+        return getCached(CanonicalNameResolver.FORWARD, domainName);
+    }
+
+    private Promise<String> lookup(final String kind, final String name)
+    {
+        if (name == null || name.isEmpty()) {
+            return Promise.pure((String) null);
+        }
+        final String key = kind + name;
+        CompletablePromise<String> promise = PromiseFactory.create();
+        synchronized (_cache) {
+            Entry entry = getEntry(key);
+            if (entry != null) {
+                return Promise.pure(entry.value);
+            }
+            List<CompletablePromise<String>> waiters = _pending.get(key);
+            if (waiters != null) {
+                waiters.add(promise);
+                return promise;
+            }
+            waiters = new ArrayList<CompletablePromise<String>>();
+            waiters.add(promise);
+            _pending.put(key, waiters);
+        }
+        _executor.execute(new Runnable() {
+            public void run()
+            {
+                String value = query(kind, name);
+                final List<CompletablePromise<String>> waiters;
+                synchronized (_cache) {
+                    putEntry(key, value);
+                    waiters = _pending.remove(key);
+                }
+                complete(waiters, value);
+            }
+        });
+        return promise;
+    }
+
+    private String getCached(String kind, String name)
+    {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        synchronized (_cache) {
+            Entry entry = getEntry(kind + name);
+            if (entry != null) {
+                return entry.value;
+            }
+        }
+        // warm the cache for the next attempt
+        lookup(kind, name);
+        return null;
+    }
+
+    private String query(String kind, String name)
+    {
+        long started = System.currentTimeMillis();
+        String value = null;
+        try {
+            if (CanonicalNameResolver.REVERSE.equals(kind)) {
+                value = AzureUtil.ipToFqdn(name);
+            }
+            else if (!AzureUtil.domainNameToIp(name).isEmpty()) {
+                value = name;
+            }
+        }
+        catch (Exception ex) {
+            CanonicalNameResolver.logger.debug("Lookup of " + name + " failed: " + ex.getMessage());
+        }
+        if (CanonicalNameResolver.logger.isDebugEnabled()) {
+            CanonicalNameResolver.logger.debug("Lookup of " + name + " returned " + value + " in "
+                    + (System.currentTimeMillis() - started) + " ms");
+        }
+        return value;
+    }
+
+    private void complete(final List<CompletablePromise<String>> waiters, final String value)
+    {
+        // continue on the reactor, callers modify request assets
+        _reactor.timerCreateRel(0, new TimerHandler() {
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                for (CompletablePromise<String> waiter : waiters) {
+                    waiter.complete(value);
+                }
+                return 0;
+            }
+        });
+    }
+
+    private Entry getEntry(String key)
+    {
+        Entry entry = _cache.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            _cache.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private void putEntry(String key, String value)
+    {
+        long ttl = value != null ? _positiveTtl : _negativeTtl;
+        if (ttl > 0) {
+            _cache.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    private static class Entry
+    {
+        private final String value;
+        private final long expires;
+
+        private Entry(String value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
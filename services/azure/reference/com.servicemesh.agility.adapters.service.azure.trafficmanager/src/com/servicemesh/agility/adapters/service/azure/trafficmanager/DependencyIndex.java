@@ -0,0 +1,221 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.microsoft.schemas.azure.trafficmgr.Endpoint;
+import com.servicemesh.agility.api.Asset;
+import com.servicemesh.agility.api.Connection;
+import com.servicemesh.agility.api.Instance;
+import com.servicemesh.agility.api.Link;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.api.Template;
+
+/**
+ * Indexes the dependents and destination connections of a single request so that assets, templates and connections are
+ * looked up by id instead of by scanning the request lists. Lookups return the same asset or connection as the list scans in
+ * TrafficManagerAdapter: the first match in list order.
+ *
+ * Endpoint domain names are resolved lazily. The dependents are only scanned, and instance canonical names only certified,
+ * until the requested domain name is found, and every domain name seen on the way is remembered.
+ */
+public class DependencyIndex
+{
+    public static final String SERVICE_INSTANCE_TYPE = "application/com.servicemesh.agility.api.ServiceInstance+xml";
+    public static final String TEMPLATE_TYPE = "application/com.servicemesh.agility.api.Template+xml";
+
+    private final TrafficManagerAdapter _adapter;
+    private final List<Asset> _dependents;
+    private final Map<Integer, List<Asset>> _assets = new HashMap<Integer, List<Asset>>();
+    private final Map<Integer, Template> _templates = new HashMap<Integer, Template>();
+    private final Map<String, Connection> _connections = new HashMap<String, Connection>();
+    private final Map<String, Connection> _domains = new HashMap<String, Connection>();
+    private int _scanned;
+
+    /**
+     * @param adapter
+     *            The adapter used to resolve asset domain names
+     * @param dependents
+     *            The dependent assets of the request
+     * @param destConnections
+     *            The connections of the request
+     */
+    public DependencyIndex(TrafficManagerAdapter adapter, List<Asset> dependents, List<Connection> destConnections)
+    {
+        _adapter = adapter;
+        _dependents = dependents != null ? dependents : new ArrayList<Asset>();
+        for (Asset asset : _dependents) {
+            Integer id = Integer.valueOf(asset.getId());
+            List<Asset> assets = _assets.get(id);
+            if (assets == null) {
+                assets = new ArrayList<Asset>(1);
+                _assets.put(id, assets);
+            }
+            assets.add(asset);
+            if (asset instanceof Template) {
+                for (Link link : ((Template) asset).getInstances()) {
+                    Integer instanceId = Integer.valueOf(link.getId());
+                    if (!_templates.containsKey(instanceId)) {
+                        _templates.put(instanceId, (Template) asset);
+                    }
+                }
+            }
+        }
+        if (destConnections != null) {
+            for (Connection conn : destConnections) {
+                Link source = conn.getSource();
+                if (source == null) {
+                    continue;
+                }
+                String key = getKey(source.getType(), source.getId());
+                if (!_connections.containsKey(key)) {
+                    _connections.put(key, conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the dependent with the given id and exact class.
+     */
+    public Asset getAsset(int id, Class<?> type)
+    {
+        List<Asset> assets = _assets.get(Integer.valueOf(id));
+        if (assets != null) {
+            for (Asset asset : assets) {
+                if (asset.getClass() == type) {
+                    return asset;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the service instance or template dependent referenced by a link.
+     */
+    public Asset getAsset(Link link)
+    {
+        List<Asset> assets = _assets.get(Integer.valueOf(link.getId()));
+        if (assets != null) {
+            for (Asset asset : assets) {
+                if (asset instanceof ServiceInstance && link.getType().equals(DependencyIndex.SERVICE_INSTANCE_TYPE)) {
+                    return asset;
+                }
+                if (asset instanceof Template && link.getType().equals(DependencyIndex.TEMPLATE_TYPE)) {
+                    return asset;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the instance dependents of a template.
+     */
+    public List<Asset> getInstances(Template template)
+    {
+        List<Asset> instances = new ArrayList<Asset>();
+        for (Link link : template.getInstances()) {
+            List<Asset> assets = _assets.get(Integer.valueOf(link.getId()));
+            if (assets != null) {
+                for (Asset asset : assets) {
+                    if (asset instanceof Instance) {
+                        instances.add(asset);
+                    }
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Returns the template dependent that an instance belongs to.
+     */
+    public Template getTemplate(Instance instance)
+    {
+        return _templates.get(Integer.valueOf(instance.getId()));
+    }
+
+    /**
+     * Returns the connection whose source is the given asset.
+     *
+     * @param item
+     *            The source asset
+     * @param type
+     *            The link type of the source asset
+     */
+    public Connection getConnection(Asset item, String type)
+    {
+        return _connections.get(getKey(type, item.getId()));
+    }
+
+    /**
+     * Returns the connection of the dependent whose domain name is the endpoint domain name.
+     */
+    public Connection getConnection(Endpoint endpoint)
+    {
+        String domainName = endpoint.getDomainName();
+        if (_domains.containsKey(domainName)) {
+            return _domains.get(domainName);
+        }
+        while (_scanned < _dependents.size()) {
+            Asset dep = _dependents.get(_scanned++);
+            if (dep instanceof ServiceInstance) {
+                String dns = _adapter.getDomainName((ServiceInstance) dep);
+                if (dns != null && !_domains.containsKey(dns)) {
+                    _domains.put(dns, getConnection(dep, DependencyIndex.SERVICE_INSTANCE_TYPE));
+                }
+            }
+            else if (dep instanceof Instance) {
+                String dns = _adapter.getDomainName((Instance) dep);
+                // try to reverse it as it may not have been set yet due to timing
+                if (dns == null) {
+                    try {
+                        _adapter.certifyCanonicalName((Instance) dep);
+                        dns = _adapter.getDomainName((Instance) dep);
+                    }
+                    catch (Exception e) {
+                        // ignore
+                    }
+                }
+                // an instance outside of any template does not claim its domain name
+                Template template = dns != null ? getTemplate((Instance) dep) : null;
+                if (template != null && !_domains.containsKey(dns)) {
+                    _domains.put(dns, getConnection(template, DependencyIndex.TEMPLATE_TYPE));
+                }
+            }
+            if (_domains.containsKey(domainName)) {
+                return _domains.get(domainName);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexes endpoints by domain name, keeping the first endpoint of each domain name.
+     */
+    public static Map<String, Endpoint> indexEndpoints(List<Endpoint> endpoints)
+    {
+        Map<String, Endpoint> index = new HashMap<String, Endpoint>();
+        if (endpoints != null) {
+            for (Endpoint endpoint : endpoints) {
+                if (!index.containsKey(endpoint.getDomainName())) {
+                    index.put(endpoint.getDomainName(), endpoint);
+                }
+            }
+        }
+        return index;
+    }
+
+    private String getKey(String type, int id)
+    {
+        return type + "/" + id;
+    }
+}
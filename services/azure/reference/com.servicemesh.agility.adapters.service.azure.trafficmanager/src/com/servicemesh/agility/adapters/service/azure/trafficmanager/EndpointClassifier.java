@@ -0,0 +1,213 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter.InstanceCategory;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter.ServiceCategory;
+import com.servicemesh.agility.api.Cloud;
+import com.servicemesh.agility.api.Link;
+import com.servicemesh.agility.api.ServiceInstance;
+import com.servicemesh.agility.api.ServiceProvider;
+
+/**
+ * Memoizes how endpoint clouds and service providers are classified for Traffic Manager. Clouds are remembered per cloud id
+ * and Traffic Manager subscription, providers per provider id. Entries expire after a bounded time to live, are dropped when
+ * a service provider is updated or deleted, and are checked against the clouds of every provider sync request. A remembered
+ * cloud is also checked against the cloud of the request being classified whenever the request carries it.
+ */
+public class EndpointClassifier
+{
+    private final long _ttl;
+    private final Map<String, CloudClass> _clouds = new HashMap<String, CloudClass>();
+    private final Map<Integer, ProviderClass> _providers = new HashMap<Integer, ProviderClass>();
+
+    /**
+     * @param ttl
+     *            Milliseconds a classification is remembered
+     */
+    public EndpointClassifier(long ttl)
+    {
+        _ttl = ttl;
+    }
+
+    /**
+     * Classifies the instance of a cloud relative to the Traffic Manager subscription.
+     *
+     * @param subscription
+     *            The Traffic Manager subscription
+     * @param domainName
+     *            The instance domain name, may be null
+     * @param endpointCloudLink
+     *            The instance cloud
+     * @param clouds
+     *            The clouds of the request
+     */
+    public InstanceCategory getCategory(String subscription, String domainName, Link endpointCloudLink, List<Cloud> clouds)
+    {
+        String key = endpointCloudLink.getId() + "/" + subscription;
+        Cloud endpointCloud = null;
+        if (clouds != null) {
+            for (Cloud cloud : clouds) {
+                if (endpointCloudLink.getId() == cloud.getId()) {
+                    endpointCloud = cloud;
+                    break;
+                }
+            }
+        }
+        CloudClass cloudClass;
+        synchronized (_clouds) {
+            cloudClass = _clouds.get(key);
+            // the cloud type or subscription may have changed since it was classified
+            boolean stale = endpointCloud != null && cloudClass != null && !cloudClass.matches(endpointCloud, subscription);
+            if (cloudClass != null && (stale || cloudClass.isExpired(_ttl))) {
+                _clouds.remove(key);
+                cloudClass = null;
+            }
+        }
+        if (cloudClass == null) {
+            // the cloud is not part of this request, do not remember that
+            if (endpointCloud == null) {
+                return InstanceCategory.NON_AZURE;
+            }
+            cloudClass = new CloudClass(endpointCloud, subscription);
+            synchronized (_clouds) {
+                _clouds.put(key, cloudClass);
+            }
+        }
+        boolean isAzure = domainName != null ? domainName.endsWith(".cloudapp.net") : false;
+        // The VM is not using the default Azure domain, but perhaps
+        // the customer has defined their own domain.
+        if (isAzure || cloudClass.azureType) {
+            return cloudClass.sharedSubscription ? InstanceCategory.SHARED_SUBSCRIPTION : InstanceCategory.ALTERNATE_SUBSCRIPTION;
+        }
+        return InstanceCategory.NON_AZURE;
+    }
+
+    /**
+     * Classifies a service instance by the type of its provider.
+     *
+     * @param serviceInstance
+     *            The service instance
+     * @param providers
+     *            The service providers of the request
+     */
+    public ServiceCategory getCategory(ServiceInstance serviceInstance, List<ServiceProvider> providers)
+    {
+        Link providerLink = serviceInstance.getProvider();
+        Integer key = Integer.valueOf(providerLink.getId());
+        ProviderClass providerClass;
+        synchronized (_providers) {
+            providerClass = _providers.get(key);
+            if (providerClass != null && providerClass.isExpired(_ttl)) {
+                _providers.remove(key);
+                providerClass = null;
+            }
+        }
+        if (providerClass == null) {
+            ServiceProvider endpointProvider = null;
+            for (ServiceProvider provider : providers) {
+                if (providerLink.getId() == provider.getId()) {
+                    endpointProvider = provider;
+                    break;
+                }
+            }
+            if (endpointProvider == null) {
+                return ServiceCategory.NON_AZURE;
+            }
+            providerClass =
+                    new ProviderClass(TrafficManagerAdapter.SERVICE_PROVIDER_NAME.equals(endpointProvider.getType().getName()));
+            synchronized (_providers) {
+                _providers.put(key, providerClass);
+            }
+        }
+        return providerClass.azure ? ServiceCategory.AZURE : ServiceCategory.NON_AZURE;
+    }
+
+    /**
+     * Drops the cloud classifications that no longer match the given clouds.
+     *
+     * @param clouds
+     *            The current clouds
+     */
+    public void refresh(List<Cloud> clouds)
+    {
+        if (clouds == null) {
+            return;
+        }
+        Map<Integer, Cloud> current = new HashMap<Integer, Cloud>();
+        for (Cloud cloud : clouds) {
+            current.put(Integer.valueOf(cloud.getId()), cloud);
+        }
+        synchronized (_clouds) {
+            for (Iterator<Map.Entry<String, CloudClass>> it = _clouds.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, CloudClass> entry = it.next();
+                String key = entry.getKey();
+                Cloud cloud = current.get(Integer.valueOf(key.substring(0, key.indexOf('/'))));
+                if (cloud != null && !entry.getValue().matches(cloud, key.substring(key.indexOf('/') + 1))) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all classifications.
+     */
+    public void invalidate()
+    {
+        synchronized (_clouds) {
+            _clouds.clear();
+        }
+        synchronized (_providers) {
+            _providers.clear();
+        }
+    }
+
+    private static class CloudClass
+    {
+        private final boolean azureType;
+        private final boolean sharedSubscription;
+        private final long created = System.currentTimeMillis();
+
+        private CloudClass(Cloud cloud, String subscription)
+        {
+            Link cloudType = cloud.getCloudType();
+            azureType = cloudType != null && "Azure".equals(cloudType.getName());
+            sharedSubscription = subscription.equals(cloud.getSubscription());
+        }
+
+        private boolean matches(Cloud cloud, String subscription)
+        {
+            CloudClass other = new CloudClass(cloud, subscription);
+            return azureType == other.azureType && sharedSubscription == other.sharedSubscription;
+        }
+
+        private boolean isExpired(long ttl)
+        {
+            return System.currentTimeMillis() - created > ttl;
+        }
+    }
+
+    private static class ProviderClass
+    {
+        private final boolean azure;
+        private final long created = System.currentTimeMillis();
+
+        private ProviderClass(boolean azure)
+        {
+            this.azure = azure;
+        }
+
+        private boolean isExpired(long ttl)
+        {
+            return System.currentTimeMillis() - created > ttl;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.distributed.sync.AsyncLock;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+
+/**
+ * Takes the distributed per profile locks that keep requests from modifying a profile at the same time, and measures them.
+ * For every lock path it counts acquisitions and current waiters and keeps histograms of the time spent waiting for and
+ * holding the lock. A hold that exceeds the warning threshold is logged while it is still held, which also catches locks
+ * that are never released, and again when it is released. Outstanding holds are checked by a single timer that is only
+ * scheduled while there are holds that have not been warned about, a released hold is no longer checked.
+ *
+ * This is the single source of the lock wait and hold times; the metrics of a profile are logged with its provider sync.
+ */
+public class ProfileLocks
+{
+    private static final Logger logger = Logger.getLogger(ProfileLocks.class);
+
+    /** Upper bounds in milliseconds of the histogram buckets, the last bucket counts everything above */
+    public static final long[] BUCKETS = { 10, 100, 1000, 10000, 60000 };
+
+    private final TimerReactor _reactor;
+    private final long _holdWarning;
+    private final Map<String, Stats> _stats = new HashMap<String, Stats>();
+    private final Set<Hold> _holds = new HashSet<Hold>();
+    private boolean _checkScheduled;
+
+    /**
+     * @param reactor
+     *            Reactor used to check for long holds
+     * @param holdWarning
+     *            Milliseconds a lock may be held before a warning is logged
+     */
+    public ProfileLocks(TimerReactor reactor, long holdWarning)
+    {
+        _reactor = reactor;
+        _holdWarning = holdWarning;
+    }
+
+    /**
+     * Returns the lock path of a profile.
+     */
+    public static String getPath(String profileName)
+    {
+        return "/agility/trafficmanager/profile/" + profileName + "/lock";
+    }
+
+    /**
+     * Acquires the lock of a profile. The caller must release the returned hold exactly once.
+     *
+     * @param profileName
+     *            The Traffic Manager profile name
+     */
+    public Promise<Hold> acquire(String profileName)
+    {
+        final String path = ProfileLocks.getPath(profileName);
+        final Stats stats = getStats(path, true);
+        final long requested = System.currentTimeMillis();
+        synchronized (stats) {
+            stats.waiters++;
+        }
+        Promise<AsyncLock> lock = AsyncLock.lock(path);
+        lock.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                synchronized (stats) {
+                    stats.waiters--;
+                }
+            }
+        });
+        lock.onCancel(new Callback<Void>() {
+            public void invoke(Void t)
+            {
+                synchronized (stats) {
+                    stats.waiters--;
+                }
+            }
+        });
+        return lock.map(new Function<AsyncLock, Hold>() {
+            public Hold invoke(AsyncLock arg)
+            {
+                long acquired = System.currentTimeMillis();
+                synchronized (stats) {
+                    stats.waiters--;
+                    stats.holders++;
+                    stats.acquisitions++;
+                    stats.waits[ProfileLocks.bucket(acquired - requested)]++;
+                }
+                return new Hold(path, stats, arg, acquired - requested, acquired);
+            }
+        });
+    }
+
+    /**
+     * Runs a scope under the lock of a profile and releases the lock when the promise returned by the scope completes, fails
+     * or is cancelled.
+     *
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param scope
+     *            The work to do under the lock, must not release the hold
+     */
+    public <T> Promise<T> lock(String profileName, final Function<Hold, Promise<T>> scope)
+    {
+        return acquire(profileName).flatMap(new Function<Hold, Promise<T>>() {
+            public Promise<T> invoke(final Hold arg)
+            {
+                Promise<T> promise;
+                try {
+                    promise = scope.invoke(arg);
+                }
+                catch (Throwable t) {
+                    arg.release();
+                    return Promise.pure(t);
+                }
+                promise.onComplete(new Callback<T>() {
+                    public void invoke(T t)
+                    {
+                        arg.release();
+                    }
+                });
+                promise.onFailure(new Callback<Throwable>() {
+                    public void invoke(Throwable t)
+                    {
+                        arg.release();
+                    }
+                });
+                promise.onCancel(new Callback<Void>() {
+                    public void invoke(Void t)
+                    {
+                        arg.release();
+                    }
+                });
+                return promise;
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the metrics of a profile lock.
+     *
+     * @param profileName
+     *            The Traffic Manager profile name
+     */
+    public Stats getStats(String profileName)
+    {
+        Stats stats = getStats(ProfileLocks.getPath(profileName), false);
+        if (stats == null) {
+            return new Stats();
+        }
+        synchronized (stats) {
+            return new Stats(stats);
+        }
+    }
+
+    private Stats getStats(String path, boolean create)
+    {
+        synchronized (_stats) {
+            Stats stats = _stats.get(path);
+            if (stats == null && create) {
+                stats = new Stats();
+                _stats.put(path, stats);
+            }
+            return stats;
+        }
+    }
+
+    private void held(Hold hold)
+    {
+        if (_holdWarning <= 0) {
+            return;
+        }
+        boolean schedule = false;
+        synchronized (_holds) {
+            _holds.add(hold);
+            if (!_checkScheduled) {
+                _checkScheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            scheduleCheck(_holdWarning);
+        }
+    }
+
+    private void released(Hold hold)
+    {
+        synchronized (_holds) {
+            _holds.remove(hold);
+        }
+    }
+
+    private void scheduleCheck(long delay)
+    {
+        _reactor.timerCreateRel(delay, new TimerHandler() {
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                checkHolds();
+                return 0;
+            }
+        });
+    }
+
+    private void checkHolds()
+    {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        List<Hold> exceeded = new ArrayList<Hold>();
+        synchronized (_holds) {
+            for (Iterator<Hold> it = _holds.iterator(); it.hasNext();) {
+                Hold hold = it.next();
+                long due = hold.acquired + _holdWarning;
+                if (due <= now) {
+                    // warned once while held, and again on release
+                    exceeded.add(hold);
+                    it.remove();
+                }
+                else if (next == 0 || due < next) {
+                    next = due;
+                }
+            }
+            _checkScheduled = next != 0;
+        }
+        for (Hold hold : exceeded) {
+            ProfileLocks.logger.warn("Lock " + hold.path + " is still held after " + (now - hold.acquired) + " ms");
+        }
+        if (next != 0) {
+            scheduleCheck(next - now);
+        }
+    }
+
+    private static int bucket(long millis)
+    {
+        for (int i = 0; i < ProfileLocks.BUCKETS.length; i++) {
+            if (millis <= ProfileLocks.BUCKETS[i]) {
+                return i;
+            }
+        }
+        return ProfileLocks.BUCKETS.length;
+    }
+
+    /**
+     * A held profile lock.
+     */
+    public class Hold
+    {
+        private final String path;
+        private final Stats stats;
+        private final AsyncLock lock;
+        private final long waitMillis;
+        private final long acquired;
+        private boolean released;
+
+        private Hold(String path, Stats stats, AsyncLock lock, long waitMillis, long acquired)
+        {
+            this.path = path;
+            this.stats = stats;
+            this.lock = lock;
+            this.waitMillis = waitMillis;
+            this.acquired = acquired;
+            held(this);
+        }
+
+        /**
+         * Releases the lock. Releasing a hold more than once has no effect.
+         */
+        public void release()
+        {
+            synchronized (this) {
+                if (released) {
+                    ProfileLocks.logger.debug("Lock " + path + " was already released");
+                    return;
+                }
+                released = true;
+            }
+            released(this);
+            long held = System.currentTimeMillis() - acquired;
+            synchronized (stats) {
+                stats.holders--;
+                stats.holds[ProfileLocks.bucket(held)]++;
+                stats.maxHoldMillis = Math.max(stats.maxHoldMillis, held);
+            }
+            lock.unlock();
+            if (_holdWarning > 0 && held > _holdWarning) {
+                ProfileLocks.logger.warn("Lock " + path + " was held for " + held + " ms");
+            }
+            else if (ProfileLocks.logger.isDebugEnabled()) {
+                ProfileLocks.logger.debug("Lock " + path + " waited " + waitMillis + " ms, held " + held + " ms");
+            }
+        }
+    }
+
+    /**
+     * Metrics of a lock path.
+     */
+    public static class Stats
+    {
+        private long acquisitions;
+        private int waiters;
+        private int holders;
+        private long maxHoldMillis;
+        private final long[] waits;
+        private final long[] holds;
+
+        private Stats()
+        {
+            waits = new long[ProfileLocks.BUCKETS.length + 1];
+            holds = new long[ProfileLocks.BUCKETS.length + 1];
+        }
+
+        private Stats(Stats other)
+        {
+            acquisitions = other.acquisitions;
+            waiters = other.waiters;
+            holders = other.holders;
+            maxHoldMillis = other.maxHoldMillis;
+            waits = other.waits.clone();
+            holds = other.holds.clone();
+        }
+
+        /** Number of times the lock was acquired */
+        public long getAcquisitions()
+        {
+            return acquisitions;
+        }
+
+        /** Number of requests currently waiting for the lock */
+        public int getWaiters()
+        {
+            return waiters;
+        }
+
+        /** Number of holds not yet released */
+        public int getHolders()
+        {
+            return holders;
+        }
+
+        /** Longest hold in milliseconds */
+        public long getMaxHoldMillis()
+        {
+            return maxHoldMillis;
+        }
+
+        /** Wait times counted per bucket of BUCKETS */
+        public long[] getWaitHistogram()
+        {
+            return waits.clone();
+        }
+
+        /** Hold times counted per bucket of BUCKETS */
+        public long[] getHoldHistogram()
+        {
+            return holds.clone();
+        }
+
+        public String toString()
+        {
+            return "acquisitions=" + acquisitions + ", waiters=" + waiters + ", holders=" + holders + ", maxHold="
+                    + maxHoldMillis + "ms, waits=" + Arrays.toString(waits) + ", holds="
+                    + Arrays.toString(holds);
+        }
+    }
+}
@@ -7,8 +7,10 @@ package com.servicemesh.agility.adapters.service.azure.trafficmanager;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -21,9 +23,13 @@ import com.microsoft.schemas.azure.trafficmgr.Type;
 import com.servicemesh.agility.adapters.core.azure.AzureConnection;
 import com.servicemesh.agility.adapters.core.azure.Config;
 import com.servicemesh.agility.adapters.core.azure.exception.AzureAdapterException;
-import com.servicemesh.agility.adapters.core.azure.util.AzureUtil;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionUtil;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.DefinitionCache;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.DefinitionWriteQueue;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.EndpointRegistrar;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.ProfileSyncEngine;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.ProfileSyncState;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.TrafficManagerConnectionOperations;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.TrafficManagerInstanceOperations;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.operations.TrafficManagerProviderOperations;
@@ -121,14 +127,112 @@ public class TrafficManagerAdapter extends ServiceAdapter
     }
 
     private final ConnectionFactory _factory = new ConnectionFactory();
+    private final DefinitionCache _definitionCache;
+    private final DefinitionWriteQueue _writeQueue;
+    private final ProfileSyncEngine _syncEngine;
+    private final ProfileSyncState _syncState;
+    private final CanonicalNameResolver _resolver;
+    private final EndpointClassifier _classifier;
+    private final ProfileLocks _profileLocks;
+    private final EndpointRegistrar _registrar;
 
     public TrafficManagerAdapter() throws Exception
     {
         super(TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME));
+        _definitionCache =
+                new DefinitionCache(Boolean.parseBoolean(System.getProperty(TrafficManagerConfig.DEFINITION_CACHE,
+                        String.valueOf(TrafficManagerConfig.DEFINITION_CACHE_DEFAULT))), Long.getLong(
+                        TrafficManagerConfig.DEFINITION_CACHE_TTL, TrafficManagerConfig.DEFINITION_CACHE_TTL_DEFAULT));
+        _writeQueue =
+                new DefinitionWriteQueue(this, _definitionCache,
+                        TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME), Long.getLong(
+                                TrafficManagerConfig.WRITE_WINDOW, TrafficManagerConfig.WRITE_WINDOW_DEFAULT));
+        _syncEngine =
+                new ProfileSyncEngine(TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME),
+                        Integer.getInteger(TrafficManagerConfig.SYNC_CONCURRENCY, TrafficManagerConfig.SYNC_CONCURRENCY_DEFAULT),
+                        Integer.getInteger(TrafficManagerConfig.SYNC_RATE, TrafficManagerConfig.SYNC_RATE_DEFAULT),
+                        Integer.getInteger(TrafficManagerConfig.SYNC_RETRIES, TrafficManagerConfig.SYNC_RETRIES_DEFAULT),
+                        Long.getLong(TrafficManagerConfig.SYNC_BACKOFF, TrafficManagerConfig.SYNC_BACKOFF_DEFAULT));
+        _syncState =
+                new ProfileSyncState(Boolean.parseBoolean(System.getProperty(TrafficManagerConfig.INCREMENTAL_SYNC,
+                        String.valueOf(TrafficManagerConfig.INCREMENTAL_SYNC_DEFAULT))));
+        _resolver =
+                new CanonicalNameResolver(TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME),
+                        Integer.getInteger(TrafficManagerConfig.RESOLVER_THREADS, TrafficManagerConfig.RESOLVER_THREADS_DEFAULT),
+                        Long.getLong(TrafficManagerConfig.RESOLVER_TTL, TrafficManagerConfig.RESOLVER_TTL_DEFAULT),
+                        Long.getLong(TrafficManagerConfig.RESOLVER_NEGATIVE_TTL,
+                                TrafficManagerConfig.RESOLVER_NEGATIVE_TTL_DEFAULT));
+        _classifier =
+                new EndpointClassifier(Long.getLong(TrafficManagerConfig.CLASSIFICATION_TTL,
+                        TrafficManagerConfig.CLASSIFICATION_TTL_DEFAULT));
+        _profileLocks =
+                new ProfileLocks(TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME), Long.getLong(
+                        TrafficManagerConfig.LOCK_HOLD_WARNING, TrafficManagerConfig.LOCK_HOLD_WARNING_DEFAULT));
+        _registrar =
+                new EndpointRegistrar(TimerReactor.getTimerReactor(TrafficManagerAdapter.SERVICE_PROVIDER_NAME), Long.getLong(
+                        TrafficManagerConfig.REGISTRATION_WINDOW, TrafficManagerConfig.REGISTRATION_WINDOW_DEFAULT),
+                        Integer.getInteger(TrafficManagerConfig.REGISTRATION_BATCH,
+                                TrafficManagerConfig.REGISTRATION_BATCH_DEFAULT));
         _factory.unregisterContext();
         TrafficManagerAdapter.logger.info(TrafficManagerAdapter.SERVICE_PROVIDER_DESCRIPTION);
     }
 
+    /**
+     * Returns the queue that coalesces profile definition writes
+     */
+    public DefinitionWriteQueue getDefinitionWriteQueue()
+    {
+        return _writeQueue;
+    }
+
+    /**
+     * Returns the cache of last known profile definitions
+     */
+    public DefinitionCache getDefinitionCache()
+    {
+        return _definitionCache;
+    }
+
+    /**
+     * Returns the engine that paces provider sync requests
+     */
+    public ProfileSyncEngine getProfileSyncEngine()
+    {
+        return _syncEngine;
+    }
+
+    /**
+     * Returns what provider sync last saw of each profile
+     */
+    public ProfileSyncState getProfileSyncState()
+    {
+        return _syncState;
+    }
+
+    /**
+     * Returns the memoized cloud and provider classification
+     */
+    public EndpointClassifier getEndpointClassifier()
+    {
+        return _classifier;
+    }
+
+    /**
+     * Returns the measured per profile locks
+     */
+    public ProfileLocks getProfileLocks()
+    {
+        return _profileLocks;
+    }
+
+    /**
+     * Returns the registrar that batches instance endpoint registrations
+     */
+    public EndpointRegistrar getEndpointRegistrar()
+    {
+        return _registrar;
+    }
+
     @Override
     public List<ServiceProviderType> getServiceProviderTypes()
     {
@@ -801,7 +905,9 @@ public class TrafficManagerAdapter extends ServiceAdapter
     }
 
     /**
-     * Certifies the canonical name (fully qualified domain name) attribute for an Instance.
+     * Certifies the canonical name (fully qualified domain name) attribute for an Instance. This runs on the reactor, so DNS
+     * lookups are only taken from the resolver cache and a name that is not cached counts as unresolved; use
+     * resolveCanonicalName() beforehand to establish names that need a lookup.
      * 
      * @param instance
      *            The Instance requiring a canonical name
@@ -829,13 +935,13 @@ public class TrafficManagerAdapter extends ServiceAdapter
         // Try a DNS lookup of the public address. Note that as of Mar2015 the
         // Azure cloud does not support reverse DNS lookups by default -
         // the customer has to provision it.
-        if ((fqdn = AzureUtil.ipToFqdn(instance.getPublicAddress())) != null) {
+        if ((fqdn = _resolver.getReverse(instance.getPublicAddress())) != null) {
             saveCanonicalName(" via public IP", instance, fqdn);
             return true;
         }
 
         // Try the private address
-        if ((fqdn = AzureUtil.ipToFqdn(instance.getPrivateAddress())) != null) {
+        if ((fqdn = _resolver.getReverse(instance.getPrivateAddress())) != null) {
             saveCanonicalName(" via private IP", instance, fqdn);
             return true;
         }
@@ -847,9 +953,8 @@ public class TrafficManagerAdapter extends ServiceAdapter
         // provisioned a custom domain name (which we don't know).
         String deploymentName = getPropertyAsString("DeploymentName", instance.getProperties(), null);
         if (deploymentName != null) {
-            fqdn = deploymentName + ".cloudapp.net";
-            List<String> ips = AzureUtil.domainNameToIp(fqdn);
-            if (!ips.isEmpty()) {
+            fqdn = _resolver.getForward(deploymentName + ".cloudapp.net");
+            if (fqdn != null) {
                 saveCanonicalName(" via DeploymentName", instance, fqdn);
                 return true;
             }
@@ -858,6 +963,78 @@ public class TrafficManagerAdapter extends ServiceAdapter
                 + instance.getName());
     }
 
+    /**
+     * Establishes the canonical name of an Instance the same way as certifyCanonicalName(), but runs the DNS lookups on the
+     * resolver threads. The lookup results are cached, so a following certifyCanonicalName() for the instance finds them.
+     * 
+     * @param instance
+     *            The Instance requiring a canonical name
+     * @return A promise for true if a canonical name has been established. The promise does not fail.
+     */
+    public Promise<Boolean> resolveCanonicalName(final Instance instance)
+    {
+        String fqdn = getDomainName(instance);
+        if (fqdn != null && !fqdn.isEmpty()) {
+            return Promise.pure(Boolean.TRUE);
+        }
+        fqdn = instance.getHostname();
+        if (fqdn != null && fqdn.indexOf('.') > 0) {
+            saveCanonicalName(" via hostname", instance, fqdn);
+            return Promise.pure(Boolean.TRUE);
+        }
+        Promise<String> promise = _resolver.reverse(instance.getPublicAddress());
+        return promise.flatMap(new Function<String, Promise<Boolean>>() {
+            public Promise<Boolean> invoke(String arg)
+            {
+                if (arg != null) {
+                    saveCanonicalName(" via public IP", instance, arg);
+                    return Promise.pure(Boolean.TRUE);
+                }
+                Promise<String> promise = _resolver.reverse(instance.getPrivateAddress());
+                return promise.flatMap(new Function<String, Promise<Boolean>>() {
+                    public Promise<Boolean> invoke(String arg)
+                    {
+                        if (arg != null) {
+                            saveCanonicalName(" via private IP", instance, arg);
+                            return Promise.pure(Boolean.TRUE);
+                        }
+                        String deploymentName = getPropertyAsString("DeploymentName", instance.getProperties(), null);
+                        if (deploymentName == null) {
+                            return Promise.pure(Boolean.FALSE);
+                        }
+                        Promise<String> promise = _resolver.forward(deploymentName + ".cloudapp.net");
+                        return promise.map(new Function<String, Boolean>() {
+                            public Boolean invoke(String arg)
+                            {
+                                if (arg != null) {
+                                    saveCanonicalName(" via DeploymentName", instance, arg);
+                                    return Boolean.TRUE;
+                                }
+                                return Boolean.FALSE;
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Establishes the canonical names of several Instances concurrently.
+     * 
+     * @param instances
+     *            The Instances requiring a canonical name
+     * @return A promise completed once every lookup has finished
+     */
+    public Promise<List<Boolean>> resolveCanonicalNames(List<Instance> instances)
+    {
+        List<Promise<Boolean>> sequence = new ArrayList<Promise<Boolean>>();
+        for (Instance instance : instances) {
+            sequence.add(resolveCanonicalName(instance));
+        }
+        return Promise.sequence(sequence);
+    }
+
     public void saveCanonicalName(String source, Instance instance, String fqdn)
     {
         addOrUpdateProperty(Constants.FQ_DOMAIN_NAME, fqdn, instance.getProperties());
@@ -909,15 +1086,18 @@ public class TrafficManagerAdapter extends ServiceAdapter
     public static class EndpointOrderComparator implements Comparator<Endpoint>
     {
 
-        private List<Asset> dependents = null;
-        private List<Connection> destConnections = null;
-        private TrafficManagerAdapter adapter = null;
+        private DependencyIndex index = null;
+        // order of each endpoint's connection, null if the endpoint has no connection
+        private Map<Endpoint, Integer> orders = new IdentityHashMap<Endpoint, Integer>();
 
         public EndpointOrderComparator(List<Asset> dependents, List<Connection> destConnections, TrafficManagerAdapter adapter)
         {
-            this.dependents = dependents;
-            this.destConnections = destConnections;
-            this.adapter = adapter;
+            this(new DependencyIndex(adapter, dependents, destConnections));
+        }
+
+        public EndpointOrderComparator(DependencyIndex index)
+        {
+            this.index = index;
         }
 
         @Override
@@ -933,8 +1113,8 @@ public class TrafficManagerAdapter extends ServiceAdapter
                 return -1;
             }
 
-            Connection l1 = adapter.findDependentConnection(o1, dependents, destConnections);
-            Connection l2 = adapter.findDependentConnection(o2, dependents, destConnections);
+            Integer l1 = getOrder(o1);
+            Integer l2 = getOrder(o2);
             if (l1 == null && l2 == null) {
                 return 0;
             }
@@ -945,12 +1125,8 @@ public class TrafficManagerAdapter extends ServiceAdapter
                 return -1;
             }
             else {
-                int order1 =
-                        com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                                TrafficManagerConfig.CONFIG_ORDER, l1.getAssetProperties(), 0);
-                int order2 =
-                        com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                                TrafficManagerConfig.CONFIG_ORDER, l2.getAssetProperties(), 0);
+                int order1 = l1.intValue();
+                int order2 = l2.intValue();
                 if (order1 == 0 && order2 == 0) {
                     return 0;
                 }
@@ -963,6 +1139,19 @@ public class TrafficManagerAdapter extends ServiceAdapter
                 return Integer.compare(order1, order2);
             }
         }
+
+        private Integer getOrder(Endpoint endpoint)
+        {
+            if (orders.containsKey(endpoint)) {
+                return orders.get(endpoint);
+            }
+            Connection conn = index.getConnection(endpoint);
+            Integer order =
+                    conn != null ? Integer.valueOf(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                            TrafficManagerConfig.CONFIG_ORDER, conn.getAssetProperties(), 0)) : null;
+            orders.put(endpoint, order);
+            return order;
+        }
     }
 
     public enum ServiceCategory
@@ -976,20 +1165,7 @@ public class TrafficManagerAdapter extends ServiceAdapter
 
     public ServiceCategory getCategory(ServiceInstance serviceInstance, List<ServiceProvider> providers)
     {
-        ServiceCategory category = ServiceCategory.NON_AZURE;
-        ServiceProvider endpointProvider = null;
-
-        Link providerType = serviceInstance.getProvider();
-        for (ServiceProvider provider : providers) {
-            if (providerType.getId() == provider.getId()) {
-                endpointProvider = provider;
-                break;
-            }
-        }
-        if (endpointProvider != null && TrafficManagerAdapter.SERVICE_PROVIDER_NAME.equals(endpointProvider.getType().getName())) {
-            category = ServiceCategory.AZURE;
-        }
-        return category;
+        return _classifier.getCategory(serviceInstance, providers);
     }
 
     public enum InstanceCategory
@@ -1008,36 +1184,7 @@ public class TrafficManagerAdapter extends ServiceAdapter
 
     public InstanceCategory getCategory(String subscription, String domainName, Link endpointCloudLink, List<Cloud> clouds)
     {
-        InstanceCategory category = InstanceCategory.NON_AZURE;
-        Cloud endpointCloud = null;
-
-        for (Cloud cloud : clouds) {
-            if (endpointCloudLink.getId() == cloud.getId()) {
-                endpointCloud = cloud;
-                break;
-            }
-        }
-        if (endpointCloud != null) {
-            boolean isAzure = domainName != null ? domainName.endsWith(".cloudapp.net") : false;
-
-            if (!isAzure) {
-                // The VM is not using the default Azure domain, but perhaps
-                // the customer has defined their own domain.
-                Link cloudType = endpointCloud.getCloudType();
-                if (cloudType != null && "Azure".equals(cloudType.getName())) {
-                    isAzure = true;
-                }
-            }
-            if (isAzure) {
-                if (subscription.equals(endpointCloud.getSubscription())) {
-                    category = InstanceCategory.SHARED_SUBSCRIPTION;
-                }
-                else {
-                    category = InstanceCategory.ALTERNATE_SUBSCRIPTION;
-                }
-            }
-        }
-        return category;
+        return _classifier.getCategory(subscription, domainName, endpointCloudLink, clouds);
     }
 
     public String getLocation(InstanceCategory category, Connection conn, Instance instance)
@@ -12,6 +12,21 @@ public class TrafficManagerConfig
     public static final String HTTP_RETRIES = "AgilityManager.TrafficManager.HttpRetries";
     public static final String HTTP_TIMEOUT = "AgilityManager.TrafficManager.HttpTimeout";
     public static final String SOCKET_TIMEOUT = "AgilityManager.TrafficManager.SocketTimeout";
+    public static final String WRITE_WINDOW = "AgilityManager.TrafficManager.WriteWindow";
+    public static final String DEFINITION_CACHE = "AgilityManager.TrafficManager.DefinitionCache";
+    public static final String DEFINITION_CACHE_TTL = "AgilityManager.TrafficManager.DefinitionCacheTTL";
+    public static final String SYNC_CONCURRENCY = "AgilityManager.TrafficManager.SyncConcurrency";
+    public static final String SYNC_RATE = "AgilityManager.TrafficManager.SyncRate";
+    public static final String SYNC_RETRIES = "AgilityManager.TrafficManager.SyncRetries";
+    public static final String SYNC_BACKOFF = "AgilityManager.TrafficManager.SyncBackoff";
+    public static final String INCREMENTAL_SYNC = "AgilityManager.TrafficManager.IncrementalSync";
+    public static final String RESOLVER_THREADS = "AgilityManager.TrafficManager.ResolverThreads";
+    public static final String RESOLVER_TTL = "AgilityManager.TrafficManager.ResolverTTL";
+    public static final String RESOLVER_NEGATIVE_TTL = "AgilityManager.TrafficManager.ResolverNegativeTTL";
+    public static final String CLASSIFICATION_TTL = "AgilityManager.TrafficManager.ClassificationTTL";
+    public static final String LOCK_HOLD_WARNING = "AgilityManager.TrafficManager.LockHoldWarning";
+    public static final String REGISTRATION_WINDOW = "AgilityManager.TrafficManager.RegistrationWindow";
+    public static final String REGISTRATION_BATCH = "AgilityManager.TrafficManager.RegistrationBatch";
 
     public static final int POLL_RETRIES_DEFAULT = 30;
     public static final int POLL_INTERVAL_DEFAULT = 30;
@@ -20,6 +35,31 @@ public class TrafficManagerConfig
     public static final int HTTP_RETRIES_DEFAULT = 2;
     public static final int HTTP_TIMEOUT_DEFAULT = 240;
     public static final int SOCKET_TIMEOUT_DEFAULT = 20;
+    // milliseconds to gather definition changes for a profile before writing them
+    public static final long WRITE_WINDOW_DEFAULT = 250;
+    // keep profile definitions between lock holds, and milliseconds a cached definition stays usable. Only for a single Agility
+    // node that is the sole writer of its profiles, as the cache cannot see writes made by other nodes or in the portal
+    public static final boolean DEFINITION_CACHE_DEFAULT = false;
+    public static final long DEFINITION_CACHE_TTL_DEFAULT = 300000;
+    // profile definitions fetched at once and per second by sync, per subscription
+    public static final int SYNC_CONCURRENCY_DEFAULT = 4;
+    public static final int SYNC_RATE_DEFAULT = 5;
+    // retries and first retry delay in milliseconds for throttled sync requests
+    public static final int SYNC_RETRIES_DEFAULT = 3;
+    public static final long SYNC_BACKOFF_DEFAULT = 1000;
+    // reuse the endpoint matches of the last sync, only new endpoints are matched against Agility connections
+    public static final boolean INCREMENTAL_SYNC_DEFAULT = true;
+    // canonical name lookups running at once, and milliseconds resolved and unresolved names are cached
+    public static final int RESOLVER_THREADS_DEFAULT = 8;
+    public static final long RESOLVER_TTL_DEFAULT = 300000;
+    public static final long RESOLVER_NEGATIVE_TTL_DEFAULT = 60000;
+    // milliseconds a cloud or provider classification is remembered
+    public static final long CLASSIFICATION_TTL_DEFAULT = 600000;
+    // milliseconds a profile lock may be held before a warning is logged, 0 to disable
+    public static final long LOCK_HOLD_WARNING_DEFAULT = 30000;
+    // milliseconds to gather provisioned instances of a template, and the most instances registered in one batch
+    public static final long REGISTRATION_WINDOW_DEFAULT = 1000;
+    public static final int REGISTRATION_BATCH_DEFAULT = 100;
 
     public static final int MONITOR_POLL_INTERVAL_DEFAULT = 30;
     public static final int MONITOR_POLL_TIMEOUT_DEFAULT = 10;
@@ -0,0 +1,217 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.microsoft.schemas.azure.trafficmgr.Definition;
+import com.microsoft.schemas.azure.trafficmgr.Profile;
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+
+/**
+ * Holds the last known definition of each Traffic Manager profile so that writers holding the profile lock do not have to
+ * download and decode definitions/1 before every change. Entries are kept current by the adapter's own successful writes,
+ * refreshed by provider sync, dropped when the profile listing reports a different status, and expire after a bounded time
+ * to live so that changes made outside of the adapter are eventually picked up.
+ *
+ * The cache is off unless enabled, and must only be enabled when a single Agility node writes the profiles and they are not
+ * edited elsewhere. Each node has its own cache, while the profile lock is shared by all nodes: a definition written by
+ * another node or in the portal is not seen until the entry expires, and the next write built on the cached definition would
+ * drop those changes. Classic Traffic Manager always reports enabled version 1, so the listing cannot reveal such writes.
+ *
+ * A cached definition is handed out with take(), which removes it: the caller owns the instance, may modify it, and puts it
+ * back once the modified definition has been written. A failed write therefore simply leaves the profile uncached. Readers
+ * that fetch a definition outside of the profile lock, such as sync, use getStamp() and refresh() so that their copy never
+ * replaces one written in the meantime.
+ */
+public class DefinitionCache
+{
+    private static final Logger logger = Logger.getLogger(DefinitionCache.class);
+
+    private final boolean _enabled;
+    private final long _ttl;
+    private final Map<String, Entry> _entries = new HashMap<String, Entry>();
+    private final Map<String, Long> _stamps = new HashMap<String, Long>();
+    private long _sequence;
+
+    /**
+     * @param enabled
+     *            True to cache definitions, only for a single node writing the profiles
+     * @param ttl
+     *            Milliseconds a cached definition stays usable
+     */
+    public DefinitionCache(boolean enabled, long ttl)
+    {
+        _enabled = enabled;
+        _ttl = ttl;
+    }
+
+    /**
+     * Removes and returns the cached definition of a profile.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @return The cached definition, or null if there is none or it has expired
+     */
+    public Definition take(AzureConnection connection, String profileName)
+    {
+        if (!_enabled) {
+            return null;
+        }
+        String key = getKey(connection, profileName);
+        synchronized (_entries) {
+            Entry entry = _entries.remove(key);
+            touch(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - entry.cached > _ttl) {
+                if (DefinitionCache.logger.isDebugEnabled()) {
+                    DefinitionCache.logger.debug("Cached definition for profile " + profileName + " has expired");
+                }
+                return null;
+            }
+            return entry.definition;
+        }
+    }
+
+    /**
+     * Caches the current definition of a profile. The cache takes ownership of the instance.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param definition
+     *            The definition as it is known to Azure
+     */
+    public void put(AzureConnection connection, String profileName, Definition definition)
+    {
+        if (definition == null || !_enabled) {
+            invalidate(connection, profileName);
+            return;
+        }
+        String key = getKey(connection, profileName);
+        synchronized (_entries) {
+            _entries.put(key, new Entry(definition, System.currentTimeMillis()));
+            touch(key);
+        }
+    }
+
+    /**
+     * Returns a stamp that changes whenever the cached definition of a profile is taken, replaced or dropped.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     */
+    public long getStamp(AzureConnection connection, String profileName)
+    {
+        synchronized (_entries) {
+            Long stamp = _stamps.get(getKey(connection, profileName));
+            return stamp != null ? stamp.longValue() : 0;
+        }
+    }
+
+    /**
+     * Caches a definition fetched outside of the profile lock, unless the cached definition has been touched since the stamp
+     * was taken.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param definition
+     *            The fetched definition
+     * @param stamp
+     *            The stamp returned by getStamp() before the definition was fetched
+     */
+    public void refresh(AzureConnection connection, String profileName, Definition definition, long stamp)
+    {
+        if (!_enabled) {
+            return;
+        }
+        String key = getKey(connection, profileName);
+        synchronized (_entries) {
+            Long current = _stamps.get(key);
+            if ((current != null ? current.longValue() : 0) == stamp) {
+                _entries.put(key, new Entry(definition, System.currentTimeMillis()));
+                touch(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached definition of a profile.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     */
+    public void invalidate(AzureConnection connection, String profileName)
+    {
+        String key = getKey(connection, profileName);
+        synchronized (_entries) {
+            _entries.remove(key);
+            touch(key);
+        }
+    }
+
+    /**
+     * Drops the cached definition of a listed profile when the listing reports a different status than the cached definition.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profile
+     *            A profile as returned by the profile listing
+     */
+    public void validate(AzureConnection connection, Profile profile)
+    {
+        String key = getKey(connection, profile.getName());
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry == null) {
+                return;
+            }
+            Definition definition = entry.definition;
+            if (profile.getStatus() != null && profile.getStatus() != definition.getStatus()) {
+                if (DefinitionCache.logger.isDebugEnabled()) {
+                    DefinitionCache.logger.debug("Cached definition for profile " + profile.getName() + " is stale");
+                }
+                _entries.remove(key);
+                touch(key);
+            }
+        }
+    }
+
+    private void touch(String key)
+    {
+        _stamps.put(key, ++_sequence);
+    }
+
+    private String getKey(AzureConnection connection, String profileName)
+    {
+        return connection.getEndpoint().getSubscription() + "/" + profileName;
+    }
+
+    private static class Entry
+    {
+        private final Definition definition;
+        private final long cached;
+
+        private Entry(Definition definition, long cached)
+        {
+            this.definition = definition;
+            this.cached = cached;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.microsoft.schemas.azure.trafficmgr.Definition;
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.ProfileLocks.Hold;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionUtil;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.Constants;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.messaging.Status;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+import com.servicemesh.io.http.IHttpResponse;
+
+/**
+ * Coalesces Traffic Manager definition updates per profile. Changes submitted for the same profile within a short window are
+ * applied in submission order to a single fetched definition and written with one POST, and at most one profile status reset.
+ * Each submitter's promise completes from the shared result. Changes that arrive while a batch is being written are held for
+ * the next batch, which keeps the profile lock of the current one for up to MAX_BURST batches. Every batch is written under the
+ * profile lock, as Azure has no conditional write for definitions. When Azure rejects the POST of a batch with a client error,
+ * the changes are applied and posted again one at a time, so that one rejected change does not fail the others.
+ *
+ * The lock is distributed, so another Agility node or a portal edit may change the definition whenever this node does not hold
+ * it. A batch therefore only reuses the definition written by the previous batch of the same lock hold, and otherwise GETs
+ * it. The DefinitionCache is only consulted when it has been enabled for a single node installation.
+ */
+public class DefinitionWriteQueue
+{
+    private static final Logger logger = Logger.getLogger(DefinitionWriteQueue.class);
+
+    // batches written under one hold of the profile lock before it is released for other writers
+    private static final int MAX_BURST = 8;
+
+    /**
+     * A single change to a profile definition.
+     */
+    public interface Change<T extends ServiceProviderResponse>
+    {
+        /**
+         * Applies the change to the fetched definition. This is called again with a fresh definition when the batch is written
+         * one change at a time, so any state recorded by a previous call must be reset.
+         *
+         * @param definition
+         *            The current profile definition, shared with the other changes of the batch
+         * @return null if the definition was modified and has to be written, otherwise the response for this change. A change
+         *         that returns a response must leave the definition untouched.
+         */
+        public T apply(Definition definition);
+
+        /**
+         * Returns the response for this change when the profile definition could not be fetched.
+         *
+         * @param response
+         *            The GET response
+         */
+        public T notFound(IHttpResponse response);
+
+        /**
+         * Returns the response for this change once the batched definition has been posted.
+         *
+         * @param response
+         *            The POST response, which may be an error
+         */
+        public T written(IHttpResponse response);
+    }
+
+    private final TrafficManagerAdapter _adapter;
+    private final DefinitionCache _cache;
+    private final TimerReactor _reactor;
+    private final long _window;
+    private final Map<String, ProfileQueue> _queues = new HashMap<String, ProfileQueue>();
+
+    /**
+     * @param adapter
+     *            The adapter, used to reset the profile status after a write
+     * @param cache
+     *            The cache of profile definitions
+     * @param reactor
+     *            Reactor used to schedule batches
+     * @param window
+     *            Milliseconds to gather changes before a batch is written
+     */
+    public DefinitionWriteQueue(TrafficManagerAdapter adapter, DefinitionCache cache, TimerReactor reactor, long window)
+    {
+        _adapter = adapter;
+        _cache = cache;
+        _reactor = reactor;
+        _window = window;
+    }
+
+    /**
+     * Queues a change for a profile definition.
+     *
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param change
+     *            The change to apply
+     * @return A promise completed with the change's response once its batch has been written
+     */
+    public <T extends ServiceProviderResponse> Promise<T> submit(String profileName, AzureConnection connection, Change<T> change)
+    {
+        CompletablePromise<T> promise = PromiseFactory.create();
+        String key = connection.getEndpoint().getSubscription() + "/" + profileName;
+        ProfileQueue queue;
+        boolean schedule = false;
+        synchronized (_queues) {
+            queue = _queues.get(key);
+            if (queue == null) {
+                queue = new ProfileQueue(key, profileName);
+                _queues.put(key, queue);
+            }
+            queue.pending.add(new Pending<T>(connection, change, promise));
+            if (!queue.scheduled && !queue.writing) {
+                queue.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            scheduleFlush(queue);
+        }
+        return promise;
+    }
+
+    private void scheduleFlush(final ProfileQueue queue)
+    {
+        _reactor.timerCreateRel(_window, new TimerHandler() {
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                flush(queue);
+                return 0;
+            }
+        });
+    }
+
+    private void flush(final ProfileQueue queue)
+    {
+        final List<Pending<?>> batch;
+        Hold hold;
+        synchronized (_queues) {
+            queue.scheduled = false;
+            queue.writing = true;
+            batch = new ArrayList<Pending<?>>(queue.pending);
+            queue.pending.clear();
+            hold = queue.hold;
+            queue.hold = null;
+        }
+        if (DefinitionWriteQueue.logger.isDebugEnabled()) {
+            DefinitionWriteQueue.logger.debug("Writing " + batch.size() + " change(s) to profile " + queue.profileName);
+        }
+        if (hold != null) {
+            // still holding the lock of the previous batch
+            fetch(queue, batch, hold);
+        }
+        else {
+            lock(queue, batch);
+        }
+    }
+
+    private void lock(final ProfileQueue queue, final List<Pending<?>> batch)
+    {
+        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies
+        Promise<Hold> lock = _adapter.getProfileLocks().acquire(queue.profileName);
+        lock.onComplete(new Callback<Hold>() {
+            public void invoke(Hold arg)
+            {
+                fetch(queue, batch, arg);
+            }
+        });
+        lock.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                fail(batch, t);
+                finish(queue, null, null);
+            }
+        });
+        lock.onCancel(new Callback<Void>() {
+            public void invoke(Void t)
+            {
+                fail(batch, new Exception("Lock on profile " + queue.profileName + " was cancelled"));
+                finish(queue, null, null);
+            }
+        });
+    }
+
+    private void fetch(final ProfileQueue queue, final List<Pending<?>> batch, final Hold lock)
+    {
+        final AzureConnection connection = batch.get(0).connection;
+        Definition cached = _cache.take(connection, queue.profileName);
+        synchronized (_queues) {
+            // written by the previous batch of this lock hold, nobody else can have changed it since
+            if (queue.written != null) {
+                cached = queue.written;
+                queue.written = null;
+            }
+        }
+        if (cached != null) {
+            try {
+                write(queue, batch, lock, connection, cached);
+            }
+            catch (Throwable t) {
+                fail(batch, t);
+                finish(queue, lock, null);
+            }
+            return;
+        }
+        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + queue.profileName + "/definitions/1";
+        Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
+        promise.onComplete(new Callback<IHttpResponse>() {
+            public void invoke(IHttpResponse arg)
+            {
+                try {
+                    if (arg.getStatusCode() != 200) {
+                        if (DefinitionWriteQueue.logger.isDebugEnabled()) {
+                            DefinitionWriteQueue.logger.debug("GET " + uri + ": "
+                                    + ConnectionUtil.getStatusInfo(connection, arg));
+                        }
+                        for (Pending<?> pending : batch) {
+                            pending.notFound(arg);
+                        }
+                        finish(queue, lock, null);
+                        return;
+                    }
+                    Definition definition = connection.getEndpoint().decode(arg, Definition.class);
+                    write(queue, batch, lock, connection, definition);
+                }
+                catch (Throwable t) {
+                    fail(batch, t);
+                    finish(queue, lock, null);
+                }
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                fail(batch, t);
+                finish(queue, lock, null);
+            }
+        });
+    }
+
+    private void write(final ProfileQueue queue, List<Pending<?>> batch, final Hold lock, final AzureConnection connection,
+            final Definition definition)
+    {
+        final List<Pending<?>> writers = new ArrayList<Pending<?>>();
+        for (Pending<?> pending : batch) {
+            if (pending.apply(definition)) {
+                writers.add(pending);
+            }
+        }
+        // nothing to do
+        if (writers.isEmpty()) {
+            _cache.put(connection, queue.profileName, definition);
+            finish(queue, lock, definition);
+            return;
+        }
+        post(queue, writers, lock, connection, definition, new Callback<Definition>() {
+            public void invoke(Definition arg)
+            {
+                finish(queue, lock, arg);
+            }
+        });
+    }
+
+    /**
+     * Applies and posts the changes of a rejected batch one at a time, starting with the change at index. Each change is
+     * applied to the definition written by the previous one, or to a fresh definition if that one was not written.
+     */
+    private void writeSingly(final ProfileQueue queue, final List<Pending<?>> writers, final int index, final Hold lock,
+            final AzureConnection connection, Definition base)
+    {
+        if (index == writers.size()) {
+            finish(queue, lock, base);
+            return;
+        }
+        if (base == null) {
+            final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + queue.profileName + "/definitions/1";
+            Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
+            promise.onComplete(new Callback<IHttpResponse>() {
+                public void invoke(IHttpResponse arg)
+                {
+                    List<Pending<?>> remaining = writers.subList(index, writers.size());
+                    try {
+                        if (arg.getStatusCode() != 200) {
+                            if (DefinitionWriteQueue.logger.isDebugEnabled()) {
+                                DefinitionWriteQueue.logger.debug("GET " + uri + ": "
+                                        + ConnectionUtil.getStatusInfo(connection, arg));
+                            }
+                            for (Pending<?> pending : remaining) {
+                                pending.notFound(arg);
+                            }
+                            finish(queue, lock, null);
+                            return;
+                        }
+                        Definition definition = connection.getEndpoint().decode(arg, Definition.class);
+                        writeSingly(queue, writers, index, lock, connection, definition);
+                    }
+                    catch (Throwable t) {
+                        fail(remaining, t);
+                        finish(queue, lock, null);
+                    }
+                }
+            });
+            promise.onFailure(new Callback<Throwable>() {
+                public void invoke(Throwable t)
+                {
+                    fail(writers.subList(index, writers.size()), t);
+                    finish(queue, lock, null);
+                }
+            });
+            return;
+        }
+        // the definition written by the previous change may be cached, it is about to be modified
+        _cache.invalidate(connection, queue.profileName);
+        Pending<?> pending = writers.get(index);
+        if (!pending.apply(base)) {
+            // the change is already in place or failed, the definition is untouched
+            writeSingly(queue, writers, index + 1, lock, connection, base);
+            return;
+        }
+        List<Pending<?>> single = new ArrayList<Pending<?>>();
+        single.add(pending);
+        post(queue, single, lock, connection, base, new Callback<Definition>() {
+            public void invoke(Definition arg)
+            {
+                writeSingly(queue, writers, index + 1, lock, connection, arg);
+            }
+        });
+    }
+
+    /**
+     * Posts a definition and completes the writers from the response.
+     *
+     * @param next
+     *            Called with the definition as it is now known to Azure, or null if it is unknown
+     */
+    private void post(final ProfileQueue queue, final List<Pending<?>> writers, final Hold lock,
+            final AzureConnection connection, final Definition definition, final Callback<Definition> next)
+    {
+        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + queue.profileName + "/definitions";
+        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
+        promise.onComplete(new Callback<IHttpResponse>() {
+            public void invoke(final IHttpResponse arg)
+            {
+                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back
+                // to disabled if it is disabled
+                if (arg.getStatusCode() == 200 && definition.getStatus() != null
+                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
+                    ServiceProviderResponse delegate = new ServiceProviderResponse();
+                    delegate.setStatus(Status.COMPLETE);
+                    Promise<ServiceProviderResponse> reset =
+                            _adapter.resetProfileStatus(queue.profileName, connection,
+                                    com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, delegate);
+                    reset.onComplete(new Callback<ServiceProviderResponse>() {
+                        public void invoke(ServiceProviderResponse t)
+                        {
+                            boolean reset = t.getStatus() != Status.FAILURE;
+                            if (reset) {
+                                _cache.put(connection, queue.profileName, definition);
+                            }
+                            written(writers, arg, reset ? null : t.getMessage());
+                            next.invoke(reset ? definition : null);
+                        }
+                    });
+                    reset.onFailure(new Callback<Throwable>() {
+                        public void invoke(Throwable t)
+                        {
+                            fail(writers, t);
+                            next.invoke(null);
+                        }
+                    });
+                    return;
+                }
+                int status = arg.getStatusCode();
+                if (status >= 400 && status < 500 && writers.size() > 1) {
+                    // a single rejected change would fail the whole batch, find out which one it is
+                    DefinitionWriteQueue.logger.info("POST of " + writers.size() + " change(s) to profile " + queue.profileName
+                            + " returned " + status + ", writing them one at a time");
+                    writeSingly(queue, writers, 0, lock, connection, null);
+                    return;
+                }
+                boolean ok = status == 200;
+                if (ok) {
+                    _cache.put(connection, queue.profileName, definition);
+                }
+                written(writers, arg, null);
+                next.invoke(ok ? definition : null);
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                fail(writers, t);
+                next.invoke(null);
+            }
+        });
+    }
+
+    private void written(List<Pending<?>> writers, IHttpResponse response, String resetFailure)
+    {
+        for (Pending<?> pending : writers) {
+            pending.written(response, resetFailure);
+        }
+    }
+
+    private void fail(List<Pending<?>> batch, Throwable t)
+    {
+        for (Pending<?> pending : batch) {
+            pending.promise.failure(t);
+        }
+    }
+
+    /**
+     * Ends a batch. The lock is kept for the next batch when changes are waiting and the definition as written is known.
+     *
+     * @param definition
+     *            The definition as it is now known to Azure, or null if it is unknown
+     */
+    private void finish(ProfileQueue queue, Hold lock, Definition definition)
+    {
+        boolean schedule = false;
+        synchronized (_queues) {
+            queue.writing = false;
+            if (queue.pending.isEmpty()) {
+                _queues.remove(queue.key);
+            }
+            else {
+                queue.scheduled = true;
+                schedule = true;
+            }
+            if (schedule && lock != null && definition != null && queue.burst < DefinitionWriteQueue.MAX_BURST) {
+                queue.hold = lock;
+                queue.written = definition;
+                queue.burst++;
+                lock = null;
+            }
+            else {
+                queue.written = null;
+                queue.burst = 0;
+            }
+        }
+        if (lock != null) {
+            lock.release();
+        }
+        if (schedule) {
+            scheduleFlush(queue);
+        }
+    }
+
+    private static class ProfileQueue
+    {
+        private final String key;
+        private final String profileName;
+        private final List<Pending<?>> pending = new ArrayList<Pending<?>>();
+        private boolean scheduled;
+        private boolean writing;
+        // lock and definition handed from one batch to the next, and batches written under the current hold
+        private Hold hold;
+        private Definition written;
+        private int burst;
+
+        private ProfileQueue(String key, String profileName)
+        {
+            this.key = key;
+            this.profileName = profileName;
+        }
+    }
+
+    private static class Pending<T extends ServiceProviderResponse>
+    {
+        private final AzureConnection connection;
+        private final Change<T> change;
+        private final CompletablePromise<T> promise;
+
+        private Pending(AzureConnection connection, Change<T> change, CompletablePromise<T> promise)
+        {
+            this.connection = connection;
+            this.change = change;
+            this.promise = promise;
+        }
+
+        private boolean apply(Definition definition)
+        {
+            try {
+                T response = change.apply(definition);
+                if (response == null) {
+                    return true;
+                }
+                promise.complete(response);
+            }
+            catch (Throwable t) {
+                promise.failure(t);
+            }
+            return false;
+        }
+
+        private void notFound(IHttpResponse response)
+        {
+            try {
+                promise.complete(change.notFound(response));
+            }
+            catch (Throwable t) {
+                promise.failure(t);
+            }
+        }
+
+        private void written(IHttpResponse response, String resetFailure)
+        {
+            try {
+                T result = change.written(response);
+                if (resetFailure != null) {
+                    result.getModified().clear();
+                    result.setStatus(Status.FAILURE);
+                    result.setMessage(resetFailure);
+                }
+                promise.complete(result);
+            }
+            catch (Throwable t) {
+                promise.failure(t);
+            }
+        }
+    }
+}
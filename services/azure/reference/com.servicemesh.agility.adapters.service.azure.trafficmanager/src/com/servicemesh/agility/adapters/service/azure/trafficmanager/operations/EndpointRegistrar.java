@@ -0,0 +1,180 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.sdk.service.msgs.InstancePostProvisionRequest;
+import com.servicemesh.agility.sdk.service.msgs.InstanceResponse;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Function;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+
+/**
+ * Gathers the post provision requests for the instances of a template that are added to the same Traffic Manager profile
+ * within a short window, so that a scale out is registered with one definition write instead of one per instance. The
+ * gathered requests are handed to the flush function of the first request of the batch, which returns a response per
+ * request in request order. A batch is flushed early when it reaches the maximum size.
+ */
+public class EndpointRegistrar
+{
+    private static final Logger logger = Logger.getLogger(EndpointRegistrar.class);
+
+    private final TimerReactor _reactor;
+    private final long _window;
+    private final int _maxBatch;
+    private final Map<String, Batch> _batches = new HashMap<String, Batch>();
+
+    /**
+     * @param reactor
+     *            Reactor used to schedule batches
+     * @param window
+     *            Milliseconds to gather requests before a batch is flushed
+     * @param maxBatch
+     *            Number of requests at which a batch is flushed without waiting for the window
+     */
+    public EndpointRegistrar(TimerReactor reactor, long window, int maxBatch)
+    {
+        _reactor = reactor;
+        _window = window;
+        _maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Adds a request to the batch of its profile and template.
+     *
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param request
+     *            The post provision request of the instance
+     * @param flush
+     *            Registers a batch of requests, used if the request starts a new batch
+     * @return A promise for the response to this request
+     */
+    public Promise<InstanceResponse> register(String profileName, AzureConnection connection,
+            InstancePostProvisionRequest request,
+            Function<List<InstancePostProvisionRequest>, Promise<List<InstanceResponse>>> flush)
+    {
+        String key =
+                connection.getEndpoint().getSubscription() + "/" + profileName + "/"
+                        + (request.getTemplate() != null ? request.getTemplate().getId() : 0);
+        CompletablePromise<InstanceResponse> promise = PromiseFactory.create();
+        Batch batch;
+        boolean schedule = false;
+        boolean full = false;
+        synchronized (_batches) {
+            batch = _batches.get(key);
+            if (batch == null) {
+                batch = new Batch(flush);
+                _batches.put(key, batch);
+                schedule = true;
+            }
+            batch.requests.add(request);
+            batch.promises.add(promise);
+            if (batch.requests.size() >= _maxBatch) {
+                _batches.remove(key);
+                full = true;
+            }
+        }
+        if (full) {
+            schedule(key, batch, 0);
+        }
+        else if (schedule) {
+            schedule(key, batch, _window);
+        }
+        return promise;
+    }
+
+    private void schedule(final String key, final Batch batch, long delay)
+    {
+        _reactor.timerCreateRel(delay, new TimerHandler() {
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                synchronized (_batches) {
+                    if (batch.flushed) {
+                        return 0;
+                    }
+                    batch.flushed = true;
+                    if (_batches.get(key) == batch) {
+                        _batches.remove(key);
+                    }
+                }
+                flush(batch);
+                return 0;
+            }
+        });
+    }
+
+    private void flush(final Batch batch)
+    {
+        if (EndpointRegistrar.logger.isDebugEnabled()) {
+            EndpointRegistrar.logger.debug("Registering " + batch.requests.size() + " instance(s) in one batch");
+        }
+        Promise<List<InstanceResponse>> promise;
+        try {
+            promise = batch.flush.invoke(batch.requests);
+        }
+        catch (Throwable t) {
+            fail(batch, t);
+            return;
+        }
+        promise.onComplete(new Callback<List<InstanceResponse>>() {
+            public void invoke(List<InstanceResponse> arg)
+            {
+                if (arg == null || arg.size() != batch.promises.size()) {
+                    fail(batch, new Exception("Instance registration returned an unexpected number of responses"));
+                    return;
+                }
+                for (int i = 0; i < arg.size(); i++) {
+                    batch.promises.get(i).complete(arg.get(i));
+                }
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                fail(batch, t);
+            }
+        });
+        promise.onCancel(new Callback<Void>() {
+            public void invoke(Void t)
+            {
+                fail(batch, new Exception("Instance registration was cancelled"));
+            }
+        });
+    }
+
+    private void fail(Batch batch, Throwable t)
+    {
+        for (CompletablePromise<InstanceResponse> promise : batch.promises) {
+            promise.failure(t);
+        }
+    }
+
+    private static class Batch
+    {
+        private final Function<List<InstancePostProvisionRequest>, Promise<List<InstanceResponse>>> flush;
+        private final List<InstancePostProvisionRequest> requests = new ArrayList<InstancePostProvisionRequest>();
+        private final List<CompletablePromise<InstanceResponse>> promises = new ArrayList<CompletablePromise<InstanceResponse>>();
+        private boolean flushed;
+
+        private Batch(Function<List<InstancePostProvisionRequest>, Promise<List<InstanceResponse>>> flush)
+        {
+            this.flush = flush;
+        }
+    }
+}
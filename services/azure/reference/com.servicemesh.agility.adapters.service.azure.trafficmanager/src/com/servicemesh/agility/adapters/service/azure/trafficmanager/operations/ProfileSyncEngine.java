@@ -0,0 +1,223 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
+import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
+import com.servicemesh.core.reactor.TimerHandler;
+import com.servicemesh.core.reactor.TimerReactor;
+import com.servicemesh.io.http.IHttpResponse;
+
+/**
+ * Paces the GET requests issued by provider sync. Requests are queued per subscription and dispatched when fewer than the
+ * configured number are in flight and the subscription's token bucket holds a token; the bucket refills at the configured
+ * rate and holds at most one second's worth of tokens. A request answered with 429 (throttled) or 503 (busy) is retried with
+ * exponential backoff, ahead of requests that have not been sent yet.
+ */
+public class ProfileSyncEngine
+{
+    private static final Logger logger = Logger.getLogger(ProfileSyncEngine.class);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    private final TimerReactor _reactor;
+    private final int _concurrency;
+    private final double _rate;
+    private final int _retries;
+    private final long _backoff;
+    private final Map<String, Subscription> _subscriptions = new HashMap<String, Subscription>();
+
+    /**
+     * @param reactor
+     *            Reactor used to schedule delayed dispatches and retries
+     * @param concurrency
+     *            Maximum number of requests in flight per subscription
+     * @param rate
+     *            Requests per second allowed per subscription
+     * @param retries
+     *            Number of times a throttled request is retried
+     * @param backoff
+     *            Delay in milliseconds before the first retry, doubled for each further retry
+     */
+    public ProfileSyncEngine(TimerReactor reactor, int concurrency, double rate, int retries, long backoff)
+    {
+        _reactor = reactor;
+        _concurrency = Math.max(1, concurrency);
+        _rate = rate > 0 ? rate : 1;
+        _retries = Math.max(0, retries);
+        _backoff = Math.max(1, backoff);
+    }
+
+    /**
+     * Queues a GET request for a subscription.
+     *
+     * @param connection
+     *            A connection for the subscription
+     * @param uri
+     *            The request URI relative to the subscription
+     * @return A promise for the response. Throttling responses are only returned once the retries are exhausted.
+     */
+    public Promise<IHttpResponse> get(AzureConnection connection, String uri)
+    {
+        CompletablePromise<IHttpResponse> promise = PromiseFactory.create();
+        Subscription subscription;
+        String key = connection.getEndpoint().getSubscription();
+        synchronized (_subscriptions) {
+            subscription = _subscriptions.get(key);
+            if (subscription == null) {
+                subscription = new Subscription(_rate);
+                _subscriptions.put(key, subscription);
+            }
+        }
+        synchronized (subscription) {
+            subscription.waiting.addLast(new Request(connection, uri, promise));
+        }
+        dispatch(subscription);
+        return promise;
+    }
+
+    private void dispatch(final Subscription subscription)
+    {
+        List<Request> ready = new ArrayList<Request>();
+        long delay = 0;
+        synchronized (subscription) {
+            subscription.refill(_rate);
+            while (subscription.running < _concurrency && subscription.tokens >= 1 && !subscription.waiting.isEmpty()) {
+                subscription.tokens -= 1;
+                subscription.running++;
+                ready.add(subscription.waiting.removeFirst());
+            }
+            if (!subscription.waiting.isEmpty() && subscription.running < _concurrency && !subscription.timerPending) {
+                // wait for the next token
+                subscription.timerPending = true;
+                delay = Math.max(1, (long) Math.ceil((1 - subscription.tokens) * 1000 / _rate));
+            }
+        }
+        if (delay > 0) {
+            _reactor.timerCreateRel(delay, new TimerHandler() {
+                public long timerFire(long scheduledTime, long actualTime)
+                {
+                    synchronized (subscription) {
+                        subscription.timerPending = false;
+                    }
+                    dispatch(subscription);
+                    return 0;
+                }
+            });
+        }
+        for (Request request : ready) {
+            send(subscription, request);
+        }
+    }
+
+    private void send(final Subscription subscription, final Request request)
+    {
+        Promise<IHttpResponse> promise;
+        try {
+            promise = request.connection.get(request.uri, null, IHttpResponse.class);
+        }
+        catch (Throwable t) {
+            done(subscription);
+            request.promise.failure(t);
+            return;
+        }
+        promise.onComplete(new Callback<IHttpResponse>() {
+            public void invoke(IHttpResponse arg)
+            {
+                int status = arg.getStatusCode();
+                if ((status == ProfileSyncEngine.HTTP_TOO_MANY_REQUESTS || status == ProfileSyncEngine.HTTP_SERVICE_UNAVAILABLE)
+                        && request.attempt < _retries) {
+                    long delay = _backoff << Math.min(request.attempt, 16);
+                    request.attempt++;
+                    ProfileSyncEngine.logger.info("GET " + request.uri + " returned " + status + ", retry " + request.attempt
+                            + " of " + _retries + " in " + delay + " ms");
+                    done(subscription);
+                    retry(subscription, request, delay);
+                    return;
+                }
+                done(subscription);
+                request.promise.complete(arg);
+            }
+        });
+        promise.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                done(subscription);
+                request.promise.failure(t);
+            }
+        });
+    }
+
+    private void retry(final Subscription subscription, final Request request, long delay)
+    {
+        _reactor.timerCreateRel(delay, new TimerHandler() {
+            public long timerFire(long scheduledTime, long actualTime)
+            {
+                synchronized (subscription) {
+                    subscription.waiting.addFirst(request);
+                }
+                dispatch(subscription);
+                return 0;
+            }
+        });
+    }
+
+    private void done(Subscription subscription)
+    {
+        synchronized (subscription) {
+            subscription.running--;
+        }
+        dispatch(subscription);
+    }
+
+    private static class Subscription
+    {
+        private final LinkedList<Request> waiting = new LinkedList<Request>();
+        private double tokens;
+        private long refilled;
+        private int running;
+        private boolean timerPending;
+
+        private Subscription(double rate)
+        {
+            tokens = Math.max(1, rate);
+            refilled = System.currentTimeMillis();
+        }
+
+        private void refill(double rate)
+        {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(Math.max(1, rate), tokens + (now - refilled) * rate / 1000);
+            refilled = now;
+        }
+    }
+
+    private static class Request
+    {
+        private final AzureConnection connection;
+        private final String uri;
+        private final CompletablePromise<IHttpResponse> promise;
+        private int attempt;
+
+        private Request(AzureConnection connection, String uri, CompletablePromise<IHttpResponse> promise)
+        {
+            this.connection = connection;
+            this.uri = uri;
+            this.promise = promise;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *              Copyright (c) 2008-2013 ServiceMesh, Incorporated; All Rights Reserved
+ *              Copyright (c) 2013-Present Computer Sciences Corporation
+ */
+package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+
+/**
+ * Remembers what provider sync last saw of each Traffic Manager profile: the service instance the profile belongs to and the
+ * Agility connection each endpoint domain name was matched to. Sync uses it to match only the new endpoints of a profile.
+ */
+public class ProfileSyncState
+{
+    private final boolean _enabled;
+    private final Map<String, Snapshot> _snapshots = new HashMap<String, Snapshot>();
+
+    /**
+     * @param enabled
+     *            False to make sync process every profile in full
+     */
+    public ProfileSyncState(boolean enabled)
+    {
+        _enabled = enabled;
+    }
+
+    /**
+     * Returns the endpoint matches recorded by the last sync of a profile, keyed by endpoint domain name.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param serviceInstanceId
+     *            The id of the service instance the profile belongs to
+     * @return The recorded matches, empty if there are none for this service instance
+     */
+    public Map<String, Integer> getMatches(AzureConnection connection, String profileName, int serviceInstanceId)
+    {
+        if (_enabled) {
+            synchronized (_snapshots) {
+                Snapshot snapshot = _snapshots.get(getKey(connection, profileName));
+                if (snapshot != null && snapshot.serviceInstanceId == serviceInstanceId) {
+                    return new HashMap<String, Integer>(snapshot.matches);
+                }
+            }
+        }
+        return new HashMap<String, Integer>();
+    }
+
+    /**
+     * Records the result of a full or partial sync of a profile.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     * @param serviceInstanceId
+     *            The id of the service instance the profile belongs to
+     * @param matches
+     *            The connection id matched to each endpoint domain name
+     */
+    public void update(AzureConnection connection, String profileName, int serviceInstanceId, Map<String, Integer> matches)
+    {
+        if (!_enabled) {
+            return;
+        }
+        synchronized (_snapshots) {
+            _snapshots.put(getKey(connection, profileName), new Snapshot(serviceInstanceId, matches));
+        }
+    }
+
+    /**
+     * Drops the state of a profile so that it is synchronized in full next time.
+     *
+     * @param connection
+     *            A connection for the subscription that owns the profile
+     * @param profileName
+     *            The Traffic Manager profile name
+     */
+    public void forget(AzureConnection connection, String profileName)
+    {
+        synchronized (_snapshots) {
+            _snapshots.remove(getKey(connection, profileName));
+        }
+    }
+
+    /**
+     * Drops the state of the subscription's profiles that are no longer listed.
+     *
+     * @param connection
+     *            A connection for the subscription
+     * @param profileNames
+     *            The names of the listed profiles
+     */
+    public void retain(AzureConnection connection, Collection<String> profileNames)
+    {
+        String prefix = connection.getEndpoint().getSubscription() + "/";
+        Set<String> keys = new HashSet<String>();
+        for (String profileName : profileNames) {
+            keys.add(prefix + profileName);
+        }
+        synchronized (_snapshots) {
+            Iterator<String> it = _snapshots.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.startsWith(prefix) && !keys.contains(key)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private String getKey(AzureConnection connection, String profileName)
+    {
+        return connection.getEndpoint().getSubscription() + "/" + profileName;
+    }
+
+    private static class Snapshot
+    {
+        private final int serviceInstanceId;
+        private final Map<String, Integer> matches;
+
+        private Snapshot(int serviceInstanceId, Map<String, Integer> matches)
+        {
+            this.serviceInstanceId = serviceInstanceId;
+            this.matches = matches;
+        }
+    }
+}
@@ -20,13 +20,13 @@ import com.microsoft.schemas.azure.trafficmgr.LoadBalancingMethod;
 import com.microsoft.schemas.azure.trafficmgr.Policy;
 import com.microsoft.schemas.azure.trafficmgr.Type;
 import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.DependencyIndex;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter.InstanceCategory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter.ServiceCategory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerConfig;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionUtil;
-import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.Constants;
 import com.servicemesh.agility.api.Asset;
 import com.servicemesh.agility.api.Instance;
 import com.servicemesh.agility.api.Link;
@@ -34,7 +34,6 @@ import com.servicemesh.agility.api.ServiceInstance;
 import com.servicemesh.agility.api.ServiceState;
 import com.servicemesh.agility.api.State;
 import com.servicemesh.agility.api.Template;
-import com.servicemesh.agility.distributed.sync.AsyncLock;
 import com.servicemesh.agility.sdk.service.msgs.ConnectionPostCreateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ConnectionPostUpdateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ConnectionPreCreateRequest;
@@ -42,7 +41,6 @@ import com.servicemesh.agility.sdk.service.msgs.ConnectionPreDeleteRequest;
 import com.servicemesh.agility.sdk.service.msgs.ConnectionPreUpdateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ConnectionRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
-import com.servicemesh.core.async.Callback;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
 import com.servicemesh.core.messaging.Status;
@@ -130,7 +128,6 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
             return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
                     "Could not attach to load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -138,392 +135,29 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // degrade if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerConnectionOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerConnectionOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
-                                            "Could not attach to load balancer.  Load balancer cannot be found."));
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                if (sourceEndpoint instanceof Template) {
-                                    return addInstanceEndpoints(definition, profileName, connection, request);
-                                }
-                                else {
-                                    return addServiceEndpoint(definition, profileName, connection, request);
-                                }
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
-    }
-
-    private Endpoint lookupEndpoint(List<Endpoint> endpoints, String domainName)
-    {
-        for (Endpoint endpoint : endpoints) {
-            if (endpoint.getDomainName().equals(domainName)) {
-                return endpoint;
-            }
-        }
-        return null;
-    }
-
-    private Promise<ServiceProviderResponse> addInstanceEndpoints(final Definition definition, final String profileName,
-            final AzureConnection connection, final ConnectionRequest request)
-    {
-        final Asset sourceEndpoint = request.getSource();
-        Template template = (Template) sourceEndpoint;
-        final ServiceInstance service = (ServiceInstance) request.getDestination();
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
-                    "Could not attach to load balancer. Load balancer policy cannot be found. "));
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints == null) {
-            endpoints = new Endpoints();
-            policy.setEndpoints(endpoints);
-        }
-        final List<Instance> instancesAdded = new ArrayList<Instance>();
-        final List<Asset> degradedAssets = new ArrayList<Asset>();
-        for (Link instanceLink : template.getInstances()) {
-            Instance instance = (Instance) _adapter.lookupAsset(request.getDependents(), instanceLink.getId(), Instance.class);
-            if (instance == null) {
-                continue;
-            }
-            // for now, we don't care about instance state, we may improve on that later on
-            // domain name
-            try {
-                _adapter.certifyCanonicalName(instance);
-            }
-            catch (Exception e) {
-                degradeEndpoint(instance, "Could not attach to load balancer. Instance domain name cannot be found. ");
-                degradedAssets.add(instance);
-                continue;
-            }
-            String domainName = _adapter.getDomainName(instance);
-            if (lookupEndpoint(policy.getEndpoints().getEndpoints(), domainName) != null) {
-                degradeEndpoint(instance,
-                        "Could not attach to load balancer. Endpoint with the same domain name already exists. ");
-                degradedAssets.add(instance);
-                continue;
-            }
-            Endpoint endpoint = new Endpoint();
-            endpoint.setDomainName(domainName);
-            endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-            InstanceCategory category =
-                    _adapter.getCategory(connection.getEndpoint().getSubscription(), domainName, instance.getCloud(),
-                            request.getClouds());
-            if (category == InstanceCategory.SHARED_SUBSCRIPTION) {
-                endpoint.setType(Type.CLOUD_SERVICE);
-            }
-            else {
-                endpoint.setType(Type.ANY);
-            }
-            endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                    TrafficManagerConfig.CONFIG_WEIGHT, request.getConnection().getAssetProperties(),
-                    TrafficManagerConfig.WEIGHT_DEFAULT));
-            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE && endpoint.getType() == Type.ANY) {
-                if (category == TrafficManagerAdapter.InstanceCategory.NON_AZURE) {
-                    degradeEndpoint(instance,
-                            "Could not attach to load balancer. Performance load balancing method can only be used with Azure instances. ");
-                    degradedAssets.add(instance);
-                    continue;
-                }
-                endpoint.setLocation(_adapter.getLocation(category, request.getConnection(), instance));
-                if (endpoint.getLocation() == null) {
-                    degradeEndpoint(instance,
-                            "Could not attach to load balancer. Location is required for Performance load balancing method. ");
-                    degradedAssets.add(instance);
-                    continue;
-                }
-            }
-            policy.getEndpoints().getEndpoints().add(endpoint);
-            instancesAdded.add(instance);
-        }
-        // nothing to do
-        if (template.getInstances().size() == degradedAssets.size()) {
-            ServiceProviderResponse response = new ServiceProviderResponse();
-            response.getModified().addAll(degradedAssets);
-            response.setStatus(Status.COMPLETE);
-            return Promise.pure(response);
-        }
-
-        // order if failover loadbalancing method
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
-            Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(),
-                    request.getDestConnections(), _adapter));
-        }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint, message));
-                }
-                ServiceProviderResponse response = new ServiceProviderResponse();
-
-                for (Instance instance : instancesAdded) {
-                    _adapter.updateInstanceAdded(instance, service);
-                    response.getModified().add(instance);
-                }
-                response.getModified().addAll(degradedAssets);
-                response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return _adapter.resetProfileStatus(profileName, connection,
-                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                }
-                return Promise.pure(response);
-            }
-        });
-    }
-
-    private Promise<ServiceProviderResponse> addServiceEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final ConnectionRequest request)
-    {
-        final Asset sourceEndpoint = request.getSource();
-        final ServiceInstance sourceService = (ServiceInstance) sourceEndpoint;
-        final ServiceInstance service = (ServiceInstance) request.getDestination();
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
-                    "Could not attach to load balancer. Load balancer policy cannot be found. "));
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints == null) {
-            endpoints = new Endpoints();
-            policy.setEndpoints(endpoints);
-        }
-        // domain name
-        String domainName = _adapter.getDomainName(sourceService);
-        if (domainName == null) {
-            return Promise.pure(degradeEndpointAndReturn(request, sourceService,
-                    "Could not attach to load balancer. Service Instance domain name cannot be found. "));
-        }
-        if (lookupEndpoint(policy.getEndpoints().getEndpoints(), domainName) != null) {
-            return Promise.pure(degradeEndpointAndReturn(request, sourceService,
-                    "Could not attach to load balancer. Endpoint with the same domain name already exists. "));
-        }
-        Endpoint endpoint = new Endpoint();
-        endpoint.setDomainName(domainName);
-        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-        endpoint.setType(_adapter.getEndpointType(sourceService));
-        endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                TrafficManagerConfig.CONFIG_WEIGHT, request.getConnection().getAssetProperties(),
-                TrafficManagerConfig.WEIGHT_DEFAULT));
-        if (endpoint.getType() == Type.TRAFFIC_MANAGER) {
-            endpoint.setMinChildEndpoints(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                    TrafficManagerConfig.CONFIG_MIN_CHILD_ENDPOINTS, request.getConnection().getAssetProperties(),
-                    TrafficManagerConfig.MIN_CHILD_ENDPOINTS_DEFAULT));
-        }
-        // Location Required when LoadBalancingMethod is set to Performance and Type is set to Any or TrafficManager
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE
-                && (endpoint.getType() == Type.ANY || endpoint.getType() == Type.TRAFFIC_MANAGER)) {
-            ServiceCategory category = _adapter.getCategory(sourceService, request.getServiceProviders());
-            if (category == TrafficManagerAdapter.ServiceCategory.NON_AZURE) {
-                return Promise
-                        .pure(degradeEndpointAndReturn(request, sourceService,
-                                "Could not attach to load balancer. Performance load balancing method can only be used with Azure services. "));
-            }
-            String location =
-                    com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
-                            TrafficManagerConfig.CONFIG_LOCATION, request.getConnection().getAssetProperties(), null);
-            if (location == null) {
-                return Promise.pure(degradeEndpointAndReturn(request, sourceService,
-                        "Could not attach to load balancer. Endpoint Location is required. "));
-            }
-            endpoint.setLocation(location);
-        }
-        policy.getEndpoints().getEndpoints().add(endpoint);
-
-        // order if failover loadbalancing method
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
-            Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(),
-                    request.getDestConnections(), _adapter));
-        }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint, message));
-                }
-                ServiceProviderResponse response = new ServiceProviderResponse();
-                // clean up properties
-                _adapter.updateServiceInstanceAdded(sourceService, service);
-                response.getModified().add(sourceService);
-                response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return _adapter.resetProfileStatus(profileName, connection,
-                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                }
-                return Promise.pure(response);
-            }
-        });
-    }
-
-    private Promise<ServiceProviderResponse> updateInstanceEndpoints(final Definition definition, final String profileName,
-            final AzureConnection connection, final ConnectionRequest request, List<Endpoint> endpointsToUpdate,
-            final List<Asset> degradedAssets, Map<String, Asset> assetMap)
-    {
-        final Asset sourceEndpoint = request.getSource();
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
-                    "Could not update on load balancer. Load balancer policy cannot be found. "));
-        }
-
-        boolean updated = false;
-        for (Endpoint endpointToUpdate : endpointsToUpdate) {
-            Endpoint endpoint =
-                    policy.getEndpoints() != null ? lookupEndpoint(policy.getEndpoints().getEndpoints(),
-                            endpointToUpdate.getDomainName()) : null;
-            if (endpoint == null) {
-                degradeEndpoint(assetMap.get(endpointToUpdate.getDomainName()),
-                        "Could not update on load balancer. Endpoint with the same domain name could not be found. ");
-                degradedAssets.add(assetMap.get(endpointToUpdate.getDomainName()));
-                continue;
-            }
-            endpoint.setLocation(endpointToUpdate.getLocation());
-            endpoint.setMinChildEndpoints(endpointToUpdate.getMinChildEndpoints());
-            endpoint.setWeight(endpointToUpdate.getWeight());
-            updated = true;
-        }
-        // nothing to do
-        if (!updated) {
-            ServiceProviderResponse response = new ServiceProviderResponse();
-            response.getModified().addAll(degradedAssets);
-            response.setStatus(Status.COMPLETE);
-            return Promise.pure(response);
-        }
-        // order if failover loadbalancing method
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
-            Collections.sort(policy.getEndpoints().getEndpoints(),
-                    new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(), request.getDestConnections(),
-                            _adapter));
-        }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    String message = "Could not update on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint, message));
-                }
-                ServiceProviderResponse response = new ServiceProviderResponse();
-                response.getModified().addAll(degradedAssets);
-                response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return _adapter.resetProfileStatus(profileName, connection,
-                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
+        if (sourceEndpoint instanceof Template) {
+            // resolve the instance domain names concurrently before the profile is locked
+            DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
+            List<Instance> instances = new ArrayList<Instance>();
+            for (Link instanceLink : ((Template) sourceEndpoint).getInstances()) {
+                Instance instance = (Instance) index.getAsset(instanceLink.getId(), Instance.class);
+                if (instance != null) {
+                    instances.add(instance);
                 }
-                return Promise.pure(response);
             }
-        });
-    }
-
-    private Promise<ServiceProviderResponse> removeInstanceEndpoints(final Definition definition, final String profileName,
-            final AzureConnection connection, final ConnectionRequest request, List<Endpoint> endpointsToDelete,
-            final Map<String, Asset> assetMap)
-    {
-        final ServiceProviderResponse ignore = new ServiceProviderResponse();
-        final ServiceInstance service = (ServiceInstance) request.getDestination();
-        ignore.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(ignore);
-        }
-
-        boolean deleted = false;
-        if (policy.getEndpoints() != null) {
-            for (Iterator<Endpoint> iter = policy.getEndpoints().getEndpoints().iterator(); iter.hasNext();) {
-                Endpoint endpoint = iter.next();
-                Endpoint endpointToDelete = lookupEndpoint(endpointsToDelete, endpoint.getDomainName());
-                if (endpointToDelete != null) {
-                    deleted = true;
-                    iter.remove();
+            Promise<List<Boolean>> resolved = _adapter.resolveCanonicalNames(instances);
+            return resolved.flatMap(new Function<List<Boolean>, Promise<ServiceProviderResponse>>() {
+                public Promise<ServiceProviderResponse> invoke(List<Boolean> arg)
+                {
+                    return _adapter.getDefinitionWriteQueue().submit(profileName, connection,
+                            new AddInstanceEndpoints(connection, request));
                 }
-            }
+            });
         }
-        // nothing to do
-        if (!deleted) {
-            return Promise.pure(ignore);
+        else {
+            return _adapter.getDefinitionWriteQueue().submit(profileName, connection,
+                    new AddServiceEndpoint(connection, request));
         }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    return Promise.pure(ignore);
-                }
-                ServiceProviderResponse response = new ServiceProviderResponse();
-                // clean up properties
-                for (Asset asset : assetMap.values()) {
-                    if (asset instanceof Instance) {
-                        _adapter.updateInstanceRemoved((Instance) asset, service);
-                    }
-                    else if (asset instanceof ServiceInstance) {
-                        _adapter.updateServiceInstanceRemoved((ServiceInstance) asset, service);
-                    }
-                    response.getModified().add(asset);
-                }
-                response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return _adapter.resetProfileStatus(profileName, connection,
-                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                }
-                return Promise.pure(response);
-            }
-        });
     }
 
     @Override
@@ -561,7 +195,6 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
             return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
                     "Could not update on load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -575,9 +208,9 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         final Map<String, Asset> assetMap = new HashMap<String, Asset>();
         if (sourceEndpoint instanceof Template) {
             Template template = (Template) sourceEndpoint;
+            DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
             for (Link instanceLink : template.getInstances()) {
-                Instance instance =
-                        (Instance) _adapter.lookupAsset(request.getDependents(), instanceLink.getId(), Instance.class);
+                Instance instance = (Instance) index.getAsset(instanceLink.getId(), Instance.class);
                 // for now, we don't care about instance state, we may improve on that later on
                 // domain name
                 if (instance == null) {
@@ -663,51 +296,8 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
             }
             endpointsToUpdate.add(endpoint);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerConnectionOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerConnectionOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    return Promise.pure(degradeEndpointAndReturn(request, sourceEndpoint,
-                                            "Could not update on load balancer.  Load balancer cannot be found."));
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return updateInstanceEndpoints(definition, profileName, connection, request, endpointsToUpdate,
-                                        degradedAssets, assetMap);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection,
+                new UpdateInstanceEndpoints(connection, request, endpointsToUpdate, degradedAssets, assetMap));
     }
 
     @Override
@@ -742,7 +332,6 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         if (profileName == null) {
             return Promise.pure(ignore);
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -754,9 +343,9 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         final Map<String, Asset> assetMap = new HashMap<String, Asset>();
         if (sourceEndpoint instanceof Template) {
             Template template = (Template) sourceEndpoint;
+            DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
             for (Link instanceLink : template.getInstances()) {
-                Instance instance =
-                        (Instance) _adapter.lookupAsset(request.getDependents(), instanceLink.getId(), Instance.class);
+                Instance instance = (Instance) index.getAsset(instanceLink.getId(), Instance.class);
                 if (instance == null) {
                     continue;
                 }
@@ -786,50 +375,8 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
             endpoint.setDomainName(domainName);
             endpointsToDelete.add(endpoint);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerConnectionOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerConnectionOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    return Promise.pure(ignore);
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return removeInstanceEndpoints(definition, profileName, connection, request, endpointsToDelete,
-                                        assetMap);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection,
+                new RemoveInstanceEndpoints(request, endpointsToDelete, assetMap));
     }
 
     private void degradeEndpoint(Asset asset, String degradeReason)
@@ -856,9 +403,9 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         if (asset instanceof Template) {
             // degrade all template instances
             Template template = (Template) asset;
+            DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
             for (Link instanceLink : template.getInstances()) {
-                Instance instance =
-                        (Instance) _adapter.lookupAsset(request.getDependents(), instanceLink.getId(), Instance.class);
+                Instance instance = (Instance) index.getAsset(instanceLink.getId(), Instance.class);
                 if (instance != null && instance.getState() != null && instance.getState() == State.RUNNING) {
                     instance.setState(State.DEGRADED);
                     _adapter.addOrUpdateAssetProperty("degraded-reason", degradeReason, instance.getAssetProperties());
@@ -879,4 +426,378 @@ public class TrafficManagerConnectionOperations extends com.servicemesh.agility.
         return response;
     }
 
+    private class AddInstanceEndpoints implements DefinitionWriteQueue.Change<ServiceProviderResponse>
+    {
+        private final AzureConnection connection;
+        private final ConnectionRequest request;
+        private final List<Instance> instancesAdded = new ArrayList<Instance>();
+        private final List<Asset> degradedAssets = new ArrayList<Asset>();
+
+        private AddInstanceEndpoints(AzureConnection connection, ConnectionRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            instancesAdded.clear();
+            degradedAssets.clear();
+            Template template = (Template) request.getSource();
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeEndpointAndReturn(request, template,
+                        "Could not attach to load balancer. Load balancer policy cannot be found. ");
+            }
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints == null) {
+                endpoints = new Endpoints();
+                policy.setEndpoints(endpoints);
+            }
+            DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
+            Map<String, Endpoint> existing = DependencyIndex.indexEndpoints(endpoints.getEndpoints());
+            for (Link instanceLink : template.getInstances()) {
+                Instance instance = (Instance) index.getAsset(instanceLink.getId(), Instance.class);
+                if (instance == null) {
+                    continue;
+                }
+                // for now, we don't care about instance state, we may improve on that later on
+                // domain name
+                try {
+                    _adapter.certifyCanonicalName(instance);
+                }
+                catch (Exception e) {
+                    degradeEndpoint(instance, "Could not attach to load balancer. Instance domain name cannot be found. ");
+                    degradedAssets.add(instance);
+                    continue;
+                }
+                String domainName = _adapter.getDomainName(instance);
+                if (existing.containsKey(domainName)) {
+                    degradeEndpoint(instance,
+                            "Could not attach to load balancer. Endpoint with the same domain name already exists. ");
+                    degradedAssets.add(instance);
+                    continue;
+                }
+                Endpoint endpoint = new Endpoint();
+                endpoint.setDomainName(domainName);
+                endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+                InstanceCategory category =
+                        _adapter.getCategory(connection.getEndpoint().getSubscription(), domainName, instance.getCloud(),
+                                request.getClouds());
+                if (category == InstanceCategory.SHARED_SUBSCRIPTION) {
+                    endpoint.setType(Type.CLOUD_SERVICE);
+                }
+                else {
+                    endpoint.setType(Type.ANY);
+                }
+                endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                        TrafficManagerConfig.CONFIG_WEIGHT, request.getConnection().getAssetProperties(),
+                        TrafficManagerConfig.WEIGHT_DEFAULT));
+                if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE && endpoint.getType() == Type.ANY) {
+                    if (category == TrafficManagerAdapter.InstanceCategory.NON_AZURE) {
+                        degradeEndpoint(instance,
+                                "Could not attach to load balancer. Performance load balancing method can only be used with Azure instances. ");
+                        degradedAssets.add(instance);
+                        continue;
+                    }
+                    endpoint.setLocation(_adapter.getLocation(category, request.getConnection(), instance));
+                    if (endpoint.getLocation() == null) {
+                        degradeEndpoint(instance,
+                                "Could not attach to load balancer. Location is required for Performance load balancing method. ");
+                        degradedAssets.add(instance);
+                        continue;
+                    }
+                }
+                endpoints.getEndpoints().add(endpoint);
+                existing.put(domainName, endpoint);
+                instancesAdded.add(instance);
+            }
+            // nothing to do
+            if (template.getInstances().size() == degradedAssets.size()) {
+                ServiceProviderResponse response = new ServiceProviderResponse();
+                response.getModified().addAll(degradedAssets);
+                response.setStatus(Status.COMPLETE);
+                return response;
+            }
+
+            // order if failover loadbalancing method
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
+                Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(index));
+            }
+            return null;
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return degradeEndpointAndReturn(request, request.getSource(),
+                    "Could not attach to load balancer.  Load balancer cannot be found.");
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeEndpointAndReturn(request, request.getSource(), message);
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            ServiceInstance service = (ServiceInstance) request.getDestination();
+            for (Instance instance : instancesAdded) {
+                _adapter.updateInstanceAdded(instance, service);
+                response.getModified().add(instance);
+            }
+            response.getModified().addAll(degradedAssets);
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
+    }
+
+    private class AddServiceEndpoint implements DefinitionWriteQueue.Change<ServiceProviderResponse>
+    {
+        private final AzureConnection connection;
+        private final ConnectionRequest request;
+
+        private AddServiceEndpoint(AzureConnection connection, ConnectionRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            ServiceInstance sourceService = (ServiceInstance) request.getSource();
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeEndpointAndReturn(request, sourceService,
+                        "Could not attach to load balancer. Load balancer policy cannot be found. ");
+            }
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints == null) {
+                endpoints = new Endpoints();
+                policy.setEndpoints(endpoints);
+            }
+            // domain name
+            String domainName = _adapter.getDomainName(sourceService);
+            if (domainName == null) {
+                return degradeEndpointAndReturn(request, sourceService,
+                        "Could not attach to load balancer. Service Instance domain name cannot be found. ");
+            }
+            if (DependencyIndex.indexEndpoints(endpoints.getEndpoints()).containsKey(domainName)) {
+                return degradeEndpointAndReturn(request, sourceService,
+                        "Could not attach to load balancer. Endpoint with the same domain name already exists. ");
+            }
+            Endpoint endpoint = new Endpoint();
+            endpoint.setDomainName(domainName);
+            endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+            endpoint.setType(_adapter.getEndpointType(sourceService));
+            endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                    TrafficManagerConfig.CONFIG_WEIGHT, request.getConnection().getAssetProperties(),
+                    TrafficManagerConfig.WEIGHT_DEFAULT));
+            if (endpoint.getType() == Type.TRAFFIC_MANAGER) {
+                endpoint.setMinChildEndpoints(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                        TrafficManagerConfig.CONFIG_MIN_CHILD_ENDPOINTS, request.getConnection().getAssetProperties(),
+                        TrafficManagerConfig.MIN_CHILD_ENDPOINTS_DEFAULT));
+            }
+            // Location Required when LoadBalancingMethod is set to Performance and Type is set to Any or TrafficManager
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE
+                    && (endpoint.getType() == Type.ANY || endpoint.getType() == Type.TRAFFIC_MANAGER)) {
+                ServiceCategory category = _adapter.getCategory(sourceService, request.getServiceProviders());
+                if (category == TrafficManagerAdapter.ServiceCategory.NON_AZURE) {
+                    return degradeEndpointAndReturn(request, sourceService,
+                            "Could not attach to load balancer. Performance load balancing method can only be used with Azure services. ");
+                }
+                String location =
+                        com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
+                                TrafficManagerConfig.CONFIG_LOCATION, request.getConnection().getAssetProperties(), null);
+                if (location == null) {
+                    return degradeEndpointAndReturn(request, sourceService,
+                            "Could not attach to load balancer. Endpoint Location is required. ");
+                }
+                endpoint.setLocation(location);
+            }
+            endpoints.getEndpoints().add(endpoint);
+
+            // order if failover loadbalancing method
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
+                Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(
+                        new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections())));
+            }
+            return null;
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return degradeEndpointAndReturn(request, request.getSource(),
+                    "Could not attach to load balancer.  Load balancer cannot be found.");
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeEndpointAndReturn(request, request.getSource(), message);
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            ServiceInstance sourceService = (ServiceInstance) request.getSource();
+            // clean up properties
+            _adapter.updateServiceInstanceAdded(sourceService, (ServiceInstance) request.getDestination());
+            response.getModified().add(sourceService);
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
+    }
+
+    private class UpdateInstanceEndpoints implements DefinitionWriteQueue.Change<ServiceProviderResponse>
+    {
+        private final AzureConnection connection;
+        private final ConnectionRequest request;
+        private final List<Endpoint> endpointsToUpdate;
+        private final List<Asset> alreadyDegraded;
+        private final List<Asset> degradedAssets = new ArrayList<Asset>();
+        private final Map<String, Asset> assetMap;
+
+        private UpdateInstanceEndpoints(AzureConnection connection, ConnectionRequest request, List<Endpoint> endpointsToUpdate,
+                List<Asset> degradedAssets, Map<String, Asset> assetMap)
+        {
+            this.connection = connection;
+            this.request = request;
+            this.endpointsToUpdate = endpointsToUpdate;
+            this.alreadyDegraded = degradedAssets;
+            this.assetMap = assetMap;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            degradedAssets.clear();
+            degradedAssets.addAll(alreadyDegraded);
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeEndpointAndReturn(request, request.getSource(),
+                        "Could not update on load balancer. Load balancer policy cannot be found. ");
+            }
+
+            boolean updated = false;
+            Map<String, Endpoint> existing =
+                    DependencyIndex.indexEndpoints(policy.getEndpoints() != null ? policy.getEndpoints().getEndpoints() : null);
+            for (Endpoint endpointToUpdate : endpointsToUpdate) {
+                Endpoint endpoint = existing.get(endpointToUpdate.getDomainName());
+                if (endpoint == null) {
+                    degradeEndpoint(assetMap.get(endpointToUpdate.getDomainName()),
+                            "Could not update on load balancer. Endpoint with the same domain name could not be found. ");
+                    degradedAssets.add(assetMap.get(endpointToUpdate.getDomainName()));
+                    continue;
+                }
+                endpoint.setLocation(endpointToUpdate.getLocation());
+                endpoint.setMinChildEndpoints(endpointToUpdate.getMinChildEndpoints());
+                endpoint.setWeight(endpointToUpdate.getWeight());
+                updated = true;
+            }
+            // nothing to do
+            if (!updated) {
+                ServiceProviderResponse response = new ServiceProviderResponse();
+                response.getModified().addAll(degradedAssets);
+                response.setStatus(Status.COMPLETE);
+                return response;
+            }
+            // order if failover loadbalancing method
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
+                Collections.sort(policy.getEndpoints().getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(
+                        new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections())));
+            }
+            return null;
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return degradeEndpointAndReturn(request, request.getSource(),
+                    "Could not update on load balancer.  Load balancer cannot be found.");
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not update on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeEndpointAndReturn(request, request.getSource(), message);
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            response.getModified().addAll(degradedAssets);
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
+    }
+
+    private class RemoveInstanceEndpoints implements DefinitionWriteQueue.Change<ServiceProviderResponse>
+    {
+        private final ConnectionRequest request;
+        private final List<Endpoint> endpointsToDelete;
+        private final Map<String, Asset> assetMap;
+
+        private RemoveInstanceEndpoints(ConnectionRequest request, List<Endpoint> endpointsToDelete, Map<String, Asset> assetMap)
+        {
+            this.request = request;
+            this.endpointsToDelete = endpointsToDelete;
+            this.assetMap = assetMap;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return ignore();
+            }
+
+            boolean deleted = false;
+            if (policy.getEndpoints() != null) {
+                Map<String, Endpoint> toDelete = DependencyIndex.indexEndpoints(endpointsToDelete);
+                for (Iterator<Endpoint> iter = policy.getEndpoints().getEndpoints().iterator(); iter.hasNext();) {
+                    Endpoint endpoint = iter.next();
+                    if (toDelete.containsKey(endpoint.getDomainName())) {
+                        deleted = true;
+                        iter.remove();
+                    }
+                }
+            }
+            // nothing to do
+            if (!deleted) {
+                return ignore();
+            }
+            return null;
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return ignore();
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                return ignore();
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            ServiceInstance service = (ServiceInstance) request.getDestination();
+            // clean up properties
+            for (Asset asset : assetMap.values()) {
+                if (asset instanceof Instance) {
+                    _adapter.updateInstanceRemoved((Instance) asset, service);
+                }
+                else if (asset instanceof ServiceInstance) {
+                    _adapter.updateServiceInstanceRemoved((ServiceInstance) asset, service);
+                }
+                response.getModified().add(asset);
+            }
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
+    }
+
+    private ServiceProviderResponse ignore()
+    {
+        ServiceProviderResponse response = new ServiceProviderResponse();
+        response.setStatus(Status.COMPLETE);
+        return response;
+    }
 }
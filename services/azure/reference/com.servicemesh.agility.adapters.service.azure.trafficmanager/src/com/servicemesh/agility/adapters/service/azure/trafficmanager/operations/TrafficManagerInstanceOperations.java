@@ -4,11 +4,15 @@
  */
 package com.servicemesh.agility.adapters.service.azure.trafficmanager.operations;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -17,20 +21,18 @@ import com.microsoft.schemas.azure.trafficmgr.Endpoint;
 import com.microsoft.schemas.azure.trafficmgr.Endpoints;
 import com.microsoft.schemas.azure.trafficmgr.LoadBalancingMethod;
 import com.microsoft.schemas.azure.trafficmgr.Policy;
-import com.microsoft.schemas.azure.trafficmgr.Profile;
-import com.microsoft.schemas.azure.trafficmgr.StatusDetails;
 import com.microsoft.schemas.azure.trafficmgr.Type;
 import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.DependencyIndex;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter.InstanceCategory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerConfig;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionUtil;
-import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.Constants;
+import com.servicemesh.agility.api.Asset;
 import com.servicemesh.agility.api.Connection;
 import com.servicemesh.agility.api.Instance;
 import com.servicemesh.agility.api.Property;
-import com.servicemesh.agility.distributed.sync.AsyncLock;
 import com.servicemesh.agility.sdk.service.msgs.InstancePostProvisionRequest;
 import com.servicemesh.agility.sdk.service.msgs.InstancePostRestartRequest;
 import com.servicemesh.agility.sdk.service.msgs.InstancePostStartRequest;
@@ -39,7 +41,6 @@ import com.servicemesh.agility.sdk.service.msgs.InstancePreRestartRequest;
 import com.servicemesh.agility.sdk.service.msgs.InstancePreStopRequest;
 import com.servicemesh.agility.sdk.service.msgs.InstanceRequest;
 import com.servicemesh.agility.sdk.service.msgs.InstanceResponse;
-import com.servicemesh.core.async.Callback;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
 import com.servicemesh.core.messaging.Status;
@@ -82,7 +83,6 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
             return Promise.pure(degradeInstance(request.getInstance(),
                     "Could not attach to load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -90,47 +90,40 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<InstanceResponse>>() {
-            public Promise<InstanceResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<InstanceResponse> flatPromise = promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                    public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                    {
-                        if (arg.getStatusCode() != 200) {
-                            if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                TrafficManagerInstanceOperations.logger.debug("GET " + uri + ": "
-                                        + ConnectionUtil.getStatusInfo(connection, arg));
-                            }
-                            return Promise.pure(degradeInstance(request.getInstance(),
-                                    "Could not attach to load balancer.  Load balancer cannot be found."));
-                        }
-                        Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                        return addEndpoint(definition, profileName, connection, request);
-                    }
-                });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<InstanceResponse>() {
-                    public void invoke(InstanceResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
+        // instances of a scale out are registered together
+        return _adapter.getEndpointRegistrar().register(profileName, connection, request,
+                new Function<List<InstancePostProvisionRequest>, Promise<List<InstanceResponse>>>() {
+                    public Promise<List<InstanceResponse>> invoke(List<InstancePostProvisionRequest> arg)
                     {
-                        arg.unlock();
+                        return addEndpoints(profileName, connection, arg);
                     }
                 });
-                return flatPromise;
+    }
+
+    private Promise<List<InstanceResponse>> addEndpoints(final String profileName, final AzureConnection connection,
+            List<InstancePostProvisionRequest> requests)
+    {
+        final AddEndpoints change = new AddEndpoints(connection, requests);
+        List<Instance> instances = new ArrayList<Instance>();
+        for (InstancePostProvisionRequest request : requests) {
+            instances.add(request.getInstance());
+        }
+        // resolve the domain names on the resolver threads before the profile is locked
+        Promise<List<Boolean>> resolved = _adapter.resolveCanonicalNames(instances);
+        Promise<InstanceResponse> written = resolved.flatMap(new Function<List<Boolean>, Promise<InstanceResponse>>() {
+            public Promise<InstanceResponse> invoke(List<Boolean> arg)
+            {
+                return _adapter.getDefinitionWriteQueue().submit(profileName, connection, change);
+            }
+        });
+        return written.map(new Function<InstanceResponse, List<InstanceResponse>>() {
+            public List<InstanceResponse> invoke(InstanceResponse arg)
+            {
+                // the write queue fails the aggregate when the profile status could not be reset after the write
+                if (arg.getStatus() == Status.FAILURE) {
+                    change.failed(arg.getMessage());
+                }
+                return change.getResponses();
             }
         });
     }
@@ -151,7 +144,6 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
         if (request.getTemplate() == null) {
             return Promise.pure(new Exception("Template is not found"));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -159,51 +151,7 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<InstanceResponse>>() {
-            public Promise<InstanceResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<InstanceResponse> flatPromise = promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                    public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                    {
-                        // profile doesn't exist, ignore
-                        if (arg.getStatusCode() != 200) {
-                            if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                TrafficManagerInstanceOperations.logger.debug("GET " + uri + ": "
-                                        + ConnectionUtil.getStatusInfo(connection, arg));
-                            }
-                            InstanceResponse response = new InstanceResponse();
-                            response.setStatus(Status.COMPLETE);
-                            return Promise.pure(response);
-                        }
-                        Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                        return removeEndpoint(definition, profileName, connection, request);
-                    }
-                });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<InstanceResponse>() {
-                    public void invoke(InstanceResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new RemoveEndpoint(connection, request));
     }
 
     public Promise<InstanceResponse> preStop(final InstancePreStopRequest request)
@@ -227,7 +175,6 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
             response.setStatus(Status.COMPLETE);
             return Promise.pure(response);
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -235,51 +182,7 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<InstanceResponse>>() {
-            public Promise<InstanceResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<InstanceResponse> flatPromise = promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                    public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                    {
-                        // profile doesn't exist, ignore
-                        if (arg.getStatusCode() != 200) {
-                            if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                TrafficManagerInstanceOperations.logger.debug("GET " + uri + ": "
-                                        + ConnectionUtil.getStatusInfo(connection, arg));
-                            }
-                            InstanceResponse response = new InstanceResponse();
-                            response.setStatus(Status.COMPLETE);
-                            return Promise.pure(response);
-                        }
-                        Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                        return disableEndpoint(definition, profileName, connection, request);
-                    }
-                });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<InstanceResponse>() {
-                    public void invoke(InstanceResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new DisableEndpoint(connection, request));
     }
 
     public Promise<InstanceResponse> postStart(final InstancePostStartRequest request)
@@ -302,7 +205,6 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
             return Promise.pure(degradeInstance(request.getInstance(),
                     "Could not enable on load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -310,358 +212,397 @@ public class TrafficManagerInstanceOperations extends com.servicemesh.agility.sd
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<InstanceResponse>>() {
-            public Promise<InstanceResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<InstanceResponse> flatPromise = promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                    public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                    {
-                        if (arg.getStatusCode() != 200) {
-                            if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                TrafficManagerInstanceOperations.logger.debug("GET " + uri + ": "
-                                        + ConnectionUtil.getStatusInfo(connection, arg));
-                            }
-                            return Promise.pure(degradeInstance(request.getInstance(),
-                                    "Could not enable on load balancer. Load balancer cannot be found. "));
-                        }
-                        Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                        return enableEndpoint(definition, profileName, connection, request);
-                    }
-                });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<InstanceResponse>() {
-                    public void invoke(InstanceResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new EnableEndpoint(connection, request));
     }
 
-    private Promise<InstanceResponse> addEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final InstanceRequest request)
+    private String getDomainName(InstanceRequest request)
     {
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeInstance(request.getInstance(),
-                    "Could not attach to load balancer. Load balancer policy cannot be found. "));
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints == null) {
-            endpoints = new Endpoints();
-            policy.setEndpoints(endpoints);
+        return _adapter.getDomainName(request.getInstance());
+    }
+
+    private InstanceResponse degradeInstance(Instance instance, String degradeReason)
+    {
+        InstanceResponse response = new InstanceResponse();
+        response.setStatus(Status.FAILURE);
+        response.setMessage(degradeReason);
+        return response;
+    }
+
+    private InstanceResponse ignore()
+    {
+        InstanceResponse response = new InstanceResponse();
+        response.setStatus(Status.COMPLETE);
+        return response;
+    }
+
+    /**
+     * Adds the endpoints of a batch of instances with a single definition write. The response of each request is collected in
+     * request order and returned by getResponses() once the change completes.
+     */
+    private class AddEndpoints implements DefinitionWriteQueue.Change<InstanceResponse>
+    {
+        private final AzureConnection connection;
+        private final List<InstancePostProvisionRequest> requests;
+        private final InstanceResponse[] responses;
+
+        private AddEndpoints(AzureConnection connection, List<InstancePostProvisionRequest> requests)
+        {
+            this.connection = connection;
+            this.requests = requests;
+            this.responses = new InstanceResponse[requests.size()];
         }
-        // domain name
-        try {
-            _adapter.certifyCanonicalName(request.getInstance());
+
+        public InstanceResponse apply(Definition definition)
+        {
+            Arrays.fill(responses, null);
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeAll("Could not attach to load balancer. Load balancer policy cannot be found. ");
+            }
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints == null) {
+                endpoints = new Endpoints();
+                policy.setEndpoints(endpoints);
+            }
+            Map<String, Endpoint> existing = DependencyIndex.indexEndpoints(endpoints.getEndpoints());
+            boolean added = false;
+            for (int i = 0; i < requests.size(); i++) {
+                responses[i] = addEndpoint(requests.get(i), policy, existing);
+                added |= responses[i] == null;
+            }
+            // nothing to do
+            if (!added) {
+                return ignore();
+            }
+            // order once for the whole batch if failover loadbalancing method
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
+                Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(getIndex()));
+            }
+            return null;
         }
-        catch (Exception e) {
-            return Promise.pure(degradeInstance(request.getInstance(),
-                    "Could not attach to load balancer. Instance domain name cannot be found. "));
-        }
-        final String domainName = getDomainName(request);
-        // update dependent with fqdn as well
-        Instance instance =
-                (Instance) _adapter.lookupAsset(request.getDependents(), request.getInstance().getId(), Instance.class);
-        if (instance != null) {
-            _adapter.saveCanonicalName(" via hostname", instance, domainName);
-        }
-        // for now, degrade if endpoint already exists, another option is replace of existing endpoint
-        for (Endpoint endpoint : definition.getPolicy().getEndpoints().getEndpoints()) {
-            if (endpoint.getDomainName().equals(domainName)) {
-                return Promise.pure(degradeInstance(request.getInstance(),
-                        "Could not attach to load balancer. Endpoint with the same domain name already exists. "));
+
+        /**
+         * Indexes the dependents and connections of every request in the batch, as the requests arrive in any order and each
+         * may know dependents the others do not. Dependents are deduplicated by type and id, connections by id.
+         */
+        private DependencyIndex getIndex()
+        {
+            List<Asset> dependents = new ArrayList<Asset>();
+            List<Connection> connections = new ArrayList<Connection>();
+            Set<String> assetKeys = new HashSet<String>();
+            Set<Integer> connectionIds = new HashSet<Integer>();
+            for (InstanceRequest request : requests) {
+                if (request.getDependents() != null) {
+                    for (Asset asset : request.getDependents()) {
+                        if (assetKeys.add(asset.getClass().getName() + "/" + asset.getId())) {
+                            dependents.add(asset);
+                        }
+                    }
+                }
+                if (request.getDestConnections() != null) {
+                    for (Connection conn : request.getDestConnections()) {
+                        if (connectionIds.add(Integer.valueOf(conn.getId()))) {
+                            connections.add(conn);
+                        }
+                    }
+                }
             }
+            return new DependencyIndex(_adapter, dependents, connections);
         }
-        Connection conn =
-                _adapter.findDependentConnection(request.getDestConnections(), request.getTemplate(),
-                        "application/com.servicemesh.agility.api.Template+xml");
-        if (conn == null) {
-            return Promise.pure(degradeInstance(request.getInstance(),
-                    "Could not attach to load balancer. Endpoint connection cannot be found. "));
-        }
-        Endpoint endpoint = new Endpoint();
-        endpoint.setDomainName(domainName);
-        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-        InstanceCategory category =
-                _adapter.getCategory(connection.getEndpoint().getSubscription(), domainName, request.getInstance().getCloud(),
-                        request.getClouds());
-        if (category == InstanceCategory.SHARED_SUBSCRIPTION) {
-            endpoint.setType(Type.CLOUD_SERVICE);
-        }
-        else {
-            endpoint.setType(Type.ANY);
-        }
-
-        endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                TrafficManagerConfig.CONFIG_WEIGHT, conn.getAssetProperties(), TrafficManagerConfig.WEIGHT_DEFAULT));
-        endpoints.getEndpoints().add(endpoint);
-        // order if failover loadbalancing method
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
-            Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(),
-                    request.getDestConnections(), _adapter));
-        }
-        else if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE && endpoint.getType() == Type.ANY) {
-            // Traffic Manager requires the name of the Azure region. We will
-            // only be able to identify a valid one for an instance running in
-            // an alternate Azure subscription from the Traffic Manager. A
-            // non-Azure instance will always fail here.
-            if (category == TrafficManagerAdapter.InstanceCategory.NON_AZURE) {
-                return Promise
-                        .pure(degradeInstance(request.getInstance(),
-                                "Could not attach to load balancer. Performance load balancing method can only be used with Azure instances. "));
+
+        private InstanceResponse addEndpoint(InstanceRequest request, Policy policy, Map<String, Endpoint> existing)
+        {
+            // domain name
+            try {
+                _adapter.certifyCanonicalName(request.getInstance());
+            }
+            catch (Exception e) {
+                return degradeInstance(request.getInstance(),
+                        "Could not attach to load balancer. Instance domain name cannot be found. ");
+            }
+            final String domainName = getDomainName(request);
+            // update dependent with fqdn as well
+            Instance instance =
+                    (Instance) _adapter.lookupAsset(request.getDependents(), request.getInstance().getId(), Instance.class);
+            if (instance != null) {
+                _adapter.saveCanonicalName(" via hostname", instance, domainName);
+            }
+            // for now, degrade if endpoint already exists, another option is replace of existing endpoint
+            if (existing.containsKey(domainName)) {
+                return degradeInstance(request.getInstance(),
+                        "Could not attach to load balancer. Endpoint with the same domain name already exists. ");
+            }
+            Connection conn =
+                    _adapter.findDependentConnection(request.getDestConnections(), request.getTemplate(),
+                            "application/com.servicemesh.agility.api.Template+xml");
+            if (conn == null) {
+                return degradeInstance(request.getInstance(),
+                        "Could not attach to load balancer. Endpoint connection cannot be found. ");
             }
-            endpoint.setLocation(_adapter.getLocation(category, conn, request.getInstance()));
-            if (endpoint.getLocation() == null) {
-                return Promise.pure(degradeInstance(request.getInstance(),
-                        "Could not attach to load balancer. Location is required for Performance load balancing method. "));
+            Endpoint endpoint = new Endpoint();
+            endpoint.setDomainName(domainName);
+            endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+            InstanceCategory category =
+                    _adapter.getCategory(connection.getEndpoint().getSubscription(), domainName,
+                            request.getInstance().getCloud(), request.getClouds());
+            if (category == InstanceCategory.SHARED_SUBSCRIPTION) {
+                endpoint.setType(Type.CLOUD_SERVICE);
+            }
+            else {
+                endpoint.setType(Type.ANY);
+            }
+
+            endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                    TrafficManagerConfig.CONFIG_WEIGHT, conn.getAssetProperties(), TrafficManagerConfig.WEIGHT_DEFAULT));
+            // the definition is shared with the rest of the batch, so validate before adding the endpoint
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE && endpoint.getType() == Type.ANY) {
+                // Traffic Manager requires the name of the Azure region. We will
+                // only be able to identify a valid one for an instance running in
+                // an alternate Azure subscription from the Traffic Manager. A
+                // non-Azure instance will always fail here.
+                if (category == TrafficManagerAdapter.InstanceCategory.NON_AZURE) {
+                    return degradeInstance(request.getInstance(),
+                            "Could not attach to load balancer. Performance load balancing method can only be used with Azure instances. ");
+                }
+                endpoint.setLocation(_adapter.getLocation(category, conn, request.getInstance()));
+                if (endpoint.getLocation() == null) {
+                    return degradeInstance(request.getInstance(),
+                            "Could not attach to load balancer. Location is required for Performance load balancing method. ");
+                }
             }
+            policy.getEndpoints().getEndpoints().add(endpoint);
+            existing.put(domainName, endpoint);
+            return null;
         }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-            public Promise<InstanceResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    return Promise.pure(degradeInstance(request.getInstance(), message));
+
+        public InstanceResponse notFound(IHttpResponse response)
+        {
+            return degradeAll("Could not attach to load balancer.  Load balancer cannot be found.");
+        }
+
+        public InstanceResponse written(IHttpResponse arg)
+        {
+            String message =
+                    arg.getStatusCode() != 200 ? "Could not attach to load balancer. "
+                            + ConnectionUtil.getStatusInfo(connection, arg) : null;
+            for (int i = 0; i < requests.size(); i++) {
+                // keep the responses of requests that were degraded while applying
+                if (responses[i] != null) {
+                    continue;
+                }
+                Instance instance = requests.get(i).getInstance();
+                if (message != null) {
+                    responses[i] = degradeInstance(instance, message);
+                    continue;
                 }
                 InstanceResponse response = new InstanceResponse();
-                Instance instance = request.getInstance();
-                _adapter.updateInstanceAdded(instance, request.getServiceInstance());
+                _adapter.updateInstanceAdded(instance, requests.get(i).getServiceInstance());
                 response.getModified().add(instance);
                 response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return resetProfileStatus(profileName, connection, com.microsoft.schemas.azure.trafficmgr.Status.DISABLED,
-                            response);
-                }
-                return Promise.pure(response);
+                responses[i] = response;
             }
-        });
-    }
+            return message != null ? degradeInstance(null, message) : ignore();
+        }
 
-    private Promise<InstanceResponse> removeEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final InstanceRequest request)
-    {
-        final InstanceResponse ignoreResponse = new InstanceResponse();
-        ignoreResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        // ignore if no policy
-        if (policy == null) {
-            return Promise.pure(ignoreResponse);
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(ignoreResponse);
-            }
-            for (Iterator<Endpoint> iter = endpoints.getEndpoints().iterator(); iter.hasNext();) {
-                Endpoint endpoint = iter.next();
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    iter.remove();
-                    final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                        public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() == 200) {
-                                InstanceResponse response = new InstanceResponse();
-                                Instance instance = request.getInstance();
-                                _adapter.updateInstanceRemoved(instance, request.getServiceInstance());
-                                response.getModified().add(instance);
-                                response.setStatus(Status.COMPLETE);
-                                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                                if (definition.getStatus() != null
-                                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                    return resetProfileStatus(profileName, connection,
-                                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                                }
-                                return Promise.pure(response);
-                            }
-                            else {
-                                // ignore
-                                if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                    TrafficManagerInstanceOperations.logger.debug("POST " + uri + ": "
-                                            + ConnectionUtil.getStatusInfo(connection, arg));
-                                }
-                                return Promise.pure(ignoreResponse);
-                            }
-                        }
-                    });
+        private List<InstanceResponse> getResponses()
+        {
+            return Arrays.asList(responses);
+        }
+
+        private void failed(String message)
+        {
+            for (int i = 0; i < responses.length; i++) {
+                if (responses[i] == null || responses[i].getStatus() != Status.FAILURE) {
+                    responses[i] = degradeInstance(requests.get(i).getInstance(), message);
                 }
             }
         }
-        return Promise.pure(ignoreResponse);
+
+        private InstanceResponse degradeAll(String degradeReason)
+        {
+            for (int i = 0; i < requests.size(); i++) {
+                responses[i] = degradeInstance(requests.get(i).getInstance(), degradeReason);
+            }
+            return degradeInstance(null, degradeReason);
+        }
     }
 
-    private Promise<InstanceResponse> enableEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final InstanceRequest request)
+    private class RemoveEndpoint implements DefinitionWriteQueue.Change<InstanceResponse>
     {
-        InstanceResponse informResponse = new InstanceResponse();
-        informResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeInstance(request.getInstance(),
-                    "Could not enable on load balancer. Load balancer policy is not found."));
+        private final AzureConnection connection;
+        private final InstanceRequest request;
+
+        private RemoveEndpoint(AzureConnection connection, InstanceRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
         }
-        Endpoints endpoints = policy.getEndpoints();
-        Endpoint endpointModified = null;
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(degradeInstance(request.getInstance(),
-                        "Could not enable on load balancer. Instance domain name is not found."));
+
+        public InstanceResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            // ignore if no policy
+            if (policy == null) {
+                return ignore();
             }
-            for (Endpoint endpoint : endpoints.getEndpoints()) {
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    // enable endpoint
-                    endpointModified = endpoint;
-                    endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-                    String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                        public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() != 200) {
-                                String message =
-                                        "Could not enable on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                                return Promise.pure(degradeInstance(request.getInstance(), message));
-                            }
-                            InstanceResponse response = new InstanceResponse();
-                            response.setStatus(Status.COMPLETE);
-                            // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                            if (definition.getStatus() != null
-                                    && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                return resetProfileStatus(profileName, connection,
-                                        com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                            }
-                            return Promise.pure(response);
-                        }
-                    });
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return ignore();
+                }
+                for (Iterator<Endpoint> iter = endpoints.getEndpoints().iterator(); iter.hasNext();) {
+                    Endpoint endpoint = iter.next();
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        iter.remove();
+                        return null;
+                    }
                 }
             }
+            return ignore();
         }
-        if (endpointModified == null) {
-            return Promise.pure(degradeInstance(request.getInstance(),
-                    "Could not enable on load balancer. Coud not find endpoint."));
+
+        public InstanceResponse notFound(IHttpResponse response)
+        {
+            // profile doesn't exist, ignore
+            return ignore();
+        }
+
+        public InstanceResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                // ignore
+                if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
+                    TrafficManagerInstanceOperations.logger.debug("POST definitions: "
+                            + ConnectionUtil.getStatusInfo(connection, arg));
+                }
+                return ignore();
+            }
+            InstanceResponse response = new InstanceResponse();
+            Instance instance = request.getInstance();
+            _adapter.updateInstanceRemoved(instance, request.getServiceInstance());
+            response.getModified().add(instance);
+            response.setStatus(Status.COMPLETE);
+            return response;
         }
-        return Promise.pure(informResponse);
     }
 
-    private Promise<InstanceResponse> disableEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final InstanceRequest request)
+    private class EnableEndpoint implements DefinitionWriteQueue.Change<InstanceResponse>
     {
-        // ignore if not able to disable
-        final InstanceResponse ignoreResponse = new InstanceResponse();
-        ignoreResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        // ignore if no policy, should not happen
-        if (policy == null) {
-            return Promise.pure(ignoreResponse);
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(ignoreResponse);
+        private final AzureConnection connection;
+        private final InstanceRequest request;
+
+        private EnableEndpoint(AzureConnection connection, InstanceRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public InstanceResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeInstance(request.getInstance(),
+                        "Could not enable on load balancer. Load balancer policy is not found.");
             }
-            for (Endpoint endpoint : endpoints.getEndpoints()) {
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    // disable endpoint
-                    endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.DISABLED);
-                    final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<InstanceResponse>>() {
-                        public Promise<InstanceResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() != 200) {
-                                if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
-                                    TrafficManagerInstanceOperations.logger.debug("POST " + uri + ": "
-                                            + ConnectionUtil.getStatusInfo(connection, arg));
-                                }
-                                return Promise.pure(ignoreResponse);
-                            }
-                            InstanceResponse response = new InstanceResponse();
-                            response.setStatus(Status.COMPLETE);
-                            // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                            if (definition.getStatus() != null
-                                    && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                return resetProfileStatus(profileName, connection,
-                                        com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                            }
-                            return Promise.pure(response);
-                        }
-                    });
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return degradeInstance(request.getInstance(),
+                            "Could not enable on load balancer. Instance domain name is not found.");
+                }
+                for (Endpoint endpoint : endpoints.getEndpoints()) {
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        // enable endpoint
+                        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+                        return null;
+                    }
                 }
             }
+            return degradeInstance(request.getInstance(),
+                    "Could not enable on load balancer. Coud not find endpoint.");
         }
-        return Promise.pure(ignoreResponse);
-    }
 
-    private String getDomainName(InstanceRequest request)
-    {
-        return _adapter.getDomainName(request.getInstance());
+        public InstanceResponse notFound(IHttpResponse response)
+        {
+            return degradeInstance(request.getInstance(),
+                    "Could not enable on load balancer. Load balancer cannot be found. ");
+        }
+
+        public InstanceResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not enable on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeInstance(request.getInstance(), message);
+            }
+            InstanceResponse response = new InstanceResponse();
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
     }
 
-    protected Promise<InstanceResponse> resetProfileStatus(final String profileName, final AzureConnection connection,
-            final com.microsoft.schemas.azure.trafficmgr.Status status, final InstanceResponse delegateResponse)
+    private class DisableEndpoint implements DefinitionWriteQueue.Change<InstanceResponse>
     {
-        final Profile profile = new Profile();
-        profile.setStatus(status);
-        StatusDetails details = new StatusDetails();
-        details.setEnabledVersion(1);
-        profile.setStatusDetails(details);
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName;
-        Promise<IHttpResponse> promise = connection.put(uri, profile, IHttpResponse.class);
-        return promise.map(new Function<IHttpResponse, InstanceResponse>() {
-            public InstanceResponse invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() == 200) {
-                    return delegateResponse;
+        private final AzureConnection connection;
+        private final InstanceRequest request;
+
+        private DisableEndpoint(AzureConnection connection, InstanceRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public InstanceResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            // ignore if no policy, should not happen
+            if (policy == null) {
+                return ignore();
+            }
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return ignore();
                 }
-                else {
-                    String message = "Not able to reset profile status. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    InstanceResponse response = new InstanceResponse();
-                    response.setStatus(Status.FAILURE);
-                    response.setMessage(message);
-                    return response;
+                for (Endpoint endpoint : endpoints.getEndpoints()) {
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        // disable endpoint
+                        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.DISABLED);
+                        return null;
+                    }
                 }
             }
-        });
-    }
+            return ignore();
+        }
 
-    private InstanceResponse degradeInstance(Instance instance, String degradeReason)
-    {
-        InstanceResponse response = new InstanceResponse();
-        response.setStatus(Status.FAILURE);
-        response.setMessage(degradeReason);
-        return response;
+        public InstanceResponse notFound(IHttpResponse response)
+        {
+            // profile doesn't exist, ignore
+            return ignore();
+        }
+
+        public InstanceResponse written(IHttpResponse arg)
+        {
+            // ignore if not able to disable
+            if (arg.getStatusCode() != 200) {
+                if (TrafficManagerInstanceOperations.logger.isDebugEnabled()) {
+                    TrafficManagerInstanceOperations.logger.debug("POST definitions: "
+                            + ConnectionUtil.getStatusInfo(connection, arg));
+                }
+                return ignore();
+            }
+            InstanceResponse response = new InstanceResponse();
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
     }
 }
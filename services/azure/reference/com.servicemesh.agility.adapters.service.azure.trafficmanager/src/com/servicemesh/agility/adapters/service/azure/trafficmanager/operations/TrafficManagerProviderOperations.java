@@ -24,6 +24,7 @@ import com.microsoft.schemas.azure.trafficmgr.Protocol;
 import com.servicemesh.agility.adapters.core.azure.AzureConnection;
 import com.servicemesh.agility.adapters.core.azure.AzureConnectionFactory;
 import com.servicemesh.agility.adapters.core.azure.Config;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.DependencyIndex;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerConfig;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
@@ -34,18 +35,24 @@ import com.servicemesh.agility.api.AssetProperty;
 import com.servicemesh.agility.api.Connection;
 import com.servicemesh.agility.api.Credential;
 import com.servicemesh.agility.api.ImportMode;
+import com.servicemesh.agility.api.Instance;
 import com.servicemesh.agility.api.Link;
 import com.servicemesh.agility.api.ServiceInstance;
 import com.servicemesh.agility.api.ServiceProvider;
 import com.servicemesh.agility.api.ServiceState;
 import com.servicemesh.agility.api.Template;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPingRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPostDeleteRequest;
+import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPostUpdateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPreCreateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderPreUpdateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderSyncRequest;
+import com.servicemesh.core.async.Callback;
+import com.servicemesh.core.async.CompletablePromise;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
+import com.servicemesh.core.async.PromiseFactory;
 import com.servicemesh.core.messaging.Status;
 import com.servicemesh.io.http.IHttpResponse;
 
@@ -71,15 +78,28 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
         catch (Exception ex) {
             return Promise.pure(ex);
         }
+        // clouds may have been updated since they were classified
+        _adapter.getEndpointClassifier().refresh(request.getClouds());
         String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles";
+        final long started = System.currentTimeMillis();
         Promise<Profiles> promise = connection.get(uri, null, Profiles.class);
         return promise.flatMap(new Function<Profiles, Promise<ServiceProviderResponse>>() {
             public Promise<ServiceProviderResponse> invoke(Profiles arg)
             {
+                Map<Integer, Connection> connections = new HashMap<Integer, Connection>();
+                for (Connection conn : request.getConnections()) {
+                    connections.put(conn.getId(), conn);
+                }
+                DependencyIndex connectedAssets =
+                        new DependencyIndex(_adapter, request.getConnectedAssets(), request.getConnections());
+                List<String> profileNames = new ArrayList<String>();
                 List<Promise<ServiceProviderResponse>> sequence = new ArrayList<Promise<ServiceProviderResponse>>();
                 for (Profile profile : arg.getProfiles()) {
-                    sequence.add(syncProfile(profile, connection, request));
+                    _adapter.getDefinitionCache().validate(connection, profile);
+                    profileNames.add(profile.getName());
+                    sequence.add(syncProfileTimed(profile, connection, request, connections, connectedAssets));
                 }
+                _adapter.getProfileSyncState().retain(connection, profileNames);
 
                 Promise<List<ServiceProviderResponse>> promiseSequence = Promise.sequence(sequence);
                 return promiseSequence.map(new Function<List<ServiceProviderResponse>, ServiceProviderResponse>() {
@@ -87,6 +107,7 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
                     {
                         ServiceProviderResponse response = new ServiceProviderResponse();
                         response.setStatus(Status.COMPLETE);
+                        int failed = 0;
                         for (ServiceProviderResponse res : arg) {
                             if (res.getStatus() == Status.COMPLETE) {
                                 for (Asset asset : res.getModified()) {
@@ -95,7 +116,12 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
                                     }
                                 }
                             }
+                            else {
+                                failed++;
+                            }
                         }
+                        TrafficManagerProviderOperations.logger.info("Synchronized " + arg.size() + " profiles in "
+                                + (System.currentTimeMillis() - started) + " ms, " + failed + " failed");
                         return response;
                     }
                 });
@@ -103,12 +129,46 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
         });
     }
 
+    private Promise<ServiceProviderResponse> syncProfileTimed(final Profile profile, final AzureConnection connection,
+            ServiceProviderSyncRequest request, Map<Integer, Connection> connections, DependencyIndex connectedAssets)
+    {
+        final long started = System.currentTimeMillis();
+        Promise<ServiceProviderResponse> result = syncProfile(profile, connection, request, connections, connectedAssets);
+        // report timing per profile, and keep one failing profile from failing the whole sync
+        final CompletablePromise<ServiceProviderResponse> timed = PromiseFactory.create();
+        result.onComplete(new Callback<ServiceProviderResponse>() {
+            public void invoke(ServiceProviderResponse arg)
+            {
+                if (TrafficManagerProviderOperations.logger.isDebugEnabled()) {
+                    TrafficManagerProviderOperations.logger.debug("Synchronized profile " + profile.getName() + " in "
+                            + (System.currentTimeMillis() - started) + " ms, status " + arg.getStatus() + ", lock "
+                            + _adapter.getProfileLocks().getStats(profile.getName()));
+                }
+                timed.complete(arg);
+            }
+        });
+        result.onFailure(new Callback<Throwable>() {
+            public void invoke(Throwable t)
+            {
+                TrafficManagerProviderOperations.logger.warn("Failed to synchronize profile " + profile.getName() + " after "
+                        + (System.currentTimeMillis() - started) + " ms: " + t.getMessage());
+                ServiceProviderResponse failure = new ServiceProviderResponse();
+                failure.setStatus(Status.FAILURE);
+                failure.setMessage(t.getMessage());
+                timed.complete(failure);
+            }
+        });
+        return timed;
+    }
+
     private Promise<ServiceProviderResponse> syncProfile(final Profile profile, final AzureConnection connection,
-            final ServiceProviderSyncRequest request)
+            final ServiceProviderSyncRequest request, final Map<Integer, Connection> connections,
+            final DependencyIndex connectedAssets)
     {
         final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profile.getName() + "/definitions/1";
         TrafficManagerProviderOperations.logger.debug("Synchronizing profile " + profile.getName());
-        Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
+        final long stamp = _adapter.getDefinitionCache().getStamp(connection, profile.getName());
+        Promise<IHttpResponse> promise = _adapter.getProfileSyncEngine().get(connection, uri);
         return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
             public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
             {
@@ -117,53 +177,95 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
                         TrafficManagerProviderOperations.logger.debug("GET " + uri + ": "
                                 + ConnectionUtil.getStatusInfo(connection, arg));
                     }
+                    _adapter.getDefinitionCache().invalidate(connection, profile.getName());
                     ServiceProviderResponse ignore = new ServiceProviderResponse();
                     ignore.setStatus(Status.FAILURE);
                     return Promise.pure(ignore);
                 }
-                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                ServiceInstance serviceInstance = getServiceInstance(request, profile.getName());
+                final Definition definition = connection.getEndpoint().decode(arg, Definition.class);
+                final ServiceInstance serviceInstance = getServiceInstance(request, profile.getName());
                 // not known to agility, ignore as we are not onboarding here
                 if (serviceInstance == null) {
+                    _adapter.getDefinitionCache().invalidate(connection, profile.getName());
+                    _adapter.getProfileSyncState().forget(connection, profile.getName());
                     ServiceProviderResponse ignore = new ServiceProviderResponse();
                     ignore.setStatus(Status.COMPLETE);
                     return Promise.pure(ignore);
                 }
-                ServiceProviderResponse resp = new ServiceProviderResponse();
+                final ServiceProviderResponse resp = new ServiceProviderResponse();
                 resp.setStatus(Status.COMPLETE);
                 // sync service instance
                 if (syncServiceInstance(profile, definition, serviceInstance)) {
                     resp.getModified().add(serviceInstance);
                 }
-                // sync connections
-                List<Asset> dependents = getDependentsForServiceInstance(request, serviceInstance);
-                Map<Endpoint, Connection> endpointMap = new HashMap<Endpoint, Connection>();
-                if (definition.getPolicy() != null && definition.getPolicy().getEndpoints() != null) {
-                    for (Endpoint endpoint : definition.getPolicy().getEndpoints().getEndpoints()) {
-                        // match up by domain name
-                        Connection connection = _adapter.findDependentConnection(endpoint, dependents, request.getConnections());
-                        // ignore, possibly not known to agility
-                        if (connection == null) {
-                            continue;
-                        }
-                        endpointMap.put(endpoint, connection);
-                        if (syncConnection(endpoint, connection)) {
-                            resp.getModified().add(connection);
-                        }
+                // establish missing instance canonical names on the resolver threads, so matching endpoints does not block
+                final List<Asset> dependents = getDependentsForServiceInstance(connectedAssets, serviceInstance);
+                List<Instance> unresolved = new ArrayList<Instance>();
+                for (Asset dependent : dependents) {
+                    if (dependent instanceof Instance && _adapter.getDomainName((Instance) dependent) == null) {
+                        unresolved.add((Instance) dependent);
                     }
                 }
-                if (syncEndpointsOrder(definition, endpointMap)) {
-                    for (Connection connection : endpointMap.values()) {
-                        if (!resp.getModified().contains(connection)) {
-                            resp.getModified().add(connection);
-                        }
+                Promise<List<Boolean>> resolved =
+                        unresolved.isEmpty() ? Promise.pure((List<Boolean>) new ArrayList<Boolean>()) : _adapter
+                                .resolveCanonicalNames(unresolved);
+                return resolved.map(new Function<List<Boolean>, ServiceProviderResponse>() {
+                    public ServiceProviderResponse invoke(List<Boolean> arg)
+                    {
+                        syncConnections(connection, profile, definition, serviceInstance, request, connections, dependents,
+                                resp);
+                        // sync has not modified the definition, keep it for the next writer of this profile
+                        _adapter.getDefinitionCache().refresh(connection, profile.getName(), definition, stamp);
+                        return resp;
                     }
-                }
-                return Promise.pure(resp);
+                });
             }
         });
     }
 
+    private void syncConnections(AzureConnection azureConnection, Profile profile, Definition definition,
+            ServiceInstance serviceInstance, ServiceProviderSyncRequest request, Map<Integer, Connection> connections,
+            List<Asset> dependents, ServiceProviderResponse resp)
+    {
+        // sync connections, only matching endpoints that the previous sync did not match; connections
+        // are always synchronized as they may have changed in Agility
+        ProfileSyncState state = _adapter.getProfileSyncState();
+        Map<String, Integer> previous = state.getMatches(azureConnection, profile.getName(), serviceInstance.getId());
+        Map<String, Integer> matches = new HashMap<String, Integer>();
+        DependencyIndex index = null;
+        Map<Endpoint, Connection> endpointMap = new HashMap<Endpoint, Connection>();
+        if (definition.getPolicy() != null && definition.getPolicy().getEndpoints() != null) {
+            for (Endpoint endpoint : definition.getPolicy().getEndpoints().getEndpoints()) {
+                Integer connectionId = previous.get(endpoint.getDomainName());
+                Connection connection = connectionId != null ? connections.get(connectionId) : null;
+                if (connection == null) {
+                    if (index == null) {
+                        index = new DependencyIndex(_adapter, dependents, request.getConnections());
+                    }
+                    // match up by domain name
+                    connection = index.getConnection(endpoint);
+                }
+                // ignore, possibly not known to agility
+                if (connection == null) {
+                    continue;
+                }
+                matches.put(endpoint.getDomainName(), connection.getId());
+                endpointMap.put(endpoint, connection);
+                if (syncConnection(endpoint, connection)) {
+                    resp.getModified().add(connection);
+                }
+            }
+        }
+        if (syncEndpointsOrder(definition, endpointMap)) {
+            for (Connection connection : endpointMap.values()) {
+                if (!resp.getModified().contains(connection)) {
+                    resp.getModified().add(connection);
+                }
+            }
+        }
+        state.update(azureConnection, profile.getName(), serviceInstance.getId(), matches);
+    }
+
     private boolean syncEndpointsOrder(Definition definition, Map<Endpoint, Connection> endpointMap)
     {
         boolean changed = false;
@@ -362,17 +464,17 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
         return null;
     }
 
-    private List<Asset> getDependentsForServiceInstance(ServiceProviderSyncRequest request, ServiceInstance serviceInstance)
+    private List<Asset> getDependentsForServiceInstance(DependencyIndex connectedAssets, ServiceInstance serviceInstance)
     {
         List<Asset> dependents = new ArrayList<Asset>();
         for (Link depLink : serviceInstance.getDependents()) {
-            Asset dependent = _adapter.findAsset(request.getConnectedAssets(), depLink);
+            Asset dependent = connectedAssets.getAsset(depLink);
             if (dependent != null) {
                 dependents.add(dependent);
             }
             // include instances
             if (dependent instanceof Template) {
-                dependents.addAll(_adapter.findInstanceAssets(request.getConnectedAssets(), (Template) dependent));
+                dependents.addAll(connectedAssets.getInstances((Template) dependent));
             }
         }
         return dependents;
@@ -423,6 +525,19 @@ public class TrafficManagerProviderOperations extends com.servicemesh.agility.sd
         return Promise.pure(response);
     }
 
+    public Promise<ServiceProviderResponse> postUpdate(ServiceProviderPostUpdateRequest request)
+    {
+        // subscription may have changed
+        _adapter.getEndpointClassifier().invalidate();
+        return super.postUpdate(request);
+    }
+
+    public Promise<ServiceProviderResponse> postDelete(ServiceProviderPostDeleteRequest request)
+    {
+        _adapter.getEndpointClassifier().invalidate();
+        return super.postDelete(request);
+    }
+
     public Promise<ServiceProviderResponse> preUpdate(ServiceProviderPreUpdateRequest request)
     {
         // credentials and subscription are required if cloud not specified
@@ -25,6 +25,8 @@ import com.microsoft.schemas.azure.trafficmgr.Protocol;
 import com.microsoft.schemas.azure.trafficmgr.Result;
 import com.microsoft.schemas.azure.trafficmgr.StatusDetails;
 import com.servicemesh.agility.adapters.core.azure.AzureConnection;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.DependencyIndex;
+import com.servicemesh.agility.adapters.service.azure.trafficmanager.ProfileLocks.Hold;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerAdapter;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerConfig;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
@@ -37,7 +39,6 @@ import com.servicemesh.agility.api.Instance;
 import com.servicemesh.agility.api.ServiceInstance;
 import com.servicemesh.agility.api.ServiceState;
 import com.servicemesh.agility.api.Template;
-import com.servicemesh.agility.distributed.sync.AsyncLock;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceProvisionRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceReconfigureRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceReleaseRequest;
@@ -47,7 +48,6 @@ import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceStopRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceValidateRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
 import com.servicemesh.agility.sdk.service.msgs.ValidateMode;
-import com.servicemesh.core.async.Callback;
 import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
 import com.servicemesh.core.messaging.Status;
@@ -154,10 +154,11 @@ public class TrafficManagerServiceInstanceOperations extends
             return getFailed(request, "Unable to get connection. " + ex.getMessage());
         }
         // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileNameFinal + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
+        return _adapter.getProfileLocks().lock(profileNameFinal, new Function<Hold, Promise<ServiceProviderResponse>>() {
+            public Promise<ServiceProviderResponse> invoke(Hold arg)
             {
+                // the profile is about to change outside of the definition write queue
+                _adapter.getDefinitionCache().invalidate(connection, profileNameFinal);
                 // ignore if definition not there
                 Promise<IHttpResponse> promise = connection.post(uri, profile, IHttpResponse.class);
                 Promise<ServiceProviderResponse> flatPromise =
@@ -175,24 +176,6 @@ public class TrafficManagerServiceInstanceOperations extends
                                 }
                             }
                         });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
                 return flatPromise;
             }
         });
@@ -216,12 +199,14 @@ public class TrafficManagerServiceInstanceOperations extends
         if (profileName == null) {
             profileName = profileNameFromDomainName(domainName);
         }
+        final String profileNameFinal = profileName;
         final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName;
         // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
+        return _adapter.getProfileLocks().lock(profileName, new Function<Hold, Promise<ServiceProviderResponse>>() {
+            public Promise<ServiceProviderResponse> invoke(Hold arg)
             {
+                // the profile is about to change outside of the definition write queue
+                _adapter.getDefinitionCache().invalidate(connection, profileNameFinal);
                 // ignore if definition not there
                 Promise<IHttpResponse> promise = connection.delete(uri);
                 Promise<ServiceProviderResponse> flatPromise =
@@ -257,24 +242,6 @@ public class TrafficManagerServiceInstanceOperations extends
                                 }
                             }
                         });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
                 return flatPromise;
             }
         });
@@ -290,7 +257,7 @@ public class TrafficManagerServiceInstanceOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        String profileName =
+        final String profileName =
                 com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
                         TrafficManagerConfig.CONFIG_PROFILE_NAME, request.getServiceInstance().getAssetProperties());
         if (profileName == null) {
@@ -303,10 +270,11 @@ public class TrafficManagerServiceInstanceOperations extends
         details.setEnabledVersion(1);
         profile.setStatusDetails(details);
         // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
+        return _adapter.getProfileLocks().lock(profileName, new Function<Hold, Promise<ServiceProviderResponse>>() {
+            public Promise<ServiceProviderResponse> invoke(Hold arg)
             {
+                // the profile is about to change outside of the definition write queue
+                _adapter.getDefinitionCache().invalidate(connection, profileName);
                 Promise<IHttpResponse> promise = connection.put(uri, profile, IHttpResponse.class);
                 Promise<ServiceProviderResponse> flatPromise =
                         promise.map(new Function<IHttpResponse, ServiceProviderResponse>() {
@@ -333,24 +301,6 @@ public class TrafficManagerServiceInstanceOperations extends
                                 }
                             }
                         });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
                 return flatPromise;
             }
         });
@@ -366,7 +316,7 @@ public class TrafficManagerServiceInstanceOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        String profileName =
+        final String profileName =
                 com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
                         TrafficManagerConfig.CONFIG_PROFILE_NAME, request.getServiceInstance().getAssetProperties());
         if (profileName == null) {
@@ -379,10 +329,11 @@ public class TrafficManagerServiceInstanceOperations extends
         details.setEnabledVersion(1);
         profile.setStatusDetails(details);
         // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
+        return _adapter.getProfileLocks().lock(profileName, new Function<Hold, Promise<ServiceProviderResponse>>() {
+            public Promise<ServiceProviderResponse> invoke(Hold arg)
             {
+                // the profile is about to change outside of the definition write queue
+                _adapter.getDefinitionCache().invalidate(connection, profileName);
                 Promise<IHttpResponse> promise = connection.put(uri, profile, IHttpResponse.class);
                 Promise<ServiceProviderResponse> flatPromise =
                         promise.map(new Function<IHttpResponse, ServiceProviderResponse>() {
@@ -409,24 +360,6 @@ public class TrafficManagerServiceInstanceOperations extends
                                 }
                             }
                         });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
                 return flatPromise;
             }
         });
@@ -470,10 +403,11 @@ public class TrafficManagerServiceInstanceOperations extends
         final String profileNameFinal = profileName;
         final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
+        return _adapter.getProfileLocks().lock(profileName, new Function<Hold, Promise<ServiceProviderResponse>>() {
+            public Promise<ServiceProviderResponse> invoke(Hold arg)
             {
+                // the profile is about to change outside of the definition write queue
+                _adapter.getDefinitionCache().invalidate(connection, profileNameFinal);
                 Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
                 Promise<ServiceProviderResponse> flatPromise =
                         promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
@@ -493,24 +427,6 @@ public class TrafficManagerServiceInstanceOperations extends
                                 return createDefinition(definition, profileNameFinal, connection, request, serviceModified);
                             }
                         });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
                 return flatPromise;
             }
         });
@@ -694,17 +610,14 @@ public class TrafficManagerServiceInstanceOperations extends
             return Promise.pure(ex);
         }
         // location is required for traffic manager or any type endpoints for performance load balancing
+        DependencyIndex index = new DependencyIndex(_adapter, request.getDependents(), request.getDestConnections());
         for (Asset dep : request.getDependents()) {
             Connection conn = null;
             if (dep instanceof ServiceInstance) {
-                conn =
-                        _adapter.findDependentConnection(request.getDestConnections(), dep,
-                                "application/com.servicemesh.agility.api.ServiceInstance+xml");
+                conn = index.getConnection(dep, DependencyIndex.SERVICE_INSTANCE_TYPE);
             }
             else if (dep instanceof Template) {
-                conn =
-                        _adapter.findDependentConnection(request.getDestConnections(), dep,
-                                "application/com.servicemesh.agility.api.Template+xml");
+                conn = index.getConnection(dep, DependencyIndex.TEMPLATE_TYPE);
             }
             try {
                 _adapter.validateLocation(connection, request.getServiceInstance(), dep, conn, request.getClouds(),
@@ -21,10 +21,8 @@ import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficMana
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.TrafficManagerConfig;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionFactory;
 import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.ConnectionUtil;
-import com.servicemesh.agility.adapters.service.azure.trafficmanager.connection.Constants;
 import com.servicemesh.agility.api.Connection;
 import com.servicemesh.agility.api.ServiceInstance;
-import com.servicemesh.agility.distributed.sync.AsyncLock;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstanceLifecycleRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstancePostProvisionRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstancePostReleaseRequest;
@@ -34,8 +32,6 @@ import com.servicemesh.agility.sdk.service.msgs.ServiceInstancePreReleaseRequest
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstancePreRestartRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceInstancePreStopRequest;
 import com.servicemesh.agility.sdk.service.msgs.ServiceProviderResponse;
-import com.servicemesh.core.async.Callback;
-import com.servicemesh.core.async.Function;
 import com.servicemesh.core.async.Promise;
 import com.servicemesh.core.messaging.Status;
 import com.servicemesh.io.http.IHttpResponse;
@@ -67,7 +63,6 @@ public class TrafficManagerServiceLifecycleOperations extends
             return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
                     "Could not attach to load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -75,50 +70,7 @@ public class TrafficManagerServiceLifecycleOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerServiceLifecycleOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                                            "Could not attach to load balancer.  Load balancer cannot be found."));
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return addEndpoint(definition, profileName, connection, request);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new AddEndpoint(connection, request));
     }
 
     @Override
@@ -139,7 +91,6 @@ public class TrafficManagerServiceLifecycleOperations extends
             return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
                     "Could not enable on load balancer. Profile name is not found."));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -147,50 +98,7 @@ public class TrafficManagerServiceLifecycleOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerServiceLifecycleOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                                            "Could not enable on load balancer.  Load balancer cannot be found."));
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return enableEndpoint(definition, profileName, connection, request);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new EnableEndpoint(connection, request));
     }
 
     @Override
@@ -224,7 +132,6 @@ public class TrafficManagerServiceLifecycleOperations extends
         if (request.getDependentServiceInstance() == null) {
             return Promise.pure(new Exception("Dependent Service Instance is not found"));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -232,52 +139,7 @@ public class TrafficManagerServiceLifecycleOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                // profile doesn't exist, ignore
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerServiceLifecycleOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    ServiceProviderResponse response = new ServiceProviderResponse();
-                                    response.setStatus(Status.COMPLETE);
-                                    return Promise.pure(response);
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return disableEndpoint(definition, profileName, connection, request);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new DisableEndpoint(connection, request));
     }
 
     @Override
@@ -294,7 +156,6 @@ public class TrafficManagerServiceLifecycleOperations extends
         if (request.getDependentServiceInstance() == null) {
             return Promise.pure(new Exception("Dependent Service Instance is not found"));
         }
-        final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions/1";
         final AzureConnection connection;
         try {
             connection = _factory.getConnection(request);
@@ -302,52 +163,7 @@ public class TrafficManagerServiceLifecycleOperations extends
         catch (Exception ex) {
             return Promise.pure(ex);
         }
-        // lock at profile name so multiple requests don't modify service at the same time to avoid discrepancies 
-        Promise<AsyncLock> lock = AsyncLock.lock("/agility/trafficmanager/profile/" + profileName + "/lock");
-        return lock.flatMap(new Function<AsyncLock, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(final AsyncLock arg)
-            {
-                // ignore if definition not there
-                Promise<IHttpResponse> promise = connection.get(uri, null, IHttpResponse.class);
-                Promise<ServiceProviderResponse> flatPromise =
-                        promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                            {
-                                // profile doesn't exist, ignore
-                                if (arg.getStatusCode() != 200) {
-                                    if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                        TrafficManagerServiceLifecycleOperations.logger.debug("GET " + uri + ": "
-                                                + ConnectionUtil.getStatusInfo(connection, arg));
-                                    }
-                                    ServiceProviderResponse response = new ServiceProviderResponse();
-                                    response.setStatus(Status.COMPLETE);
-                                    return Promise.pure(response);
-                                }
-                                Definition definition = connection.getEndpoint().decode(arg, Definition.class);
-                                return removeEndpoint(definition, profileName, connection, request);
-                            }
-                        });
-                flatPromise.onFailure(new Callback<Throwable>() {
-                    public void invoke(Throwable t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onComplete(new Callback<ServiceProviderResponse>() {
-                    public void invoke(ServiceProviderResponse t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                flatPromise.onCancel(new Callback<Void>() {
-                    public void invoke(Void t)
-                    {
-                        arg.unlock();
-                    }
-                });
-                return flatPromise;
-            }
-        });
+        return _adapter.getDefinitionWriteQueue().submit(profileName, connection, new RemoveEndpoint(connection, request));
     }
 
     @Override
@@ -370,264 +186,292 @@ public class TrafficManagerServiceLifecycleOperations extends
         return _adapter.getDomainName(request.getDependentServiceInstance());
     }
 
-    private Promise<ServiceProviderResponse> addEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final ServiceInstanceLifecycleRequest request)
+    private class AddEndpoint implements DefinitionWriteQueue.Change<ServiceProviderResponse>
     {
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                    "Could not attach to load balancer. Load balancer policy cannot be found. "));
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints == null) {
-            endpoints = new Endpoints();
-            policy.setEndpoints(endpoints);
-        }
-        // domain name
-        final String domainName = getDomainName(request);
-        if (domainName == null) {
-            return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                    "Could not attach to load balancer. Service Instance domain name cannot be found. "));
+        private final AzureConnection connection;
+        private final ServiceInstanceLifecycleRequest request;
+
+        private AddEndpoint(AzureConnection connection, ServiceInstanceLifecycleRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
         }
-        // for now, degrade if endpoint already exists, another option is replace of existing endpoint
-        for (Endpoint endpoint : definition.getPolicy().getEndpoints().getEndpoints()) {
-            if (endpoint.getDomainName().equals(domainName)) {
-                return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                        "Could not attach to load balancer. Endpoint with the same domain name already exists. "));
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeServiceInstance(request.getDependentServiceInstance(),
+                        "Could not attach to load balancer. Load balancer policy cannot be found. ");
             }
-        }
-        Connection conn =
-                _adapter.findDependentConnection(request.getDestConnections(), request.getDependentServiceInstance(),
-                        "application/com.servicemesh.agility.api.ServiceInstance+xml");
-        if (conn == null) {
-            return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                    "Could not attach to load balancer. Endpoint connection cannot be found. "));
-        }
-        Endpoint endpoint = new Endpoint();
-        endpoint.setDomainName(domainName);
-        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-        endpoint.setType(_adapter.getEndpointType(request.getDependentServiceInstance()));
-        endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                TrafficManagerConfig.CONFIG_WEIGHT, conn.getAssetProperties(), TrafficManagerConfig.WEIGHT_DEFAULT));
-        if (endpoint.getType() == Type.TRAFFIC_MANAGER) {
-            endpoint.setMinChildEndpoints(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
-                    TrafficManagerConfig.CONFIG_MIN_CHILD_ENDPOINTS, conn.getAssetProperties(),
-                    TrafficManagerConfig.MIN_CHILD_ENDPOINTS_DEFAULT));
-        }
-        // Location Required when LoadBalancingMethod is set to Performance and Type is set to Any or TrafficManager
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE
-                && (endpoint.getType() == Type.ANY || endpoint.getType() == Type.TRAFFIC_MANAGER)) {
-            ServiceCategory category = _adapter.getCategory(request.getDependentServiceInstance(), request.getServiceProviders());
-            if (category == TrafficManagerAdapter.ServiceCategory.NON_AZURE) {
-                return Promise
-                        .pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                                "Could not attach to load balancer. Performance load balancing method can only be used with Azure services. "));
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints == null) {
+                endpoints = new Endpoints();
+                policy.setEndpoints(endpoints);
             }
-            String location =
-                    com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
-                            TrafficManagerConfig.CONFIG_LOCATION, conn.getAssetProperties(), null);
-            if (location == null) {
-                return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                        "Could not attach to load balancer. Endpoint Location is required. "));
+            // domain name
+            final String domainName = getDomainName(request);
+            if (domainName == null) {
+                return degradeServiceInstance(request.getDependentServiceInstance(),
+                        "Could not attach to load balancer. Service Instance domain name cannot be found. ");
+            }
+            // for now, degrade if endpoint already exists, another option is replace of existing endpoint
+            for (Endpoint endpoint : endpoints.getEndpoints()) {
+                if (endpoint.getDomainName().equals(domainName)) {
+                    return degradeServiceInstance(request.getDependentServiceInstance(),
+                            "Could not attach to load balancer. Endpoint with the same domain name already exists. ");
+                }
             }
-            endpoint.setLocation(location);
-        }
-        endpoints.getEndpoints().add(endpoint);
-        // order if failover loadbalancing method
-        if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
-            Collections.sort(endpoints.getEndpoints(), new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(),
-                    request.getDestConnections(), _adapter));
-        }
-        String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-        Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-        return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-            public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-            {
-                if (arg.getStatusCode() != 200) {
-                    String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                    return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(), message));
+            Connection conn =
+                    _adapter.findDependentConnection(request.getDestConnections(), request.getDependentServiceInstance(),
+                            "application/com.servicemesh.agility.api.ServiceInstance+xml");
+            if (conn == null) {
+                return degradeServiceInstance(request.getDependentServiceInstance(),
+                        "Could not attach to load balancer. Endpoint connection cannot be found. ");
+            }
+            Endpoint endpoint = new Endpoint();
+            endpoint.setDomainName(domainName);
+            endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+            endpoint.setType(_adapter.getEndpointType(request.getDependentServiceInstance()));
+            endpoint.setWeight(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                    TrafficManagerConfig.CONFIG_WEIGHT, conn.getAssetProperties(), TrafficManagerConfig.WEIGHT_DEFAULT));
+            if (endpoint.getType() == Type.TRAFFIC_MANAGER) {
+                endpoint.setMinChildEndpoints(com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsInteger(
+                        TrafficManagerConfig.CONFIG_MIN_CHILD_ENDPOINTS, conn.getAssetProperties(),
+                        TrafficManagerConfig.MIN_CHILD_ENDPOINTS_DEFAULT));
+            }
+            // Location Required when LoadBalancingMethod is set to Performance and Type is set to Any or TrafficManager
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.PERFORMANCE
+                    && (endpoint.getType() == Type.ANY || endpoint.getType() == Type.TRAFFIC_MANAGER)) {
+                ServiceCategory category =
+                        _adapter.getCategory(request.getDependentServiceInstance(), request.getServiceProviders());
+                if (category == TrafficManagerAdapter.ServiceCategory.NON_AZURE) {
+                    return degradeServiceInstance(request.getDependentServiceInstance(),
+                            "Could not attach to load balancer. Performance load balancing method can only be used with Azure services. ");
                 }
-                ServiceProviderResponse response = new ServiceProviderResponse();
-                ServiceInstance instance = request.getDependentServiceInstance();
-                _adapter.updateServiceInstanceAdded(instance, request.getServiceInstance());
-                response.getModified().add(instance);
-                response.setStatus(Status.COMPLETE);
-                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                if (definition.getStatus() != null
-                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                    return _adapter.resetProfileStatus(profileName, connection,
-                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
+                String location =
+                        com.servicemesh.agility.adapters.core.azure.Config.getAssetPropertyAsString(
+                                TrafficManagerConfig.CONFIG_LOCATION, conn.getAssetProperties(), null);
+                if (location == null) {
+                    return degradeServiceInstance(request.getDependentServiceInstance(),
+                            "Could not attach to load balancer. Endpoint Location is required. ");
                 }
-                return Promise.pure(response);
+                endpoint.setLocation(location);
+            }
+            endpoints.getEndpoints().add(endpoint);
+            // order if failover loadbalancing method
+            if (policy.getLoadBalancingMethod() == LoadBalancingMethod.FAILOVER) {
+                Collections.sort(endpoints.getEndpoints(),
+                        new TrafficManagerAdapter.EndpointOrderComparator(request.getDependents(), request.getDestConnections(),
+                                _adapter));
             }
-        });
+            return null;
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return degradeServiceInstance(request.getDependentServiceInstance(),
+                    "Could not attach to load balancer.  Load balancer cannot be found.");
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not attach to load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeServiceInstance(request.getDependentServiceInstance(), message);
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            ServiceInstance instance = request.getDependentServiceInstance();
+            _adapter.updateServiceInstanceAdded(instance, request.getServiceInstance());
+            response.getModified().add(instance);
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
     }
 
-    private Promise<ServiceProviderResponse> removeEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final ServiceInstanceLifecycleRequest request)
+    private class RemoveEndpoint implements DefinitionWriteQueue.Change<ServiceProviderResponse>
     {
-        final ServiceProviderResponse ignoreResponse = new ServiceProviderResponse();
-        ignoreResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        // ignore if no policy
-        if (policy == null) {
-            return Promise.pure(ignoreResponse);
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(ignoreResponse);
+        private final AzureConnection connection;
+        private final ServiceInstanceLifecycleRequest request;
+
+        private RemoveEndpoint(AzureConnection connection, ServiceInstanceLifecycleRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            // ignore if no policy
+            if (policy == null) {
+                return ignore();
             }
-            for (Iterator<Endpoint> iter = endpoints.getEndpoints().iterator(); iter.hasNext();) {
-                Endpoint endpoint = iter.next();
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    iter.remove();
-                    final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                        public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() == 200) {
-                                ServiceProviderResponse response = new ServiceProviderResponse();
-                                ServiceInstance instance = request.getDependentServiceInstance();
-                                _adapter.updateServiceInstanceRemoved(instance, request.getServiceInstance());
-                                response.getModified().add(instance);
-                                response.setStatus(Status.COMPLETE);
-                                // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                                if (definition.getStatus() != null
-                                        && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                    return _adapter.resetProfileStatus(profileName, connection,
-                                            com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                                }
-                                return Promise.pure(response);
-                            }
-                            else {
-                                // ignore
-                                if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                    TrafficManagerServiceLifecycleOperations.logger.debug("POST " + uri + ": "
-                                            + ConnectionUtil.getStatusInfo(connection, arg));
-                                }
-                                return Promise.pure(ignoreResponse);
-                            }
-                        }
-                    });
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return ignore();
                 }
+                for (Iterator<Endpoint> iter = endpoints.getEndpoints().iterator(); iter.hasNext();) {
+                    Endpoint endpoint = iter.next();
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        iter.remove();
+                        return null;
+                    }
+                }
+            }
+            return ignore();
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            // profile doesn't exist, ignore
+            return ignore();
+        }
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                // ignore
+                if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
+                    TrafficManagerServiceLifecycleOperations.logger.debug("POST definitions: "
+                            + ConnectionUtil.getStatusInfo(connection, arg));
+                }
+                return ignore();
             }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            ServiceInstance instance = request.getDependentServiceInstance();
+            _adapter.updateServiceInstanceRemoved(instance, request.getServiceInstance());
+            response.getModified().add(instance);
+            response.setStatus(Status.COMPLETE);
+            return response;
         }
-        return Promise.pure(ignoreResponse);
     }
 
-    private Promise<ServiceProviderResponse> enableEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final ServiceInstanceLifecycleRequest request)
+    private class EnableEndpoint implements DefinitionWriteQueue.Change<ServiceProviderResponse>
     {
-        ServiceProviderResponse informResponse = new ServiceProviderResponse();
-        informResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        if (policy == null) {
-            return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                    "Could not enable on load balancer. Load balancer policy is not found."));
+        private final AzureConnection connection;
+        private final ServiceInstanceLifecycleRequest request;
+
+        private EnableEndpoint(AzureConnection connection, ServiceInstanceLifecycleRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
         }
-        Endpoints endpoints = policy.getEndpoints();
-        Endpoint endpointModified = null;
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                        "Could not enable on load balancer. Instance domain name is not found."));
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            if (policy == null) {
+                return degradeServiceInstance(request.getDependentServiceInstance(),
+                        "Could not enable on load balancer. Load balancer policy is not found.");
             }
-            for (Endpoint endpoint : endpoints.getEndpoints()) {
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    // enable endpoint
-                    endpointModified = endpoint;
-                    endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
-                    String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                        public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() != 200) {
-                                String message =
-                                        "Could not enable on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
-                                return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(), message));
-                            }
-                            ServiceProviderResponse response = new ServiceProviderResponse();
-                            response.setStatus(Status.COMPLETE);
-                            // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                            if (definition.getStatus() != null
-                                    && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                return _adapter.resetProfileStatus(profileName, connection,
-                                        com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                            }
-                            return Promise.pure(response);
-                        }
-                    });
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return degradeServiceInstance(request.getDependentServiceInstance(),
+                            "Could not enable on load balancer. Instance domain name is not found.");
+                }
+                for (Endpoint endpoint : endpoints.getEndpoints()) {
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        // enable endpoint
+                        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.ENABLED);
+                        return null;
+                    }
                 }
             }
+            return degradeServiceInstance(request.getDependentServiceInstance(),
+                    "Could not enable on load balancer. Coud not find endpoint.");
         }
-        if (endpointModified == null) {
-            return Promise.pure(degradeServiceInstance(request.getDependentServiceInstance(),
-                    "Could not enable on load balancer. Coud not find endpoint."));
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            return degradeServiceInstance(request.getDependentServiceInstance(),
+                    "Could not enable on load balancer.  Load balancer cannot be found.");
         }
-        else {
-            return Promise.pure(informResponse);
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            if (arg.getStatusCode() != 200) {
+                String message = "Could not enable on load balancer. " + ConnectionUtil.getStatusInfo(connection, arg);
+                return degradeServiceInstance(request.getDependentServiceInstance(), message);
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            response.setStatus(Status.COMPLETE);
+            return response;
         }
     }
 
-    private Promise<ServiceProviderResponse> disableEndpoint(final Definition definition, final String profileName,
-            final AzureConnection connection, final ServiceInstanceLifecycleRequest request)
+    private class DisableEndpoint implements DefinitionWriteQueue.Change<ServiceProviderResponse>
     {
-        // ignore if not able to disable
-        final ServiceProviderResponse ignoreResponse = new ServiceProviderResponse();
-        ignoreResponse.setStatus(Status.COMPLETE);
-        // assumption that policy exists
-        Policy policy = definition.getPolicy();
-        // ignore if no policy, should not happen
-        if (policy == null) {
-            return Promise.pure(ignoreResponse);
-        }
-        Endpoints endpoints = policy.getEndpoints();
-        if (endpoints != null) {
-            // domain name
-            final String domainName = getDomainName(request);
-            if (domainName == null) {
-                return Promise.pure(ignoreResponse);
+        private final AzureConnection connection;
+        private final ServiceInstanceLifecycleRequest request;
+
+        private DisableEndpoint(AzureConnection connection, ServiceInstanceLifecycleRequest request)
+        {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        public ServiceProviderResponse apply(Definition definition)
+        {
+            // assumption that policy exists
+            Policy policy = definition.getPolicy();
+            // ignore if no policy, should not happen
+            if (policy == null) {
+                return ignore();
             }
-            for (Endpoint endpoint : endpoints.getEndpoints()) {
-                if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
-                    // disable endpoint
-                    endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.DISABLED);
-                    final String uri = Constants.TRAFFIC_MGR_BASE_URI + "/profiles/" + profileName + "/definitions";
-                    Promise<IHttpResponse> promise = connection.post(uri, definition, IHttpResponse.class);
-                    return promise.flatMap(new Function<IHttpResponse, Promise<ServiceProviderResponse>>() {
-                        public Promise<ServiceProviderResponse> invoke(IHttpResponse arg)
-                        {
-                            if (arg.getStatusCode() != 200) {
-                                if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
-                                    TrafficManagerServiceLifecycleOperations.logger.debug("POST " + uri + ": "
-                                            + ConnectionUtil.getStatusInfo(connection, arg));
-                                }
-                                return Promise.pure(ignoreResponse);
-                            }
-                            ServiceProviderResponse response = new ServiceProviderResponse();
-                            response.setStatus(Status.COMPLETE);
-                            // azure will auto enable profile with any change to definition, this is to make sure to reset profile back to disabled if it is disabled
-                            if (definition.getStatus() != null
-                                    && definition.getStatus() == com.microsoft.schemas.azure.trafficmgr.Status.DISABLED) {
-                                return _adapter.resetProfileStatus(profileName, connection,
-                                        com.microsoft.schemas.azure.trafficmgr.Status.DISABLED, response);
-                            }
-                            return Promise.pure(response);
-                        }
-                    });
+            Endpoints endpoints = policy.getEndpoints();
+            if (endpoints != null) {
+                // domain name
+                final String domainName = getDomainName(request);
+                if (domainName == null) {
+                    return ignore();
+                }
+                for (Endpoint endpoint : endpoints.getEndpoints()) {
+                    if (endpoint.getDomainName() != null && endpoint.getDomainName().equals(domainName)) {
+                        // disable endpoint
+                        endpoint.setStatus(com.microsoft.schemas.azure.trafficmgr.Status.DISABLED);
+                        return null;
+                    }
                 }
             }
+            return ignore();
+        }
+
+        public ServiceProviderResponse notFound(IHttpResponse response)
+        {
+            // profile doesn't exist, ignore
+            return ignore();
         }
-        return Promise.pure(ignoreResponse);
+
+        public ServiceProviderResponse written(IHttpResponse arg)
+        {
+            // ignore if not able to disable
+            if (arg.getStatusCode() != 200) {
+                if (TrafficManagerServiceLifecycleOperations.logger.isDebugEnabled()) {
+                    TrafficManagerServiceLifecycleOperations.logger.debug("POST definitions: "
+                            + ConnectionUtil.getStatusInfo(connection, arg));
+                }
+                return ignore();
+            }
+            ServiceProviderResponse response = new ServiceProviderResponse();
+            response.setStatus(Status.COMPLETE);
+            return response;
+        }
+    }
+
+    private ServiceProviderResponse ignore()
+    {
+        ServiceProviderResponse response = new ServiceProviderResponse();
+        response.setStatus(Status.COMPLETE);
+        return response;
     }
 }